@@ -8,10 +8,16 @@ import com.intenovation.email.downloader.EmailCleanup;
 import com.intenovation.email.downloader.EmailDownloader;
 import com.intenovation.email.downloader.EmailDownloaderYearFilter;
 import com.intenovation.email.downloader.ImapDownloader;
+import com.intenovation.email.downloader.ArchiveTextIndexUpdate;
+import com.intenovation.email.downloader.MessageBodyCompression;
+import com.intenovation.email.downloader.MessageIndexRebuild;
+import com.intenovation.email.downloader.SegmentArchiveConversion;
 import com.intenovation.email.ui.EmailBrowserIntegration;
 import com.intenovation.invoice.InvoiceAnalyzerApp;
 import com.intenovation.invoice.InvoiceConfiguration;
 import com.intenovation.invoice.EnhancedInvoiceProcessor;
+import com.intenovation.invoice.LLMEnrichment;
+import com.intenovation.invoice.ReprocessAllInvoices;
 
 import java.time.Year;
 import java.util.ArrayList;
@@ -136,6 +142,8 @@ public class AppBootstrapper {
         categories.add(new CategoryBuilder("Invoices")
                 .addAction("Run Invoice Analysis", invoiceAnalyzer::runInvoiceAnalysisNow)
                 .addAction("Run Enhanced Invoice Analysis", invoiceAnalyzer::runEnhancedInvoiceAnalysisNow)
+                .addAction("Reprocess All Invoices", invoiceAnalyzer::reprocessAllInvoicesNow)
+                .addAction("Run LLM Enrichment", invoiceAnalyzer::runLLMEnrichmentNow)
                 .addAction("Configure Invoice Settings", invoiceAnalyzer::showConfigDialog)
                 .addAction("Open Reports Directory", invoiceAnalyzer::openReportsDirectory)
                 .addAction("Generate Sample Invoice", invoiceAnalyzer::generateSampleInvoice)
@@ -175,8 +183,24 @@ public class AppBootstrapper {
         // Cleanup task
         tasks.add(new EmailCleanup(emailConfig.getCleanupIntervalHours()));
 
-        // Add the Enhanced Invoice Processor
-        tasks.add(new EnhancedInvoiceProcessor(invoiceConfig, uiService));
+        // Recovery task for the persistent message index
+        tasks.add(new MessageIndexRebuild());
+
+        // Migration of existing messages to compressed body files
+        tasks.add(new MessageBodyCompression());
+
+        // Migration of existing messages to segment files
+        tasks.add(new SegmentArchiveConversion());
+
+        // Full-text index for the email browser search, refreshed at the sync interval
+        tasks.add(new ArchiveTextIndexUpdate(emailConfig.getSyncIntervalMinutes()));
+
+        // Add the Enhanced Invoice Processor, the command to parse all messages again
+        // and the background Ollama parsing of what the patterns could not read
+        EnhancedInvoiceProcessor invoiceProcessor = new EnhancedInvoiceProcessor(invoiceConfig, uiService);
+        tasks.add(invoiceProcessor);
+        tasks.add(new ReprocessAllInvoices(invoiceProcessor));
+        tasks.add(new LLMEnrichment(invoiceProcessor));
 
         return tasks;
     }
@@ -1,5 +1,8 @@
 package com.intenovation.appfw.systemtray;
 
+import java.util.Collections;
+import java.util.List;
+
 /**
  * Abstract background task that can be executed with progress tracking and cancellation.
  * Task implementations should extend this class and override the execute method.
@@ -78,6 +81,16 @@ public abstract class BackgroundTask {
         return availableInMenu;
     }
 
+    /**
+     * Get optional metrics of the task, such as throughput or queue depths, shown in the status dialog
+     * and refreshed while it is open. Called from the UI thread, so it must not block.
+     *
+     * @return Lines of metrics, empty if the task has none
+     */
+    public List<String> getMetrics() {
+        return Collections.emptyList();
+    }
+
     /**
      * Get an optional description of the task
      *
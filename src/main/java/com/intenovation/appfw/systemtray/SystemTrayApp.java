@@ -36,6 +36,8 @@ public class SystemTrayApp {
     private JDialog statusDialog;
     private final ConcurrentHashMap<String, JProgressBar> progressBars = new ConcurrentHashMap<>();
     private final ConcurrentHashMap<String, JLabel> statusLabels = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, JLabel> metricsLabels = new ConcurrentHashMap<>();
+    private javax.swing.Timer metricsTimer;
     private final ConcurrentHashMap<String, JButton> startButtons = new ConcurrentHashMap<>();
     private final ConcurrentHashMap<String, JButton> cancelButtons = new ConcurrentHashMap<>();
 
@@ -346,6 +348,7 @@ public class SystemTrayApp {
             // Clear previous component references
             progressBars.clear();
             statusLabels.clear();
+            metricsLabels.clear();
             startButtons.clear();
             cancelButtons.clear();
 
@@ -381,9 +384,17 @@ public class SystemTrayApp {
                     JProgressBar progressBar = new JProgressBar(0, 100);
                     progressBar.setValue(status.getProgress());
                     progressBar.setStringPainted(true);
-                    taskPanel.add(progressBar, BorderLayout.CENTER);
                     progressBars.put(taskName, progressBar);
 
+                    // Task metrics below the progress bar
+                    JPanel progressPanel = new JPanel(new BorderLayout(5, 5));
+                    progressPanel.add(progressBar, BorderLayout.NORTH);
+                    JLabel metricsLabel = new JLabel(formatMetrics(task.getMetrics()));
+                    metricsLabel.setFont(metricsLabel.getFont().deriveFont(metricsLabel.getFont().getSize2D() - 1f));
+                    progressPanel.add(metricsLabel, BorderLayout.CENTER);
+                    metricsLabels.put(taskName, metricsLabel);
+                    taskPanel.add(progressPanel, BorderLayout.CENTER);
+
                     // Status label and control buttons
                     JPanel controlPanel = new JPanel(new BorderLayout(5, 0));
                     JLabel statusLabel = new JLabel(status.getStatus());
@@ -436,10 +447,46 @@ public class SystemTrayApp {
             // Set preferred size to better handle larger content
             statusDialog.setPreferredSize(new Dimension(500, 400));
             statusDialog.setLocationRelativeTo(null);
+
+            // Refresh the task metrics while the dialog is open
+            if (metricsTimer != null) {
+                metricsTimer.stop();
+            }
+            metricsTimer = new javax.swing.Timer(1000, e -> updateMetricsLabels());
+            metricsTimer.start();
+            statusDialog.addWindowListener(new java.awt.event.WindowAdapter() {
+                @Override
+                public void windowClosed(java.awt.event.WindowEvent e) {
+                    metricsTimer.stop();
+                }
+            });
+
             statusDialog.setVisible(true);
         });
     }
 
+    /**
+     * Update the metrics labels in the status dialog; runs on the event dispatch thread
+     */
+    private void updateMetricsLabels() {
+        for (Map.Entry<String, JLabel> entry : metricsLabels.entrySet()) {
+            BackgroundTask task = tasksByName.get(entry.getKey());
+            if (task != null) {
+                entry.getValue().setText(formatMetrics(task.getMetrics()));
+            }
+        }
+    }
+
+    /**
+     * Format metric lines for a label
+     */
+    private static String formatMetrics(List<String> metrics) {
+        if (metrics == null || metrics.isEmpty()) {
+            return "";
+        }
+        return "<html>" + String.join("<br>", metrics) + "</html>";
+    }
+
     /**
      * Exit the application
      */
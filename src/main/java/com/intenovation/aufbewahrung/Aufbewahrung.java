@@ -1,10 +1,10 @@
 package com.intenovation.aufbewahrung;
 
+import com.intenovation.email.downloader.AttachmentWriter;
 import com.intenovation.email.reader.LocalMail;
+import com.intenovation.email.utils.LabelSets;
+import com.intenovation.email.utils.PdfTextCache;
 import com.sun.mail.util.BASE64DecoderStream;
-import org.apache.pdfbox.pdfparser.PDFParser;
-import org.apache.pdfbox.pdmodel.PDDocument;
-import org.apache.pdfbox.text.PDFTextStripper;
 import org.jsoup.Jsoup;
 
 import javax.mail.*;
@@ -13,8 +13,6 @@ import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimeUtility;
 import java.io.*;
-import java.nio.file.Files;
-import java.nio.file.Paths;
 import java.time.LocalDateTime;
 import java.util.Date;
 import java.util.Objects;
@@ -27,6 +25,54 @@ import java.util.Scanner;
 
 public class Aufbewahrung {
 
+    // Labels in priority order; see parseField
+    private static final String[] NUMBER_SUBJECT_LABELS = {
+            "Invoice #:", "Rechnungsnummer:", "Billing Period:", "aktuelle Rechnung", "Invoice no.", "INVOICE",
+            "Bill Period    : ", "Receipt #", "Ihre Rechnung Nr.", "Ihre Rechnung", "Invoice"};
+    private static final String[] AMOUNT_LABELS = {
+            "Gesamtbetrag (brutto)", "Gesamtsumme", "Rechnungsbetrag in Höhe von", "Total Charges:",
+            "Total Amount Due:", "Total Balance Due:", "a payment of", "Total due now:", "Total Due",
+            "Statement Amount:", "Amount due:", "Amount Due:", "Rechnungsbetrag:", "Amount:", "Rechnungsbetrag von",
+            "The amount of", "Rechnungsbetrag in Höhe von", "Invoice amount", "invoice total is ", "Total$",
+            "Original Charge", "Total Charged", "Payment amount:", "BALANCE DUE", "Current charges:", "Total (USD):",
+            "Total (USD)", "Amount Paid:", "Amount paid:", "Total $", "TOTAL $", "Amount Received",
+            "Amount due on this invoice:", "Total", " is $", "Statement balance:", "Statement balance",
+            "Amount Charged $", "Amount Due", "PAY THIS AMOUNT:", "outstanding balance of", "TOTAL", "Amount paid",
+            "DETAILS", "for your payment of", "Converted From:", "invoice for", "Zu zahlender Betrag:", "You paid",
+            "Balance due", "Bill Payment Amount $", "Your payment of $", "Payment amount", "Total charged", "Payments",
+            "charged to your Bank Account is  $-", "*Amount*", "Summe ink l. USt", "Endbetrag EUR", "Total",
+            "received your payment of", "Payment Amount:", "in the amount of", "Your donation total:",
+            "Your payment of **$", "SUBTOTAL: $", "Automatic payment amount", "Amount", "SUBTOTAL: $", "SUBTOTAL:",
+            "Automatic payment amount", "Brutto ", "payment of", "for this period is", "Amount", "amount of",
+            "Total charged", "Balance Due:", "outstanding balance of", "Bill Payment Amount", "Total Payment",
+            "Betrag beläuft sich auf"};
+    private static final String[] DATE_LABELS = {
+            "Billing Date:", "Date:", "Rechnungsdatum:", "Payment date:", "was placed on", "Statement date:"};
+    private static final String[] DUE_DATE_LABELS = {
+            "Due Date:", "DUE DATE", "is due on", "Total Current Charges Due On", "Payment Due Date",
+            "Payment due date:", "TRANSACTION DATE", "Auto Pay Date:", "Received:", "delivered on", "DUE",
+            "AUTO DRAFT DATE:", "APS amount to be applied on", "will be charged on"};
+    private static final String[] NUMBER_LABELS = {
+            "Your invoice", "Invoice #:", "Order Number #", "Rechnungsnummer:", "Billing Period:", "Plan period",
+            "aktuelle Rechnung", "Invoice no.", "Invoice Number:", "INVOICE", "Bill Period    : ", "Receipt #",
+            "Ihre Rechnung", "Order Number", "Order #:"};
+    private static final String[] ACCOUNT_LABELS = {
+            "Kundennummer:", "Kundennummer", "Kunden Nr", "Account Number: Ending in", "account number:",
+            "Account Number:", "Account:", "Service Address:", "Account number:", "Your order from", "ordered from",
+            "Beleg für", "CF Number:", "for account number ******", "Receipt for Your Payment to", "Let ",
+            "for account :", "Customer #:", "account ending in ******", "Policy Number"};
+
+
+    // The label lists of the message content, compiled together so all are found in one pass
+    private static final int AMOUNT = 0;
+    private static final int DATE = 1;
+    private static final int DUE_DATE = 2;
+    private static final int NUMBER = 3;
+    private static final int ACCOUNT = 4;
+    private static final LabelSets CONTENT_LABELS = new LabelSets(AMOUNT_LABELS, DATE_LABELS, DUE_DATE_LABELS,
+            NUMBER_LABELS, ACCOUNT_LABELS);
+    private static final LabelSets SUBJECT_LABELS = new LabelSets(NUMBER_SUBJECT_LABELS);
+
     public Aufbewahrung() {
     }
 
@@ -173,8 +219,7 @@ public class Aufbewahrung {
                 invoice.subject = subject;
                 invoice.email = from;
                 invoice.type = Type.detectType(subject);
-                String number = parseField(subject, false, "Invoice #:", "Rechnungsnummer:", "Billing Period:",
-                        "aktuelle Rechnung", "Invoice no.", "INVOICE", "Bill Period    : ", "Receipt #", "Ihre Rechnung Nr.", "Ihre Rechnung", "Invoice");
+                String number = parseField(subject, false, SUBJECT_LABELS.find(subject)[0]);
                 if (number != null) {
                     number = findEnd(number, "von");
                     number = findEnd(number, "vom");
@@ -294,23 +339,13 @@ public class Aufbewahrung {
             // System.out.println(content);
 
             content = trimLines(content);
+            LabelSets.Match[] labels = CONTENT_LABELS.find(content);
             // content = content.replaceAll("(?m)^[ \t]*\r?\n", "");
             // content = content.replaceAll("(?m)^\\s+$",
             // "").replaceAll("(?m)^\\n", "");
 
             boolean skipLine = folderName.contains("socalgas")|| folderName.contains("Emadco")|| folderName.contains("pearson");
-            String amountString = parseField(content, skipLine, "Gesamtbetrag (brutto)","Gesamtsumme", "Rechnungsbetrag in Höhe von","Total Charges:",
-                    "Total Amount Due:","Total Balance Due:", "a payment of", "Total due now:", "Total Due",
-                    "Statement Amount:", "Amount due:","Amount Due:", "Rechnungsbetrag:", "Amount:", "Rechnungsbetrag von", "The amount of",
-                    "Rechnungsbetrag in Höhe von", "Invoice amount", "invoice total is ", "Total$", "Original Charge",
-                    "Total Charged", "Payment amount:", "BALANCE DUE", "Current charges:", "Total (USD):", "Total (USD)","Amount Paid:",
-                    "Amount paid:", "Total $","TOTAL $", "Amount Received", "Amount due on this invoice:", "Total", " is $", "Statement balance:",
-                    "Statement balance","Amount Charged $","Amount Due","PAY THIS AMOUNT:","outstanding balance of","TOTAL","Amount paid","DETAILS",
-                    "for your payment of","Converted From:","invoice for","Zu zahlender Betrag:","You paid","Balance due","Bill Payment Amount $",
-                    "Your payment of $","Payment amount","Total charged","Payments","charged to your Bank Account is  $-","*Amount*","Summe ink l. USt",
-                    "Endbetrag EUR","Total","received your payment of","Payment Amount:","in the amount of","Your donation total:","Your payment of **$",
-                    "SUBTOTAL: $","Automatic payment amount","Amount","SUBTOTAL: $","SUBTOTAL:","Automatic payment amount","Brutto ","payment of","for this period is",
-                    "Amount","amount of","Total charged","Balance Due:","outstanding balance of","Bill Payment Amount","Total Payment","Betrag beläuft sich auf");
+            String amountString = parseField(content, skipLine, labels[AMOUNT]);
             if (amountString == null || amountString.trim().length() < 2) {
                 //String mails="From:"+
                 String mailFile = storeUnparseMail(invoice.emailnumber,"unparsed", folderName, content, datString, parse, filename, "txt");
@@ -394,22 +429,18 @@ public class Aufbewahrung {
             }
 
             String billdate = null;
-            billdate = parseField(content, skipLine, "Billing Date:", "Date:",
-                    "Rechnungsdatum:", "Payment date:", "was placed on","Statement date:");
+            billdate = parseField(content, skipLine, labels[DATE]);
             billdate = findEnd(billdate, "and");
             if (billdate != null && billdate.length() > 2 && containsDigit(billdate)) {
                 invoice.date = billdate;
             }
-            String dueDate = parseField(content, skipLine, "Due Date:", "DUE DATE", "is due on","Total Current Charges Due On",
-                    "Payment Due Date", "Payment due date:","TRANSACTION DATE", "Auto Pay Date:",
-                    "Received:", "delivered on", "DUE", "AUTO DRAFT DATE:", "APS amount to be applied on","will be charged on");
+            String dueDate = parseField(content, skipLine, labels[DUE_DATE]);
             if (dueDate != null && dueDate.length() > 2 && !dueDate.contains(cleanAmountStr)) {
                 invoice.dueDate = dueDate;
             }
             if (invoice.date == null || invoice.date.equals(invoice.dueDate))
                 invoice.date = datString;
-            String number = parseField(content, false,"Your invoice","Invoice #:", "Order Number #", "Rechnungsnummer:", "Billing Period:","Plan period",
-                    "aktuelle Rechnung", "Invoice no.", "Invoice Number:", "INVOICE", "Bill Period    : ", "Receipt #", "Ihre Rechnung", "Order Number","Order #:");
+            String number = parseField(content, false, labels[NUMBER]);
             number = findEnd(number, "von");
             number = findEnd(number, "vom");
             number = findEnd(number, "als");
@@ -424,9 +455,7 @@ public class Aufbewahrung {
                 }
             }
             String account = "";
-            account = parseField(content, false, "Kundennummer:", "Kundennummer", "Kunden Nr", "Account Number: Ending in", "account number:",
-                    "Account Number:", "Account:", "Service Address:", "Account number:", "Your order from", "ordered from", "Beleg für", "CF Number:",
-                    "for account number ******","Receipt for Your Payment to","Let ","for account :","Customer #:","account ending in ******","Policy Number");
+            account = parseField(content, false, labels[ACCOUNT]);
             account = findEnd(account, "was placed");
             account = findEnd(account, "was delivered");
             account = findEnd(account, "(");
@@ -610,8 +639,6 @@ public class Aufbewahrung {
         // System.out.println("... saveParts " + filename + content);
         // System.out.println("... saveParts " +
         // content.getClass().getCanonicalName());
-        OutputStream out = null;
-        InputStream in = null;
         try {
             if (content instanceof Multipart) {
                 Multipart multi = ((Multipart) content);
@@ -666,28 +693,12 @@ public class Aufbewahrung {
                                 } else {
                                     //System.out.println("... saving " + filename);
                                     downloadedCount++;
-                                    out = new FileOutputStream(file);
-                                    in = part.getInputStream();
-                                    int k;
-                                    while ((k = in.read()) != -1) {
-                                        out.write(k);
-                                    }
+                                    AttachmentWriter.write(part.getInputStream(), file);
                                 }
 
 
                                 if (file.getName().toLowerCase().endsWith(".pdf")) {
-                                    File parseCache = new File(file.getParentFile(), file.getName() + ".txt");
-                                    String txt = null;
-                                    if (parseCache.exists()) {
-                                        txt = new String(Files.readAllBytes(Paths.get(parseCache.getAbsolutePath())));
-                                    } else {
-                                        txt = extractPdf(file);
-                                        if (txt != null) {
-                                            FileWriter myWriter = new FileWriter(parseCache);
-                                            myWriter.write(txt);
-                                            myWriter.close();
-                                        }
-                                    }
+                                    String txt = extractPdf(file);
                                     if (txt != null) {
                                         parseTxt(invoice, folderName, filename, txt, date, "pdf");
                                     }
@@ -713,14 +724,8 @@ public class Aufbewahrung {
                     System.out.println("content ");
                     BASE64DecoderStream base64DecoderStream = (BASE64DecoderStream) content;
                     (new File(folderName)).mkdirs();
-                    FileOutputStream outStrem = new FileOutputStream(folderName + "/" + filename.replace(' ', '-'));
                     addFileToInvoice(invoice, filename.replace(' ', '-'));
-                    int buf;
-                    while ((buf = base64DecoderStream.read()) != -1) {
-                        outStrem.write(buf);
-                    }
-                    outStrem.close();
-                    base64DecoderStream.close();
+                    AttachmentWriter.write(base64DecoderStream, new File(folderName + "/" + filename.replace(' ', '-')));
                 } else {
                     System.err.println("Unknown");
                     System.err.println(content.getClass().getCanonicalName());
@@ -729,46 +734,20 @@ public class Aufbewahrung {
         } catch (Exception e) {
             e.printStackTrace();
 
-        } finally {
-            if (in != null) {
-                in.close();
-            }
-            if (out != null) {
-                out.flush();
-                out.close();
-            }
         }
         return;
     }
 
     private static String extractPdf(File file) {
-        PDFParser parser = null;
-        PDDocument pdDoc = null;
-        PDFTextStripper pdfStripper;
-
-
-        String parsedText = null;
+        String password = "";
+        if (file.getName().contains("EBill_"))
+            password = "33837";
         try {
-            String password ="";
-            if (file.getName().contains("EBill_"))
-                password ="33837";
-            pdDoc = PDDocument.load(file,password);
-            pdfStripper = new PDFTextStripper();
-            parsedText = pdfStripper.getText(pdDoc);
-
-            //System.out.println(parsedText);
-        } catch (Exception e) {
+            return PdfTextCache.getDefault().extract(file, password);
+        } catch (IOException e) {
             e.printStackTrace();
-        } finally {
-            try {
-                if (pdDoc != null)
-                    pdDoc.close();
-            } catch (Exception e1) {
-                e1.printStackTrace();
-            }
-
+            return null;
         }
-        return parsedText;
     }
 
     private static void addFileToInvoice(Invoice i, String filename) {
@@ -808,32 +787,39 @@ public class Aufbewahrung {
         }
 
         if (start > -1) {
-            start = start + searchString.length();
-            if (start > haystack.length()) {
-                return haystack;
-            }
-            int end = haystack.indexOf("\n", start + 2);
-            if (skipALine) {
-                start = end;
-                end = haystack.indexOf("\n", end + 2);
-            }
-            String utterance;
-            if (end > start) {
-                utterance = haystack.substring(start, end);
-            } else {
-                utterance = haystack.substring(start);
-            }
-            String trim = utterance.trim();
-
-            if (trim.length() == 0) {
-
-                utterance = "Not found in " + haystack;
-            }
+            return fieldValue(haystack, skipALine, start + searchString.length());
+        }
+        return null;
+    }
 
-            return trim;
+    /**
+     * Same as {@link #parseField(String, boolean, String...)} for a label already found with {@link LabelSets}
+     */
+    public static String parseField(String haystack, boolean skipALine, LabelSets.Match label) {
+        if (haystack == null || label == null)
+            return null;
+        return fieldValue(haystack, skipALine, label.getEnd());
+    }
 
+    /**
+     * Get the rest of the line after a label, or the next line if skipALine is set
+     */
+    private static String fieldValue(String haystack, boolean skipALine, int start) {
+        if (start > haystack.length()) {
+            return haystack;
         }
-        return null;
+        int end = haystack.indexOf("\n", start + 2);
+        if (skipALine) {
+            start = end;
+            end = haystack.indexOf("\n", end + 2);
+        }
+        String utterance;
+        if (end > start) {
+            utterance = haystack.substring(start, end);
+        } else {
+            utterance = haystack.substring(start);
+        }
+        return utterance.trim();
     }
 
     public static void main(String args[]) throws Exception {
@@ -1,5 +1,7 @@
 package com.intenovation.aufbewahrung;
 
+import com.intenovation.email.utils.SynonymClassifier;
+
 import java.util.HashSet;
 import java.util.Set;
 
@@ -24,18 +26,11 @@ public enum City {
             synonyms.add(s.toLowerCase());
 
     }
+
+    private static final SynonymClassifier<City> CLASSIFIER = new SynonymClassifier<>(values(), c -> c.synonyms);
+
     static City detectCity(String content){
-        if (content==null)
-            return Unknown;
-        content=content.toLowerCase();
-        for (City city:City.values()){
-            for (String synonym: city.synonyms) {
-                if (content.contains(synonym))
-                { return city;}
-            }
-        }
-
-        return Unknown;
+        return CLASSIFIER.classify(content, Unknown);
     }
 
 }
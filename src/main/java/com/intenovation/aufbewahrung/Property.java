@@ -1,5 +1,7 @@
 package com.intenovation.aufbewahrung;
 
+import com.intenovation.email.utils.SynonymClassifier;
+
 import java.util.HashSet;
 import java.util.Set;
 
@@ -30,18 +32,9 @@ public enum Property {
 
     }
 
+    private static final SynonymClassifier<Property> CLASSIFIER = new SynonymClassifier<>(values(), c -> c.synonyms);
+
     static Property detectCity(String content) {
-        if (content == null)
-            return Unknown;
-        content = content.toLowerCase();
-        for (Property city : Property.values()) {
-            for (String synonym : city.synonyms) {
-                if (content.contains(synonym)) {
-                    return city;
-                }
-            }
-        }
-
-        return Unknown;
+        return CLASSIFIER.classify(content, Unknown);
     }
 }
@@ -1,5 +1,7 @@
 package com.intenovation.aufbewahrung;
 
+import com.intenovation.email.utils.SynonymClassifier;
+
 import java.util.HashSet;
 import java.util.Set;
 
@@ -21,17 +23,10 @@ public enum Type {
         synonyms.add(s.toLowerCase());
 
     }
+
+    private static final SynonymClassifier<Type> CLASSIFIER = new SynonymClassifier<>(values(), t -> t.synonyms);
+
     static Type detectType(String content){
-        if (content==null)
-            return Letter;
-        content=content.toLowerCase();
-        for (Type type:Type.values()){
-            for (String synonym: type.synonyms) {
-                if (content.contains(synonym))
-                { return type;}
-            }
-        }
-
-        return Letter;
+        return CLASSIFIER.classify(content, Letter);
     }
 }
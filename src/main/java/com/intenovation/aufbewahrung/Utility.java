@@ -1,5 +1,7 @@
 package com.intenovation.aufbewahrung;
 
+import com.intenovation.email.utils.SynonymClassifier;
+
 import java.util.HashSet;
 import java.util.Set;
 
@@ -34,18 +36,11 @@ public enum Utility {
             synonyms.add(s.toLowerCase());
 
     }
+
+    private static final SynonymClassifier<Utility> CLASSIFIER = new SynonymClassifier<>(values(), u -> u.synonyms);
+
     static Utility detectUtility(String content){
-        if (content==null)
-            return Unknown;
-        content=content.toLowerCase();
-        for (Utility utility: Utility.values()){
-            for (String synonym: utility.synonyms) {
-                if (content.contains(synonym))
-                { return utility;}
-            }
-        }
-
-        return Unknown;
+        return CLASSIFIER.classify(content, Unknown);
     }
 
 }
@@ -0,0 +1,675 @@
+package com.intenovation.email.downloader;
+
+import com.intenovation.appfw.systemtray.ProgressStatusCallback;
+import com.intenovation.email.utils.PdfTextCache;
+import org.jsoup.Jsoup;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Ranked full-text index over all messages of the email archive, including the text of their attachments.
+ * Subject, sender, body and attachment text (PDF text extracted with PDFBox, plain text and HTML files read
+ * directly) are tokenized into one inverted index that lives in memory and is persisted as
+ * {@code .fulltext.idx} in the archive directory. {@link #update} only reads messages the index does not
+ * contain yet and drops deleted ones, saving its progress regularly, so it can run in the background and be
+ * interrupted at any time. Queries run against whatever has been indexed so far and are ranked with BM25.
+ * One instance is shared per archive directory.
+ */
+public class ArchiveTextIndex {
+    private static final Logger LOGGER = Logger.getLogger(ArchiveTextIndex.class.getName());
+
+    /**
+     * Name of the index file in the archive directory
+     */
+    public static final String FILE_NAME = ".fulltext.idx";
+
+    private static final int MAGIC = 0x46545831; // "FTX1"
+
+    /**
+     * The index is saved after this many new messages, so an interrupted update keeps its progress
+     */
+    private static final int CHECKPOINT_INTERVAL = 500;
+
+    private static final int MIN_TERM_LENGTH = 2;
+    private static final int MAX_TERM_LENGTH = 40;
+
+    /**
+     * Text beyond this length is not indexed, per body or attachment
+     */
+    private static final int MAX_TEXT_LENGTH = 200_000;
+
+    /**
+     * Attachments larger than this are not read
+     */
+    private static final long MAX_ATTACHMENT_SIZE = 20L * 1024 * 1024;
+
+    private static final int SUBJECT_WEIGHT = 3;
+    private static final int FROM_WEIGHT = 2;
+
+    // BM25 parameters
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+
+    private static final Map<String, ArchiveTextIndex> INSTANCES = new ConcurrentHashMap<>();
+
+    private final File baseDir;
+    private final File indexFile;
+    private final Object updateLock = new Object();
+
+    // Guarded by this
+    private final List<Document> documents = new ArrayList<>();
+    private final Map<String, Map<String, Integer>> documentsByFolder = new HashMap<>();
+    private final TreeMap<String, Postings> terms = new TreeMap<>();
+    private long totalLength;
+    private int liveDocuments;
+    private int deletedDocuments;
+
+    /**
+     * An indexed message; null slots in the document list are deleted messages
+     */
+    private static class Document {
+        private final String folder;
+        private final String key;
+        private final String subject;
+        private final String from;
+        private final long date;
+        private final int length;
+
+        Document(String folder, String key, String subject, String from, long date, int length) {
+            this.folder = folder;
+            this.key = key;
+            this.subject = subject;
+            this.from = from;
+            this.date = date;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Growable list of documents with their term frequency
+     */
+    private static class Postings {
+        private int[] docs = new int[2];
+        private int[] frequencies = new int[2];
+        private int size;
+
+        void add(int doc, int frequency) {
+            if (size == docs.length) {
+                docs = Arrays.copyOf(docs, size * 2);
+                frequencies = Arrays.copyOf(frequencies, size * 2);
+            }
+            docs[size] = doc;
+            frequencies[size] = frequency;
+            size++;
+        }
+    }
+
+    /**
+     * A search result
+     */
+    public static class Hit {
+        private final String folder;
+        private final String key;
+        private final String subject;
+        private final String from;
+        private final Date date;
+        private final double score;
+
+        Hit(Document document, double score) {
+            this.folder = document.folder;
+            this.key = document.key;
+            this.subject = document.subject;
+            this.from = document.from;
+            this.date = document.date != 0 ? new Date(document.date) : null;
+            this.score = score;
+        }
+
+        /**
+         * @return The folder path relative to the archive directory, with '/' as separator
+         */
+        public String getFolder() {
+            return folder;
+        }
+
+        /**
+         * @return The message directory name or segment record key
+         */
+        public String getKey() {
+            return key;
+        }
+
+        public String getSubject() {
+            return subject;
+        }
+
+        public String getFrom() {
+            return from;
+        }
+
+        public Date getDate() {
+            return date;
+        }
+
+        public double getScore() {
+            return score;
+        }
+    }
+
+    private ArchiveTextIndex(File baseDir) {
+        this.baseDir = baseDir;
+        this.indexFile = new File(baseDir, FILE_NAME);
+        load();
+    }
+
+    /**
+     * Open the full-text index of an archive, loading the saved index if there is one
+     *
+     * @param baseDir The archive directory
+     * @return The shared index for this archive
+     */
+    public static ArchiveTextIndex open(File baseDir) {
+        return INSTANCES.computeIfAbsent(baseDir.getAbsolutePath(), path -> new ArchiveTextIndex(baseDir));
+    }
+
+    /**
+     * Get the number of indexed messages
+     *
+     * @return The number of messages
+     */
+    public synchronized int size() {
+        return liveDocuments;
+    }
+
+    /**
+     * Search the index. Every word of the query must occur in a message, either as a whole word or as
+     * the start of a longer one, e.g. {@code rechn} finds {@code rechnung}.
+     *
+     * @param query The search words
+     * @param limit The maximum number of results
+     * @return The best matching messages, best first
+     */
+    public synchronized List<Hit> search(String query, int limit) {
+        Set<String> queryTerms = new LinkedHashSet<>();
+        tokenize(query, queryTerms::add);
+        if (queryTerms.isEmpty() || liveDocuments == 0) {
+            return Collections.emptyList();
+        }
+
+        double averageLength = Math.max(1.0, (double) totalLength / liveDocuments);
+        double[] scores = new double[documents.size()];
+        int[] matchedTerms = new int[documents.size()];
+
+        int queryTerm = 0;
+        for (String term : queryTerms) {
+            queryTerm++;
+            for (Postings postings : terms.subMap(term, term + Character.MAX_VALUE).values()) {
+                double idf = Math.log(1 + (liveDocuments - postings.size + 0.5) / (postings.size + 0.5));
+                for (int i = 0; i < postings.size; i++) {
+                    int doc = postings.docs[i];
+                    Document document = documents.get(doc);
+                    if (document == null) {
+                        continue;
+                    }
+                    double frequency = postings.frequencies[i];
+                    scores[doc] += idf * frequency * (K1 + 1)
+                            / (frequency + K1 * (1 - B + B * document.length / averageLength));
+                    if (matchedTerms[doc] == queryTerm - 1) {
+                        matchedTerms[doc] = queryTerm;
+                    }
+                }
+            }
+        }
+
+        List<Integer> matches = new ArrayList<>();
+        for (int doc = 0; doc < matchedTerms.length; doc++) {
+            if (matchedTerms[doc] == queryTerms.size()) {
+                matches.add(doc);
+            }
+        }
+        matches.sort(Comparator.comparingDouble((Integer doc) -> -scores[doc])
+                .thenComparingLong(doc -> -documents.get(doc).date));
+
+        List<Hit> hits = new ArrayList<>();
+        for (int i = 0; i < Math.min(limit, matches.size()); i++) {
+            int doc = matches.get(i);
+            hits.add(new Hit(documents.get(doc), scores[doc]));
+        }
+        return hits;
+    }
+
+    /**
+     * Index the messages that were added to the archive since the last update and drop deleted ones.
+     * Only one update runs at a time; searches can run while it is in progress.
+     *
+     * @param callback Callback for reporting progress, may be null
+     * @return The number of messages added to the index
+     * @throws InterruptedException if the update is cancelled; the progress so far is saved
+     */
+    public int update(ProgressStatusCallback callback) throws InterruptedException {
+        synchronized (updateLock) {
+            List<File> folders = new ArrayList<>();
+            listFolders(baseDir, folders);
+            AttachmentStore attachmentStore = new AttachmentStore(baseDir);
+
+            int added = 0;
+            int removed = 0;
+            try {
+                for (int f = 0; f < folders.size(); f++) {
+                    File folderDir = folders.get(f);
+                    String folder = folderName(folderDir);
+                    File messagesDir = new File(folderDir, "messages");
+
+                    // Message directories and segment records of the folder
+                    Set<String> keys = new LinkedHashSet<>();
+                    String[] messageDirs = messagesDir.list();
+                    if (messageDirs != null) {
+                        for (String key : messageDirs) {
+                            if (!key.startsWith(".")) {
+                                keys.add(key);
+                            }
+                        }
+                    }
+                    SegmentArchive archive = SegmentArchive.exists(folderDir) ? SegmentArchive.open(folderDir) : null;
+                    Map<String, SegmentArchive.Entry> records = new HashMap<>();
+                    if (archive != null) {
+                        for (SegmentArchive.Entry record : archive.entries()) {
+                            records.put(record.getKey(), record);
+                            keys.add(record.getKey());
+                        }
+                    }
+
+                    removed += removeDeleted(folder, keys);
+
+                    Set<String> known = knownKeys(folder);
+                    List<String> newKeys = new ArrayList<>();
+                    for (String key : keys) {
+                        if (!known.contains(key)) {
+                            newKeys.add(key);
+                        }
+                    }
+                    if (newKeys.isEmpty()) {
+                        continue;
+                    }
+
+                    FolderSummary summary = FolderSummary.load(folderDir);
+                    for (int i = 0; i < newKeys.size(); i++) {
+                        if (Thread.currentThread().isInterrupted()) {
+                            throw new InterruptedException("Task cancelled");
+                        }
+
+                        String key = newKeys.get(i);
+                        try {
+                            File messageDir = new File(messagesDir, key);
+                            SegmentArchive.Entry record = records.get(key);
+                            Map<String, Integer> frequencies = new HashMap<>();
+                            FolderSummary.Entry entry = summary.get(key);
+                            if (entry != null) {
+                                addTerms(frequencies, entry.getSubject(), SUBJECT_WEIGHT);
+                                addTerms(frequencies, entry.getFrom(), FROM_WEIGHT);
+                            }
+                            if (messageDir.isDirectory() || record == null) {
+                                addMessageText(frequencies, messageDir, attachmentStore);
+                            } else {
+                                addRecordText(frequencies, archive.read(record), attachmentStore);
+                            }
+                            addDocument(folder, key, entry, frequencies);
+                            added++;
+                        } catch (IOException e) {
+                            LOGGER.log(Level.WARNING, "Error indexing message " + key + " in " + folder, e);
+                        }
+
+                        if (added % CHECKPOINT_INTERVAL == 0) {
+                            save();
+                        }
+                        if (callback != null && i % 50 == 0) {
+                            callback.update(100 * f / folders.size(), "Indexing " + folder + " (" + (i + 1) +
+                                    "/" + newKeys.size() + "), " + added + " new messages");
+                        }
+                    }
+                }
+            } finally {
+                if (added > 0 || removed > 0) {
+                    save();
+                }
+            }
+
+            if (callback != null) {
+                callback.update(100, "Search index contains " + size() + " messages");
+            }
+            LOGGER.info("Updated full-text index: " + added + " added, " + removed + " removed");
+            return added;
+        }
+    }
+
+    private synchronized Set<String> knownKeys(String folder) {
+        Map<String, Integer> byKey = documentsByFolder.get(folder);
+        return byKey != null ? new HashSet<>(byKey.keySet()) : Collections.emptySet();
+    }
+
+    private synchronized int removeDeleted(String folder, Set<String> keys) {
+        Map<String, Integer> byKey = documentsByFolder.get(folder);
+        if (byKey == null) {
+            return 0;
+        }
+        int removed = 0;
+        Iterator<Map.Entry<String, Integer>> iterator = byKey.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Integer> entry = iterator.next();
+            if (!keys.contains(entry.getKey())) {
+                Document document = documents.set(entry.getValue(), null);
+                totalLength -= document.length;
+                liveDocuments--;
+                deletedDocuments++;
+                iterator.remove();
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    private synchronized void addDocument(String folder, String key, FolderSummary.Entry entry,
+                                          Map<String, Integer> frequencies) {
+        int length = 0;
+        for (int frequency : frequencies.values()) {
+            length += frequency;
+        }
+        long date = 0;
+        if (entry != null) {
+            Date messageDate = entry.getReceivedDate() != null ? entry.getReceivedDate() : entry.getSentDate();
+            date = messageDate != null ? messageDate.getTime() : 0;
+        }
+
+        int doc = documents.size();
+        documents.add(new Document(folder, key, entry != null ? entry.getSubject() : null,
+                entry != null ? entry.getFrom() : null, date, length));
+        documentsByFolder.computeIfAbsent(folder, name -> new HashMap<>()).put(key, doc);
+        for (Map.Entry<String, Integer> term : frequencies.entrySet()) {
+            terms.computeIfAbsent(term.getKey(), t -> new Postings()).add(doc, term.getValue());
+        }
+        totalLength += length;
+        liveDocuments++;
+    }
+
+    private void addMessageText(Map<String, Integer> frequencies, File messageDir, AttachmentStore attachmentStore)
+            throws IOException {
+        String body = MessageBodyFiles.read(messageDir, "content.txt");
+        if (body == null) {
+            String html = MessageBodyFiles.read(messageDir, "content.html");
+            body = html != null ? Jsoup.parse(html).text() : null;
+        }
+        addTerms(frequencies, body, 1);
+        addAttachmentText(frequencies, attachmentStore.listAttachments(messageDir));
+    }
+
+    private void addRecordText(Map<String, Integer> frequencies, Map<String, byte[]> files,
+                               AttachmentStore attachmentStore) throws IOException {
+        String body = MessageBodyFiles.read(files, "content.txt");
+        if (body == null) {
+            String html = MessageBodyFiles.read(files, "content.html");
+            body = html != null ? Jsoup.parse(html).text() : null;
+        }
+        addTerms(frequencies, body, 1);
+
+        Properties references = new Properties();
+        byte[] referenceData = files.get(AttachmentStore.REFERENCES_FILE);
+        if (referenceData != null) {
+            references.load(new InputStreamReader(new ByteArrayInputStream(referenceData), StandardCharsets.UTF_8));
+        }
+        addAttachmentText(frequencies, attachmentStore.listAttachments(references));
+    }
+
+    private void addAttachmentText(Map<String, Integer> frequencies, Map<String, File> attachments) {
+        for (Map.Entry<String, File> attachment : attachments.entrySet()) {
+            addTerms(frequencies, attachment.getKey(), 1);
+            File file = attachment.getValue();
+            if (!file.isFile() || file.length() > MAX_ATTACHMENT_SIZE) {
+                continue;
+            }
+            addTerms(frequencies, extractText(attachment.getKey().toLowerCase(Locale.ROOT), file), 1);
+        }
+    }
+
+    /**
+     * Extract the text of a PDF, plain text or HTML attachment
+     *
+     * @return The text, or null for other file types or unreadable files
+     */
+    private static String extractText(String name, File file) {
+        try {
+            if (name.endsWith(".pdf")) {
+                return PdfTextCache.getDefault().extract(file, "");
+            } else if (name.endsWith(".html") || name.endsWith(".htm")) {
+                return Jsoup.parse(file, null).text();
+            } else if (name.endsWith(".txt") || name.endsWith(".csv") || name.endsWith(".xml")) {
+                return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+            }
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.FINE, "Cannot extract text from attachment " + name, e);
+        }
+        return null;
+    }
+
+    private static void addTerms(Map<String, Integer> frequencies, String text, int weight) {
+        if (text == null) {
+            return;
+        }
+        if (text.length() > MAX_TEXT_LENGTH) {
+            text = text.substring(0, MAX_TEXT_LENGTH);
+        }
+        tokenize(text, term -> frequencies.merge(term, weight, Integer::sum));
+    }
+
+    /**
+     * Split text into lower-case runs of letters and digits of indexable length
+     */
+    private static void tokenize(String text, Consumer<String> consumer) {
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                int length = i - start;
+                if (length >= MIN_TERM_LENGTH && length <= MAX_TERM_LENGTH) {
+                    consumer.accept(text.substring(start, i).toLowerCase(Locale.ROOT));
+                }
+                start = -1;
+            }
+        }
+    }
+
+    /**
+     * Collect the folder directories of the archive that hold messages
+     */
+    private static void listFolders(File dir, List<File> folders) {
+        File[] subdirs = dir.listFiles(file -> file.isDirectory() && !file.getName().startsWith(".")
+                && !file.getName().equals("messages") && !file.getName().equals(SegmentArchive.SEGMENT_DIR));
+        if (subdirs == null) {
+            return;
+        }
+        Arrays.sort(subdirs);
+        for (File subdir : subdirs) {
+            if (new File(subdir, "messages").isDirectory() || SegmentArchive.exists(subdir)) {
+                folders.add(subdir);
+            }
+            listFolders(subdir, folders);
+        }
+    }
+
+    private String folderName(File folderDir) {
+        return baseDir.toPath().relativize(folderDir.toPath()).toString().replace(File.separatorChar, '/');
+    }
+
+    /**
+     * Drop deleted documents and renumber the remaining ones
+     */
+    private void compact() {
+        int[] remap = new int[documents.size()];
+        List<Document> live = new ArrayList<>(liveDocuments);
+        for (int doc = 0; doc < documents.size(); doc++) {
+            Document document = documents.get(doc);
+            remap[doc] = document != null ? live.size() : -1;
+            if (document != null) {
+                live.add(document);
+            }
+        }
+
+        Iterator<Postings> iterator = terms.values().iterator();
+        while (iterator.hasNext()) {
+            Postings postings = iterator.next();
+            int size = 0;
+            for (int i = 0; i < postings.size; i++) {
+                int doc = remap[postings.docs[i]];
+                if (doc >= 0) {
+                    postings.docs[size] = doc;
+                    postings.frequencies[size] = postings.frequencies[i];
+                    size++;
+                }
+            }
+            postings.size = size;
+            if (size == 0) {
+                iterator.remove();
+            }
+        }
+
+        documents.clear();
+        documentsByFolder.clear();
+        for (Document document : live) {
+            documentsByFolder.computeIfAbsent(document.folder, name -> new HashMap<>())
+                    .put(document.key, documents.size());
+            documents.add(document);
+        }
+        deletedDocuments = 0;
+    }
+
+    /**
+     * Load the saved index, starting empty if it is missing or unreadable
+     */
+    private synchronized void load() {
+        if (!indexFile.exists()) {
+            return;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile), 1 << 16))) {
+            if (in.readInt() != MAGIC) {
+                LOGGER.warning("Unknown full-text index format, rebuilding: " + indexFile);
+                return;
+            }
+            int count = in.readInt();
+            for (int doc = 0; doc < count; doc++) {
+                Document document = new Document(in.readUTF(), in.readUTF(), readNullableUTF(in), readNullableUTF(in),
+                        in.readLong(), in.readInt());
+                documents.add(document);
+                documentsByFolder.computeIfAbsent(document.folder, name -> new HashMap<>()).put(document.key, doc);
+                totalLength += document.length;
+            }
+            liveDocuments = count;
+
+            int termCount = in.readInt();
+            for (int t = 0; t < termCount; t++) {
+                String term = in.readUTF();
+                Postings postings = new Postings();
+                int size = readVarInt(in);
+                int doc = 0;
+                for (int i = 0; i < size; i++) {
+                    doc += readVarInt(in);
+                    postings.add(doc, readVarInt(in));
+                }
+                terms.put(term, postings);
+            }
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Error reading full-text index, rebuilding: " + indexFile, e);
+            documents.clear();
+            documentsByFolder.clear();
+            terms.clear();
+            totalLength = 0;
+            liveDocuments = 0;
+        }
+    }
+
+    /**
+     * Write the index to a temporary file and move it into place
+     */
+    private synchronized void save() {
+        if (deletedDocuments > 0) {
+            compact();
+        }
+
+        File tmp = new File(baseDir, FILE_NAME + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+                out.writeInt(MAGIC);
+                out.writeInt(documents.size());
+                for (Document document : documents) {
+                    out.writeUTF(document.folder);
+                    out.writeUTF(document.key);
+                    writeNullableUTF(out, document.subject);
+                    writeNullableUTF(out, document.from);
+                    out.writeLong(document.date);
+                    out.writeInt(document.length);
+                }
+
+                // Postings are in ascending document order and stored as variable-length deltas
+                out.writeInt(terms.size());
+                for (Map.Entry<String, Postings> term : terms.entrySet()) {
+                    Postings postings = term.getValue();
+                    out.writeUTF(term.getKey());
+                    writeVarInt(out, postings.size);
+                    int previous = 0;
+                    for (int i = 0; i < postings.size; i++) {
+                        writeVarInt(out, postings.docs[i] - previous);
+                        writeVarInt(out, postings.frequencies[i]);
+                        previous = postings.docs[i];
+                    }
+                }
+            }
+            try {
+                Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Error writing full-text index: " + indexFile, e);
+        }
+    }
+
+    private static String readNullableUTF(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeNullableUTF(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value.length() > 2000 ? value.substring(0, 2000) : value);
+        }
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.intenovation.email.downloader;
+
+import com.intenovation.appfw.systemtray.BackgroundTask;
+import com.intenovation.appfw.systemtray.ProgressStatusCallback;
+
+import java.io.File;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the full-text search index of the email archive up to date.
+ * Only messages downloaded since the last run are read, so regular runs are cheap.
+ */
+public class ArchiveTextIndexUpdate extends BackgroundTask {
+    private static final Logger LOGGER = Logger.getLogger(ArchiveTextIndexUpdate.class.getName());
+
+    /**
+     * Create a new search index update task
+     *
+     * @param intervalMinutes The update interval in minutes
+     */
+    public ArchiveTextIndexUpdate(int intervalMinutes) {
+        super(
+                "Update Search Index",
+                "Indexes the text and attachments of new emails for the email browser search",
+                intervalMinutes * 60, // Convert minutes to seconds
+                true                  // Available in menu
+        );
+    }
+
+    /**
+     * Execute the task with progress and status reporting
+     *
+     * @param callback Callback for reporting progress and status messages
+     * @return Status message that will be displayed on completion
+     * @throws InterruptedException if the task is cancelled
+     */
+    @Override
+    public String execute(ProgressStatusCallback callback) throws InterruptedException {
+        LOGGER.info("Starting Search Index Update");
+
+        File baseDir = new File(ImapDownloader.getStoragePath());
+        if (!baseDir.exists()) {
+            return "Email archive directory doesn't exist yet";
+        }
+
+        ArchiveTextIndex index = ArchiveTextIndex.open(baseDir);
+        int added = index.update(callback);
+        return "Indexed " + added + " new emails, search index contains " + index.size() + " emails";
+    }
+}
@@ -0,0 +1,277 @@
+package com.intenovation.email.downloader;
+
+import com.intenovation.appfw.systemtray.ProgressStatusCallback;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Content-addressed store for attachments.
+ * Each distinct attachment is stored once under {@code <archive>/.blobs/<xx>/<sha256>}, and message
+ * directories only keep an {@code attachments.properties} file that maps file names to content hashes.
+ * Attachments that were saved before the store existed remain in the message's
+ * {@code attachments} directory and are resolved as well.
+ */
+public class AttachmentStore {
+    private static final Logger LOGGER = Logger.getLogger(AttachmentStore.class.getName());
+
+    /**
+     * Name of the blob directory in the archive root
+     */
+    public static final String BLOB_DIR = ".blobs";
+
+    /**
+     * Name of the reference file in a message directory
+     */
+    public static final String REFERENCES_FILE = "attachments.properties";
+
+    /**
+     * Minimum age of a blob before a sweep may delete it, so blobs of a running download are kept
+     */
+    static final long SWEEP_GRACE_MILLIS = 60 * 60 * 1000L;
+
+    private final File baseDir;
+    private final File blobDir;
+
+    /**
+     * Create an attachment store for an archive
+     *
+     * @param baseDir The archive root directory
+     */
+    public AttachmentStore(File baseDir) {
+        this.baseDir = baseDir;
+        this.blobDir = new File(baseDir, BLOB_DIR);
+    }
+
+    /**
+     * Store an attachment, writing it only if its content is not in the store yet
+     *
+     * @param in The attachment data; closed when done
+     * @param expectedSize The expected size in bytes, or -1 if unknown
+     * @param progress Callback for the throughput of large attachments (may be null)
+     * @return The SHA-256 hash of the content, which is its key in the store
+     * @throws IOException If the attachment cannot be read or written
+     */
+    public String store(InputStream in, long expectedSize, ProgressStatusCallback progress) throws IOException {
+        File incomingDir = new File(blobDir, "incoming");
+        incomingDir.mkdirs();
+        File incoming = new File(incomingDir, UUID.randomUUID().toString());
+
+        MessageDigest digest = newDigest();
+        AttachmentWriter.write(new DigestInputStream(in, digest), incoming, expectedSize, progress);
+        String hash = toHex(digest.digest());
+
+        File blob = getBlob(hash);
+        if (blob.exists()) {
+            // Same content was stored before; refresh it so a sweep keeps it until the reference is written
+            Files.deleteIfExists(incoming.toPath());
+            blob.setLastModified(System.currentTimeMillis());
+        } else {
+            blob.getParentFile().mkdirs();
+            Files.move(incoming.toPath(), blob.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+        return hash;
+    }
+
+    /**
+     * Get the file of a stored attachment
+     *
+     * @param hash The SHA-256 hash of the content
+     * @return The blob file
+     */
+    public File getBlob(String hash) {
+        return new File(new File(blobDir, hash.substring(0, 2)), hash);
+    }
+
+    /**
+     * Record a stored attachment in a message directory
+     *
+     * @param msgDir The message directory
+     * @param fileName The attachment file name
+     * @param hash The SHA-256 hash of the content
+     * @throws IOException If the reference file cannot be written
+     */
+    public static void addReference(File msgDir, String fileName, String hash) throws IOException {
+        Properties references = loadReferences(msgDir);
+        references.setProperty(fileName, hash);
+        try (Writer out = new OutputStreamWriter(
+                new FileOutputStream(new File(msgDir, REFERENCES_FILE)), StandardCharsets.UTF_8)) {
+            references.store(out, "Attachment References");
+        }
+    }
+
+    /**
+     * Check whether a message directory has attachments, without resolving them
+     *
+     * @param msgDir The message directory
+     * @return true if the directory references stored attachments or has legacy attachment files
+     */
+    public static boolean hasAttachments(File msgDir) {
+        if (new File(msgDir, REFERENCES_FILE).exists()) {
+            return true;
+        }
+        File[] files = new File(msgDir, "attachments").listFiles(file ->
+                file.isFile() && !file.getName().startsWith("."));
+        return files != null && files.length > 0;
+    }
+
+    /**
+     * List the attachments of a message, both stored attachments and legacy files
+     *
+     * @param msgDir The message directory
+     * @return File names mapped to the files holding their content, in file name order
+     */
+    public Map<String, File> listAttachments(File msgDir) {
+        Map<String, File> attachments = new LinkedHashMap<>();
+
+        // Legacy attachments written directly into the message directory
+        File[] files = new File(msgDir, "attachments").listFiles(file ->
+                file.isFile() && !file.getName().startsWith("."));
+        if (files != null) {
+            Arrays.sort(files);
+            for (File file : files) {
+                attachments.put(file.getName(), file);
+            }
+        }
+
+        attachments.putAll(listAttachments(loadReferences(msgDir)));
+        return attachments;
+    }
+
+    /**
+     * Resolve the attachment references of a message that is not stored as a directory
+     *
+     * @param references File names mapped to content hashes, as in {@code attachments.properties}
+     * @return File names mapped to the files holding their content, in file name order
+     */
+    public Map<String, File> listAttachments(Properties references) {
+        Map<String, File> attachments = new LinkedHashMap<>();
+        for (String fileName : new TreeSet<>(references.stringPropertyNames())) {
+            File blob = getBlob(references.getProperty(fileName));
+            if (blob.exists()) {
+                attachments.put(fileName, blob);
+            } else {
+                LOGGER.warning("Missing attachment " + fileName + " with hash " + references.getProperty(fileName));
+            }
+        }
+        return attachments;
+    }
+
+    /**
+     * Delete the blobs that no message references any more, e.g. after duplicate message directories were removed.
+     * References are collected from the message directories and segment records of the whole archive;
+     * blobs and incoming files younger than {@link #SWEEP_GRACE_MILLIS} are kept.
+     *
+     * @return The number of deleted files
+     * @throws IOException If a reference cannot be read; nothing is deleted then
+     */
+    public int sweep() throws IOException {
+        Set<String> referenced = new HashSet<>();
+        collectReferences(baseDir, referenced);
+
+        long cutoff = System.currentTimeMillis() - SWEEP_GRACE_MILLIS;
+        int deleted = 0;
+        File[] subdirs = blobDir.listFiles(File::isDirectory);
+        if (subdirs == null) {
+            return 0;
+        }
+        for (File subdir : subdirs) {
+            boolean incoming = subdir.getName().equals("incoming");
+            File[] blobs = subdir.listFiles(File::isFile);
+            if (blobs == null) {
+                continue;
+            }
+            for (File blob : blobs) {
+                if (blob.lastModified() < cutoff && (incoming || !referenced.contains(blob.getName()))) {
+                    if (blob.delete()) {
+                        deleted++;
+                    } else {
+                        LOGGER.warning("Could not delete unreferenced attachment " + blob);
+                    }
+                }
+            }
+            if (!incoming) {
+                subdir.delete(); // Only succeeds if empty
+            }
+        }
+        return deleted;
+    }
+
+    private static void collectReferences(File dir, Set<String> referenced) throws IOException {
+        File file = new File(dir, REFERENCES_FILE);
+        if (file.isFile()) {
+            addHashes(new FileInputStream(file), referenced);
+        }
+        if (SegmentArchive.exists(dir)) {
+            SegmentArchive archive = SegmentArchive.open(dir);
+            for (SegmentArchive.Entry entry : archive.entries()) {
+                byte[] data = archive.read(entry).get(REFERENCES_FILE);
+                if (data != null) {
+                    addHashes(new ByteArrayInputStream(data), referenced);
+                }
+            }
+        }
+        File[] children = dir.listFiles(child -> child.isDirectory()
+                && !child.getName().equals(BLOB_DIR) && !child.getName().equals(SegmentArchive.SEGMENT_DIR));
+        if (children != null) {
+            for (File child : children) {
+                collectReferences(child, referenced);
+            }
+        }
+    }
+
+    private static void addHashes(InputStream in, Set<String> referenced) throws IOException {
+        Properties references = new Properties();
+        try (Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8)) {
+            references.load(reader);
+        }
+        for (String fileName : references.stringPropertyNames()) {
+            referenced.add(references.getProperty(fileName));
+        }
+    }
+
+    private static Properties loadReferences(File msgDir) {
+        Properties references = new Properties();
+        File file = new File(msgDir, REFERENCES_FILE);
+        if (file.exists()) {
+            try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+                references.load(reader);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Error reading attachment references: " + file, e);
+            }
+        }
+        return references;
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+}
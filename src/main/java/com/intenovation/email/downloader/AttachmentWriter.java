@@ -0,0 +1,138 @@
+package com.intenovation.email.downloader;
+
+import com.intenovation.appfw.systemtray.ProgressStatusCallback;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Streams attachments to disk.
+ * Data is written to a temporary file next to the target with a large buffer
+ * (or a zero-copy channel transfer when the source is a file) and then renamed into place,
+ * so readers never see a partially written attachment.
+ */
+public class AttachmentWriter {
+    private static final Logger LOGGER = Logger.getLogger(AttachmentWriter.class.getName());
+
+    /**
+     * Size of the copy buffer
+     */
+    static final int BUFFER_SIZE = 256 * 1024;
+
+    /**
+     * Attachments smaller than this are written without progress reports
+     */
+    static final long PROGRESS_THRESHOLD = 1024 * 1024;
+
+    /**
+     * Minimum time between two progress reports in milliseconds
+     */
+    private static final long PROGRESS_INTERVAL_MILLIS = 500;
+
+    private static final ThreadLocal<byte[]> BUFFER = ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+
+    /**
+     * Write a stream to a file without progress reports
+     *
+     * @param in The source stream; closed when done
+     * @param target The file to create or replace
+     * @return The number of bytes written
+     * @throws IOException If the stream cannot be read or the file cannot be written
+     */
+    public static long write(InputStream in, File target) throws IOException {
+        return write(in, target, -1, null);
+    }
+
+    /**
+     * Write a stream to a file, reporting throughput for large attachments
+     *
+     * @param in The source stream; closed when done
+     * @param target The file to create or replace
+     * @param expectedSize The expected size in bytes, or -1 if unknown
+     * @param progress Callback for the transfer progress of this attachment (may be null);
+     *                 the percentage is relative to the expected size
+     * @return The number of bytes written
+     * @throws IOException If the stream cannot be read or the file cannot be written
+     */
+    public static long write(InputStream in, File target, long expectedSize, ProgressStatusCallback progress)
+            throws IOException {
+        File tmp = new File(target.getParentFile(), "." + target.getName() + ".part");
+        long start = System.nanoTime();
+        long written = 0;
+
+        try (InputStream source = in;
+             FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                     StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            if (source instanceof FileInputStream) {
+                // Zero-copy transfer between files; transferFrom advances the source position
+                FileChannel src = ((FileInputStream) source).getChannel();
+                long count;
+                while ((count = out.transferFrom(src, written, Math.max(BUFFER_SIZE, src.size() - src.position()))) > 0) {
+                    written += count;
+                }
+            } else {
+                byte[] buffer = BUFFER.get();
+                ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+                long lastReport = start;
+                int read;
+                while ((read = source.read(buffer)) != -1) {
+                    wrapped.clear().limit(read);
+                    while (wrapped.hasRemaining()) {
+                        out.write(wrapped);
+                    }
+                    written += read;
+
+                    if (progress != null && written >= PROGRESS_THRESHOLD) {
+                        long now = System.nanoTime();
+                        if ((now - lastReport) / 1_000_000 >= PROGRESS_INTERVAL_MILLIS) {
+                            lastReport = now;
+                            reportProgress(progress, target, written, expectedSize, now - start);
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp.toPath());
+            throw e;
+        }
+
+        moveIntoPlace(tmp, target);
+
+        if (progress != null && written >= PROGRESS_THRESHOLD) {
+            reportProgress(progress, target, written, written, System.nanoTime() - start);
+        }
+        return written;
+    }
+
+    /**
+     * Rename the temporary file to the target, atomically where the file system supports it
+     */
+    private static void moveIntoPlace(File tmp, File target) throws IOException {
+        try {
+            Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            LOGGER.log(Level.FINE, "Atomic move not supported, replacing " + target, e);
+            Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void reportProgress(ProgressStatusCallback progress, File target, long written,
+                                       long expectedSize, long elapsedNanos) {
+        double seconds = Math.max(elapsedNanos, 1) / 1_000_000_000.0;
+        long bytesPerSecond = (long) (written / seconds);
+        int percent = expectedSize > 0 ? (int) Math.min(100, 100 * written / expectedSize) : 0;
+        progress.update(percent, "Writing attachment " + target.getName() + ": " +
+                FileUtils.formatSize(written) + " at " + FileUtils.formatSize(bytesPerSecond) + "/s");
+    }
+}
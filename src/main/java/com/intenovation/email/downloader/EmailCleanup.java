@@ -279,6 +279,9 @@ public class EmailCleanup extends BackgroundTask {
                 }
             }
 
+            // Delete attachment blobs that only removed duplicates referenced
+            int blobsRemoved = new AttachmentStore(baseDir).sweep();
+
             // Compact the database if needed
             File[] allFiles = baseDir.listFiles();
             if (allFiles != null) {
@@ -293,7 +296,8 @@ public class EmailCleanup extends BackgroundTask {
 
             return "Cleanup complete. Processed " + processedEmails + " emails in " +
                     processedFolders + " folders. Removed " + duplicatesRemoved +
-                    " duplicates and " + emptyDirectoriesRemoved + " empty directories.";
+                    " duplicates, " + emptyDirectoriesRemoved + " empty directories and " +
+                    blobsRemoved + " unreferenced attachments.";
 
         } catch (InterruptedException e) {
             throw e;
@@ -21,6 +21,16 @@ public class EmailConfiguration implements ConfigurationDefinition {
     private static final Logger LOGGER = Logger.getLogger(EmailConfiguration.class.getName());
     private static final String CONFIG_FILE = System.getProperty("user.home") + File.separator + ".email-downloader.properties";
 
+    /**
+     * Archive format with one directory per message
+     */
+    public static final String FORMAT_DIRECTORIES = "directories";
+
+    /**
+     * Archive format with per-folder segment files, see {@link SegmentArchive}
+     */
+    public static final String FORMAT_SEGMENTS = "segments";
+
     // Configuration properties
     private String imapHost = "";
     private String imapPort = "993";
@@ -30,6 +40,9 @@ public class EmailConfiguration implements ConfigurationDefinition {
     private File emailDirectory = new File(System.getProperty("user.home"), "EmailArchive");
     private int syncIntervalMinutes = 30;
     private int cleanupIntervalHours = 24;
+    private int imapConnections = 4;
+    private boolean compressBodies = false;
+    private String archiveFormat = FORMAT_DIRECTORIES;
 
     /**
      * Create a new EmailConfiguration
@@ -48,9 +61,17 @@ public class EmailConfiguration implements ConfigurationDefinition {
         items.add(new TextConfigItem("username", "Username", username));
         items.add(new PasswordConfigItem("password", "Password", password));
         items.add(new CheckboxConfigItem("useSSL", "Use SSL/TLS", useSSL));
+        items.add(new NumberConfigItem("imapConnections", "Parallel IMAP Connections", imapConnections));
         
         // Directory settings
         items.add(new DirectoryConfigItem("emailDirectory", "Email Archive Directory", emailDirectory));
+        items.add(new CheckboxConfigItem("compressBodies", "Compress Message Bodies", compressBodies));
+
+        List<String> archiveFormats = new ArrayList<>();
+        archiveFormats.add("One directory per message");
+        archiveFormats.add("Segment files");
+        items.add(new DropdownConfigItem("archiveFormat", "Archive Format for new emails",
+                getArchiveFormatDisplay(), archiveFormats));
         
         // Schedule settings
         List<String> syncIntervals = new ArrayList<>();
@@ -88,7 +109,20 @@ public class EmailConfiguration implements ConfigurationDefinition {
         if (configValues.get("useSSL") instanceof Boolean) {
             this.useSSL = (Boolean) configValues.get("useSSL");
         }
+
+        if (configValues.get("imapConnections") instanceof Number) {
+            this.imapConnections = Math.max(1, ((Number) configValues.get("imapConnections")).intValue());
+        }
         
+        if (configValues.get("compressBodies") instanceof Boolean) {
+            this.compressBodies = (Boolean) configValues.get("compressBodies");
+        }
+
+        String archiveFormatStr = (String) configValues.get("archiveFormat");
+        if (archiveFormatStr != null) {
+            this.archiveFormat = "Segment files".equals(archiveFormatStr) ? FORMAT_SEGMENTS : FORMAT_DIRECTORIES;
+        }
+
         if (configValues.get("emailDirectory") instanceof File) {
             this.emailDirectory = (File) configValues.get("emailDirectory");
         } else if (configValues.get("emailDirectory") instanceof String) {
@@ -124,7 +158,10 @@ public class EmailConfiguration implements ConfigurationDefinition {
         values.put("username", username);
         values.put("password", password);
         values.put("useSSL", useSSL);
+        values.put("imapConnections", imapConnections);
         values.put("emailDirectory", emailDirectory);
+        values.put("compressBodies", compressBodies);
+        values.put("archiveFormat", getArchiveFormatDisplay());
         values.put("syncInterval", getSyncIntervalDisplay());
         values.put("cleanupInterval", getCleanupIntervalDisplay());
         return values;
@@ -145,7 +182,21 @@ public class EmailConfiguration implements ConfigurationDefinition {
                 username = props.getProperty("username", username);
                 password = props.getProperty("password", password);
                 useSSL = Boolean.parseBoolean(props.getProperty("useSSL", String.valueOf(useSSL)));
+
+                String imapConnectionsStr = props.getProperty("imapConnections");
+                if (imapConnectionsStr != null && !imapConnectionsStr.isEmpty()) {
+                    try {
+                        imapConnections = Math.max(1, Integer.parseInt(imapConnectionsStr));
+                    } catch (NumberFormatException e) {
+                        LOGGER.log(Level.WARNING, "Invalid IMAP connection count in config: " + imapConnectionsStr, e);
+                    }
+                }
                 
+                compressBodies = Boolean.parseBoolean(props.getProperty("compressBodies", String.valueOf(compressBodies)));
+
+                archiveFormat = FORMAT_SEGMENTS.equals(props.getProperty("archiveFormat"))
+                        ? FORMAT_SEGMENTS : FORMAT_DIRECTORIES;
+
                 String emailDirStr = props.getProperty("emailDirectory");
                 if (emailDirStr != null && !emailDirStr.isEmpty()) {
                     emailDirectory = new File(emailDirStr);
@@ -183,7 +234,10 @@ public class EmailConfiguration implements ConfigurationDefinition {
         props.setProperty("username", username);
         props.setProperty("password", password);
         props.setProperty("useSSL", String.valueOf(useSSL));
+        props.setProperty("imapConnections", String.valueOf(imapConnections));
         props.setProperty("emailDirectory", emailDirectory.getAbsolutePath());
+        props.setProperty("compressBodies", String.valueOf(compressBodies));
+        props.setProperty("archiveFormat", archiveFormat);
         props.setProperty("syncIntervalMinutes", String.valueOf(syncIntervalMinutes));
         props.setProperty("cleanupIntervalHours", String.valueOf(cleanupIntervalHours));
         
@@ -242,12 +296,20 @@ public class EmailConfiguration implements ConfigurationDefinition {
         return "Daily";
     }
     
+    // Helper method to get archive format display string
+    private String getArchiveFormatDisplay() {
+        return FORMAT_SEGMENTS.equals(archiveFormat) ? "Segment files" : "One directory per message";
+    }
+    
     // Getters for business logic
     public String getImapHost() { return imapHost; }
     public String getImapPort() { return imapPort; }
     public String getUsername() { return username; }
     public String getPassword() { return password; }
     public boolean isUseSSL() { return useSSL; }
+    public int getImapConnections() { return imapConnections; }
+    public boolean isCompressBodies() { return compressBodies; }
+    public String getArchiveFormat() { return archiveFormat; }
     public File getEmailDirectory() { return emailDirectory; }
     public String getStoragePath() { return emailDirectory.getAbsolutePath(); }
     public int getSyncIntervalMinutes() { return syncIntervalMinutes; }
@@ -3,14 +3,10 @@ package com.intenovation.email.downloader;
 import com.intenovation.appfw.systemtray.*;
 
 import javax.mail.*;
-import javax.mail.search.ComparisonTerm;
-import javax.mail.search.ReceivedDateTerm;
 import java.io.*;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
 import java.text.SimpleDateFormat;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -19,6 +15,17 @@ import java.util.logging.Logger;
  */
 public class EmailDownloader extends BackgroundTask {
     private static final Logger LOGGER = Logger.getLogger(EmailDownloader.class.getName());
+
+    /**
+     * Number of messages whose headers are prefetched in a single FETCH command
+     */
+    static final int PREFETCH_BATCH_SIZE = 500;
+
+    /**
+     * Directory inside a folder where messages are staged before they are packed into a segment
+     */
+    static final String STAGING_DIR = ".staging";
+
     private final boolean newOnly;
 
     /**
@@ -145,236 +152,23 @@ public class EmailDownloader extends BackgroundTask {
             baseDir.mkdirs();
         }
 
-        // Index existing message IDs to avoid duplicate downloads
-        Set<String> existingMessageIds = ConcurrentHashMap.newKeySet();
-        if (!newOnly) {
-            progressUpdater.update(5, "Indexing existing messages to avoid duplicates...");
-            indexExistingMessages(baseDir, existingMessageIds);
-            progressUpdater.update(10, "Found " + existingMessageIds.size() + " existing messages");
+        // Load the persistent message index to avoid duplicate downloads
+        progressUpdater.update(5, "Loading message index...");
+        MessageIdIndex existingMessageIds = MessageIdIndex.open(baseDir);
+        progressUpdater.update(10, "Found " + existingMessageIds.size() + " existing messages");
+        if (newOnly) {
+            progressUpdater.update(12, "Downloading emails above each folder's sync checkpoint");
         }
 
-        // Create .lastSync file to track last sync time
-        File lastSyncFile = new File(baseDir, ".lastSync");
-        Date lastSyncDate = null;
-
-        if (newOnly && lastSyncFile.exists()) {
-            try {
-                String dateString = Files.readAllLines(lastSyncFile.toPath()).get(0);
-                SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-                lastSyncDate = sdf.parse(dateString);
-                progressUpdater.update(5, "Downloading emails since " + dateString);
-            } catch (Exception e) {
-                LOGGER.log(Level.WARNING, "Error reading last sync date", e);
-                // Continue without last sync date
-                lastSyncDate = null;
-                progressUpdater.update(5, "Last sync date not available, downloading all new emails");
-            }
-        }
-
-        try {
-            // Set up connection properties
-            Properties props = new Properties();
-            props.put("mail.store.protocol", "imaps");
-            props.put("mail.imaps.host", imapHost);
-            props.put("mail.imaps.port", imapPort);
-            props.put("mail.imaps.ssl.enable", String.valueOf(useSSL));
-            props.put("mail.imaps.ssl.trust", "*");
-
-            // Create the session
-            Session session = Session.getInstance(props);
-
-            // Connect to the server
-            Store store = session.getStore("imaps");
-            store.connect(imapHost, username, password);
-
-            // Get the default folder
-            Folder defaultFolder = store.getDefaultFolder();
-
-            // Check for interruption
-            if (Thread.currentThread().isInterrupted()) {
-                store.close();
-                throw new InterruptedException("Task cancelled");
-            }
-
-            // Get all folders
-            Folder[] folders = defaultFolder.list();
-            int totalFolders = folders.length;
-
-            progressUpdater.update(15, "Found " + totalFolders + " folders");
-
-            int processedFolders = 0;
-            int totalEmails = 0;
-            int downloadedEmails = 0;
-            int skippedEmails = 0;
-
-            // First pass to count total emails
-            if (!newOnly) { // Only count for full sync
-                progressUpdater.update(15, "Counting emails...");
-                for (Folder folder : folders) {
-                    // Skip non-selectable folders
-                    if ((folder.getType() & Folder.HOLDS_MESSAGES) == 0) {
-                        continue;
-                    }
-
-                    try {
-                        folder.open(Folder.READ_ONLY);
-                        totalEmails += folder.getMessageCount();
-                        folder.close(false);
-                    } catch (MessagingException e) {
-                        LOGGER.log(Level.WARNING, "Error counting messages in folder: " + folder.getName(), e);
-                    }
-
-                    // Check for interruption
-                    if (Thread.currentThread().isInterrupted()) {
-                        store.close();
-                        throw new InterruptedException("Task cancelled");
-                    }
-                }
-            }
-
-            // Process each folder
-            for (Folder folder : folders) {
-                // Skip non-selectable folders
-                if ((folder.getType() & Folder.HOLDS_MESSAGES) == 0) {
-                    continue;
-                }
-
-                String folderName = folder.getFullName();
-                progressUpdater.update(20, "Processing folder: " + folderName);
+        try (ImapConnectionPool pool = ImapConnectionPool.forImap(imapHost, imapPort, username, password,
+                useSSL, ImapDownloader.getImapConnections())) {
+            // Download all folders in parallel over the connection pool
+            ParallelDownloadEngine engine = new ParallelDownloadEngine(pool, baseDir, existingMessageIds);
+            ParallelDownloadEngine.Result result = engine.download(progressUpdater, newOnly);
 
-                try {
-                    // Open the folder
-                    folder.open(Folder.READ_ONLY);
-
-                    // Create folder directory
-                    String folderPath = storagePath + File.separator + FileUtils.sanitizeFolderName(folderName);
-                    File folderDir = new File(folderPath);
-                    if (!folderDir.exists()) {
-                        folderDir.mkdirs();
-                    }
-
-                    // Create messages directory within folder
-                    File messagesDir = new File(folderDir, "messages");
-                    if (!messagesDir.exists()) {
-                        messagesDir.mkdirs();
-                    }
-
-                    // Get messages from this folder
-                    Message[] messages;
-
-                    if (newOnly && lastSyncDate != null) {
-                        // Get only messages since last sync
-                        messages = folder.search(new ReceivedDateTerm(ComparisonTerm.GE, lastSyncDate));
-                    } else {
-                        // Get all messages
-                        messages = folder.getMessages();
-                    }
-
-                    if (messages.length > 0) {
-                        progressUpdater.update(30, "Found " + messages.length + " emails in " + folderName);
-                    }
-
-                    // Process each message
-                    for (int i = 0; i < messages.length; i++) {
-                        Message message = messages[i];
-
-                        // Check for interruption
-                        if (Thread.currentThread().isInterrupted()) {
-                            folder.close(false);
-                            store.close();
-                            throw new InterruptedException("Task cancelled");
-                        }
-
-                        try {
-                            // Get message ID or fallback to a unique identifier
-                            String messageId = getMessageId(message);
-                            if (messageId == null || messageId.isEmpty()) {
-                                // Create a unique ID based on folder, date and subject
-                                String subject = message.getSubject();
-                                Date sentDate = message.getSentDate();
-                                if (subject == null) subject = "No Subject";
-                                if (sentDate == null) sentDate = new Date();
-
-                                messageId = folderName + "-" +
-                                        new SimpleDateFormat("yyyyMMdd-HHmmss").format(sentDate) + "-" +
-                                        Math.abs(subject.hashCode());
-                            }
-
-                            // Skip if this message already exists and we're only getting new messages
-                            String sanitizedId = FileUtils.sanitizeFileName(messageId);
-                            File msgDir = new File(messagesDir, sanitizedId);
-                            
-                            // Skip if this message already exists in our index or on disk
-                            if (existingMessageIds.contains(messageId) || msgDir.exists()) {
-                                skippedEmails++;
-                                continue;
-                            }
-
-                            // Message doesn't exist, download it
-                            msgDir.mkdirs();
-
-                            // Save message content
-                            saveMessageContent(msgDir, message);
-
-                            // Save message properties
-                            saveMessageProperties(msgDir, message);
-
-                            // Add to the set of existing messages to avoid duplicates in same run
-                            existingMessageIds.add(messageId);
-                            
-                            downloadedEmails++;
-
-                            // Update progress for full sync
-                            if (!newOnly && totalEmails > 0) {
-                                int emailProgress = 20 + (75 * (downloadedEmails + skippedEmails) / totalEmails);
-                                progressUpdater.update(Math.min(95, emailProgress), "Downloaded " + 
-                                    downloadedEmails + " new emails, skipped " + skippedEmails + " existing emails");
-                            } else {
-                                // For new emails, use a simpler progress calculation
-                                progressUpdater.update(20 + (75 * (i + 1) / Math.max(1, messages.length)),
-                                    "Downloaded " + downloadedEmails + " new emails, skipped " + skippedEmails + " existing emails");
-                            }
-
-                            // Update status message periodically
-                            if (downloadedEmails % 10 == 0 || i == messages.length - 1) {
-                                progressUpdater.update(20 + (75 * (i + 1) / Math.max(1, messages.length)),
-                                        "Downloaded " + downloadedEmails + " emails (" +
-                                                (i + 1) + "/" + messages.length + " from " + folderName + 
-                                                "), skipped " + skippedEmails + " emails");
-                            }
-                        } catch (Exception e) {
-                            LOGGER.log(Level.WARNING, "Error processing message", e);
-                            // Continue with next message
-                        }
-                    }
-
-                    // Close the folder
-                    folder.close(false);
-
-                } catch (MessagingException e) {
-                    LOGGER.log(Level.WARNING, "Error processing folder: " + folderName, e);
-                    // Continue with next folder
-                }
-
-                processedFolders++;
-                int folderProgress = 5 + (90 * processedFolders / totalFolders);
-                if (downloadedEmails == 0) { // Only update if no emails were downloaded
-                    progressUpdater.update(Math.min(95, folderProgress), "Skipped " + skippedEmails + " existing emails");
-                }
-            }
-
-            // Close the connection
-            store.close();
-
-            // Update last sync time
-            try {
-                SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-                Files.write(lastSyncFile.toPath(),
-                        Collections.singletonList(sdf.format(new Date())),
-                        StandardCharsets.UTF_8);
-            } catch (IOException e) {
-                LOGGER.log(Level.WARNING, "Error updating last sync time", e);
-            }
+            int downloadedEmails = result.getDownloadedEmails();
+            int skippedEmails = result.getSkippedEmails();
+            int processedFolders = result.getProcessedFolders();
 
             // Finalizing
             progressUpdater.update(95, "Finalizing download...");
@@ -399,93 +193,107 @@ public class EmailDownloader extends BackgroundTask {
     }
 
     /**
-     * Index existing message IDs to avoid re-downloading
+     * Download a single message into the messages directory of its folder unless it already exists.
+     * The message ID is claimed in the index before writing, so concurrent workers never
+     * download the same message twice, and appended to the index file once the message is written.
      *
-     * @param baseDir The base directory containing email folders
-     * @param existingIds Set to populate with existing message IDs
+     * @param message The message to download
+     * @param folderName The IMAP folder name, used for messages without a Message-ID
+     * @param messagesDir The messages directory of the folder
+     * @param messageIndex Index of the Message-IDs that are already downloaded
+     * @param attachmentProgress Callback for the throughput of large attachments (may be null)
+     * @return true if the message was downloaded, false if it was skipped
+     * @throws Exception If the message could not be saved
      */
-    private static void indexExistingMessages(File baseDir, Set<String> existingIds) {
-        // Get all folders
-        File[] folders = baseDir.listFiles(file ->
-                file.isDirectory() && !file.getName().startsWith("."));
-
-        if (folders == null) {
-            return;
+    static boolean downloadMessage(Message message, String folderName, File messagesDir,
+                                   MessageIdIndex messageIndex, ProgressStatusCallback attachmentProgress)
+            throws Exception {
+        // Get message ID or fallback to a unique identifier
+        String messageId = getMessageId(message);
+        if (messageId == null || messageId.isEmpty()) {
+            // Create a unique ID based on folder, date and subject
+            String subject = message.getSubject();
+            Date sentDate = message.getSentDate();
+            if (subject == null) subject = "No Subject";
+            if (sentDate == null) sentDate = new Date();
+
+            messageId = folderName + "-" +
+                    new SimpleDateFormat("yyyyMMdd-HHmmss").format(sentDate) + "-" +
+                    Math.abs(subject.hashCode());
         }
 
-        for (File folder : folders) {
-            // Check for messages in "messages" directory (new structure)
-            File messagesDir = new File(folder, "messages");
-            if (messagesDir.exists() && messagesDir.isDirectory()) {
-                File[] messageDirs = messagesDir.listFiles(File::isDirectory);
-                if (messageDirs != null) {
-                    for (File messageDir : messageDirs) {
-                        // Check if this is a valid message directory
-                        File propertiesFile = new File(messageDir, "message.properties");
-                        if (propertiesFile.exists()) {
-                            try (FileInputStream fis = new FileInputStream(propertiesFile)) {
-                                // Load properties to get message ID
-                                Properties props = new Properties();
-                                props.load(fis);
-
-                                // Try to get the message ID
-                                String messageId = props.getProperty("message.id");
-                                if (messageId != null && !messageId.isEmpty()) {
-                                    existingIds.add(messageId);
-                                }
-
-                                // Also add the folder name version
-                                String folderMessageId = props.getProperty("message.id.folder");
-                                if (folderMessageId != null && !folderMessageId.isEmpty()) {
-                                    existingIds.add(folderMessageId);
-                                }
-
-                                // If no message ID, use the folder name
-                                if ((messageId == null || messageId.isEmpty()) &&
-                                        (folderMessageId == null || folderMessageId.isEmpty())) {
-                                    existingIds.add(messageDir.getName());
-                                }
-                            } catch (IOException e) {
-                                LOGGER.log(Level.WARNING, "Error reading properties file: " + propertiesFile, e);
-                            }
-                        }
-                    }
-                }
+        String sanitizedId = FileUtils.sanitizeFileName(messageId);
+
+        // Skip if this message already exists on disk or in our index
+        if (isArchived(messagesDir, sanitizedId)) {
+            // Written by a task that does not maintain the index; record it now
+            if (messageIndex.claim(messageId)) {
+                messageIndex.commit(messageId);
             }
+            return false;
+        }
+        if (!messageIndex.claim(messageId)) {
+            return false;
+        }
 
-            // Check for messages in the old structure as well
-            File[] oldMessageDirs = folder.listFiles(file ->
-                    file.isDirectory() &&
-                            !file.getName().equals("messages") &&
-                            !file.getName().startsWith(".") &&
-                            new File(file, "message.properties").exists());
-
-            if (oldMessageDirs != null) {
-                for (File messageDir : oldMessageDirs) {
-                    // Check if this is a valid message directory
-                    File propertiesFile = new File(messageDir, "message.properties");
-                    if (propertiesFile.exists()) {
-                        try (FileInputStream fis = new FileInputStream(propertiesFile)) {
-                            // Load properties to get message ID
-                            Properties props = new Properties();
-                            props.load(fis);
-
-                            // Try to get the message ID
-                            String messageId = props.getProperty("message.id");
-                            if (messageId != null && !messageId.isEmpty()) {
-                                existingIds.add(messageId);
-                            }
-
-                            // If no message ID, use the folder name
-                            if (messageId == null || messageId.isEmpty()) {
-                                existingIds.add(messageDir.getName());
-                            }
-                        } catch (IOException e) {
-                            LOGGER.log(Level.WARNING, "Error reading properties file: " + propertiesFile, e);
-                        }
-                    }
-                }
+        try {
+            // Message doesn't exist, download it
+            writeMessage(messagesDir, sanitizedId, message, attachmentProgress);
+        } catch (Exception e) {
+            // Release the claim so a later run retries this message
+            messageIndex.release(messageId);
+            throw e;
+        }
+
+        messageIndex.commit(messageId);
+        return true;
+    }
+
+    /**
+     * Check whether a message is already stored in a folder, as a directory or in the folder's segments
+     *
+     * @param messagesDir The messages directory of the folder
+     * @param sanitizedId The sanitized message ID
+     * @return true if the message exists in either archive format
+     */
+    static boolean isArchived(File messagesDir, String sanitizedId) {
+        File folderDir = messagesDir.getParentFile();
+        return new File(messagesDir, sanitizedId).exists()
+                || (SegmentArchive.exists(folderDir) && SegmentArchive.open(folderDir).contains(sanitizedId));
+    }
+
+    /**
+     * Write a message to its folder in the configured archive format.
+     * For the segment format the message is saved to a staging directory first, at the same depth
+     * as a message directory so attachments still go to the archive's blob store, and then packed
+     * into the folder's segment archive. A partial copy is removed if writing fails.
+     *
+     * @param messagesDir The messages directory of the folder
+     * @param sanitizedId The sanitized message ID
+     * @param message The message to write
+     * @param attachmentProgress Callback for the throughput of large attachments (may be null)
+     * @throws Exception If the message could not be saved
+     */
+    static void writeMessage(File messagesDir, String sanitizedId, Message message,
+                             ProgressStatusCallback attachmentProgress) throws Exception {
+        File folderDir = messagesDir.getParentFile();
+        boolean segments = EmailConfiguration.FORMAT_SEGMENTS.equals(ImapDownloader.getArchiveFormat());
+        File msgDir = segments
+                ? new File(new File(folderDir, STAGING_DIR), sanitizedId)
+                : new File(messagesDir, sanitizedId);
+
+        try {
+            msgDir.mkdirs();
+            saveMessageContent(msgDir, message, attachmentProgress);
+            saveMessageProperties(msgDir, message);
+
+            if (segments) {
+                SegmentArchive.open(folderDir).append(sanitizedId, SegmentArchive.readDirectory(msgDir));
+                FileUtils.deleteDirectory(msgDir);
             }
+        } catch (Exception e) {
+            FileUtils.deleteDirectory(msgDir);
+            throw e;
         }
     }
 
@@ -507,6 +315,44 @@ public class EmailDownloader extends BackgroundTask {
         return null;
     }
 
+    /**
+     * Build the fetch profile used to prefetch everything the skip-if-exists check needs
+     *
+     * @return A fetch profile for envelope, UID, size and the Message-ID header
+     */
+    static FetchProfile createHeaderFetchProfile() {
+        FetchProfile profile = new FetchProfile();
+        profile.add(FetchProfile.Item.ENVELOPE);
+        profile.add(FetchProfile.Item.SIZE);
+        profile.add(UIDFolder.FetchProfileItem.UID);
+        profile.add("Message-ID");
+        return profile;
+    }
+
+    /**
+     * Prefetch headers for a range of messages in one IMAP round trip, so that
+     * Message-ID, subject, dates and size are served from the cache afterwards.
+     * If the server rejects the fetch, messages fall back to fetching lazily.
+     *
+     * @param folder The open folder the messages belong to
+     * @param messages The messages
+     * @param from Index of the first message to prefetch (inclusive)
+     * @param to Index of the last message to prefetch (exclusive)
+     */
+    static void prefetchHeaders(Folder folder, Message[] messages, int from, int to) {
+        if (from >= to) {
+            return;
+        }
+        try {
+            Message[] range = from == 0 && to == messages.length
+                    ? messages
+                    : Arrays.copyOfRange(messages, from, to);
+            folder.fetch(range, createHeaderFetchProfile());
+        } catch (MessagingException e) {
+            LOGGER.log(Level.WARNING, "Error prefetching headers in folder: " + folder.getFullName(), e);
+        }
+    }
+
     /**
      * Save the content of an email message to files
      *
@@ -515,11 +361,24 @@ public class EmailDownloader extends BackgroundTask {
      * @throws Exception If an error occurs
      */
     static void saveMessageContent(File msgDir, Message message) throws Exception {
+        saveMessageContent(msgDir, message, null);
+    }
+
+    /**
+     * Save the content of an email message to files
+     *
+     * @param msgDir The message directory
+     * @param message The email message
+     * @param attachmentProgress Callback for the throughput of large attachments (may be null)
+     * @throws Exception If an error occurs
+     */
+    static void saveMessageContent(File msgDir, Message message, ProgressStatusCallback attachmentProgress)
+            throws Exception {
         Object content = message.getContent();
 
-        // Create content.txt for the main message content
-        File contentFile = new File(msgDir, "content.txt");
-        FileWriter writer = new FileWriter(contentFile);
+        // Create content.txt (or content.txt.gz) for the main message content
+        boolean compress = ImapDownloader.isCompressBodies();
+        Writer writer = MessageBodyFiles.newWriter(msgDir, "content.txt", compress);
 
         // Handle different content types
         if (content instanceof String) {
@@ -528,7 +387,7 @@ public class EmailDownloader extends BackgroundTask {
         } else if (content instanceof Multipart) {
             // Multipart message (with possible attachments)
             Multipart multipart = (Multipart) content;
-            processMultipart(multipart, writer, msgDir);
+            processMultipart(multipart, writer, msgDir, compress, attachmentProgress);
         } else if (content instanceof InputStream) {
             // Input stream content
             InputStream is = (InputStream) content;
@@ -554,13 +413,15 @@ public class EmailDownloader extends BackgroundTask {
      * @param multipart The multipart content
      * @param writer The writer for the main content
      * @param msgDir The message directory
+     * @param compress Whether to store body files compressed
+     * @param attachmentProgress Callback for the throughput of large attachments (may be null)
      */
-    private static void processMultipart(Multipart multipart, FileWriter writer, File msgDir) throws Exception {
+    private static void processMultipart(Multipart multipart, Writer writer, File msgDir, boolean compress,
+                                         ProgressStatusCallback attachmentProgress) throws Exception {
         int count = multipart.getCount();
 
-        // Create attachments directory if needed
-        File attachmentsDir = new File(msgDir, "attachments");
-        boolean hasAttachments = false;
+        // Attachments go into the content-addressed store of the archive (<base>/<folder>/messages/<id>)
+        AttachmentStore attachmentStore = new AttachmentStore(msgDir.getParentFile().getParentFile().getParentFile());
 
         for (int i = 0; i < count; i++) {
             BodyPart bodyPart = multipart.getBodyPart(i);
@@ -568,12 +429,6 @@ public class EmailDownloader extends BackgroundTask {
             // Check if this is an attachment
             if (Part.ATTACHMENT.equalsIgnoreCase(bodyPart.getDisposition()) ||
                     bodyPart.getFileName() != null) {
-                // This is an attachment
-                if (!hasAttachments) {
-                    attachmentsDir.mkdirs();
-                    hasAttachments = true;
-                }
-
                 // Save the attachment
                 String fileName = bodyPart.getFileName();
                 if (fileName == null) {
@@ -581,16 +436,8 @@ public class EmailDownloader extends BackgroundTask {
                 }
 
                 fileName = FileUtils.sanitizeFileName(fileName);
-                File attachmentFile = new File(attachmentsDir, fileName);
-
-                try (InputStream is = bodyPart.getInputStream();
-                     FileOutputStream fos = new FileOutputStream(attachmentFile)) {
-                    byte[] buffer = new byte[4096];
-                    int bytesRead;
-                    while ((bytesRead = is.read(buffer)) != -1) {
-                        fos.write(buffer, 0, bytesRead);
-                    }
-                }
+                String hash = attachmentStore.store(bodyPart.getInputStream(), bodyPart.getSize(), attachmentProgress);
+                AttachmentStore.addReference(msgDir, fileName, hash);
 
                 // Add a note about the attachment to the content file
                 writer.write("\n[ATTACHMENT: " + fileName + "]\n");
@@ -605,11 +452,10 @@ public class EmailDownloader extends BackgroundTask {
                     writer.write("\n");
                 } else if (content instanceof Multipart) {
                     // Nested multipart
-                    processMultipart((Multipart) content, writer, msgDir);
+                    processMultipart((Multipart) content, writer, msgDir, compress, attachmentProgress);
                 } else if (bodyPart.isMimeType("text/html")) {
                     // HTML content - create a separate HTML file
-                    File htmlFile = new File(msgDir, "content.html");
-                    try (FileWriter htmlWriter = new FileWriter(htmlFile)) {
+                    try (Writer htmlWriter = MessageBodyFiles.newWriter(msgDir, "content.html", compress)) {
                         htmlWriter.write(bodyPart.getContent().toString());
                     }
 
@@ -11,7 +11,6 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.text.SimpleDateFormat;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -125,10 +124,9 @@ public class EmailDownloaderYearFilter extends BackgroundTask {
             baseDir.mkdirs();
         }
 
-        // Index existing message IDs to avoid duplicate downloads
-        Set<String> existingMessageIds = ConcurrentHashMap.newKeySet();
-        progressUpdater.update(5, "Indexing existing messages to avoid duplicates...");
-        indexExistingMessages(baseDir, existingMessageIds);
+        // Load the persistent message index to avoid duplicate downloads
+        progressUpdater.update(5, "Loading message index...");
+        MessageIdIndex existingMessageIds = MessageIdIndex.open(baseDir);
         progressUpdater.update(10, "Found " + existingMessageIds.size() + " existing messages");
 
         try {
@@ -257,6 +255,12 @@ public class EmailDownloaderYearFilter extends BackgroundTask {
 
                     // Process each message
                     for (int i = 0; i < messages.length; i++) {
+                        // Prefetch headers for the next range so existing messages are skipped without round trips
+                        if (i % EmailDownloader.PREFETCH_BATCH_SIZE == 0) {
+                            EmailDownloader.prefetchHeaders(folder, messages, i,
+                                    Math.min(messages.length, i + EmailDownloader.PREFETCH_BATCH_SIZE));
+                        }
+
                         Message message = messages[i];
 
                         // Check for interruption
@@ -267,42 +271,12 @@ public class EmailDownloaderYearFilter extends BackgroundTask {
                         }
 
                         try {
-                            // Get message ID or fallback to a unique identifier
-                            String messageId = getMessageId(message);
-                            if (messageId == null || messageId.isEmpty()) {
-                                // Create a unique ID based on folder, date and subject
-                                String subject = message.getSubject();
-                                Date sentDate = message.getSentDate();
-                                if (subject == null) subject = "No Subject";
-                                if (sentDate == null) sentDate = new Date();
-
-                                messageId = folderName + "-" +
-                                        new SimpleDateFormat("yyyyMMdd-HHmmss").format(sentDate) + "-" +
-                                        Math.abs(subject.hashCode());
-                            }
-
-                            // Skip if this message already exists
-                            String sanitizedId = FileUtils.sanitizeFileName(messageId);
-                            File msgDir = new File(messagesDir, sanitizedId);
-                            
-                            // Skip if this message already exists in our index or on disk
-                            if (existingMessageIds.contains(messageId) || msgDir.exists()) {
+                            // Claim, write and commit the message in the index, skipping existing messages
+                            if (!EmailDownloader.downloadMessage(message, folderName, messagesDir,
+                                    existingMessageIds, null)) {
                                 skippedEmails++;
                                 continue;
                             }
-
-                            // Message doesn't exist, download it
-                            msgDir.mkdirs();
-
-                            // Save message content
-                            saveMessageContent(msgDir, message);
-
-                            // Save message properties
-                            saveMessageProperties(msgDir, message);
-
-                            // Add to the set of existing messages to avoid duplicates in same run
-                            existingMessageIds.add(messageId);
-                            
                             downloadedEmails++;
 
                             // Update progress
@@ -323,6 +297,10 @@ public class EmailDownloaderYearFilter extends BackgroundTask {
                         }
                     }
 
+                    // Bring the folder summary and search index up to date for the local reader
+                    FolderSummary.load(folderDir);
+                    FolderSearchIndex.load(folderDir);
+
                     // Close the folder
                     folder.close(false);
 
@@ -373,312 +351,4 @@ public class EmailDownloaderYearFilter extends BackgroundTask {
             return "Error during email download: " + e.getMessage();
         }
     }
-
-    // The following methods are copied from EmailDownloader to avoid dependencies
-    
-    /**
-     * Index existing message IDs to avoid re-downloading
-     */
-    private static void indexExistingMessages(File baseDir, Set<String> existingIds) {
-        // Get all folders
-        File[] folders = baseDir.listFiles(file ->
-                file.isDirectory() && !file.getName().startsWith("."));
-
-        if (folders == null) {
-            return;
-        }
-
-        for (File folder : folders) {
-            // Check for messages in "messages" directory (new structure)
-            File messagesDir = new File(folder, "messages");
-            if (messagesDir.exists() && messagesDir.isDirectory()) {
-                File[] messageDirs = messagesDir.listFiles(File::isDirectory);
-                if (messageDirs != null) {
-                    for (File messageDir : messageDirs) {
-                        // Check if this is a valid message directory
-                        File propertiesFile = new File(messageDir, "message.properties");
-                        if (propertiesFile.exists()) {
-                            try (FileInputStream fis = new FileInputStream(propertiesFile)) {
-                                // Load properties to get message ID
-                                Properties props = new Properties();
-                                props.load(fis);
-
-                                // Try to get the message ID
-                                String messageId = props.getProperty("message.id");
-                                if (messageId != null && !messageId.isEmpty()) {
-                                    existingIds.add(messageId);
-                                }
-
-                                // Also add the folder name version
-                                String folderMessageId = props.getProperty("message.id.folder");
-                                if (folderMessageId != null && !folderMessageId.isEmpty()) {
-                                    existingIds.add(folderMessageId);
-                                }
-
-                                // If no message ID, use the folder name
-                                if ((messageId == null || messageId.isEmpty()) &&
-                                        (folderMessageId == null || folderMessageId.isEmpty())) {
-                                    existingIds.add(messageDir.getName());
-                                }
-                            } catch (IOException e) {
-                                LOGGER.log(Level.WARNING, "Error reading properties file: " + propertiesFile, e);
-                            }
-                        }
-                    }
-                }
-            }
-
-            // Check for messages in the old structure as well
-            File[] oldMessageDirs = folder.listFiles(file ->
-                    file.isDirectory() &&
-                            !file.getName().equals("messages") &&
-                            !file.getName().startsWith(".") &&
-                            new File(file, "message.properties").exists());
-
-            if (oldMessageDirs != null) {
-                for (File messageDir : oldMessageDirs) {
-                    // Check if this is a valid message directory
-                    File propertiesFile = new File(messageDir, "message.properties");
-                    if (propertiesFile.exists()) {
-                        try (FileInputStream fis = new FileInputStream(propertiesFile)) {
-                            // Load properties to get message ID
-                            Properties props = new Properties();
-                            props.load(fis);
-
-                            // Try to get the message ID
-                            String messageId = props.getProperty("message.id");
-                            if (messageId != null && !messageId.isEmpty()) {
-                                existingIds.add(messageId);
-                            }
-
-                            // If no message ID, use the folder name
-                            if (messageId == null || messageId.isEmpty()) {
-                                existingIds.add(messageDir.getName());
-                            }
-                        } catch (IOException e) {
-                            LOGGER.log(Level.WARNING, "Error reading properties file: " + propertiesFile, e);
-                        }
-                    }
-                }
-            }
-        }
-    }
-
-    /**
-     * Get the Message-ID header from an email message
-     */
-    private static String getMessageId(Message message) {
-        try {
-            String[] headers = message.getHeader("Message-ID");
-            if (headers != null && headers.length > 0) {
-                return headers[0];
-            }
-        } catch (MessagingException e) {
-            LOGGER.log(Level.WARNING, "Error getting Message-ID", e);
-        }
-        return null;
-    }
-
-    /**
-     * Save the content of an email message to files
-     */
-    private static void saveMessageContent(File msgDir, Message message) throws Exception {
-        Object content = message.getContent();
-
-        // Create content.txt for the main message content
-        File contentFile = new File(msgDir, "content.txt");
-        FileWriter writer = new FileWriter(contentFile);
-
-        // Handle different content types
-        if (content instanceof String) {
-            // Simple text message
-            writer.write((String) content);
-        } else if (content instanceof Multipart) {
-            // Multipart message (with possible attachments)
-            Multipart multipart = (Multipart) content;
-            processMultipart(multipart, writer, msgDir);
-        } else if (content instanceof InputStream) {
-            // Input stream content
-            InputStream is = (InputStream) content;
-            byte[] buffer = new byte[4096];
-            int bytesRead;
-            StringBuilder sb = new StringBuilder();
-            while ((bytesRead = is.read(buffer)) != -1) {
-                sb.append(new String(buffer, 0, bytesRead, StandardCharsets.UTF_8));
-            }
-            writer.write(sb.toString());
-            is.close();
-        } else {
-            // Unknown content type
-            writer.write("Content type not supported: " + message.getContentType());
-        }
-
-        writer.close();
-    }
-
-    /**
-     * Process a multipart message
-     */
-    private static void processMultipart(Multipart multipart, FileWriter writer, File msgDir) throws Exception {
-        int count = multipart.getCount();
-
-        // Create attachments directory if needed
-        File attachmentsDir = new File(msgDir, "attachments");
-        boolean hasAttachments = false;
-
-        for (int i = 0; i < count; i++) {
-            BodyPart bodyPart = multipart.getBodyPart(i);
-
-            // Check if this is an attachment
-            if (Part.ATTACHMENT.equalsIgnoreCase(bodyPart.getDisposition()) ||
-                    bodyPart.getFileName() != null) {
-                // This is an attachment
-                if (!hasAttachments) {
-                    attachmentsDir.mkdirs();
-                    hasAttachments = true;
-                }
-
-                // Save the attachment
-                String fileName = bodyPart.getFileName();
-                if (fileName == null) {
-                    fileName = "attachment-" + (i + 1);
-                }
-
-                fileName = FileUtils.sanitizeFileName(fileName);
-                File attachmentFile = new File(attachmentsDir, fileName);
-
-                try (InputStream is = bodyPart.getInputStream();
-                     FileOutputStream fos = new FileOutputStream(attachmentFile)) {
-                    byte[] buffer = new byte[4096];
-                    int bytesRead;
-                    while ((bytesRead = is.read(buffer)) != -1) {
-                        fos.write(buffer, 0, bytesRead);
-                    }
-                }
-
-                // Add a note about the attachment to the content file
-                writer.write("\n[ATTACHMENT: " + fileName + "]\n");
-
-            } else {
-                // This is the message body or an inline part
-                Object content = bodyPart.getContent();
-
-                if (content instanceof String) {
-                    // Text content
-                    writer.write((String) content);
-                    writer.write("\n");
-                } else if (content instanceof Multipart) {
-                    // Nested multipart
-                    processMultipart((Multipart) content, writer, msgDir);
-                } else if (bodyPart.isMimeType("text/html")) {
-                    // HTML content - create a separate HTML file
-                    File htmlFile = new File(msgDir, "content.html");
-                    try (FileWriter htmlWriter = new FileWriter(htmlFile)) {
-                        htmlWriter.write(bodyPart.getContent().toString());
-                    }
-
-                    // Add a note about the HTML content
-                    writer.write("\n[HTML CONTENT AVAILABLE IN content.html]\n");
-                }
-            }
-        }
-    }
-
-    /**
-     * Save message properties to a file
-     */
-    private static void saveMessageProperties(File msgDir, Message message)
-            throws MessagingException, IOException {
-        Properties props = new Properties();
-
-        // Message ID
-        String messageId = getMessageId(message);
-        if (messageId != null) {
-            props.setProperty("message.id", messageId);
-            // Also store the sanitized version that was used for the directory name
-            props.setProperty("message.id.folder", FileUtils.sanitizeFileName(messageId));
-        }
-
-        // Subject
-        String subject = message.getSubject();
-        if (subject != null) {
-            props.setProperty("subject", subject);
-        } else {
-            props.setProperty("subject", "(No Subject)");
-        }
-
-        // From
-        Address[] fromAddresses = message.getFrom();
-        if (fromAddresses != null && fromAddresses.length > 0) {
-            StringBuilder from = new StringBuilder();
-            for (Address address : fromAddresses) {
-                if (from.length() > 0) {
-                    from.append(", ");
-                }
-                from.append(address.toString());
-            }
-            props.setProperty("from", from.toString());
-        }
-
-        // Reply-To
-        Address[] replyToAddresses = message.getReplyTo();
-        if (replyToAddresses != null && replyToAddresses.length > 0) {
-            StringBuilder replyTo = new StringBuilder();
-            for (Address address : replyToAddresses) {
-                if (replyTo.length() > 0) {
-                    replyTo.append(", ");
-                }
-                replyTo.append(address.toString());
-            }
-            props.setProperty("reply.to", replyTo.toString());
-        }
-
-        // To
-        Address[] toAddresses = message.getRecipients(Message.RecipientType.TO);
-        if (toAddresses != null) {
-            StringBuilder to = new StringBuilder();
-            for (Address address : toAddresses) {
-                if (to.length() > 0) {
-                    to.append(", ");
-                }
-                to.append(address.toString());
-            }
-            props.setProperty("to", to.toString());
-        }
-
-        // CC
-        Address[] ccAddresses = message.getRecipients(Message.RecipientType.CC);
-        if (ccAddresses != null) {
-            StringBuilder cc = new StringBuilder();
-            for (Address address : ccAddresses) {
-                if (cc.length() > 0) {
-                    cc.append(", ");
-                }
-                cc.append(address.toString());
-            }
-            props.setProperty("cc", cc.toString());
-        }
-
-        // Date
-        Date sentDate = message.getSentDate();
-        if (sentDate != null) {
-            SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-            props.setProperty("sent.date", sdf.format(sentDate));
-        }
-
-        Date receivedDate = message.getReceivedDate();
-        if (receivedDate != null) {
-            SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-            props.setProperty("received.date", sdf.format(receivedDate));
-        }
-
-        // Size
-        props.setProperty("size.bytes", String.valueOf(message.getSize()));
-
-        // Save properties to file
-        File propsFile = new File(msgDir, "message.properties");
-        try (FileOutputStream out = new FileOutputStream(propsFile)) {
-            props.store(out, "Email Message Properties");
-        }
-    }
 }
\ No newline at end of file
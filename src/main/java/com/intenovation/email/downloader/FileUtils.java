@@ -42,6 +42,11 @@ public class FileUtils {
                         count.addAndGet(directMessages.length);
                     }
                 }
+
+                // Messages in segment files are counted from the segment index
+                if (SegmentArchive.exists(folder)) {
+                    count.addAndGet(SegmentArchive.open(folder).size());
+                }
             }
         }
 
@@ -0,0 +1,474 @@
+package com.intenovation.email.downloader;
+
+import com.intenovation.email.utils.EmailAddressSanitizer;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Inverted word index over the subject, sender, recipients and body text of the messages of one folder.
+ * The index is kept in a binary file ({@code .search-index}) in the folder directory and, like the
+ * {@link FolderSummary}, records the modification time of the {@code messages} directory and the length
+ * of the segment index; when either has changed only the new messages are read and removed messages are
+ * dropped. Lookups return candidate messages for a case-insensitive substring: every message whose field
+ * contains the pattern is among the candidates, so callers confirm the match on the candidates only.
+ */
+public class FolderSearchIndex {
+    private static final Logger LOGGER = Logger.getLogger(FolderSearchIndex.class.getName());
+
+    /**
+     * Name of the index file inside a folder directory
+     */
+    public static final String FILE_NAME = ".search-index";
+
+    private static final int MAGIC = 0x49445831; // "IDX1"
+
+    /**
+     * Longer words are not stored; messages containing one are candidates for every lookup of their field
+     */
+    private static final int MAX_TERM_LENGTH = 40;
+
+    /**
+     * The indexed message fields
+     */
+    public enum Field {
+        SUBJECT, FROM, RECIPIENTS, BODY
+    }
+
+    private final long messagesDirModified;
+    private final long segmentIndexLength;
+    private final List<String> keys;
+    private final Map<Field, Map<String, Postings>> terms;
+    private final Map<Field, Postings> longTerms;
+
+    /**
+     * Growable list of message numbers
+     */
+    private static class Postings {
+        private int[] ids = new int[2];
+        private int size;
+
+        void add(int id) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size++] = id;
+        }
+    }
+
+    private FolderSearchIndex(long messagesDirModified, long segmentIndexLength, List<String> keys) {
+        this.messagesDirModified = messagesDirModified;
+        this.segmentIndexLength = segmentIndexLength;
+        this.keys = keys;
+        this.terms = new EnumMap<>(Field.class);
+        this.longTerms = new EnumMap<>(Field.class);
+        for (Field field : Field.values()) {
+            terms.put(field, new HashMap<>());
+            longTerms.put(field, new Postings());
+        }
+    }
+
+    /**
+     * Load the index of a folder, bringing it up to date first if the folder has changed
+     *
+     * @param folderDir The local folder directory
+     * @return The current index
+     */
+    public static FolderSearchIndex load(File folderDir) {
+        FolderSearchIndex index = read(folderDir);
+        if (index != null && index.isCurrent(folderDir)) {
+            return index;
+        }
+        return update(folderDir, index);
+    }
+
+    /**
+     * Get the number of indexed messages
+     *
+     * @return The number of messages
+     */
+    public int size() {
+        return keys.size();
+    }
+
+    /**
+     * Find the messages whose field may contain a pattern, ignoring case
+     *
+     * @param field The field to search
+     * @param pattern The substring to search for
+     * @return The keys of the candidate messages, or null if the pattern contains no word characters
+     *         and every message is a candidate
+     */
+    public Set<String> find(Field field, String pattern) {
+        List<String> patternTerms = new ArrayList<>();
+        tokenize(pattern, patternTerms::add);
+        if (patternTerms.isEmpty()) {
+            return null;
+        }
+
+        // A word of the pattern lies within one word of a matching field, so intersect the
+        // postings of all stored words that contain each word of the pattern
+        BitSet result = null;
+        Map<String, Postings> fieldTerms = terms.get(field);
+        for (String patternTerm : new LinkedHashSet<>(patternTerms)) {
+            BitSet matches = new BitSet(keys.size());
+            addAll(matches, longTerms.get(field));
+            for (Map.Entry<String, Postings> term : fieldTerms.entrySet()) {
+                if (term.getKey().contains(patternTerm)) {
+                    addAll(matches, term.getValue());
+                }
+            }
+            if (result == null) {
+                result = matches;
+            } else {
+                result.and(matches);
+            }
+            if (result.isEmpty()) {
+                break;
+            }
+        }
+
+        Set<String> candidates = new HashSet<>();
+        for (int id = result.nextSetBit(0); id >= 0; id = result.nextSetBit(id + 1)) {
+            candidates.add(keys.get(id));
+        }
+        return candidates;
+    }
+
+    private static void addAll(BitSet bits, Postings postings) {
+        for (int i = 0; i < postings.size; i++) {
+            bits.set(postings.ids[i]);
+        }
+    }
+
+    /**
+     * Check whether the index still reflects the messages of a folder
+     *
+     * @param folderDir The local folder directory
+     * @return true if no messages were added or removed since the index was written
+     */
+    public boolean isCurrent(File folderDir) {
+        return messagesDirModified == new File(folderDir, "messages").lastModified()
+                && segmentIndexLength == segmentIndexFile(folderDir).length();
+    }
+
+    /**
+     * Rebuild the index, keeping the postings of unchanged messages and reading only new ones
+     */
+    private static synchronized FolderSearchIndex update(File folderDir, FolderSearchIndex previous) {
+        long start = System.currentTimeMillis();
+        File messagesDir = new File(folderDir, "messages");
+
+        // Take the validity stamps before listing, so messages added meanwhile make the index stale again
+        long messagesDirModified = messagesDir.lastModified();
+        long segmentIndexLength = segmentIndexFile(folderDir).length();
+
+        List<String> keys = new ArrayList<>();
+        String[] messageDirs = messagesDir.list();
+        if (messageDirs != null) {
+            for (String key : messageDirs) {
+                if (!key.startsWith(".")) {
+                    keys.add(key);
+                }
+            }
+        }
+        SegmentArchive archive = SegmentArchive.exists(folderDir) ? SegmentArchive.open(folderDir) : null;
+        Map<String, SegmentArchive.Entry> records = new HashMap<>();
+        if (archive != null) {
+            for (SegmentArchive.Entry record : archive.entries()) {
+                if (records.put(record.getKey(), record) == null && !new File(messagesDir, record.getKey()).exists()) {
+                    keys.add(record.getKey());
+                }
+            }
+        }
+
+        FolderSearchIndex index = new FolderSearchIndex(messagesDirModified, segmentIndexLength, keys);
+
+        // Carry over the postings of messages that are still present
+        Map<String, Integer> ids = new HashMap<>();
+        for (int i = 0; i < keys.size(); i++) {
+            ids.put(keys.get(i), i);
+        }
+        BitSet known = new BitSet(keys.size());
+        if (previous != null) {
+            int[] remap = new int[previous.keys.size()];
+            for (int i = 0; i < remap.length; i++) {
+                Integer id = ids.get(previous.keys.get(i));
+                remap[i] = id != null ? id : -1;
+                if (id != null) {
+                    known.set(id);
+                }
+            }
+            for (Field field : Field.values()) {
+                Map<String, Postings> fieldTerms = index.terms.get(field);
+                for (Map.Entry<String, Postings> term : previous.terms.get(field).entrySet()) {
+                    Postings postings = remap(term.getValue(), remap);
+                    if (postings.size > 0) {
+                        fieldTerms.put(term.getKey(), postings);
+                    }
+                }
+                index.longTerms.put(field, remap(previous.longTerms.get(field), remap));
+            }
+        }
+
+        int read = 0;
+        for (int id = 0; id < keys.size(); id++) {
+            if (known.get(id)) {
+                continue;
+            }
+            String key = keys.get(id);
+            try {
+                SegmentArchive.Entry record = records.get(key);
+                if (record != null && !new File(messagesDir, key).exists()) {
+                    index.addRecord(id, archive.read(record));
+                } else {
+                    index.addDirectory(id, new File(messagesDir, key));
+                }
+                read++;
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Error indexing message " + key + " in " + folderDir.getName(), e);
+            }
+        }
+
+        index.write(folderDir);
+        LOGGER.fine("Updated search index of " + folderDir.getName() + " with " + keys.size() + " messages (" +
+                read + " read) in " + (System.currentTimeMillis() - start) + " ms");
+        return index;
+    }
+
+    private static Postings remap(Postings postings, int[] remap) {
+        Postings result = new Postings();
+        for (int i = 0; i < postings.size; i++) {
+            int id = remap[postings.ids[i]];
+            if (id >= 0) {
+                result.add(id);
+            }
+        }
+        return result;
+    }
+
+    private void addDirectory(int id, File messageDir) throws IOException {
+        Properties props = new Properties();
+        File propertiesFile = new File(messageDir, "message.properties");
+        if (propertiesFile.exists()) {
+            try (FileInputStream in = new FileInputStream(propertiesFile)) {
+                props.load(in);
+            }
+        }
+
+        String body = MessageBodyFiles.read(messageDir, "content.txt");
+        if (body == null) {
+            // Same fallback as the local reader: any other text file of the message
+            File[] files = messageDir.listFiles((dir, name) -> name.endsWith(".txt"));
+            if (files != null && files.length > 0) {
+                body = new String(Files.readAllBytes(files[0].toPath()), StandardCharsets.UTF_8);
+            }
+        }
+        addMessage(id, props, body);
+    }
+
+    private void addRecord(int id, Map<String, byte[]> files) throws IOException {
+        Properties props = new Properties();
+        byte[] data = files.get("message.properties");
+        if (data != null) {
+            props.load(new ByteArrayInputStream(data));
+        }
+        addMessage(id, props, MessageBodyFiles.read(files, "content.txt"));
+    }
+
+    private void addMessage(int id, Properties props, String body) {
+        add(id, Field.SUBJECT, props.getProperty("subject"));
+        addAddresses(id, Field.FROM, props.getProperty("from"), "unknown@domain.com");
+        addAddresses(id, Field.RECIPIENTS, props.getProperty("to"), "recipient@example.com");
+        addAddresses(id, Field.RECIPIENTS, props.getProperty("cc"), "cc@example.com");
+        add(id, Field.BODY, body);
+    }
+
+    /**
+     * Index an address list both as stored and as the reader presents it after sanitizing
+     */
+    private void addAddresses(int id, Field field, String value, String fallback) {
+        if (value == null) {
+            return;
+        }
+        StringBuilder text = new StringBuilder(value);
+        for (String address : value.split(",\\s*")) {
+            String sanitized = EmailAddressSanitizer.sanitizeEmailAddress(address);
+            text.append(' ').append(sanitized != null ? sanitized : fallback);
+        }
+        add(id, field, text.toString());
+    }
+
+    private void add(int id, Field field, String text) {
+        if (text == null) {
+            return;
+        }
+        Set<String> words = new HashSet<>();
+        tokenize(text, words::add);
+
+        Map<String, Postings> fieldTerms = terms.get(field);
+        boolean longWord = false;
+        for (String word : words) {
+            if (word.length() > MAX_TERM_LENGTH) {
+                longWord = true;
+            } else {
+                Postings postings = fieldTerms.computeIfAbsent(word, w -> new Postings());
+                if (postings.size == 0 || postings.ids[postings.size - 1] != id) {
+                    postings.add(id);
+                }
+            }
+        }
+        if (longWord) {
+            Postings postings = longTerms.get(field);
+            if (postings.size == 0 || postings.ids[postings.size - 1] != id) {
+                postings.add(id);
+            }
+        }
+    }
+
+    /**
+     * Split text into lower-case runs of letters and digits
+     */
+    private static void tokenize(String text, Consumer<String> consumer) {
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                consumer.accept(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+    }
+
+    /**
+     * Read the index file, or return null if it is missing or unreadable
+     */
+    private static FolderSearchIndex read(File folderDir) {
+        File file = new File(folderDir, FILE_NAME);
+        if (!file.exists()) {
+            return null;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            if (in.readInt() != MAGIC) {
+                LOGGER.warning("Unknown search index format: " + file);
+                return null;
+            }
+            long messagesDirModified = in.readLong();
+            long segmentIndexLength = in.readLong();
+            int count = in.readInt();
+            List<String> keys = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                keys.add(in.readUTF());
+            }
+
+            FolderSearchIndex index = new FolderSearchIndex(messagesDirModified, segmentIndexLength, keys);
+            for (Field field : Field.values()) {
+                index.longTerms.put(field, readPostings(in));
+                int termCount = in.readInt();
+                Map<String, Postings> fieldTerms = index.terms.get(field);
+                for (int i = 0; i < termCount; i++) {
+                    fieldTerms.put(in.readUTF(), readPostings(in));
+                }
+            }
+            return index;
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Error reading search index, rebuilding: " + file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Write the index to a temporary file and move it into place
+     */
+    private void write(File folderDir) {
+        File file = new File(folderDir, FILE_NAME);
+        File tmp = new File(folderDir, FILE_NAME + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+                out.writeInt(MAGIC);
+                out.writeLong(messagesDirModified);
+                out.writeLong(segmentIndexLength);
+                out.writeInt(keys.size());
+                for (String key : keys) {
+                    out.writeUTF(key);
+                }
+                for (Field field : Field.values()) {
+                    writePostings(out, longTerms.get(field));
+                    Map<String, Postings> fieldTerms = terms.get(field);
+                    out.writeInt(fieldTerms.size());
+                    for (Map.Entry<String, Postings> term : fieldTerms.entrySet()) {
+                        out.writeUTF(term.getKey());
+                        writePostings(out, term.getValue());
+                    }
+                }
+            }
+            try {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Error writing search index: " + file, e);
+        }
+    }
+
+    /**
+     * Postings are stored sorted as variable-length deltas
+     */
+    private static void writePostings(DataOutputStream out, Postings postings) throws IOException {
+        int[] ids = Arrays.copyOf(postings.ids, postings.size);
+        Arrays.sort(ids);
+        writeVarInt(out, ids.length);
+        int previous = 0;
+        for (int id : ids) {
+            writeVarInt(out, id - previous);
+            previous = id;
+        }
+    }
+
+    private static Postings readPostings(DataInputStream in) throws IOException {
+        Postings postings = new Postings();
+        int count = readVarInt(in);
+        postings.ids = new int[Math.max(2, count)];
+        int id = 0;
+        for (int i = 0; i < count; i++) {
+            id += readVarInt(in);
+            postings.ids[postings.size++] = id;
+        }
+        return postings;
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    private static File segmentIndexFile(File folderDir) {
+        return new File(new File(folderDir, SegmentArchive.SEGMENT_DIR), SegmentArchive.INDEX_FILE);
+    }
+}
@@ -0,0 +1,329 @@
+package com.intenovation.email.downloader;
+
+import java.io.*;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Compact per-folder summary of the headers most readers need (Message-ID, from, subject, dates, size).
+ * The summary is a binary file ({@code .summary}) in the folder directory that is read with one
+ * sequential read instead of opening every {@code message.properties} file.
+ * It records the modification time of the {@code messages} directory and the length of the segment
+ * index it was built from; when either has changed the summary is stale and is brought up to date
+ * by reading only the messages it does not contain yet.
+ */
+public class FolderSummary {
+    private static final Logger LOGGER = Logger.getLogger(FolderSummary.class.getName());
+
+    /**
+     * Name of the summary file inside a folder directory
+     */
+    public static final String FILE_NAME = ".summary";
+
+    private static final int MAGIC = 0x53554D31; // "SUM1"
+
+    /**
+     * Longer header values are truncated in the summary
+     */
+    private static final int MAX_VALUE_LENGTH = 2000;
+
+    private final long messagesDirModified;
+    private final long segmentIndexLength;
+    private final Map<String, Entry> entries;
+
+    /**
+     * Summary of one message
+     */
+    public static class Entry {
+        private final String key;
+        private final String messageId;
+        private final String from;
+        private final String subject;
+        private final long sentDate;
+        private final long receivedDate;
+        private final long size;
+
+        Entry(String key, String messageId, String from, String subject, long sentDate, long receivedDate, long size) {
+            this.key = key;
+            this.messageId = messageId;
+            this.from = from;
+            this.subject = subject;
+            this.sentDate = sentDate;
+            this.receivedDate = receivedDate;
+            this.size = size;
+        }
+
+        /**
+         * @return The message directory name or segment record key
+         */
+        public String getKey() {
+            return key;
+        }
+
+        public String getMessageId() {
+            return messageId;
+        }
+
+        public String getFrom() {
+            return from;
+        }
+
+        public String getSubject() {
+            return subject;
+        }
+
+        /**
+         * @return The sent date, or null if unknown
+         */
+        public Date getSentDate() {
+            return sentDate != 0 ? new Date(sentDate) : null;
+        }
+
+        /**
+         * @return The received date, or null if unknown
+         */
+        public Date getReceivedDate() {
+            return receivedDate != 0 ? new Date(receivedDate) : null;
+        }
+
+        /**
+         * @return The message size in bytes as reported by the server, or -1 if unknown
+         */
+        public long getSize() {
+            return size;
+        }
+    }
+
+    private FolderSummary(long messagesDirModified, long segmentIndexLength, Map<String, Entry> entries) {
+        this.messagesDirModified = messagesDirModified;
+        this.segmentIndexLength = segmentIndexLength;
+        this.entries = entries;
+    }
+
+    /**
+     * Get the summary entry of a message
+     *
+     * @param key The message directory name or segment record key
+     * @return The entry, or null if the message is not in the summary
+     */
+    public Entry get(String key) {
+        return entries.get(key);
+    }
+
+    /**
+     * Get the number of summarized messages
+     *
+     * @return The number of entries
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Load the summary of a folder, bringing it up to date first if the folder has changed.
+     * Downloaders call this after writing a folder, so readers usually find a current summary.
+     *
+     * @param folderDir The local folder directory
+     * @return The current summary
+     */
+    public static FolderSummary load(File folderDir) {
+        FolderSummary summary = read(folderDir);
+        if (summary != null && summary.isCurrent(folderDir)) {
+            return summary;
+        }
+        return update(folderDir, summary);
+    }
+
+    private boolean isCurrent(File folderDir) {
+        return messagesDirModified == new File(folderDir, "messages").lastModified()
+                && segmentIndexLength == segmentIndexFile(folderDir).length();
+    }
+
+    /**
+     * Rebuild the summary, reusing the entries of the previous summary for unchanged messages
+     */
+    private static synchronized FolderSummary update(File folderDir, FolderSummary previous) {
+        long start = System.currentTimeMillis();
+        File messagesDir = new File(folderDir, "messages");
+
+        // Take the validity stamps before listing, so messages added meanwhile make the summary stale again
+        long messagesDirModified = messagesDir.lastModified();
+        long segmentIndexLength = segmentIndexFile(folderDir).length();
+
+        Map<String, Entry> entries = new LinkedHashMap<>();
+        int read = 0;
+
+        String[] messageDirs = messagesDir.list();
+        if (messageDirs != null) {
+            for (String key : messageDirs) {
+                if (key.startsWith(".")) {
+                    continue;
+                }
+                Entry entry = previous != null ? previous.get(key) : null;
+                if (entry == null) {
+                    entry = readDirectory(key, new File(messagesDir, key));
+                    read++;
+                }
+                if (entry != null) {
+                    entries.put(key, entry);
+                }
+            }
+        }
+
+        if (SegmentArchive.exists(folderDir)) {
+            SegmentArchive archive = SegmentArchive.open(folderDir);
+            for (SegmentArchive.Entry record : archive.entries()) {
+                Entry entry = previous != null ? previous.get(record.getKey()) : null;
+                if (entry == null) {
+                    entry = readRecord(archive, record);
+                    read++;
+                }
+                if (entry != null) {
+                    entries.put(record.getKey(), entry);
+                }
+            }
+        }
+
+        FolderSummary summary = new FolderSummary(messagesDirModified, segmentIndexLength, entries);
+        summary.write(folderDir);
+        LOGGER.fine("Updated summary of " + folderDir.getName() + " with " + entries.size() + " messages (" +
+                read + " read) in " + (System.currentTimeMillis() - start) + " ms");
+        return summary;
+    }
+
+    /**
+     * Read the summary file, or return null if it is missing or unreadable
+     */
+    private static FolderSummary read(File folderDir) {
+        File file = new File(folderDir, FILE_NAME);
+        if (!file.exists()) {
+            return null;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            if (in.readInt() != MAGIC) {
+                LOGGER.warning("Unknown folder summary format: " + file);
+                return null;
+            }
+            long messagesDirModified = in.readLong();
+            long segmentIndexLength = in.readLong();
+            int count = in.readInt();
+            Map<String, Entry> entries = new LinkedHashMap<>(count * 4 / 3 + 1);
+            for (int i = 0; i < count; i++) {
+                Entry entry = new Entry(in.readUTF(), readNullableUTF(in), readNullableUTF(in), readNullableUTF(in),
+                        in.readLong(), in.readLong(), in.readLong());
+                entries.put(entry.key, entry);
+            }
+            return new FolderSummary(messagesDirModified, segmentIndexLength, entries);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Error reading folder summary, rebuilding: " + file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Write the summary to a temporary file and move it into place
+     */
+    private void write(File folderDir) {
+        File file = new File(folderDir, FILE_NAME);
+        File tmp = new File(folderDir, FILE_NAME + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+                out.writeInt(MAGIC);
+                out.writeLong(messagesDirModified);
+                out.writeLong(segmentIndexLength);
+                out.writeInt(entries.size());
+                for (Entry entry : entries.values()) {
+                    out.writeUTF(entry.key);
+                    writeNullableUTF(out, entry.messageId);
+                    writeNullableUTF(out, entry.from);
+                    writeNullableUTF(out, entry.subject);
+                    out.writeLong(entry.sentDate);
+                    out.writeLong(entry.receivedDate);
+                    out.writeLong(entry.size);
+                }
+            }
+            try {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Error writing folder summary: " + file, e);
+        }
+    }
+
+    private static Entry readDirectory(String key, File messageDir) {
+        File propertiesFile = new File(messageDir, "message.properties");
+        if (!propertiesFile.exists()) {
+            return null;
+        }
+        try (FileInputStream in = new FileInputStream(propertiesFile)) {
+            Properties props = new Properties();
+            props.load(in);
+            return toEntry(key, props);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Error reading properties file: " + propertiesFile, e);
+            return null;
+        }
+    }
+
+    private static Entry readRecord(SegmentArchive archive, SegmentArchive.Entry record) {
+        try {
+            byte[] data = archive.read(record).get("message.properties");
+            if (data == null) {
+                return null;
+            }
+            Properties props = new Properties();
+            props.load(new ByteArrayInputStream(data));
+            return toEntry(record.getKey(), props);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Error reading segment record: " + record.getKey(), e);
+            return null;
+        }
+    }
+
+    private static Entry toEntry(String key, Properties props) {
+        long size = -1;
+        try {
+            size = Long.parseLong(props.getProperty("size.bytes", "-1"));
+        } catch (NumberFormatException e) {
+            LOGGER.log(Level.FINE, "Invalid size in message " + key, e);
+        }
+        return new Entry(key, props.getProperty("message.id"), props.getProperty("from"), props.getProperty("subject"),
+                parseDate(props.getProperty("sent.date")), parseDate(props.getProperty("received.date")), size);
+    }
+
+    private static long parseDate(String value) {
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").parse(value).getTime();
+        } catch (ParseException e) {
+            return 0;
+        }
+    }
+
+    private static File segmentIndexFile(File folderDir) {
+        return new File(new File(folderDir, SegmentArchive.SEGMENT_DIR), SegmentArchive.INDEX_FILE);
+    }
+
+    private static String readNullableUTF(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeNullableUTF(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value.length() > MAX_VALUE_LENGTH ? value.substring(0, MAX_VALUE_LENGTH) : value);
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package com.intenovation.email.downloader;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Store;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A bounded pool of connected IMAP stores.
+ * Connections are opened lazily up to the configured maximum and handed out
+ * to one worker at a time, since a single IMAP connection can only serve one
+ * command at a time.
+ */
+public class ImapConnectionPool implements AutoCloseable {
+    private static final Logger LOGGER = Logger.getLogger(ImapConnectionPool.class.getName());
+
+    private final Session session;
+    private final String protocol;
+    private final String host;
+    private final int port;
+    private final String username;
+    private final String password;
+    private final int maxConnections;
+
+    // Connected stores waiting to be borrowed and all stores of the pool, guarded by this
+    private final Deque<Store> idle = new ArrayDeque<>();
+    private final List<Store> all = new ArrayList<>();
+    private boolean closed = false;
+
+    /**
+     * Create a new connection pool
+     *
+     * @param session The mail session
+     * @param protocol The store protocol (e.g. "imaps")
+     * @param host The IMAP host
+     * @param port The IMAP port, or -1 for the protocol default
+     * @param username The user name
+     * @param password The password
+     * @param maxConnections Maximum number of simultaneous connections
+     */
+    public ImapConnectionPool(Session session, String protocol, String host, int port,
+                              String username, String password, int maxConnections) {
+        this.session = session;
+        this.protocol = protocol;
+        this.host = host;
+        this.port = port;
+        this.username = username;
+        this.password = password;
+        this.maxConnections = Math.max(1, maxConnections);
+    }
+
+    /**
+     * Create a pool for the IMAP settings used by the downloaders
+     *
+     * @param host The IMAP host
+     * @param port The IMAP port
+     * @param username The user name
+     * @param password The password
+     * @param useSSL Whether to use SSL/TLS
+     * @param maxConnections Maximum number of simultaneous connections
+     * @return A new connection pool
+     */
+    public static ImapConnectionPool forImap(String host, String port, String username, String password,
+                                             boolean useSSL, int maxConnections) {
+        Properties props = new Properties();
+        props.put("mail.store.protocol", "imaps");
+        props.put("mail.imaps.host", host);
+        props.put("mail.imaps.port", port);
+        props.put("mail.imaps.ssl.enable", String.valueOf(useSSL));
+        props.put("mail.imaps.ssl.trust", "*");
+
+        int portNumber = -1;
+        try {
+            portNumber = Integer.parseInt(port);
+        } catch (NumberFormatException e) {
+            LOGGER.log(Level.WARNING, "Invalid IMAP port, using protocol default: " + port, e);
+        }
+
+        return new ImapConnectionPool(Session.getInstance(props), "imaps", host, portNumber,
+                username, password, maxConnections);
+    }
+
+    /**
+     * Get the maximum number of connections in this pool
+     *
+     * @return The connection limit
+     */
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * Borrow a connected store, opening a new connection if the pool is not yet full
+     * and waiting for a returned one otherwise.
+     *
+     * @return A connected store
+     * @throws MessagingException If a connection cannot be opened; its slot is freed again
+     * @throws InterruptedException If interrupted while waiting for a connection
+     */
+    public Store borrow() throws MessagingException, InterruptedException {
+        Store store;
+        boolean opened = false;
+        synchronized (this) {
+            while (true) {
+                if (closed) {
+                    throw new IllegalStateException("Connection pool is closed");
+                }
+                store = idle.poll();
+                if (store != null) {
+                    break;
+                }
+                if (all.size() < maxConnections) {
+                    store = session.getStore(protocol);
+                    all.add(store);
+                    opened = true;
+                    break;
+                }
+                wait();
+            }
+        }
+        return ensureConnected(store, opened);
+    }
+
+    /**
+     * Return a store to the pool
+     *
+     * @param store The store previously obtained from {@link #borrow()}
+     */
+    public void release(Store store) {
+        if (store == null) {
+            return;
+        }
+        synchronized (this) {
+            if (!closed) {
+                idle.offer(store);
+                notifyAll();
+                return;
+            }
+        }
+        closeQuietly(store);
+    }
+
+    /**
+     * Connect a new store, or reconnect a pooled one if the server dropped the connection while it was idle.
+     * A store that cannot be connected is removed from the pool, so a waiting caller can open a new one.
+     */
+    private Store ensureConnected(Store store, boolean opened) throws MessagingException {
+        if (store.isConnected()) {
+            return store;
+        }
+        if (!opened) {
+            LOGGER.info("Reconnecting dropped IMAP connection");
+        }
+        try {
+            store.connect(host, port, username, password);
+            if (opened) {
+                LOGGER.fine("Opened IMAP connection, at most " + maxConnections);
+            }
+            return store;
+        } catch (MessagingException | RuntimeException e) {
+            synchronized (this) {
+                all.remove(store);
+                notifyAll();
+            }
+            closeQuietly(store);
+            throw e;
+        }
+    }
+
+    /**
+     * Close all connections in the pool
+     */
+    @Override
+    public void close() {
+        List<Store> toClose;
+        synchronized (this) {
+            closed = true;
+            toClose = new ArrayList<>(all);
+            all.clear();
+            idle.clear();
+            notifyAll();
+        }
+        for (Store store : toClose) {
+            closeQuietly(store);
+        }
+    }
+
+    private static void closeQuietly(Store store) {
+        try {
+            if (store.isConnected()) {
+                store.close();
+            }
+        } catch (MessagingException e) {
+            LOGGER.log(Level.WARNING, "Error closing IMAP connection", e);
+        }
+    }
+}
@@ -367,6 +367,18 @@ public class ImapDownloader {
         return ImapDownloaderInstance.getInstance().config.isUseSSL();
     }
 
+    public static int getImapConnections() {
+        return ImapDownloaderInstance.getInstance().config.getImapConnections();
+    }
+
+    public static boolean isCompressBodies() {
+        return ImapDownloaderInstance.getInstance().config.isCompressBodies();
+    }
+
+    public static String getArchiveFormat() {
+        return ImapDownloaderInstance.getInstance().config.getArchiveFormat();
+    }
+
     public static String getStoragePath() {
         return ImapDownloaderInstance.getInstance().config.getStoragePath();
     }
@@ -0,0 +1,112 @@
+package com.intenovation.email.downloader;
+
+import com.intenovation.appfw.systemtray.BackgroundTask;
+import com.intenovation.appfw.systemtray.ProgressStatusCallback;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Converts the body files of already downloaded messages to the compressed format.
+ * Messages that are already compressed are skipped, so the task can be stopped and run again.
+ */
+public class MessageBodyCompression extends BackgroundTask {
+    private static final Logger LOGGER = Logger.getLogger(MessageBodyCompression.class.getName());
+
+    private static final String[] BODY_FILES = {"content.txt", "content.html"};
+
+    /**
+     * Create a new manual body compression task
+     */
+    public MessageBodyCompression() {
+        super(
+                "Compress Message Bodies",
+                "Compresses the content files of downloaded emails to save disk space",
+                0,     // Manual only
+                true   // Available in menu
+        );
+    }
+
+    /**
+     * Execute the task with progress and status reporting
+     *
+     * @param callback Callback for reporting progress and status messages
+     * @return Status message that will be displayed on completion
+     * @throws InterruptedException if the task is cancelled
+     */
+    @Override
+    public String execute(ProgressStatusCallback callback) throws InterruptedException {
+        LOGGER.info("Starting Message Body Compression");
+
+        File baseDir = new File(ImapDownloader.getStoragePath());
+        if (!baseDir.exists()) {
+            return "Email archive directory doesn't exist yet";
+        }
+
+        callback.update(0, "Scanning email archive...");
+        List<File> messageDirs = listMessageDirs(baseDir);
+
+        int compressedFiles = 0;
+        int errors = 0;
+        long savedBytes = 0;
+
+        for (int i = 0; i < messageDirs.size(); i++) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedException("Task cancelled");
+            }
+
+            File messageDir = messageDirs.get(i);
+            for (String name : BODY_FILES) {
+                try {
+                    long saved = MessageBodyFiles.compress(messageDir, name);
+                    if (saved >= 0) {
+                        compressedFiles++;
+                        savedBytes += saved;
+                    }
+                } catch (IOException e) {
+                    errors++;
+                    LOGGER.log(Level.WARNING, "Error compressing " + name + " in " + messageDir, e);
+                }
+            }
+
+            if (i % 100 == 0) {
+                int percent = (int) (100L * i / messageDirs.size());
+                callback.update(percent, "Compressed " + compressedFiles + " files, saved " +
+                        FileUtils.formatSize(savedBytes));
+            }
+        }
+
+        String result = "Compressed " + compressedFiles + " files in " + messageDirs.size() +
+                " messages, saved " + FileUtils.formatSize(savedBytes) +
+                (errors > 0 ? " (" + errors + " errors)" : "");
+        callback.update(100, result);
+        LOGGER.info(result);
+        return result;
+    }
+
+    /**
+     * Collect all message directories of the archive
+     */
+    private static List<File> listMessageDirs(File baseDir) {
+        List<File> messageDirs = new ArrayList<>();
+        File[] folders = baseDir.listFiles(file ->
+                file.isDirectory() && !file.getName().startsWith("."));
+        if (folders == null) {
+            return messageDirs;
+        }
+
+        for (File folder : folders) {
+            File[] dirs = new File(folder, "messages").listFiles(File::isDirectory);
+            if (dirs != null) {
+                for (File dir : dirs) {
+                    messageDirs.add(dir);
+                }
+            }
+        }
+        return messageDirs;
+    }
+}
@@ -0,0 +1,141 @@
+package com.intenovation.email.downloader;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Reads and writes the body files of a message directory ({@code content.txt}, {@code content.html}).
+ * A body file is stored either plain or gzip-compressed with a {@code .gz} suffix;
+ * readers accept both, so compressed and uncompressed messages can live side by side in one archive.
+ */
+public class MessageBodyFiles {
+
+    /**
+     * Suffix of compressed body files
+     */
+    public static final String COMPRESSED_SUFFIX = ".gz";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Open a UTF-8 writer for a body file, removing the other variant of the file if present
+     *
+     * @param msgDir The message directory
+     * @param name The plain file name, e.g. {@code content.txt}
+     * @param compress Whether to write the gzip-compressed variant
+     * @return The writer; closing it finishes the file
+     * @throws IOException If the file cannot be created
+     */
+    public static Writer newWriter(File msgDir, String name, boolean compress) throws IOException {
+        File plain = new File(msgDir, name);
+        File compressed = new File(msgDir, name + COMPRESSED_SUFFIX);
+
+        OutputStream out;
+        if (compress) {
+            Files.deleteIfExists(plain.toPath());
+            out = new GZIPOutputStream(new FileOutputStream(compressed), BUFFER_SIZE);
+        } else {
+            Files.deleteIfExists(compressed.toPath());
+            out = new BufferedOutputStream(new FileOutputStream(plain), BUFFER_SIZE);
+        }
+        return new OutputStreamWriter(out, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Check whether a body file exists in either variant
+     *
+     * @param msgDir The message directory
+     * @param name The plain file name
+     * @return true if the plain or the compressed file exists
+     */
+    public static boolean exists(File msgDir, String name) {
+        return new File(msgDir, name).exists() || new File(msgDir, name + COMPRESSED_SUFFIX).exists();
+    }
+
+    /**
+     * Read a body file, decompressing it if it is stored compressed
+     *
+     * @param msgDir The message directory
+     * @param name The plain file name
+     * @return The file content, or null if the file does not exist
+     * @throws IOException If the file cannot be read
+     */
+    public static String read(File msgDir, String name) throws IOException {
+        File compressed = new File(msgDir, name + COMPRESSED_SUFFIX);
+        if (compressed.exists()) {
+            try (InputStream in = new GZIPInputStream(new FileInputStream(compressed), BUFFER_SIZE)) {
+                return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            }
+        }
+
+        File plain = new File(msgDir, name);
+        if (plain.exists()) {
+            return new String(Files.readAllBytes(plain.toPath()), StandardCharsets.UTF_8);
+        }
+        return null;
+    }
+
+    /**
+     * Read a body file from the files of a segment record, decompressing it if it is stored compressed
+     *
+     * @param files The message files by name
+     * @param name The plain file name
+     * @return The file content, or null if the record has no such file
+     * @throws IOException If the compressed data cannot be read
+     */
+    public static String read(Map<String, byte[]> files, String name) throws IOException {
+        byte[] compressed = files.get(name + COMPRESSED_SUFFIX);
+        if (compressed != null) {
+            try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed), BUFFER_SIZE)) {
+                return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            }
+        }
+
+        byte[] plain = files.get(name);
+        return plain != null ? new String(plain, StandardCharsets.UTF_8) : null;
+    }
+
+    /**
+     * Compress a plain body file in place.
+     * The compressed file is written under a temporary name and moved into place
+     * before the plain file is deleted, so an interrupted run never loses content.
+     *
+     * @param msgDir The message directory
+     * @param name The plain file name
+     * @return The number of bytes saved, or -1 if there was no plain file to compress
+     * @throws IOException If the file cannot be compressed
+     */
+    public static long compress(File msgDir, String name) throws IOException {
+        File plain = new File(msgDir, name);
+        if (!plain.exists()) {
+            return -1;
+        }
+
+        File compressed = new File(msgDir, name + COMPRESSED_SUFFIX);
+        File tmp = new File(msgDir, "." + compressed.getName() + ".part");
+        try (InputStream in = new FileInputStream(plain);
+             OutputStream out = new GZIPOutputStream(new FileOutputStream(tmp), BUFFER_SIZE)) {
+            in.transferTo(out);
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp.toPath());
+            throw e;
+        }
+
+        try {
+            Files.move(tmp.toPath(), compressed.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp.toPath(), compressed.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        long saved = plain.length() - compressed.length();
+        Files.delete(plain.toPath());
+        return saved;
+    }
+}
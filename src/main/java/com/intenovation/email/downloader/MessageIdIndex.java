@@ -0,0 +1,328 @@
+package com.intenovation.email.downloader;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Persistent index of the Message-IDs in the email archive.
+ * The index is an append-only file ({@code .message-ids.idx}) in the archive root with one
+ * Message-ID per line, so it loads with a single sequential read instead of opening every
+ * {@code message.properties} file. Every downloaded message is appended as soon as it is written.
+ * If the file is missing or unreadable it is rebuilt from the archive.
+ * One instance is shared per archive directory, so concurrent downloads append to the same writer.
+ * A rebuild holds the index lock for the whole scan, so claims and appends of running downloads wait for it
+ * instead of being lost.
+ */
+public class MessageIdIndex {
+    private static final Logger LOGGER = Logger.getLogger(MessageIdIndex.class.getName());
+
+    /**
+     * Name of the index file in the archive root
+     */
+    public static final String FILE_NAME = ".message-ids.idx";
+
+    private static final String HEADER = "# message-id index v1";
+
+    private static final Map<String, MessageIdIndex> INSTANCES = new ConcurrentHashMap<>();
+
+    private final File file;
+    private final Set<String> ids = ConcurrentHashMap.newKeySet();
+
+    // Claimed IDs whose messages are still being written; guarded by this
+    private final Set<String> pending = new HashSet<>();
+    private Writer writer;
+
+    private MessageIdIndex(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Open the index of an archive, loading it from disk or rebuilding it if it does not exist yet
+     *
+     * @param baseDir The archive root directory
+     * @return The shared index for this archive
+     */
+    public static MessageIdIndex open(File baseDir) {
+        return INSTANCES.computeIfAbsent(baseDir.getAbsolutePath(), path -> {
+            MessageIdIndex index = new MessageIdIndex(new File(baseDir, FILE_NAME));
+            if (!index.load()) {
+                index.rebuild();
+            }
+            return index;
+        });
+    }
+
+    /**
+     * Rebuild the index of an archive from its message directories
+     *
+     * @param baseDir The archive root directory
+     * @return The number of indexed Message-IDs
+     */
+    public static int rebuild(File baseDir) {
+        MessageIdIndex index = INSTANCES.computeIfAbsent(baseDir.getAbsolutePath(),
+                path -> new MessageIdIndex(new File(baseDir, FILE_NAME)));
+        index.rebuild();
+        return index.size();
+    }
+
+    /**
+     * Load the index file
+     *
+     * @return true if the index was loaded, false if it has to be rebuilt
+     */
+    private boolean load() {
+        if (!file.exists()) {
+            return false;
+        }
+
+        long start = System.currentTimeMillis();
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8), 1 << 16)) {
+            if (!HEADER.equals(reader.readLine())) {
+                LOGGER.warning("Unknown message index format, rebuilding: " + file);
+                return false;
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    ids.add(line);
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Error reading message index, rebuilding: " + file, e);
+            ids.clear();
+            return false;
+        }
+
+        LOGGER.info("Loaded " + ids.size() + " message IDs in " + (System.currentTimeMillis() - start) + " ms");
+        return true;
+    }
+
+    /**
+     * Scan the archive and replace the index file. The known IDs become the scanned ones plus the IDs
+     * claimed by downloads that are still running.
+     */
+    private synchronized void rebuild() {
+        long start = System.currentTimeMillis();
+        closeWriter();
+
+        Set<String> scanned = ConcurrentHashMap.newKeySet();
+        scanArchive(file.getParentFile(), scanned);
+
+        File tmp = new File(file.getParentFile(), FILE_NAME + ".tmp");
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8))) {
+            out.write(HEADER);
+            out.write('\n');
+            for (String id : scanned) {
+                if (isStorable(id)) {
+                    out.write(id);
+                    out.write('\n');
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Error writing message index: " + tmp, e);
+        }
+
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Error replacing message index: " + file, e);
+        }
+
+        ids.addAll(scanned);
+        ids.removeIf(id -> !scanned.contains(id) && !pending.contains(id));
+        LOGGER.info("Rebuilt message index with " + ids.size() + " message IDs in " +
+                (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Check whether a Message-ID is in the index
+     *
+     * @param messageId The Message-ID
+     * @return true if the message was already downloaded
+     */
+    public boolean contains(String messageId) {
+        return ids.contains(messageId);
+    }
+
+    /**
+     * Claim a Message-ID before downloading it, so concurrent workers never download it twice
+     *
+     * @param messageId The Message-ID
+     * @return true if the ID was not yet known and is now claimed by the caller
+     */
+    public synchronized boolean claim(String messageId) {
+        if (!ids.add(messageId)) {
+            return false;
+        }
+        pending.add(messageId);
+        return true;
+    }
+
+    /**
+     * Release a claim after a download failed
+     *
+     * @param messageId The Message-ID
+     */
+    public synchronized void release(String messageId) {
+        pending.remove(messageId);
+        ids.remove(messageId);
+    }
+
+    /**
+     * Append a claimed Message-ID to the index file after the message was written
+     *
+     * @param messageId The Message-ID
+     */
+    public synchronized void commit(String messageId) {
+        pending.remove(messageId);
+        if (!isStorable(messageId)) {
+            return;
+        }
+        try {
+            if (writer == null) {
+                boolean exists = file.exists();
+                writer = new BufferedWriter(new OutputStreamWriter(
+                        new FileOutputStream(file, true), StandardCharsets.UTF_8));
+                if (!exists) {
+                    writer.write(HEADER);
+                    writer.write('\n');
+                }
+            }
+            writer.write(messageId);
+            writer.write('\n');
+            writer.flush();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Error appending to message index: " + file, e);
+            closeWriter();
+        }
+    }
+
+    /**
+     * Get the number of indexed Message-IDs
+     *
+     * @return The number of IDs
+     */
+    public int size() {
+        return ids.size();
+    }
+
+    /**
+     * Folded headers cannot be stored one per line; the message directory check still finds them
+     */
+    private static boolean isStorable(String messageId) {
+        return messageId.indexOf('\n') < 0 && messageId.indexOf('\r') < 0;
+    }
+
+    private void closeWriter() {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Error closing message index", e);
+            }
+            writer = null;
+        }
+    }
+
+    /**
+     * Collect the Message-IDs of all message directories in the archive
+     *
+     * @param baseDir The base directory containing email folders
+     * @param existingIds Set to populate with existing message IDs
+     */
+    static void scanArchive(File baseDir, Set<String> existingIds) {
+        // Get all folders
+        File[] folders = baseDir.listFiles(file ->
+                file.isDirectory() && !file.getName().startsWith("."));
+
+        if (folders == null) {
+            return;
+        }
+
+        for (File folder : folders) {
+            // Check for messages in "messages" directory (new structure)
+            File messagesDir = new File(folder, "messages");
+            if (messagesDir.exists() && messagesDir.isDirectory()) {
+                File[] messageDirs = messagesDir.listFiles(File::isDirectory);
+                if (messageDirs != null) {
+                    for (File messageDir : messageDirs) {
+                        indexMessageDir(messageDir, existingIds);
+                    }
+                }
+            }
+
+            // Check for messages in the old structure as well
+            File[] oldMessageDirs = folder.listFiles(file ->
+                    file.isDirectory() &&
+                            !file.getName().equals("messages") &&
+                            !file.getName().startsWith(".") &&
+                            new File(file, "message.properties").exists());
+
+            if (oldMessageDirs != null) {
+                for (File messageDir : oldMessageDirs) {
+                    indexMessageDir(messageDir, existingIds);
+                }
+            }
+
+            // Check for messages in segment files
+            if (SegmentArchive.exists(folder)) {
+                indexSegments(SegmentArchive.open(folder), existingIds);
+            }
+        }
+    }
+
+    /**
+     * Add the Message-IDs of all records in a segment archive, falling back to the record key
+     */
+    private static void indexSegments(SegmentArchive archive, Set<String> existingIds) {
+        for (SegmentArchive.Entry entry : archive.entries()) {
+            try {
+                Properties props = new Properties();
+                byte[] data = archive.read(entry).get("message.properties");
+                if (data != null) {
+                    props.load(new ByteArrayInputStream(data));
+                }
+
+                String messageId = props.getProperty("message.id");
+                existingIds.add(messageId != null && !messageId.isEmpty() ? messageId : entry.getKey());
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Error reading segment record: " + entry.getKey(), e);
+            }
+        }
+    }
+
+    /**
+     * Add the Message-ID of one message directory, falling back to the directory name
+     */
+    private static void indexMessageDir(File messageDir, Set<String> existingIds) {
+        File propertiesFile = new File(messageDir, "message.properties");
+        if (!propertiesFile.exists()) {
+            return;
+        }
+
+        try (FileInputStream fis = new FileInputStream(propertiesFile)) {
+            Properties props = new Properties();
+            props.load(fis);
+
+            String messageId = props.getProperty("message.id");
+            if (messageId != null && !messageId.isEmpty()) {
+                existingIds.add(messageId);
+            } else {
+                existingIds.add(messageDir.getName());
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Error reading properties file: " + propertiesFile, e);
+        }
+    }
+}
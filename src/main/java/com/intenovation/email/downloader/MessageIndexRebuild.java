@@ -0,0 +1,58 @@
+package com.intenovation.email.downloader;
+
+import com.intenovation.appfw.systemtray.BackgroundTask;
+import com.intenovation.appfw.systemtray.ProgressStatusCallback;
+
+import java.io.File;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Rebuilds the persistent Message-ID index from the email archive.
+ * Used for recovery when the index file was lost or the archive was changed by hand.
+ */
+public class MessageIndexRebuild extends BackgroundTask {
+    private static final Logger LOGGER = Logger.getLogger(MessageIndexRebuild.class.getName());
+
+    /**
+     * Create a new manual index rebuild task
+     */
+    public MessageIndexRebuild() {
+        super(
+                "Rebuild Message Index",
+                "Rebuilds the index of downloaded Message-IDs from the email archive",
+                0,     // Manual only
+                true   // Available in menu
+        );
+    }
+
+    /**
+     * Execute the task with progress and status reporting
+     *
+     * @param callback Callback for reporting progress and status messages
+     * @return Status message that will be displayed on completion
+     * @throws InterruptedException if the task is cancelled
+     */
+    @Override
+    public String execute(ProgressStatusCallback callback) throws InterruptedException {
+        LOGGER.info("Starting Message Index Rebuild");
+
+        File baseDir = new File(ImapDownloader.getStoragePath());
+        if (!baseDir.exists()) {
+            return "Email archive directory doesn't exist yet";
+        }
+
+        try {
+            callback.update(10, "Scanning email archive...");
+            int count = MessageIdIndex.rebuild(baseDir);
+
+            String result = "Message index rebuilt with " + count + " messages";
+            callback.update(100, result);
+            LOGGER.info(result);
+            return result;
+        } catch (Exception e) {
+            LOGGER.log(Level.SEVERE, "Message Index Rebuild error", e);
+            return "Error: " + e.getMessage();
+        }
+    }
+}
@@ -0,0 +1,402 @@
+package com.intenovation.email.downloader;
+
+import com.intenovation.appfw.systemtray.ProgressStatusCallback;
+
+import javax.mail.*;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Downloads folders concurrently over a bounded pool of IMAP connections.
+ * Large folders are split into message ranges so that a single big folder
+ * (e.g. INBOX or All Mail) is also spread across all connections.
+ * Messages are stored in the same {@code <folder>/messages/<sanitizedId>} layout
+ * as the serial downloader.
+ */
+public class ParallelDownloadEngine {
+    private static final Logger LOGGER = Logger.getLogger(ParallelDownloadEngine.class.getName());
+
+    /**
+     * Number of messages handed to a worker at a time
+     */
+    static final int CHUNK_SIZE = 250;
+
+    private final ImapConnectionPool pool;
+    private final File baseDir;
+    private final MessageIdIndex messageIndex;
+
+    private final AtomicInteger processedEmails = new AtomicInteger();
+    private final AtomicInteger downloadedEmails = new AtomicInteger();
+    private final AtomicInteger skippedEmails = new AtomicInteger();
+    private final AtomicInteger processedFolders = new AtomicInteger();
+
+    /**
+     * Create a new download engine
+     *
+     * @param pool The IMAP connection pool to download with
+     * @param baseDir The base directory of the email archive
+     * @param messageIndex Index of the Message-IDs that are already downloaded; updated as messages are written
+     */
+    public ParallelDownloadEngine(ImapConnectionPool pool, File baseDir, MessageIdIndex messageIndex) {
+        this.pool = pool;
+        this.baseDir = baseDir;
+        this.messageIndex = messageIndex;
+    }
+
+    /**
+     * Download state of one folder, shared by all work units of that folder
+     */
+    private static class FolderPlan {
+        final String folderName;
+        final File messagesDir;
+        final SyncCheckpoint checkpoint;
+        final long uidValidity;
+        final long maxUid;
+        final boolean resumed;
+        final AtomicInteger remainingUnits = new AtomicInteger();
+        final AtomicLong firstFailedUid = new AtomicLong(Long.MAX_VALUE);
+
+        FolderPlan(String folderName, File messagesDir, SyncCheckpoint checkpoint, long uidValidity,
+                   long maxUid, boolean resumed) {
+            this.folderName = folderName;
+            this.messagesDir = messagesDir;
+            this.checkpoint = checkpoint;
+            this.uidValidity = uidValidity;
+            this.maxUid = maxUid;
+            this.resumed = resumed;
+        }
+
+        /**
+         * Remember that a message could not be downloaded, so the checkpoint is not advanced past it
+         */
+        void recordFailure(long uid) {
+            if (uid > 0) {
+                firstFailedUid.accumulateAndGet(uid, Math::min);
+            }
+        }
+
+        /**
+         * Advance the folder checkpoint and refresh the folder summary and search index once all of its work units have finished
+         */
+        void complete() {
+            FolderSummary.load(messagesDir.getParentFile());
+            FolderSearchIndex.load(messagesDir.getParentFile());
+            if (uidValidity == -1) {
+                return;
+            }
+            long downloadedUpTo = Math.min(maxUid, firstFailedUid.get() - 1);
+            // A resumed folder keeps the range of its checkpoint, a listed folder now covers all years
+            int fromYear = resumed ? checkpoint.getFromYear() : 0;
+            if (downloadedUpTo > 0 && (!resumed || downloadedUpTo > checkpoint.getLastUid()
+                    || fromYear != checkpoint.getFromYear())) {
+                checkpoint.save(uidValidity, downloadedUpTo, fromYear);
+            }
+        }
+    }
+
+    /**
+     * A range of messages of one folder, downloaded by one worker over one connection
+     */
+    private static class WorkUnit {
+        final FolderPlan folder;
+        final int[] messageNumbers;
+        final long[] uids;
+
+        WorkUnit(FolderPlan folder, int[] messageNumbers, long[] uids) {
+            this.folder = folder;
+            this.messageNumbers = messageNumbers;
+            this.uids = uids;
+        }
+
+        long firstUid() {
+            return uids != null && uids.length > 0 ? uids[0] : -1;
+        }
+    }
+
+    /**
+     * Summary of a download run
+     */
+    public static class Result {
+        private final int totalEmails;
+        private final int downloadedEmails;
+        private final int skippedEmails;
+        private final int processedFolders;
+
+        Result(int totalEmails, int downloadedEmails, int skippedEmails, int processedFolders) {
+            this.totalEmails = totalEmails;
+            this.downloadedEmails = downloadedEmails;
+            this.skippedEmails = skippedEmails;
+            this.processedFolders = processedFolders;
+        }
+
+        public int getTotalEmails() { return totalEmails; }
+        public int getDownloadedEmails() { return downloadedEmails; }
+        public int getSkippedEmails() { return skippedEmails; }
+        public int getProcessedFolders() { return processedFolders; }
+    }
+
+    /**
+     * Download messages from every folder.
+     * In incremental mode only messages above each folder's UID checkpoint are fetched;
+     * folders without a usable checkpoint (first run, changed UIDVALIDITY, or no UID support)
+     * are resynced completely, skipping messages that already exist locally.
+     * Checkpoints are advanced in both modes.
+     *
+     * @param progressUpdater Function to report progress
+     * @param incremental Whether to fetch only messages above the folder checkpoints
+     * @return Summary of the run
+     * @throws MessagingException If the folder list cannot be read
+     * @throws InterruptedException If the task is cancelled
+     */
+    public Result download(ProgressStatusCallback progressUpdater, boolean incremental)
+            throws MessagingException, InterruptedException {
+        List<WorkUnit> units = plan(progressUpdater, incremental);
+
+        int totalEmails = 0;
+        for (WorkUnit unit : units) {
+            totalEmails += unit.messageNumbers.length;
+        }
+
+        int workers = Math.min(pool.getMaxConnections(), Math.max(1, units.size()));
+        progressUpdater.update(20, "Downloading " + totalEmails + " emails over " + workers + " connections");
+
+        ExecutorService executor = Executors.newFixedThreadPool(workers);
+        try {
+            final int total = totalEmails;
+            List<Future<?>> futures = new ArrayList<>();
+            for (WorkUnit unit : units) {
+                futures.add(executor.submit(() -> {
+                    downloadUnit(unit, progressUpdater, total);
+                    return null;
+                }));
+            }
+
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof InterruptedException) {
+                        throw (InterruptedException) e.getCause();
+                    }
+                    LOGGER.log(Level.WARNING, "Error in download worker", e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        return new Result(totalEmails, downloadedEmails.get(), skippedEmails.get(), processedFolders.get());
+    }
+
+    /**
+     * List folders and split their messages into work units over a single connection
+     */
+    private List<WorkUnit> plan(ProgressStatusCallback progressUpdater, boolean incremental)
+            throws MessagingException, InterruptedException {
+        List<WorkUnit> units = new ArrayList<>();
+
+        Store store = pool.borrow();
+        try {
+            Folder[] folders = store.getDefaultFolder().list();
+            progressUpdater.update(15, "Found " + folders.length + " folders");
+
+            for (Folder folder : folders) {
+                // Check for interruption
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedException("Task cancelled");
+                }
+
+                // Skip non-selectable folders
+                if ((folder.getType() & Folder.HOLDS_MESSAGES) == 0) {
+                    continue;
+                }
+
+                String folderName = folder.getFullName();
+                try {
+                    // Create folder and messages directory
+                    File folderDir = new File(baseDir, FileUtils.sanitizeFolderName(folderName));
+                    File messagesDir = new File(folderDir, "messages");
+                    if (!messagesDir.exists()) {
+                        messagesDir.mkdirs();
+                    }
+                    SyncCheckpoint checkpoint = SyncCheckpoint.load(folderDir);
+
+                    folder.open(Folder.READ_ONLY);
+                    Message[] messages;
+                    long[] uids = null;
+                    long uidValidity = -1;
+                    boolean resumed = false;
+                    try {
+                        if (folder instanceof UIDFolder) {
+                            UIDFolder uidFolder = (UIDFolder) folder;
+                            uidValidity = uidFolder.getUIDValidity();
+
+                            if (incremental && checkpoint.isValidFor(uidValidity)) {
+                                messages = SyncCheckpoint.getMessagesAfter(folder, checkpoint.getLastUid());
+                                resumed = true;
+                            } else {
+                                if (incremental && checkpoint.getUidValidity() != -1) {
+                                    LOGGER.info("UIDVALIDITY of folder " + folderName + " changed from " +
+                                            checkpoint.getUidValidity() + " to " + uidValidity + ", resyncing folder");
+                                }
+                                messages = folder.getMessages();
+                            }
+
+                            // Fetch all UIDs in one round trip
+                            FetchProfile profile = new FetchProfile();
+                            profile.add(UIDFolder.FetchProfileItem.UID);
+                            folder.fetch(messages, profile);
+
+                            uids = new long[messages.length];
+                            for (int i = 0; i < messages.length; i++) {
+                                uids[i] = uidFolder.getUID(messages[i]);
+                            }
+                        } else {
+                            messages = folder.getMessages();
+                        }
+                    } finally {
+                        folder.close(false);
+                    }
+
+                    int[] messageNumbers = new int[messages.length];
+                    long maxUid = resumed ? checkpoint.getLastUid() : 0;
+                    for (int i = 0; i < messages.length; i++) {
+                        messageNumbers[i] = messages[i].getMessageNumber();
+                        if (uids != null) {
+                            maxUid = Math.max(maxUid, uids[i]);
+                        }
+                    }
+
+                    FolderPlan folderPlan = new FolderPlan(folderName, messagesDir, checkpoint, uidValidity,
+                            maxUid, resumed);
+                    if (messageNumbers.length == 0) {
+                        folderPlan.complete();
+                        processedFolders.incrementAndGet();
+                        continue;
+                    }
+
+                    folderPlan.remainingUnits.set((messageNumbers.length + CHUNK_SIZE - 1) / CHUNK_SIZE);
+                    for (int start = 0; start < messageNumbers.length; start += CHUNK_SIZE) {
+                        int end = Math.min(messageNumbers.length, start + CHUNK_SIZE);
+                        units.add(new WorkUnit(folderPlan,
+                                Arrays.copyOfRange(messageNumbers, start, end),
+                                uids != null ? Arrays.copyOfRange(uids, start, end) : null));
+                    }
+                } catch (MessagingException e) {
+                    LOGGER.log(Level.WARNING, "Error listing messages in folder: " + folderName, e);
+                }
+            }
+        } finally {
+            pool.release(store);
+        }
+
+        return units;
+    }
+
+    /**
+     * Download one range of messages over a pooled connection
+     */
+    private void downloadUnit(WorkUnit unit, ProgressStatusCallback progressUpdater, int totalEmails)
+            throws InterruptedException {
+        FolderPlan plan = unit.folder;
+        Store store;
+        try {
+            store = pool.borrow();
+        } catch (MessagingException e) {
+            LOGGER.log(Level.WARNING, "Could not open IMAP connection for folder: " + plan.folderName, e);
+            plan.recordFailure(unit.firstUid());
+            finishUnit(plan);
+            return;
+        }
+
+        Folder folder = null;
+        try {
+            folder = store.getFolder(plan.folderName);
+            folder.open(Folder.READ_ONLY);
+
+            // Look messages up by UID where possible, since message numbers shift when mail is expunged
+            Message[] messages = unit.uids != null && folder instanceof UIDFolder
+                    ? ((UIDFolder) folder).getMessagesByUID(unit.uids)
+                    : folder.getMessages(unit.messageNumbers);
+
+            // Prefetch headers for the whole range so existing messages are skipped without round trips
+            EmailDownloader.prefetchHeaders(folder, messages, 0, messages.length);
+
+            // Report the throughput of large attachments at the current overall progress
+            ProgressStatusCallback attachmentProgress = (percent, status) ->
+                    progressUpdater.update(overallPercent(totalEmails), status);
+
+            for (int i = 0; i < messages.length; i++) {
+                Message message = messages[i];
+                long uid = unit.uids != null ? unit.uids[i] : -1;
+
+                // Check for interruption
+                if (Thread.currentThread().isInterrupted()) {
+                    plan.recordFailure(uid);
+                    throw new InterruptedException("Task cancelled");
+                }
+
+                try {
+                    if (message == null) {
+                        // Expunged since the folder was planned
+                        skippedEmails.incrementAndGet();
+                    } else if (EmailDownloader.downloadMessage(message, plan.folderName, plan.messagesDir,
+                            messageIndex, attachmentProgress)) {
+                        downloadedEmails.incrementAndGet();
+                    } else {
+                        skippedEmails.incrementAndGet();
+                    }
+                } catch (Exception e) {
+                    LOGGER.log(Level.WARNING, "Error processing message", e);
+                    plan.recordFailure(uid);
+                    // Continue with next message
+                }
+
+                int processed = processedEmails.incrementAndGet();
+                if (processed % 10 == 0 || processed == totalEmails) {
+                    progressUpdater.update(overallPercent(totalEmails),
+                            "Downloaded " + downloadedEmails.get() + " new emails, skipped " +
+                                    skippedEmails.get() + " existing emails (" + processed + "/" + totalEmails + ")");
+                }
+            }
+        } catch (MessagingException e) {
+            LOGGER.log(Level.WARNING, "Error processing folder: " + plan.folderName, e);
+            plan.recordFailure(unit.firstUid());
+            // Continue with next range
+        } finally {
+            if (folder != null && folder.isOpen()) {
+                try {
+                    folder.close(false);
+                } catch (MessagingException e) {
+                    LOGGER.log(Level.FINE, "Error closing folder: " + plan.folderName, e);
+                }
+            }
+            pool.release(store);
+            finishUnit(plan);
+        }
+    }
+
+    /**
+     * Overall progress of the download phase, which runs from 20% to 95%
+     */
+    private int overallPercent(int totalEmails) {
+        return Math.min(95, 20 + (75 * processedEmails.get() / Math.max(1, totalEmails)));
+    }
+
+    /**
+     * Count a finished work unit and complete its folder after the last one
+     */
+    private void finishUnit(FolderPlan plan) {
+        if (plan.remainingUnits.decrementAndGet() == 0) {
+            plan.complete();
+            processedFolders.incrementAndGet();
+        }
+    }
+}
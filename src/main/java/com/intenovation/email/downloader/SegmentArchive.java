@@ -0,0 +1,367 @@
+package com.intenovation.email.downloader;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Single-file segment storage for the messages of one folder.
+ * Instead of one directory per message, every message is appended as one record to a large
+ * segment file ({@code <folder>/segments/segment-NNNNN.seg}). A record holds the files a message
+ * directory would contain ({@code message.properties}, {@code content.txt}, ...) as named entries.
+ * The sidecar index ({@code segments.idx}) lists the key, segment, offset and length of every record,
+ * so opening a folder reads one file, and records are read through memory-mapped segments.
+ * Deleting a message appends a tombstone line to the index; the record stays in its segment.
+ * Attachments stay in the archive's {@link AttachmentStore}; records only carry the references.
+ * One instance is shared per folder directory, so concurrent downloads append to the same segment.
+ */
+public class SegmentArchive {
+    private static final Logger LOGGER = Logger.getLogger(SegmentArchive.class.getName());
+
+    /**
+     * Name of the segment directory inside a folder directory
+     */
+    public static final String SEGMENT_DIR = "segments";
+
+    /**
+     * Name of the index file in the segment directory
+     */
+    public static final String INDEX_FILE = "segments.idx";
+
+    /**
+     * A new segment is started once the current one exceeds this size
+     */
+    static final long MAX_SEGMENT_SIZE = 256L * 1024 * 1024;
+
+    private static final String HEADER = "# segment index v1";
+    private static final int RECORD_MAGIC = 0x4D534731; // "MSG1"
+
+    /**
+     * Segment name of an index line that marks its key as deleted
+     */
+    private static final String TOMBSTONE = "-";
+
+    private static final Map<String, SegmentArchive> INSTANCES = new ConcurrentHashMap<>();
+
+    private final File segmentDir;
+    private final File indexFile;
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+    private final Map<String, MappedByteBuffer> mappedSegments = new ConcurrentHashMap<>();
+    private int currentSegment = 0;
+    private Writer indexWriter;
+
+    /**
+     * Location of one message record
+     */
+    public static class Entry {
+        private final String key;
+        private final String segment;
+        private final long offset;
+        private final int length;
+
+        Entry(String key, String segment, long offset, int length) {
+            this.key = key;
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /**
+         * @return The sanitized message ID, the same name the message directory would have
+         */
+        public String getKey() {
+            return key;
+        }
+    }
+
+    private SegmentArchive(File folderDir) {
+        this.segmentDir = new File(folderDir, SEGMENT_DIR);
+        this.indexFile = new File(segmentDir, INDEX_FILE);
+        load();
+    }
+
+    /**
+     * Open the segment archive of a folder directory
+     *
+     * @param folderDir The local folder directory
+     * @return The shared archive for this folder; empty if the folder has no segments yet
+     */
+    public static SegmentArchive open(File folderDir) {
+        return INSTANCES.computeIfAbsent(folderDir.getAbsolutePath(), path -> new SegmentArchive(folderDir));
+    }
+
+    /**
+     * Check whether a folder directory contains a segment archive, without opening it
+     *
+     * @param folderDir The local folder directory
+     * @return true if the folder has a segment index
+     */
+    public static boolean exists(File folderDir) {
+        return new File(new File(folderDir, SEGMENT_DIR), INDEX_FILE).exists();
+    }
+
+    /**
+     * Load the index file. Lines that point past the end of their segment are ignored,
+     * they belong to a record that was not completely written. Such lines are superseded by a new line
+     * for the key, so they do not come back once later records grow the segment past their end.
+     */
+    private synchronized void load() {
+        if (!indexFile.exists()) {
+            return;
+        }
+
+        Map<String, Long> segmentSizes = new HashMap<>();
+        Set<String> incomplete = new LinkedHashSet<>();
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(indexFile), StandardCharsets.UTF_8), 1 << 16)) {
+            if (!HEADER.equals(reader.readLine())) {
+                LOGGER.warning("Unknown segment index format: " + indexFile);
+                return;
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (fields.length != 4) {
+                    continue;
+                }
+                if (TOMBSTONE.equals(fields[1])) {
+                    entries.remove(fields[0]);
+                    incomplete.remove(fields[0]);
+                    continue;
+                }
+                try {
+                    Entry entry = new Entry(fields[0], fields[1], Long.parseLong(fields[2]), Integer.parseInt(fields[3]));
+                    long segmentSize = segmentSizes.computeIfAbsent(entry.segment,
+                            name -> new File(segmentDir, name).length());
+                    if (entry.offset + entry.length <= segmentSize) {
+                        entries.put(entry.key, entry);
+                        incomplete.remove(entry.key);
+                        currentSegment = Math.max(currentSegment, segmentNumber(entry.segment));
+                    } else {
+                        incomplete.add(entry.key);
+                    }
+                } catch (NumberFormatException e) {
+                    LOGGER.log(Level.FINE, "Skipping malformed segment index line: " + line, e);
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Error reading segment index: " + indexFile, e);
+            return;
+        }
+
+        if (!incomplete.isEmpty()) {
+            LOGGER.warning("Dropping " + incomplete.size() + " incomplete records from " + indexFile);
+            try {
+                for (String key : incomplete) {
+                    Entry previous = entries.get(key);
+                    appendIndexLine(previous != null ? previous : new Entry(key, TOMBSTONE, 0, 0));
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Error writing segment index: " + indexFile, e);
+            }
+        }
+    }
+
+    /**
+     * Check whether a message is stored in this archive
+     *
+     * @param key The sanitized message ID
+     * @return true if the archive holds a record for it
+     */
+    public synchronized boolean contains(String key) {
+        return entries.containsKey(key);
+    }
+
+    /**
+     * Get the number of stored messages
+     *
+     * @return The number of records
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * List all records in the order they were appended
+     *
+     * @return A snapshot of the record locations
+     */
+    public synchronized List<Entry> entries() {
+        return new ArrayList<>(entries.values());
+    }
+
+    /**
+     * Append a message. The record is written before its index line, so a crash
+     * never leaves an index line without a complete record.
+     *
+     * @param key The sanitized message ID
+     * @param files The message files by name
+     * @throws IOException If the record cannot be written
+     */
+    public synchronized void append(String key, Map<String, byte[]> files) throws IOException {
+        if (key.indexOf('\t') >= 0 || key.indexOf('\n') >= 0 || key.indexOf('\r') >= 0) {
+            throw new IOException("Invalid message key: " + key);
+        }
+        segmentDir.mkdirs();
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream record = new DataOutputStream(buffer);
+        record.writeInt(RECORD_MAGIC);
+        record.writeInt(files.size());
+        for (Map.Entry<String, byte[]> file : files.entrySet()) {
+            byte[] name = file.getKey().getBytes(StandardCharsets.UTF_8);
+            record.writeShort(name.length);
+            record.write(name);
+            record.writeInt(file.getValue().length);
+            record.write(file.getValue());
+        }
+        record.flush();
+
+        File segment = segmentFile(currentSegment);
+        if (segment.length() > 0 && segment.length() + buffer.size() > MAX_SEGMENT_SIZE) {
+            currentSegment++;
+            segment = segmentFile(currentSegment);
+        }
+
+        long offset;
+        try (FileChannel channel = FileChannel.open(segment.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            offset = channel.size();
+            ByteBuffer data = ByteBuffer.wrap(buffer.toByteArray());
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+            channel.force(false);
+        }
+
+        Entry entry = new Entry(key, segment.getName(), offset, buffer.size());
+        appendIndexLine(entry);
+        entries.put(key, entry);
+    }
+
+    /**
+     * Delete a message by appending a tombstone for its key to the index
+     *
+     * @param key The sanitized message ID
+     * @return true if the message was stored here
+     * @throws IOException If the index cannot be written
+     */
+    public synchronized boolean delete(String key) throws IOException {
+        if (!entries.containsKey(key)) {
+            return false;
+        }
+        appendIndexLine(new Entry(key, TOMBSTONE, 0, 0));
+        entries.remove(key);
+        return true;
+    }
+
+    /**
+     * Read the files of a stored message
+     *
+     * @param entry The record location
+     * @return The message files by name
+     * @throws IOException If the record cannot be read
+     */
+    public Map<String, byte[]> read(Entry entry) throws IOException {
+        ByteBuffer record = map(entry);
+        if (record.getInt() != RECORD_MAGIC) {
+            throw new IOException("Corrupt segment record " + entry.key + " in " + entry.segment);
+        }
+
+        int count = record.getInt();
+        Map<String, byte[]> files = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            byte[] name = new byte[record.getShort() & 0xFFFF];
+            record.get(name);
+            byte[] data = new byte[record.getInt()];
+            record.get(data);
+            files.put(new String(name, StandardCharsets.UTF_8), data);
+        }
+        return files;
+    }
+
+    /**
+     * Read the files of a stored message by key
+     *
+     * @param key The sanitized message ID
+     * @return The message files by name, or null if the message is not stored here
+     * @throws IOException If the record cannot be read
+     */
+    public Map<String, byte[]> read(String key) throws IOException {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+        }
+        return entry != null ? read(entry) : null;
+    }
+
+    /**
+     * Get a read-only view of a record, remapping its segment if it has grown since it was mapped
+     */
+    private ByteBuffer map(Entry entry) throws IOException {
+        MappedByteBuffer mapped = mappedSegments.get(entry.segment);
+        if (mapped == null || mapped.capacity() < entry.offset + entry.length) {
+            try (FileChannel channel = FileChannel.open(new File(segmentDir, entry.segment).toPath(),
+                    StandardOpenOption.READ)) {
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            mappedSegments.put(entry.segment, mapped);
+        }
+        return mapped.duplicate()
+                .position((int) entry.offset)
+                .limit((int) (entry.offset + entry.length))
+                .slice();
+    }
+
+    private void appendIndexLine(Entry entry) throws IOException {
+        if (indexWriter == null) {
+            boolean exists = indexFile.exists();
+            indexWriter = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(indexFile, true), StandardCharsets.UTF_8));
+            if (!exists) {
+                indexWriter.write(HEADER);
+                indexWriter.write('\n');
+            }
+        }
+        indexWriter.write(entry.key + "\t" + entry.segment + "\t" + entry.offset + "\t" + entry.length + "\n");
+        indexWriter.flush();
+    }
+
+    private File segmentFile(int number) {
+        return new File(segmentDir, String.format("segment-%05d.seg", number));
+    }
+
+    private static int segmentNumber(String segmentName) {
+        try {
+            return Integer.parseInt(segmentName.substring("segment-".length(), segmentName.length() - ".seg".length()));
+        } catch (RuntimeException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Read all regular files of a message directory into a record
+     *
+     * @param msgDir The message directory
+     * @return The files by name
+     * @throws IOException If a file cannot be read
+     */
+    public static Map<String, byte[]> readDirectory(File msgDir) throws IOException {
+        Map<String, byte[]> files = new TreeMap<>();
+        File[] list = msgDir.listFiles(file -> file.isFile() && !file.getName().startsWith("."));
+        if (list != null) {
+            for (File file : list) {
+                files.put(file.getName(), Files.readAllBytes(file.toPath()));
+            }
+        }
+        return files;
+    }
+}
@@ -0,0 +1,118 @@
+package com.intenovation.email.downloader;
+
+import com.intenovation.appfw.systemtray.BackgroundTask;
+import com.intenovation.appfw.systemtray.ProgressStatusCallback;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Converts the message directories of the email archive into per-folder segment files.
+ * Each message is appended to its folder's {@link SegmentArchive} and its directory is removed
+ * afterwards; attachments from legacy attachment directories are moved into the {@link AttachmentStore}.
+ * A message that is already in the segments is only removed, so the task can be stopped and run again.
+ */
+public class SegmentArchiveConversion extends BackgroundTask {
+    private static final Logger LOGGER = Logger.getLogger(SegmentArchiveConversion.class.getName());
+
+    /**
+     * Create a new manual segment conversion task
+     */
+    public SegmentArchiveConversion() {
+        super(
+                "Convert Archive to Segments",
+                "Packs the downloaded emails of each folder into segment files",
+                0,     // Manual only
+                true   // Available in menu
+        );
+    }
+
+    /**
+     * Execute the task with progress and status reporting
+     *
+     * @param callback Callback for reporting progress and status messages
+     * @return Status message that will be displayed on completion
+     * @throws InterruptedException if the task is cancelled
+     */
+    @Override
+    public String execute(ProgressStatusCallback callback) throws InterruptedException {
+        LOGGER.info("Starting Segment Archive Conversion");
+
+        File baseDir = new File(ImapDownloader.getStoragePath());
+        if (!baseDir.exists()) {
+            return "Email archive directory doesn't exist yet";
+        }
+
+        File[] folders = baseDir.listFiles(file ->
+                file.isDirectory() && !file.getName().startsWith("."));
+        if (folders == null || folders.length == 0) {
+            return "No folders found in email archive";
+        }
+
+        AttachmentStore attachmentStore = new AttachmentStore(baseDir);
+        int converted = 0;
+        int errors = 0;
+
+        for (int i = 0; i < folders.length; i++) {
+            File folder = folders[i];
+            File messagesDir = new File(folder, "messages");
+            File[] messageDirs = messagesDir.listFiles(file ->
+                    file.isDirectory() && new File(file, "message.properties").exists());
+            if (messageDirs == null || messageDirs.length == 0) {
+                continue;
+            }
+
+            callback.update(100 * i / folders.length, "Converting folder " + folder.getName() +
+                    " (" + messageDirs.length + " emails)");
+            SegmentArchive archive = SegmentArchive.open(folder);
+
+            for (File messageDir : messageDirs) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedException("Task cancelled");
+                }
+
+                try {
+                    if (!archive.contains(messageDir.getName())) {
+                        moveLegacyAttachments(messageDir, attachmentStore);
+                        archive.append(messageDir.getName(), SegmentArchive.readDirectory(messageDir));
+                        converted++;
+                    }
+                    FileUtils.deleteDirectory(messageDir);
+                } catch (IOException e) {
+                    errors++;
+                    LOGGER.log(Level.WARNING, "Error converting message: " + messageDir, e);
+                }
+            }
+
+            // Only succeeds if every message was converted
+            messagesDir.delete();
+            FolderSummary.load(folder);
+            FolderSearchIndex.load(folder);
+        }
+
+        String result = "Converted " + converted + " emails to segment files" +
+                (errors > 0 ? " (" + errors + " errors)" : "");
+        callback.update(100, result);
+        LOGGER.info(result);
+        return result;
+    }
+
+    /**
+     * Move the files of a message's legacy attachments directory into the attachment store
+     */
+    private static void moveLegacyAttachments(File messageDir, AttachmentStore attachmentStore) throws IOException {
+        File[] files = new File(messageDir, "attachments").listFiles(file ->
+                file.isFile() && !file.getName().startsWith("."));
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+            String hash = attachmentStore.store(new FileInputStream(file), file.length(), null);
+            AttachmentStore.addReference(messageDir, file.getName(), hash);
+        }
+    }
+}
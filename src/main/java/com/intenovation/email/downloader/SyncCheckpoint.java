@@ -0,0 +1,156 @@
+package com.intenovation.email.downloader;
+
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.UIDFolder;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Per-folder incremental sync checkpoint.
+ * Stores the UIDVALIDITY of an IMAP folder and the highest UID up to which all
+ * messages have been downloaded, in a {@code .syncState} file inside the local folder directory.
+ * An incremental run only fetches messages with a UID above the checkpoint; when the
+ * server reports a different UIDVALIDITY the checkpoint is discarded and the folder is resynced.
+ * A checkpoint written by a year-filtered download only covers messages from that year onwards.
+ */
+public class SyncCheckpoint {
+    private static final Logger LOGGER = Logger.getLogger(SyncCheckpoint.class.getName());
+
+    /**
+     * Name of the checkpoint file inside a local folder directory
+     */
+    public static final String FILE_NAME = ".syncState";
+
+    private final File file;
+    private long uidValidity;
+    private long lastUid;
+    private int fromYear;
+
+    private SyncCheckpoint(File file, long uidValidity, long lastUid, int fromYear) {
+        this.file = file;
+        this.uidValidity = uidValidity;
+        this.lastUid = lastUid;
+        this.fromYear = fromYear;
+    }
+
+    /**
+     * Load the checkpoint of a local folder directory
+     *
+     * @param folderDir The local folder directory
+     * @return The checkpoint; empty (no UIDVALIDITY, last UID 0) if none was saved yet
+     */
+    public static SyncCheckpoint load(File folderDir) {
+        File file = new File(folderDir, FILE_NAME);
+        if (file.exists()) {
+            Properties props = new Properties();
+            try (FileInputStream fis = new FileInputStream(file)) {
+                props.load(fis);
+                return new SyncCheckpoint(file,
+                        Long.parseLong(props.getProperty("uidvalidity", "-1")),
+                        Long.parseLong(props.getProperty("last.uid", "0")),
+                        Integer.parseInt(props.getProperty("from.year", "0")));
+            } catch (IOException | NumberFormatException e) {
+                LOGGER.log(Level.WARNING, "Error reading sync checkpoint: " + file, e);
+            }
+        }
+        return new SyncCheckpoint(file, -1, 0, 0);
+    }
+
+    /**
+     * Check whether this checkpoint can be used for an incremental sync of a folder
+     *
+     * @param uidValidity The current UIDVALIDITY reported by the server
+     * @return true if the checkpoint was saved for the same UIDVALIDITY
+     */
+    public boolean isValidFor(long uidValidity) {
+        return this.uidValidity != -1 && this.uidValidity == uidValidity && lastUid > 0;
+    }
+
+    /**
+     * Check whether this checkpoint covers all messages a download from the given year needs
+     *
+     * @param year The first year to download (0 for all years)
+     * @return true if the checkpoint was written by a download starting at or before that year
+     */
+    public boolean covers(int year) {
+        return fromYear == 0 || (year > 0 && fromYear <= year);
+    }
+
+    public long getUidValidity() {
+        return uidValidity;
+    }
+
+    public long getLastUid() {
+        return lastUid;
+    }
+
+    public int getFromYear() {
+        return fromYear;
+    }
+
+    /**
+     * Advance the checkpoint and write it to disk.
+     * The file is written to a temporary file first and then moved into place,
+     * so an interrupted run never leaves a truncated checkpoint behind.
+     *
+     * @param uidValidity The UIDVALIDITY of the folder
+     * @param lastUid The highest UID up to which all messages are downloaded
+     * @param fromYear The first year the download covered (0 for all years)
+     */
+    public void save(long uidValidity, long lastUid, int fromYear) {
+        this.uidValidity = uidValidity;
+        this.lastUid = lastUid;
+        this.fromYear = fromYear;
+
+        Properties props = new Properties();
+        props.setProperty("uidvalidity", String.valueOf(uidValidity));
+        props.setProperty("last.uid", String.valueOf(lastUid));
+        props.setProperty("from.year", String.valueOf(fromYear));
+
+        File tmp = new File(file.getParentFile(), FILE_NAME + ".tmp");
+        try {
+            file.getParentFile().mkdirs();
+            try (FileOutputStream out = new FileOutputStream(tmp)) {
+                props.store(out, "Incremental Sync Checkpoint");
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Error writing sync checkpoint: " + file, e);
+        }
+    }
+
+    /**
+     * Get the messages of an open folder with a UID above the given UID.
+     * IMAP returns the last message for {@code n:*} even if its UID is lower than n,
+     * so the result is filtered again.
+     *
+     * @param folder The open folder, which must implement {@link UIDFolder}
+     * @param lastUid Only messages with a UID above this are returned
+     * @return The new messages
+     * @throws MessagingException If the messages cannot be listed
+     */
+    public static Message[] getMessagesAfter(Folder folder, long lastUid) throws MessagingException {
+        UIDFolder uidFolder = (UIDFolder) folder;
+        Message[] candidates = uidFolder.getMessagesByUID(lastUid + 1, UIDFolder.LASTUID);
+
+        List<Message> messages = new ArrayList<>();
+        for (Message message : candidates) {
+            if (message != null && uidFolder.getUID(message) > lastUid) {
+                messages.add(message);
+            }
+        }
+        return messages.toArray(new Message[0]);
+    }
+}
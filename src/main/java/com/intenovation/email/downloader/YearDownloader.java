@@ -3,10 +3,8 @@ package com.intenovation.email.downloader;
 import com.intenovation.appfw.systemtray.ProgressStatusCallback;
 
 import java.io.File;
-import java.io.IOException;
 import java.time.Year;
 import java.util.Calendar;
-import java.util.Date;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.mail.*;
@@ -98,6 +96,9 @@ public class YearDownloader {
             baseDir.mkdirs();
         }
 
+        // Load the persistent message index shared with the other download tasks
+        MessageIdIndex messageIndex = MessageIdIndex.open(baseDir);
+
         // Set up connection properties
         java.util.Properties props = new java.util.Properties();
         props.put("mail.store.protocol", "imaps");
@@ -151,9 +152,21 @@ public class YearDownloader {
                     // Open the folder
                     folder.open(Folder.READ_ONLY);
                     
+                    // Resume from the folder checkpoint if it covers the requested years
+                    SyncCheckpoint checkpoint = SyncCheckpoint.load(
+                        new File(storagePath, FileUtils.sanitizeFolderName(folderName)));
+                    UIDFolder uidFolder = folder instanceof UIDFolder ? (UIDFolder) folder : null;
+                    long uidValidity = uidFolder != null ? uidFolder.getUIDValidity() : -1;
+                    boolean resumed = uidFolder != null && checkpoint.isValidFor(uidValidity) && checkpoint.covers(year);
+                    long maxUid = resumed ? checkpoint.getLastUid() : 0;
+                    long firstFailedUid = Long.MAX_VALUE;
+
                     // Get messages from this folder with year filtering if needed
                     Message[] messages;
-                    if (year > 0 && cal != null) {
+                    if (resumed) {
+                        // Get only messages added since the last download
+                        messages = SyncCheckpoint.getMessagesAfter(folder, checkpoint.getLastUid());
+                    } else if (year > 0 && cal != null) {
                         // Get only messages from the specified year onwards
                         SearchTerm dateTerm = new ReceivedDateTerm(
                             ComparisonTerm.GE, cal.getTime());
@@ -168,21 +181,19 @@ public class YearDownloader {
                     
                     // Process each message - use the EmailDownloader's methods
                     for (int i = 0; i < messages.length; i++) {
+                        // Prefetch headers for the next range so existing messages are skipped without round trips
+                        if (i % EmailDownloader.PREFETCH_BATCH_SIZE == 0) {
+                            EmailDownloader.prefetchHeaders(folder, messages, i,
+                                    Math.min(messages.length, i + EmailDownloader.PREFETCH_BATCH_SIZE));
+                        }
+
                         Message message = messages[i];
+                        long uid = -1;
                         
                         try {
-                            // Get message ID or fallback to a unique identifier
-                            String messageId = getMessageId(message);
-                            if (messageId == null || messageId.isEmpty()) {
-                                // Create a unique ID based on folder, date and subject
-                                String subject = message.getSubject();
-                                Date sentDate = message.getSentDate();
-                                if (subject == null) subject = "No Subject";
-                                if (sentDate == null) sentDate = new Date();
-
-                                messageId = folderName + "-" +
-                                        new java.text.SimpleDateFormat("yyyyMMdd-HHmmss").format(sentDate) + "-" +
-                                        Math.abs(subject.hashCode());
+                            if (uidFolder != null) {
+                                uid = uidFolder.getUID(message);
+                                maxUid = Math.max(maxUid, uid);
                             }
 
                             // Create folder directory
@@ -198,23 +209,11 @@ public class YearDownloader {
                                 messagesDir.mkdirs();
                             }
 
-                            // Check if this message already exists
-                            String sanitizedId = FileUtils.sanitizeFileName(messageId);
-                            File msgDir = new File(messagesDir, sanitizedId);
-                            
-                            if (msgDir.exists()) {
-                                skippedEmails++;
-                            } else {
-                                // Message doesn't exist, download it
-                                msgDir.mkdirs();
-
-                                // Save message content - reuse EmailDownloader's methods
-                                saveMessageContent(msgDir, message);
-                                
-                                // Save message properties - reuse EmailDownloader's methods
-                                saveMessageProperties(msgDir, message, messageId);
-                                
+                            // Claim, write and commit the message in the index, skipping existing messages
+                            if (EmailDownloader.downloadMessage(message, folderName, messagesDir, messageIndex, null)) {
                                 downloadedEmails++;
+                            } else {
+                                skippedEmails++;
                             }
                             
                             // Update progress periodically
@@ -225,9 +224,26 @@ public class YearDownloader {
                             }
                         } catch (Exception e) {
                             LOGGER.log(Level.WARNING, "Error processing message", e);
+                            if (uid > 0) {
+                                firstFailedUid = Math.min(firstFailedUid, uid);
+                            }
                         }
                     }
                     
+                    // Advance the checkpoint up to the first message that failed
+                    long downloadedUpTo = Math.min(maxUid, firstFailedUid - 1);
+                    if (uidFolder != null && downloadedUpTo > 0
+                            && (!resumed || downloadedUpTo > checkpoint.getLastUid())) {
+                        checkpoint.save(uidValidity, downloadedUpTo, resumed ? checkpoint.getFromYear() : year);
+                    }
+                    
+                    // Bring the folder summary and search index up to date for the local reader
+                    File folderDir = new File(storagePath + File.separator + FileUtils.sanitizeFolderName(folderName));
+                    if (folderDir.exists()) {
+                        FolderSummary.load(folderDir);
+                        FolderSearchIndex.load(folderDir);
+                    }
+                    
                     // Close the folder
                     folder.close(false);
                     
@@ -261,55 +277,6 @@ public class YearDownloader {
         }
     }
     
-    /**
-     * Get the Message-ID header from an email message
-     *
-     * @param message The email message
-     * @return The Message-ID or null if not found
-     */
-    private static String getMessageId(Message message) {
-        try {
-            String[] headers = message.getHeader("Message-ID");
-            if (headers != null && headers.length > 0) {
-                return headers[0];
-            }
-        } catch (MessagingException e) {
-            LOGGER.log(Level.WARNING, "Error getting Message-ID", e);
-        }
-        return null;
-    }
-    
-    /**
-     * Save the content of an email message to files
-     * This is a copy of EmailDownloader's method to avoid dependencies
-     * 
-     * @param msgDir The message directory
-     * @param message The message to save
-     * @throws Exception If there is an error
-     */
-    private static void saveMessageContent(File msgDir, Message message) throws Exception {
-        // Delegate to EmailDownloader instead of copying the code
-        // This version just provides a simplified stub that can be expanded if needed
-        EmailDownloader.saveMessageContent(msgDir, message);
-    }
-    
-    /**
-     * Save the properties of an email message
-     * This is a copy of EmailDownloader's method to avoid dependencies
-     * 
-     * @param msgDir The message directory
-     * @param message The message
-     * @param messageId The message ID
-     * @throws MessagingException If there is a messaging error
-
-     */
-    private static void saveMessageProperties(File msgDir, Message message, String messageId)
-            throws MessagingException, IOException {
-        // Delegate to EmailDownloader instead of copying the code
-        // This version just provides a simplified stub that can be expanded if needed
-        EmailDownloader.saveMessageProperties(msgDir, message);
-    }
-    
     /**
      * Simple dialog for showing download progress
      */
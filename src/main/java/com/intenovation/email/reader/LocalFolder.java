@@ -1,12 +1,23 @@
 package com.intenovation.email.reader;
 
+import com.intenovation.email.downloader.FolderSearchIndex;
+import com.intenovation.email.downloader.FolderSummary;
+import com.intenovation.email.downloader.SegmentArchive;
+
 import javax.mail.*;
-import javax.mail.search.SearchTerm;
+import javax.mail.search.*;
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
+import java.util.Date;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -21,7 +32,48 @@ class LocalFolder extends Folder {
     private final String folderName;
     private boolean isOpen = false;
     private int mode = -1;
-    private final List<LocalMessage> messages = new ArrayList<>();
+    private final List<MessageRef> messages = new ArrayList<>();
+    private FolderSearchIndex searchIndex;
+    private long openedMessagesDirModified;
+    private long openedSegmentIndexLength;
+
+    /**
+     * Maximum number of messages per open folder whose content is kept in memory
+     */
+    static final int CONTENT_CACHE_SIZE = 200;
+
+    private final Map<LocalMessage, Boolean> loadedContent =
+            new LinkedHashMap<LocalMessage, Boolean>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<LocalMessage, Boolean> eldest) {
+                    if (size() > CONTENT_CACHE_SIZE) {
+                        eldest.getKey().releaseContent();
+                        return true;
+                    }
+                    return false;
+                }
+            };
+
+    /**
+     * A message of the open folder, materialized on first access
+     */
+    private static class MessageRef {
+        private final File messageDir;
+        private final SegmentArchive archive;
+        private final SegmentArchive.Entry entry;
+        private FolderSummary.Entry summary;
+        private LocalMessage message;
+
+        MessageRef(File messageDir, SegmentArchive archive, SegmentArchive.Entry entry) {
+            this.messageDir = messageDir;
+            this.archive = archive;
+            this.entry = entry;
+        }
+
+        String getKey() {
+            return archive != null ? entry.getKey() : messageDir.getName();
+        }
+    }
 
     /**
      * Create a new LocalFolder
@@ -36,6 +88,15 @@ class LocalFolder extends Folder {
         this.directory = directory;
     }
 
+    /**
+     * Get the folder directory
+     *
+     * @return The directory containing the folder's messages
+     */
+    File getDirectory() {
+        return directory;
+    }
+
     @Override
     public String getName() {
         return directory.getName();
@@ -67,11 +128,12 @@ class LocalFolder extends Folder {
 
     @Override
     public Folder[] list(String pattern) throws MessagingException {
-        // Only consider directories that are not "messages" directories as folders
+        // Only consider directories that are not "messages" or segment directories as folders
         File[] subdirs = directory.listFiles(file ->
                 file.isDirectory() &&
                         !file.getName().startsWith(".") &&
-                        !file.getName().equals("messages")
+                        !file.getName().equals("messages") &&
+                        !file.getName().equals(SegmentArchive.SEGMENT_DIR)
         );
 
         if (subdirs == null) {
@@ -105,7 +167,7 @@ class LocalFolder extends Folder {
 
         // Check if this folder has a "messages" subdirectory
         File messagesDir = new File(directory, "messages");
-        boolean hasMessages = messagesDir.exists() && messagesDir.isDirectory();
+        boolean hasMessages = (messagesDir.exists() && messagesDir.isDirectory()) || SegmentArchive.exists(directory);
 
         // A folder can hold both messages and subfolders
         return (hasMessages ? HOLDS_MESSAGES : 0) | HOLDS_FOLDERS;
@@ -184,6 +246,8 @@ class LocalFolder extends Folder {
 
         // Load messages from the "messages" subdirectory
         File messagesDir = new File(directory, "messages");
+        openedMessagesDirModified = messagesDir.lastModified();
+        openedSegmentIndexLength = segmentIndexFile().length();
 
         // Handle the old structure where messages are directly in the folder directory
         if (!messagesDir.exists() || !messagesDir.isDirectory()) {
@@ -210,29 +274,84 @@ class LocalFolder extends Folder {
             }
         }
 
-        // Load messages from the messages directory if it exists
-        if (messagesDir.exists() && messagesDir.isDirectory()) {
-            File[] messageDirs = messagesDir.listFiles(file ->
-                    file.isDirectory() &&
-                            !file.getName().startsWith(".") &&
-                            new File(file, "message.properties").exists()
-            );
-
-            if (messageDirs != null) {
-                for (File messageDir : messageDirs) {
-                    try {
-                        LocalMessage message = new LocalMessage(this, messageDir);
-                        messages.add(message);
-                    } catch (Exception e) {
-                        // Log error but continue with other messages
-                        LOGGER.log(Level.WARNING, "Error loading message: " + e.getMessage());
-                    }
+        // List the message directories; messages are only read when they are accessed
+        String[] messageDirs = messagesDir.list();
+        if (messageDirs != null) {
+            Arrays.sort(messageDirs);
+            for (String messageDir : messageDirs) {
+                if (!messageDir.startsWith(".")) {
+                    messages.add(new MessageRef(new File(messagesDir, messageDir), null, null));
                 }
             }
         }
 
-        // Sort messages by date if possible
-        messages.sort(Comparator.comparing(LocalMessage::getReceivedDate, Comparator.nullsLast(Comparator.naturalOrder())));
+        // List messages stored in segment files
+        if (SegmentArchive.exists(directory)) {
+            SegmentArchive archive = SegmentArchive.open(directory);
+            for (SegmentArchive.Entry entry : archive.entries()) {
+                messages.add(new MessageRef(null, archive, entry));
+            }
+        }
+
+        if (LocalMail.isLazy(((LocalStore) store).getSession())) {
+            // Lazy mode: number the messages by the received date from the folder summary
+            FolderSummary summary = FolderSummary.load(directory);
+            for (MessageRef ref : messages) {
+                ref.summary = summary.get(ref.getKey());
+            }
+            messages.sort(Comparator.comparing((MessageRef ref) -> ref.summary != null ? ref.summary.getReceivedDate() : null,
+                    Comparator.nullsLast(Comparator.naturalOrder())));
+        } else {
+            // Eager mode: read every message now and number them by date
+            for (int i = 0; i < messages.size(); i++) {
+                materialize(i);
+            }
+            messages.sort(Comparator.comparing((MessageRef ref) -> ref.message.getReceivedDate(),
+                    Comparator.nullsLast(Comparator.naturalOrder())));
+            for (int i = 0; i < messages.size(); i++) {
+                messages.get(i).message.setNumber(i + 1);
+            }
+        }
+    }
+
+    /**
+     * Check whether messages were added or removed on disk since the folder was opened
+     *
+     * @return true if the open folder no longer lists the folder's current messages
+     */
+    boolean isStale() {
+        return isOpen && (openedMessagesDirModified != new File(directory, "messages").lastModified()
+                || openedSegmentIndexLength != segmentIndexFile().length());
+    }
+
+    private File segmentIndexFile() {
+        return new File(new File(directory, SegmentArchive.SEGMENT_DIR), SegmentArchive.INDEX_FILE);
+    }
+
+    /**
+     * Get the message at an index, creating it on first access
+     */
+    private synchronized LocalMessage materialize(int index) {
+        MessageRef ref = messages.get(index);
+        if (ref.message == null) {
+            ref.message = ref.archive != null
+                    ? new LocalMessage(this, ref.archive, ref.entry, index + 1)
+                    : new LocalMessage(this, ref.messageDir, index + 1);
+            ref.message.setSummary(ref.summary);
+        }
+        return ref.message;
+    }
+
+    /**
+     * Record that a message loaded its content, releasing the content of the least recently used message
+     * once more than {@link #CONTENT_CACHE_SIZE} are loaded
+     *
+     * @param message The message that loaded its content
+     */
+    void contentLoaded(LocalMessage message) {
+        synchronized (loadedContent) {
+            loadedContent.put(message, Boolean.TRUE);
+        }
     }
 
     @Override
@@ -242,6 +361,9 @@ class LocalFolder extends Folder {
         }
 
         messages.clear();
+        synchronized (loadedContent) {
+            loadedContent.clear();
+        }
         isOpen = false;
         mode = -1;
     }
@@ -272,7 +394,7 @@ class LocalFolder extends Folder {
                                 !file.getName().startsWith(".") &&
                                 new File(file, "message.properties").exists()
                 );
-                return messageDirs != null ? messageDirs.length : 0;
+                return (messageDirs != null ? messageDirs.length : 0) + countSegmentMessages();
             } else {
                 // Check the old structure as a fallback
                 File[] directMessageDirs = directory.listFiles(file ->
@@ -281,7 +403,7 @@ class LocalFolder extends Folder {
                                 !file.getName().equals("messages") &&
                                 new File(file, "message.properties").exists()
                 );
-                return directMessageDirs != null ? directMessageDirs.length : 0;
+                return (directMessageDirs != null ? directMessageDirs.length : 0) + countSegmentMessages();
             }
         }
 
@@ -298,7 +420,26 @@ class LocalFolder extends Folder {
             throw new IndexOutOfBoundsException("Message number out of range: " + msgnum);
         }
 
-        return messages.get(msgnum - 1);
+        return materialize(msgnum - 1);
+    }
+
+    /**
+     * Get a message by its message directory name or segment record key
+     *
+     * @param key The message key
+     * @return The message, or null if the folder has no such message
+     */
+    Message getMessage(String key) {
+        if (!isOpen) {
+            throw new IllegalStateException("Folder is not open");
+        }
+
+        for (int i = 0; i < messages.size(); i++) {
+            if (messages.get(i).getKey().equals(key)) {
+                return materialize(i);
+            }
+        }
+        return null;
     }
 
     @Override
@@ -313,7 +454,7 @@ class LocalFolder extends Folder {
 
         Message[] result = new Message[end - start + 1];
         for (int i = start; i <= end; i++) {
-            result[i - start] = messages.get(i - 1);
+            result[i - start] = materialize(i - 1);
         }
         return result;
     }
@@ -324,38 +465,18 @@ class LocalFolder extends Folder {
             throw new IllegalStateException("Folder is not open");
         }
 
-        // If we've already loaded the messages, just return them
-        if (!messages.isEmpty()) {
-            return messages.toArray(new Message[0]);
-        }
-
-        // If messages list is empty, reload the messages from the directory
-        // This can happen if folder was opened but messages weren't loaded properly
-        File messagesDir = new File(directory, "messages");
-        if (messagesDir.exists() && messagesDir.isDirectory()) {
-            File[] messageDirs = messagesDir.listFiles(file ->
-                    file.isDirectory() &&
-                            !file.getName().startsWith(".") &&
-                            new File(file, "message.properties").exists()
-            );
-
-            if (messageDirs != null) {
-                for (File messageDir : messageDirs) {
-                    try {
-                        LocalMessage message = new LocalMessage(this, messageDir);
-                        messages.add(message);
-                    } catch (Exception e) {
-                        // Log the error but continue with other messages
-                        LOGGER.log(Level.WARNING, "Error loading message from " + messageDir.getPath() + ": " + e.getMessage());
-                    }
-                }
-
-                // Sort messages by date if possible
-                messages.sort(Comparator.comparing(LocalMessage::getReceivedDate, Comparator.nullsLast(Comparator.naturalOrder())));
-            }
+        Message[] result = new Message[messages.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = materialize(i);
         }
+        return result;
+    }
 
-        return messages.toArray(new Message[0]);
+    /**
+     * Count the messages of the folder's segment archive from its index
+     */
+    private int countSegmentMessages() {
+        return SegmentArchive.exists(directory) ? SegmentArchive.open(directory).size() : 0;
     }
 
     @Override
@@ -370,16 +491,25 @@ class LocalFolder extends Folder {
         }
 
         List<Message> expunged = new ArrayList<>();
-        Iterator<LocalMessage> iterator = messages.iterator();
+        Iterator<MessageRef> iterator = messages.iterator();
         while (iterator.hasNext()) {
-            LocalMessage message = iterator.next();
-            if (message.getFlags().contains(Flags.Flag.DELETED)) {
+            // Only messages that were accessed can carry the deleted flag
+            MessageRef ref = iterator.next();
+            LocalMessage message = ref.message;
+            if (message != null && message.getFlags().contains(Flags.Flag.DELETED)) {
+                if (ref.archive != null) {
+                    // Tombstone the segment record; the changed index invalidates the summary and search index
+                    try {
+                        ref.archive.delete(ref.getKey());
+                    } catch (IOException e) {
+                        throw new MessagingException("Error deleting message " + ref.getKey(), e);
+                    }
+                } else {
+                    // Delete the message directory
+                    deleteRecursively(ref.messageDir);
+                }
                 expunged.add(message);
                 iterator.remove();
-
-                // Delete the message directory
-                File messageDir = message.getMessageDirectory();
-                deleteRecursively(messageDir);
             }
         }
 
@@ -401,8 +531,18 @@ class LocalFolder extends Folder {
             return getMessages();
         }
 
+        // Only the messages the search index cannot rule out are matched against the term
+        if (searchIndex == null || !searchIndex.isCurrent(directory)) {
+            searchIndex = FolderSearchIndex.load(directory);
+        }
+        Set<String> candidates = candidates(term);
+
         List<Message> matches = new ArrayList<>();
-        for (LocalMessage message : messages) {
+        for (int i = 0; i < messages.size(); i++) {
+            if (candidates != null && !candidates.contains(messages.get(i).getKey())) {
+                continue;
+            }
+            LocalMessage message = materialize(i);
             if (term.match(message)) {
                 matches.add(message);
             }
@@ -410,4 +550,89 @@ class LocalFolder extends Folder {
 
         return matches.toArray(new Message[0]);
     }
+
+    /**
+     * Translate a search term into the keys of the messages that can match it
+     *
+     * @param term The search term
+     * @return The candidate message keys, or null if the term has to be checked against every message
+     */
+    private Set<String> candidates(SearchTerm term) {
+        if (term instanceof SubjectTerm) {
+            return searchIndex.find(FolderSearchIndex.Field.SUBJECT, ((SubjectTerm) term).getPattern());
+        } else if (term instanceof FromStringTerm) {
+            return searchIndex.find(FolderSearchIndex.Field.FROM, ((FromStringTerm) term).getPattern());
+        } else if (term instanceof RecipientStringTerm) {
+            return searchIndex.find(FolderSearchIndex.Field.RECIPIENTS, ((RecipientStringTerm) term).getPattern());
+        } else if (term instanceof BodyTerm) {
+            return searchIndex.find(FolderSearchIndex.Field.BODY, ((BodyTerm) term).getPattern());
+        } else if (term instanceof AndTerm) {
+            // Each operand that can be looked up narrows the candidates
+            Set<String> result = null;
+            for (SearchTerm operand : ((AndTerm) term).getTerms()) {
+                Set<String> operandCandidates = candidates(operand);
+                if (operandCandidates != null) {
+                    if (result == null) {
+                        result = new HashSet<>(operandCandidates);
+                    } else {
+                        result.retainAll(operandCandidates);
+                    }
+                }
+            }
+            return result;
+        } else if (term instanceof OrTerm) {
+            // Every operand must be looked up, otherwise any message can match
+            Set<String> result = new HashSet<>();
+            for (SearchTerm operand : ((OrTerm) term).getTerms()) {
+                Set<String> operandCandidates = candidates(operand);
+                if (operandCandidates == null) {
+                    return null;
+                }
+                result.addAll(operandCandidates);
+            }
+            return result;
+        } else if (term instanceof ReceivedDateTerm || term instanceof SentDateTerm) {
+            return dateCandidates((DateTerm) term);
+        }
+
+        // Other terms are checked against every message
+        return null;
+    }
+
+    /**
+     * Look up the messages whose received or sent date in the folder summary can match a date term.
+     * Messages without a summarized date stay candidates and are checked against the term itself.
+     */
+    private Set<String> dateCandidates(DateTerm term) {
+        FolderSummary summary = FolderSummary.load(directory);
+        Set<String> result = new HashSet<>();
+        for (MessageRef ref : messages) {
+            FolderSummary.Entry entry = summary.get(ref.getKey());
+            Date date = entry == null ? null
+                    : term instanceof ReceivedDateTerm ? entry.getReceivedDate() : entry.getSentDate();
+            if (date == null || matches(term, date)) {
+                result.add(ref.getKey());
+            }
+        }
+        return result;
+    }
+
+    private static boolean matches(DateTerm term, Date date) {
+        switch (term.getComparison()) {
+            case ComparisonTerm.LE:
+                return !date.after(term.getDate());
+            case ComparisonTerm.LT:
+                return date.before(term.getDate());
+            case ComparisonTerm.EQ:
+                return date.equals(term.getDate());
+            case ComparisonTerm.NE:
+                return !date.equals(term.getDate());
+            case ComparisonTerm.GT:
+                return date.after(term.getDate());
+            case ComparisonTerm.GE:
+                return !date.before(term.getDate());
+            default:
+                return true;
+        }
+    }
 }
\ No newline at end of file
@@ -9,6 +9,13 @@ import java.util.Properties;
  * Helper class for creating and working with local mail stores
  */
 public class LocalMail {
+    /**
+     * Session property that selects how folders load their messages: "true" (the default) lists the
+     * messages on open and reads each one on first access, "false" reads all messages on open and
+     * numbers them by received date
+     */
+    public static final String LAZY_LOADING_PROPERTY = "mail.local.lazy";
+
     /**
      * Create a Session for use with LocalStore
      * 
@@ -20,6 +27,16 @@ public class LocalMail {
         return Session.getInstance(props);
     }
     
+    /**
+     * Check whether folders of a session load their messages lazily
+     *
+     * @param session The mail session
+     * @return true unless lazy loading was switched off for the session
+     */
+    public static boolean isLazy(Session session) {
+        return !"false".equalsIgnoreCase(session.getProperty(LAZY_LOADING_PROPERTY));
+    }
+
     /**
      * Open a local store for the given directory
      * 
@@ -1,16 +1,27 @@
 package com.intenovation.email.reader;
 
+import com.intenovation.email.downloader.AttachmentStore;
+import com.intenovation.email.downloader.FolderSummary;
+import com.intenovation.email.downloader.MessageBodyFiles;
+import com.intenovation.email.downloader.SegmentArchive;
 import com.intenovation.email.utils.EmailAddressSanitizer;
 
+import javax.activation.DataHandler;
+import javax.activation.FileDataSource;
 import javax.mail.*;
 import javax.mail.internet.InternetAddress;
+import javax.mail.internet.InternetHeaders;
+import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
 import java.io.*;
+import java.net.URLConnection;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.Map;
 import java.util.Properties;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -22,6 +33,9 @@ class LocalMessage extends MimeMessage {
     private static final Logger LOGGER = Logger.getLogger(LocalMessage.class.getName());
 
     private final File messageDirectory;
+    private final File baseDirectory;
+    private final SegmentArchive segmentArchive;
+    private final SegmentArchive.Entry segmentEntry;
     private Properties properties;
     private Date receivedDate;
     private Date sentDate;
@@ -30,67 +44,139 @@ class LocalMessage extends MimeMessage {
     private String[] to;
     private String[] cc;
     private Flags flags;
-    private String content;
-    private boolean loaded = false;
+    private volatile Body body;
+    private boolean headersLoaded = false;
     private String replyTo;
+    private FolderSummary.Entry summary;
+    private volatile Boolean multipart;
 
     /**
-     * Create a new LocalMessage
+     * Loaded message text and attachments; dropped again when the folder's content cache evicts the message
+     */
+    private static class Body {
+        private final String content;
+        private final Map<String, File> attachments;
+
+        Body(String content, Map<String, File> attachments) {
+            this.content = content;
+            this.attachments = attachments;
+        }
+    }
+
+    /**
+     * Create a new LocalMessage. Nothing is read until a header or the content is accessed.
      *
      * @param folder           The folder containing this message
      * @param messageDirectory The directory containing the message files
-     * @throws MessagingException If there is an error loading the message
+     * @param msgnum           The message number in the folder
+     */
+    public LocalMessage(LocalFolder folder, File messageDirectory, int msgnum) {
+        this(folder, messageDirectory, null, null, msgnum);
+    }
+
+    /**
+     * Create a new LocalMessage stored in a segment archive. Nothing is read until a header or the content is accessed.
+     *
+     * @param folder  The folder containing this message
+     * @param archive The segment archive of the folder
+     * @param entry   The location of the message record
+     * @param msgnum  The message number in the folder
      */
-    public LocalMessage(LocalFolder folder, File messageDirectory) throws MessagingException {
-        super(((LocalStore) folder.getStore()).getSession());
+    public LocalMessage(LocalFolder folder, SegmentArchive archive, SegmentArchive.Entry entry, int msgnum) {
+        this(folder, new File(new File(folder.getDirectory(), SegmentArchive.SEGMENT_DIR), entry.getKey()),
+                archive, entry, msgnum);
+    }
+
+    private LocalMessage(LocalFolder folder, File messageDirectory, SegmentArchive archive,
+                         SegmentArchive.Entry entry, int msgnum) {
+        super(folder, msgnum);
+        this.headers = new InternetHeaders();
         this.messageDirectory = messageDirectory;
+        this.baseDirectory = ((LocalStore) folder.getStore()).getBaseDirectory();
+        this.segmentArchive = archive;
+        this.segmentEntry = entry;
         this.flags = new Flags();
         this.properties = new Properties();
+    }
 
-        // Load basic properties
-        File propertiesFile = new File(messageDirectory, "message.properties");
-        if (propertiesFile.exists()) {
-            try (FileInputStream fis = new FileInputStream(propertiesFile)) {
-                properties.load(fis);
-
-                // Parse dates
-                SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-                String sentDateStr = properties.getProperty("sent.date");
-                if (sentDateStr != null) {
-                    try {
-                        this.sentDate = sdf.parse(sentDateStr);
-                    } catch (ParseException e) {
-                        LOGGER.log(Level.WARNING, "Error parsing sent date: " + sentDateStr, e);
-                    }
-                }
+    /**
+     * Set the folder summary entry of this message, which answers the common header
+     * getters without reading message.properties
+     *
+     * @param summary The summary entry, or null if the message is not summarized
+     */
+    void setSummary(FolderSummary.Entry summary) {
+        this.summary = summary;
+    }
+
+    /**
+     * Read message.properties on first access to a header
+     */
+    private synchronized void loadHeaders() {
+        if (headersLoaded) {
+            return;
+        }
+        headersLoaded = true;
 
-                String receivedDateStr = properties.getProperty("received.date");
-                if (receivedDateStr != null) {
-                    try {
-                        this.receivedDate = sdf.parse(receivedDateStr);
-                    } catch (ParseException e) {
-                        LOGGER.log(Level.WARNING, "Error parsing received date: " + receivedDateStr, e);
+        try {
+            if (segmentArchive != null) {
+                byte[] data = segmentArchive.read(segmentEntry).get("message.properties");
+                if (data != null) {
+                    loadProperties(new ByteArrayInputStream(data));
+                }
+            } else {
+                File propertiesFile = new File(messageDirectory, "message.properties");
+                if (propertiesFile.exists()) {
+                    try (FileInputStream fis = new FileInputStream(propertiesFile)) {
+                        loadProperties(fis);
                     }
                 }
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Error loading message properties: " + messageDirectory, e);
+        }
+    }
 
-                // Get basic fields
-                this.subject = properties.getProperty("subject");
-                this.from = properties.getProperty("from");
-                this.replyTo = properties.getProperty("reply.to");
-
-                String toStr = properties.getProperty("to");
-                if (toStr != null) {
-                    this.to = toStr.split(",\\s*");
-                }
+    /**
+     * Load the message properties and parse the basic fields
+     */
+    private void loadProperties(InputStream in) throws IOException {
+        properties.load(in);
+
+        // Parse dates
+        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        String sentDateStr = properties.getProperty("sent.date");
+        if (sentDateStr != null) {
+            try {
+                this.sentDate = sdf.parse(sentDateStr);
+            } catch (ParseException e) {
+                LOGGER.log(Level.WARNING, "Error parsing sent date: " + sentDateStr, e);
+            }
+        }
 
-                String ccStr = properties.getProperty("cc");
-                if (ccStr != null) {
-                    this.cc = ccStr.split(",\\s*");
-                }
-            } catch (IOException e) {
-                throw new MessagingException("Error loading message properties", e);
+        String receivedDateStr = properties.getProperty("received.date");
+        if (receivedDateStr != null) {
+            try {
+                this.receivedDate = sdf.parse(receivedDateStr);
+            } catch (ParseException e) {
+                LOGGER.log(Level.WARNING, "Error parsing received date: " + receivedDateStr, e);
             }
         }
+
+        // Get basic fields
+        this.subject = properties.getProperty("subject");
+        this.from = properties.getProperty("from");
+        this.replyTo = properties.getProperty("reply.to");
+
+        String toStr = properties.getProperty("to");
+        if (toStr != null) {
+            this.to = toStr.split(",\\s*");
+        }
+
+        String ccStr = properties.getProperty("cc");
+        if (ccStr != null) {
+            this.cc = ccStr.split(",\\s*");
+        }
     }
 
     /**
@@ -103,57 +189,174 @@ class LocalMessage extends MimeMessage {
     }
 
     /**
-     * Load the full message content
+     * Load the full message content, or return it if it is still cached
      */
-    private void loadContent() throws MessagingException {
-        if (loaded) {
-            return;
+    private Body loadContent() throws MessagingException {
+        Body loaded = body;
+        if (loaded != null) {
+            return loaded;
         }
 
         try {
-            // Load content
-            File contentFile = new File(messageDirectory, "content.txt");
-            if (contentFile.exists()) {
-                this.content = new String(Files.readAllBytes(contentFile.toPath()), StandardCharsets.UTF_8);
+            String content = null;
+            Map<String, File> attachments;
+            if (segmentArchive != null) {
+                // Content and attachment references from the segment record
+                Map<String, byte[]> files = segmentArchive.read(segmentEntry);
+                content = MessageBodyFiles.read(files, "content.txt");
+
+                Properties references = new Properties();
+                byte[] referenceData = files.get(AttachmentStore.REFERENCES_FILE);
+                if (referenceData != null) {
+                    references.load(new InputStreamReader(new ByteArrayInputStream(referenceData), StandardCharsets.UTF_8));
+                }
+                attachments = new AttachmentStore(baseDirectory).listAttachments(references);
             } else {
-                // Try to find any other text content file that might exist
-                File[] files = messageDirectory.listFiles((dir, name) -> name.endsWith(".txt"));
-                if (files != null && files.length > 0) {
-                    this.content = new String(Files.readAllBytes(files[0].toPath()), StandardCharsets.UTF_8);
+                // Load content
+                if (MessageBodyFiles.exists(messageDirectory, "content.txt")) {
+                    // Plain or compressed content file
+                    content = MessageBodyFiles.read(messageDirectory, "content.txt");
+                } else {
+                    // Try to find any other text content file that might exist
+                    File[] files = messageDirectory.listFiles((dir, name) -> name.endsWith(".txt"));
+                    if (files != null && files.length > 0) {
+                        content = new String(Files.readAllBytes(files[0].toPath()), StandardCharsets.UTF_8);
+                    }
                 }
+
+                // Attachments from the content-addressed store or the legacy attachments directory
+                attachments = new AttachmentStore(baseDirectory).listAttachments(messageDirectory);
             }
 
-            loaded = true;
+            loaded = new Body(content, attachments);
+            body = loaded;
         } catch (IOException e) {
             throw new MessagingException("Error loading message content", e);
         }
+
+        ((LocalFolder) folder).contentLoaded(this);
+        return loaded;
+    }
+
+    /**
+     * Update the message number after the folder reordered its messages
+     *
+     * @param msgnum The new message number
+     */
+    void setNumber(int msgnum) {
+        setMessageNumber(msgnum);
+    }
+
+    /**
+     * Drop the loaded content; it is read again on the next access
+     */
+    void releaseContent() {
+        body = null;
     }
 
     @Override
     public int getSize() throws MessagingException {
-        loadContent();
+        if (summary != null && summary.getSize() >= 0) {
+            return (int) Math.min(Integer.MAX_VALUE, summary.getSize());
+        }
+        String content = loadContent().content;
         return content != null ? content.length() : 0;
     }
 
     @Override
     public String getSubject() throws MessagingException {
+        if (summary != null) {
+            return summary.getSubject();
+        }
+        loadHeaders();
         return subject;
     }
 
     @Override
     public Date getSentDate() throws MessagingException {
+        if (summary != null) {
+            return summary.getSentDate();
+        }
+        loadHeaders();
         return sentDate;
     }
 
     @Override
     public Date getReceivedDate() {
+        if (summary != null) {
+            return summary.getReceivedDate();
+        }
+        loadHeaders();
         return receivedDate;
     }
 
     @Override
     public Object getContent() throws MessagingException, IOException {
-        loadContent();
-        return content;
+        Body loaded = loadContent();
+        String content = loaded.content;
+        Map<String, File> attachments = loaded.attachments;
+        if (attachments.isEmpty()) {
+            return content;
+        }
+
+        // Expose the text and the attachments the way a downloaded message would
+        MimeMultipart multipart = new MimeMultipart();
+        MimeBodyPart textPart = new MimeBodyPart();
+        textPart.setText(content != null ? content : "", "UTF-8");
+        multipart.addBodyPart(textPart);
+
+        for (Map.Entry<String, File> attachment : attachments.entrySet()) {
+            String fileName = attachment.getKey();
+            String guessedType = URLConnection.guessContentTypeFromName(fileName);
+            String contentType = guessedType != null ? guessedType : "application/octet-stream";
+            MimeBodyPart part = new MimeBodyPart();
+            part.setDataHandler(new DataHandler(new FileDataSource(attachment.getValue()) {
+                @Override
+                public String getContentType() {
+                    return contentType;
+                }
+
+                @Override
+                public String getName() {
+                    return fileName;
+                }
+            }));
+            part.setHeader("Content-Type", contentType);
+            part.setFileName(fileName);
+            part.setDisposition(Part.ATTACHMENT);
+            multipart.addBodyPart(part);
+        }
+        return multipart;
+    }
+
+    @Override
+    public String getContentType() throws MessagingException {
+        return hasAttachments() ? "multipart/mixed" : super.getContentType();
+    }
+
+    /**
+     * Check whether the message has attachments from the loaded content, or else from the attachment
+     * references alone, so asking for the content type does not load the content
+     */
+    private boolean hasAttachments() throws MessagingException {
+        Body loaded = body;
+        if (loaded != null) {
+            return !loaded.attachments.isEmpty();
+        }
+        Boolean known = multipart;
+        if (known == null) {
+            if (segmentArchive != null) {
+                try {
+                    known = segmentArchive.read(segmentEntry).containsKey(AttachmentStore.REFERENCES_FILE);
+                } catch (IOException e) {
+                    throw new MessagingException("Error reading message record", e);
+                }
+            } else {
+                known = AttachmentStore.hasAttachments(messageDirectory);
+            }
+            multipart = known;
+        }
+        return known;
     }
 
     @Override
@@ -196,6 +399,13 @@ class LocalMessage extends MimeMessage {
 
     @Override
     public Address[] getFrom() throws MessagingException {
+        String from;
+        if (summary != null) {
+            from = summary.getFrom();
+        } else {
+            loadHeaders();
+            from = this.from;
+        }
         if (from == null) {
             return null;
         }
@@ -219,6 +429,7 @@ class LocalMessage extends MimeMessage {
 
 
     public Address[] getRecipients(RecipientType type) throws MessagingException {
+        loadHeaders();
         if (type == RecipientType.TO && to != null) {
             Address[] addresses = new Address[to.length];
             for (int i = 0; i < to.length; i++) {
@@ -250,18 +461,20 @@ class LocalMessage extends MimeMessage {
 
     @Override
     public String[] getHeader(String name) throws MessagingException {
+        loadHeaders();
         String value = properties.getProperty(name.toLowerCase());
         return value != null ? new String[]{value} : null;
     }
 
     @Override
     public InputStream getInputStream() throws IOException, MessagingException {
-        loadContent();
+        String content = loadContent().content;
         return content != null ? new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)) : null;
     }
 
     @Override
     public Address[] getReplyTo() throws MessagingException {
+        loadHeaders();
         if (replyTo == null) {
             return super.getReplyTo(); // Fall back to default implementation
         }
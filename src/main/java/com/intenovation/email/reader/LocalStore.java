@@ -1,8 +1,12 @@
 package com.intenovation.email.reader;
 
 import javax.mail.*;
+import javax.mail.search.SearchTerm;
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -69,7 +73,7 @@ public class LocalStore extends Store {
     }
     
     @Override
-    public Folder getFolder(String name) throws MessagingException {
+    public synchronized Folder getFolder(String name) throws MessagingException {
         if (!connected) {
             throw new IllegalStateException("Not connected");
         }
@@ -93,9 +97,67 @@ public class LocalStore extends Store {
         return getFolder(url.getFile());
     }
     
+    /**
+     * Get a message by folder and key, e.g. for a hit of the archive's full-text index.
+     * The folder is opened read-only if it is not open yet, and reopened if messages were
+     * downloaded or expunged since it was opened.
+     *
+     * @param folderName The folder path relative to the store directory
+     * @param key The message directory name or segment record key
+     * @return The message, or null if the folder has no such message
+     * @throws MessagingException If the folder cannot be opened
+     */
+    public Message getMessage(String folderName, String key) throws MessagingException {
+        return openFolder(folderName).getMessage(key);
+    }
+
+    /**
+     * Get the cached folder instance open with its current messages
+     */
+    private synchronized LocalFolder openFolder(String folderName) throws MessagingException {
+        LocalFolder folder = (LocalFolder) getFolder(folderName);
+        if (folder.isStale()) {
+            int mode = folder.getMode();
+            folder.close(false);
+            folder.open(mode);
+        } else if (!folder.isOpen()) {
+            folder.open(Folder.READ_ONLY);
+        }
+        return folder;
+    }
+
+    /**
+     * Search the messages of all folders. Each folder answers the supported terms from its
+     * search index. The store's cached folder instances are used; folders that are not open yet
+     * are opened read-only and stay open until the store is closed, so the returned messages remain readable.
+     *
+     * @param term The search term
+     * @return The matching messages of all folders
+     * @throws MessagingException If a folder cannot be searched
+     */
+    public Message[] search(SearchTerm term) throws MessagingException {
+        List<Message> matches = new ArrayList<>();
+        search(getDefaultFolder(), term, matches);
+        return matches.toArray(new Message[0]);
+    }
+
+    private void search(Folder parent, SearchTerm term, List<Message> matches) throws MessagingException {
+        for (Folder folder : parent.list()) {
+            if ((folder.getType() & Folder.HOLDS_MESSAGES) != 0) {
+                matches.addAll(Arrays.asList(openFolder(folder.getFullName()).search(term)));
+            }
+            search(folder, term, matches);
+        }
+    }
+
     @Override
     public void close() throws MessagingException {
         connected = false;
+        for (LocalFolder folder : folderCache.values()) {
+            if (folder.isOpen()) {
+                folder.close(false);
+            }
+        }
         folderCache.clear();
         defaultFolder = null;
     }
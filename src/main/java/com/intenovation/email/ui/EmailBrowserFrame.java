@@ -1,5 +1,8 @@
 package com.intenovation.email.ui;
 
+import com.intenovation.email.downloader.ArchiveTextIndex;
+import com.intenovation.email.reader.LocalStore;
+
 import javax.mail.Folder;
 import javax.mail.MessagingException;
 import javax.mail.Store;
@@ -28,6 +31,8 @@ public class EmailBrowserFrame extends JFrame {
     private final FolderTreePanel folderTreePanel;
     private final EmailListPanel emailListPanel;
     private final EmailViewPanel emailViewPanel;
+    private final SearchPanel searchPanel;
+    private final JTabbedPane listTabs;
     private final JToolBar toolBar;
     private final JSplitPane mainSplitPane;
     private final JSplitPane leftSplitPane;
@@ -52,6 +57,9 @@ public class EmailBrowserFrame extends JFrame {
         addWindowListener(new WindowAdapter() {
             @Override
             public void windowClosing(WindowEvent e) {
+                if (searchPanel != null) {
+                    searchPanel.stopIndexing();
+                }
                 try {
                     emailStore.close();
                 } catch (MessagingException ex) {
@@ -64,6 +72,11 @@ public class EmailBrowserFrame extends JFrame {
         folderTreePanel = new FolderTreePanel(emailStore);
         emailListPanel = new EmailListPanel();
         emailViewPanel = new EmailViewPanel();
+
+        // Full-text search over the whole archive, only available for local stores
+        searchPanel = emailStore instanceof LocalStore
+                ? new SearchPanel((LocalStore) emailStore, ArchiveTextIndex.open(emailDirectory))
+                : null;
         
         // Set up listeners
         folderTreePanel.addFolderSelectionListener(folder -> {
@@ -77,7 +90,7 @@ public class EmailBrowserFrame extends JFrame {
             }
         });
         
-        emailListPanel.addMessageSelectionListener(message -> {
+        EmailListPanel.MessageSelectionListener showMessage = message -> {
             try {
                 emailViewPanel.setMessage(message);
             } catch (Exception e) {
@@ -86,15 +99,24 @@ public class EmailBrowserFrame extends JFrame {
                         "Error displaying message: " + e.getMessage(),
                         "Error", JOptionPane.ERROR_MESSAGE);
             }
-        });
+        };
+        emailListPanel.addMessageSelectionListener(showMessage);
+        if (searchPanel != null) {
+            searchPanel.addMessageSelectionListener(showMessage);
+        }
 
         // Create toolbar
         toolBar = createToolBar();
         add(toolBar, BorderLayout.NORTH);
 
-        // Layout - split pane with folder tree on left, email list and view on right
+        // Layout - split pane with folder tree on left, email list or search results and view on right
+        listTabs = new JTabbedPane();
+        listTabs.addTab("Folder", emailListPanel);
+        if (searchPanel != null) {
+            listTabs.addTab("Search", searchPanel);
+        }
         leftSplitPane = new JSplitPane(JSplitPane.HORIZONTAL_SPLIT, 
-                folderTreePanel, emailListPanel);
+                folderTreePanel, listTabs);
         leftSplitPane.setDividerLocation(250);
         
         mainSplitPane = new JSplitPane(JSplitPane.HORIZONTAL_SPLIT,
@@ -110,7 +132,7 @@ public class EmailBrowserFrame extends JFrame {
         statusBar.add(statusLabel, BorderLayout.WEST);
         add(statusBar, BorderLayout.SOUTH);
         
-        // Initial load of folders
+        // Initial load of folders, which also starts indexing new messages for the search
         refreshFolders();
     }
 
@@ -128,6 +150,12 @@ public class EmailBrowserFrame extends JFrame {
         refreshButton.setToolTipText("Refresh folders and messages");
         refreshButton.addActionListener(e -> refreshFolders());
         toolbar.add(refreshButton);
+
+        // Search button
+        JButton searchButton = new JButton("Search");
+        searchButton.setToolTipText("Search all emails and attachments");
+        searchButton.addActionListener(e -> showSearch());
+        toolbar.add(searchButton);
         
         toolbar.addSeparator();
         
@@ -160,10 +188,24 @@ public class EmailBrowserFrame extends JFrame {
         return toolbar;
     }
 
+    /**
+     * Switch to the search tab
+     */
+    public void showSearch() {
+        if (searchPanel != null) {
+            listTabs.setSelectedComponent(searchPanel);
+            searchPanel.focusQuery();
+        }
+    }
+
     /**
      * Refresh the folder tree and message list
      */
     public void refreshFolders() {
+        // Index new messages in the background so searches cover the whole archive
+        if (searchPanel != null) {
+            searchPanel.startIndexing();
+        }
         try {
             folderTreePanel.refreshFolders();
         } catch (MessagingException e) {
@@ -0,0 +1,288 @@
+package com.intenovation.email.ui;
+
+import com.intenovation.email.downloader.ArchiveTextIndex;
+import com.intenovation.email.reader.LocalStore;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.swing.*;
+import javax.swing.table.AbstractTableModel;
+import javax.swing.table.DefaultTableCellRenderer;
+import java.awt.*;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Panel that searches all downloaded emails, including attachment text, through the archive's
+ * full-text index and lists the ranked results. The index is brought up to date in the background
+ * while the panel is shown; searches use whatever has been indexed so far.
+ */
+public class SearchPanel extends JPanel {
+    private static final Logger LOGGER = Logger.getLogger(SearchPanel.class.getName());
+    private static final int MAX_RESULTS = 500;
+
+    // Data
+    private final LocalStore emailStore;
+    private final ArchiveTextIndex index;
+    private List<ArchiveTextIndex.Hit> hits = Collections.emptyList();
+    private SwingWorker<Integer, String> indexWorker;
+
+    // UI components
+    private final JTextField queryField;
+    private final JTable resultTable;
+    private final ResultTableModel tableModel;
+    private final JLabel statusLabel;
+
+    // Listeners
+    private final List<EmailListPanel.MessageSelectionListener> messageSelectionListeners = new ArrayList<>();
+
+    /**
+     * Create a new search panel
+     *
+     * @param emailStore The local store the results are opened from
+     * @param index The full-text index of the store's directory
+     */
+    public SearchPanel(LocalStore emailStore, ArchiveTextIndex index) {
+        this.emailStore = emailStore;
+        this.index = index;
+
+        // Configure panel
+        setLayout(new BorderLayout());
+        setBorder(BorderFactory.createTitledBorder("Search"));
+
+        // Search bar
+        JPanel searchBar = new JPanel(new BorderLayout(5, 0));
+        searchBar.setBorder(BorderFactory.createEmptyBorder(5, 5, 5, 5));
+        queryField = new JTextField();
+        queryField.setToolTipText("Words in subject, sender, text or attachments");
+        queryField.addActionListener(e -> search());
+        JButton searchButton = new JButton("Search");
+        searchButton.addActionListener(e -> search());
+        searchBar.add(queryField, BorderLayout.CENTER);
+        searchBar.add(searchButton, BorderLayout.EAST);
+        add(searchBar, BorderLayout.NORTH);
+
+        // Result table
+        tableModel = new ResultTableModel();
+        resultTable = new JTable(tableModel);
+        resultTable.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        resultTable.setShowGrid(false);
+        resultTable.setIntercellSpacing(new Dimension(0, 0));
+        resultTable.getColumnModel().getColumn(0).setPreferredWidth(130); // Date
+        resultTable.getColumnModel().getColumn(1).setPreferredWidth(180); // From
+        resultTable.getColumnModel().getColumn(2).setPreferredWidth(300); // Subject
+        resultTable.getColumnModel().getColumn(3).setPreferredWidth(120); // Folder
+        resultTable.getColumnModel().getColumn(0).setCellRenderer(new DateColumnRenderer());
+        resultTable.getSelectionModel().addListSelectionListener(e -> {
+            if (!e.getValueIsAdjusting()) {
+                int row = resultTable.getSelectedRow();
+                if (row >= 0) {
+                    openHit(hits.get(row));
+                }
+            }
+        });
+        add(new JScrollPane(resultTable), BorderLayout.CENTER);
+
+        // Status line
+        statusLabel = new JLabel(index.size() + " messages indexed");
+        statusLabel.setBorder(BorderFactory.createEmptyBorder(5, 5, 5, 5));
+        add(statusLabel, BorderLayout.SOUTH);
+    }
+
+    /**
+     * Bring the index up to date in the background, showing the progress in the status line
+     */
+    public void startIndexing() {
+        if (indexWorker != null && !indexWorker.isDone()) {
+            return;
+        }
+
+        indexWorker = new SwingWorker<Integer, String>() {
+            @Override
+            protected Integer doInBackground() throws Exception {
+                return index.update((percent, message) -> publish(message));
+            }
+
+            @Override
+            protected void process(List<String> messages) {
+                statusLabel.setText(messages.get(messages.size() - 1));
+            }
+
+            @Override
+            protected void done() {
+                if (!isCancelled()) {
+                    try {
+                        get();
+                    } catch (InterruptedException | ExecutionException e) {
+                        LOGGER.log(Level.WARNING, "Error updating search index", e);
+                    }
+                }
+                statusLabel.setText(index.size() + " messages indexed");
+            }
+        };
+        indexWorker.execute();
+    }
+
+    /**
+     * Stop a running index update; the progress so far is kept
+     */
+    public void stopIndexing() {
+        if (indexWorker != null) {
+            indexWorker.cancel(true);
+        }
+    }
+
+    /**
+     * Move the keyboard focus to the search field
+     */
+    public void focusQuery() {
+        queryField.requestFocusInWindow();
+        queryField.selectAll();
+    }
+
+    /**
+     * Run the query in the search field
+     */
+    private void search() {
+        String query = queryField.getText().trim();
+        if (query.isEmpty()) {
+            return;
+        }
+
+        new SwingWorker<List<ArchiveTextIndex.Hit>, Void>() {
+            private long millis;
+
+            @Override
+            protected List<ArchiveTextIndex.Hit> doInBackground() {
+                long start = System.currentTimeMillis();
+                List<ArchiveTextIndex.Hit> result = index.search(query, MAX_RESULTS);
+                millis = System.currentTimeMillis() - start;
+                return result;
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    hits = get();
+                    tableModel.fireTableDataChanged();
+                    statusLabel.setText(hits.size() + (hits.size() == MAX_RESULTS ? "+" : "") +
+                            " results in " + millis + " ms (" + index.size() + " messages indexed)");
+                } catch (InterruptedException | ExecutionException e) {
+                    LOGGER.log(Level.WARNING, "Error searching emails", e);
+                    statusLabel.setText("Search failed: " + e.getMessage());
+                }
+            }
+        }.execute();
+    }
+
+    /**
+     * Load the message of a result in the background and notify the listeners
+     */
+    private void openHit(ArchiveTextIndex.Hit hit) {
+        new SwingWorker<Message, Void>() {
+            @Override
+            protected Message doInBackground() throws MessagingException {
+                Message message = emailStore.getMessage(hit.getFolder(), hit.getKey());
+                if (message != null) {
+                    // Read the headers here rather than on the event dispatch thread
+                    message.getSubject();
+                }
+                return message;
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    Message message = get();
+                    if (message == null) {
+                        statusLabel.setText("Message no longer exists; the index is updated in the background");
+                        return;
+                    }
+                    for (EmailListPanel.MessageSelectionListener listener : messageSelectionListeners) {
+                        listener.messageSelected(message);
+                    }
+                } catch (InterruptedException | ExecutionException e) {
+                    LOGGER.log(Level.WARNING, "Error opening search result", e);
+                    statusLabel.setText("Error opening message: " + e.getMessage());
+                }
+            }
+        }.execute();
+    }
+
+    /**
+     * Add a message selection listener
+     *
+     * @param listener The listener to add
+     */
+    public void addMessageSelectionListener(EmailListPanel.MessageSelectionListener listener) {
+        messageSelectionListeners.add(listener);
+    }
+
+    /**
+     * Table model for the search results
+     */
+    private class ResultTableModel extends AbstractTableModel {
+        private final String[] columnNames = {"Date", "From", "Subject", "Folder"};
+
+        @Override
+        public int getRowCount() {
+            return hits.size();
+        }
+
+        @Override
+        public int getColumnCount() {
+            return columnNames.length;
+        }
+
+        @Override
+        public String getColumnName(int column) {
+            return columnNames[column];
+        }
+
+        @Override
+        public Object getValueAt(int rowIndex, int columnIndex) {
+            ArchiveTextIndex.Hit hit = hits.get(rowIndex);
+            switch (columnIndex) {
+                case 0:
+                    return hit.getDate();
+                case 1:
+                    return hit.getFrom() != null ? hit.getFrom() : "";
+                case 2:
+                    return hit.getSubject() != null ? hit.getSubject() : "(No Subject)";
+                case 3:
+                    return hit.getFolder();
+                default:
+                    return null;
+            }
+        }
+
+        @Override
+        public Class<?> getColumnClass(int columnIndex) {
+            return columnIndex == 0 ? Date.class : String.class;
+        }
+    }
+
+    /**
+     * Custom renderer for the date column
+     */
+    private class DateColumnRenderer extends DefaultTableCellRenderer {
+        private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+
+        @Override
+        public Component getTableCellRendererComponent(JTable table, Object value,
+                                                       boolean isSelected, boolean hasFocus,
+                                                       int row, int column) {
+            if (value instanceof Date) {
+                value = dateFormat.format((Date) value);
+            }
+
+            return super.getTableCellRendererComponent(table, value, isSelected, hasFocus, row, column);
+        }
+    }
+}
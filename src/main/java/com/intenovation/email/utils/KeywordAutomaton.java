@@ -0,0 +1,229 @@
+package com.intenovation.email.utils;
+
+import java.util.*;
+
+/**
+ * Aho-Corasick automaton that finds every occurrence of a fixed set of keywords in one pass over a text,
+ * including overlapping occurrences and keywords that end inside other keywords.
+ * The automaton is built once and can be shared between threads.
+ */
+public class KeywordAutomaton {
+
+    /**
+     * How characters are compared
+     */
+    public enum CaseFolding {
+        /** Characters must be equal */
+        EXACT,
+        /** A-Z match a-z, other characters must be equal (like a regex with only the (?i) flag) */
+        ASCII,
+        /**
+         * Characters are equal after {@link Character#toLowerCase(char)}, one character at a time
+         * (like {@code text.toLowerCase().contains(keyword.toLowerCase())}, without copying the text)
+         */
+        LOWER_CASE
+    }
+
+    /**
+     * Receives the occurrences found by {@link #scan}, ordered by end position
+     */
+    public interface MatchListener {
+        /**
+         * @param keyword The index of the keyword in the list the automaton was built from
+         * @param start The index of the first character of the occurrence
+         * @param end The index after the last character of the occurrence
+         */
+        void match(int keyword, int start, int end);
+    }
+
+    private final CaseFolding folding;
+    private final int keywordCount;
+    private final int[] lengths;
+
+    // Characters are mapped to classes, with case folding applied; class 0 stands for all characters
+    // that occur in no keyword. Latin-1 characters are looked up in a table, others by binary search
+    // in the folded characters of the keywords.
+    private final int[] latinClasses = new int[256];
+    private final char[] otherCharacters;
+    private final int[] otherClasses;
+    private final int width;
+
+    // Complete transition table: transitions[state * width + class] is next state * width,
+    // inverted (~) if keywords end in the next state
+    private final int[] transitions;
+
+    // Keywords ending in each state, including those of its suffix states
+    private final int[][] outputs;
+
+    /**
+     * Build the automaton
+     *
+     * @param keywords The keywords; empty keywords are never found
+     * @param folding How characters are compared
+     */
+    public KeywordAutomaton(List<String> keywords, CaseFolding folding) {
+        this.folding = folding;
+        this.keywordCount = keywords.size();
+        this.lengths = new int[keywordCount];
+
+        int classes = 1;
+        int maxStates = 1;
+        TreeMap<Character, Integer> others = new TreeMap<>();
+        for (int k = 0; k < keywordCount; k++) {
+            String keyword = keywords.get(k);
+            lengths[k] = keyword.length();
+            maxStates += keyword.length();
+            for (int i = 0; i < keyword.length(); i++) {
+                char c = fold(keyword.charAt(i));
+                if (c < 256 ? latinClasses[c] == 0 : !others.containsKey(c)) {
+                    if (c < 256) {
+                        latinClasses[c] = classes;
+                    } else {
+                        others.put(c, classes);
+                    }
+                    classes++;
+                }
+            }
+        }
+        otherCharacters = new char[others.size()];
+        otherClasses = new int[others.size()];
+        int o = 0;
+        for (Map.Entry<Character, Integer> entry : others.entrySet()) {
+            otherCharacters[o] = entry.getKey();
+            otherClasses[o++] = entry.getValue();
+        }
+        if (folding != CaseFolding.EXACT) {
+            int[] folded = latinClasses.clone();
+            for (char c = 0; c < 256; c++) {
+                folded[c] = classOf(fold(c));
+            }
+            System.arraycopy(folded, 0, latinClasses, 0, 256);
+        }
+        width = classes;
+
+        // Trie
+        int[] table = new int[maxStates * width];
+        Arrays.fill(table, -1);
+        List<List<Integer>> ending = new ArrayList<>();
+        ending.add(null);
+        int states = 1;
+        for (int k = 0; k < keywordCount; k++) {
+            String keyword = keywords.get(k);
+            if (keyword.isEmpty()) {
+                continue;
+            }
+            int state = 0;
+            for (int i = 0; i < keyword.length(); i++) {
+                int index = state * width + classOf(keyword.charAt(i));
+                if (table[index] < 0) {
+                    table[index] = states++;
+                    ending.add(null);
+                }
+                state = table[index];
+            }
+            if (ending.get(state) == null) {
+                ending.set(state, new ArrayList<>());
+            }
+            ending.get(state).add(k);
+        }
+
+        // Failure links, resolved into the transition table in breadth-first order
+        int[] failure = new int[states];
+        outputs = new int[states][];
+        int[] queue = new int[states];
+        int head = 0;
+        int tail = 0;
+        for (int c = 0; c < width; c++) {
+            int next = table[c];
+            if (next < 0) {
+                table[c] = 0;
+            } else {
+                failure[next] = 0;
+                queue[tail++] = next;
+            }
+        }
+        while (head < tail) {
+            int state = queue[head++];
+            List<Integer> own = ending.get(state);
+            int[] inherited = outputs[failure[state]];
+            if (own != null || inherited != null) {
+                int ownCount = own != null ? own.size() : 0;
+                int[] out = new int[ownCount + (inherited != null ? inherited.length : 0)];
+                for (int i = 0; i < ownCount; i++) {
+                    out[i] = own.get(i);
+                }
+                if (inherited != null) {
+                    System.arraycopy(inherited, 0, out, ownCount, inherited.length);
+                }
+                outputs[state] = out;
+            }
+            for (int c = 0; c < width; c++) {
+                int index = state * width + c;
+                int next = table[index];
+                int fallback = table[failure[state] * width + c];
+                if (next < 0) {
+                    table[index] = fallback;
+                } else {
+                    failure[next] = fallback;
+                    queue[tail++] = next;
+                }
+            }
+        }
+        transitions = Arrays.copyOf(table, states * width);
+        for (int i = 0; i < transitions.length; i++) {
+            int next = transitions[i];
+            transitions[i] = outputs[next] != null ? ~(next * width) : next * width;
+        }
+    }
+
+    /**
+     * Get the number of keywords
+     *
+     * @return The number of keywords the automaton was built from
+     */
+    public int size() {
+        return keywordCount;
+    }
+
+    /**
+     * Report every occurrence of every keyword in a text
+     *
+     * @param text The text
+     * @param listener Receives the occurrences, ordered by end position
+     */
+    public void scan(CharSequence text, MatchListener listener) {
+        int state = 0;
+        for (int i = 0, n = text.length(); i < n; i++) {
+            state = transitions[state + classOf(text.charAt(i))];
+            if (state < 0) {
+                state = ~state;
+                for (int keyword : outputs[state / width]) {
+                    listener.match(keyword, i + 1 - lengths[keyword], i + 1);
+                }
+            }
+        }
+    }
+
+    private char fold(char c) {
+        switch (folding) {
+            case ASCII:
+                return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+            case LOWER_CASE:
+                return Character.toLowerCase(c);
+            default:
+                return c;
+        }
+    }
+
+    private int classOf(char c) {
+        if (c < 256) {
+            return latinClasses[c];
+        }
+        char folded = fold(c);
+        if (folded < 256) {
+            return latinClasses[folded]; // Such as the Kelvin sign, whose lower case is k
+        }
+        int index = Arrays.binarySearch(otherCharacters, folded);
+        return index >= 0 ? otherClasses[index] : 0;
+    }
+}
@@ -0,0 +1,110 @@
+package com.intenovation.email.utils;
+
+import java.util.*;
+
+/**
+ * Lists of labels in priority order, compiled once into one {@link KeywordAutomaton}. For a text it finds,
+ * for every list, the first label in list order that occurs in the text and where it first occurs,
+ * like calling {@link String#indexOf(String)} for one label after the other, but for all lists in one pass.
+ * Labels are compared exactly.
+ */
+public class LabelSets {
+
+    /**
+     * The first occurrence of the label that was found for a list
+     */
+    public static class Match {
+        private final int label;
+        private final int start;
+        private final int end;
+
+        Match(int label, int start, int end) {
+            this.label = label;
+            this.start = start;
+            this.end = end;
+        }
+
+        /** @return The index of the label in its list */
+        public int getLabel() { return label; }
+        /** @return The index of the first character of the label in the text */
+        public int getStart() { return start; }
+        /** @return The index after the last character of the label in the text */
+        public int getEnd() { return end; }
+    }
+
+    private final String[][] lists;
+    private final int listCount;
+    private final KeywordAutomaton automaton;
+
+    // For each keyword of the automaton: the lists and positions in the list it stands for
+    private final int[][] keywordLists;
+    private final int[][] keywordPriorities;
+
+    /**
+     * Compile label lists
+     *
+     * @param lists The label lists, each in priority order
+     */
+    public LabelSets(String[]... lists) {
+        this.lists = lists.clone();
+        listCount = lists.length;
+        Map<String, Integer> keywordIndex = new LinkedHashMap<>();
+        List<List<int[]>> uses = new ArrayList<>();
+        for (int list = 0; list < lists.length; list++) {
+            for (int priority = 0; priority < lists[list].length; priority++) {
+                Integer index = keywordIndex.get(lists[list][priority]);
+                if (index == null) {
+                    index = keywordIndex.size();
+                    keywordIndex.put(lists[list][priority], index);
+                    uses.add(new ArrayList<>());
+                }
+                uses.get(index).add(new int[]{list, priority});
+            }
+        }
+
+        automaton = new KeywordAutomaton(new ArrayList<>(keywordIndex.keySet()), KeywordAutomaton.CaseFolding.EXACT);
+        keywordLists = new int[uses.size()][];
+        keywordPriorities = new int[uses.size()][];
+        for (int k = 0; k < uses.size(); k++) {
+            keywordLists[k] = new int[uses.get(k).size()];
+            keywordPriorities[k] = new int[uses.get(k).size()];
+            for (int i = 0; i < uses.get(k).size(); i++) {
+                keywordLists[k][i] = uses.get(k).get(i)[0];
+                keywordPriorities[k][i] = uses.get(k).get(i)[1];
+            }
+        }
+    }
+
+    /**
+     * Find the first-priority label of every list in a text
+     *
+     * @param text The text, or null for a missing text
+     * @return For every list the match, or null if no label of the list occurs
+     */
+    public Match[] find(CharSequence text) {
+        if (text == null) {
+            return new Match[listCount];
+        }
+        int[] best = new int[listCount];
+        int[] bestStart = new int[listCount];
+        Arrays.fill(best, Integer.MAX_VALUE);
+        automaton.scan(text, (keyword, start, end) -> {
+            // Occurrences of one keyword are reported from left to right, so the first one is kept
+            for (int i = 0; i < keywordLists[keyword].length; i++) {
+                int list = keywordLists[keyword][i];
+                if (keywordPriorities[keyword][i] < best[list]) {
+                    best[list] = keywordPriorities[keyword][i];
+                    bestStart[list] = start;
+                }
+            }
+        });
+
+        Match[] matches = new Match[listCount];
+        for (int list = 0; list < listCount; list++) {
+            if (best[list] != Integer.MAX_VALUE) {
+                matches[list] = new Match(best[list], bestStart[list], bestStart[list] + lists[list][best[list]].length());
+            }
+        }
+        return matches;
+    }
+}
@@ -0,0 +1,293 @@
+package com.intenovation.email.utils;
+
+import org.apache.pdfbox.contentstream.operator.Operator;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.encryption.InvalidPasswordException;
+import org.apache.pdfbox.text.PDFTextStripper;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Extracts the text of PDF files on a small fixed pool of worker threads, so only a few documents are
+ * loaded at a time however many threads ask for text. PDFBox reads the document from its file and keeps at most
+ * a configured amount of its working data in memory, spilling the rest to a temporary file.
+ * Only the first pages of a document are read, and reading stops when a document takes too long;
+ * such documents yield the text read so far and are counted in the statistics.
+ * A caller waits for a document that does not stop at the time limit only for a grace period longer.
+ */
+public class PdfExtractionService {
+    private static final Logger LOGGER = Logger.getLogger(PdfExtractionService.class.getName());
+
+    public static final int DEFAULT_THREADS = 2;
+    public static final int DEFAULT_MAX_PAGES = 50;
+    public static final int DEFAULT_TIME_LIMIT_SECONDS = 60;
+    public static final int DEFAULT_MEMORY_MEGABYTES = 32;
+
+    /**
+     * How much longer than the time limit a caller waits for a worker that does not stop
+     */
+    private static final long GRACE_MILLIS = 5000;
+
+    private static final PdfExtractionService DEFAULT = new PdfExtractionService();
+
+    /**
+     * Text of one document and whether a limit cut it short
+     */
+    public static class Result {
+        private final String text;
+        private final int pages;
+        private final int pageLimit;
+        private final boolean pageLimited;
+        private final boolean timeLimited;
+        private final boolean unreadable;
+
+        Result(String text, int pages, int pageLimit, boolean pageLimited, boolean timeLimited, boolean unreadable) {
+            this.text = text;
+            this.pages = pages;
+            this.pageLimit = pageLimit;
+            this.pageLimited = pageLimited;
+            this.timeLimited = timeLimited;
+            this.unreadable = unreadable;
+        }
+
+        /**
+         * A document whose text could not be read
+         *
+         * @param unreadable true if PDFBox rejected the document itself, false for a failure that may not happen
+         *                   again, like a wrong password or running out of memory
+         */
+        static Result failed(int pageLimit, boolean unreadable) {
+            return new Result(null, 0, pageLimit, false, false, unreadable);
+        }
+
+        /** @return The text, or null if the PDF cannot be read */
+        public String getText() { return text; }
+        /** @return The number of pages read */
+        public int getPages() { return pages; }
+        /** @return The page limit the document was read with */
+        public int getPageLimit() { return pageLimit; }
+        /** @return true if the document has more pages than the page limit */
+        public boolean isPageLimited() { return pageLimited; }
+        /** @return true if reading stopped at the time limit */
+        public boolean isTimeLimited() { return timeLimited; }
+        /** @return true if PDFBox rejected the document, so reading it again gives no text either */
+        public boolean isUnreadable() { return unreadable; }
+    }
+
+    private final ThreadPoolExecutor executor;
+    private volatile int maxPages = DEFAULT_MAX_PAGES;
+    private volatile long timeLimitMillis = DEFAULT_TIME_LIMIT_SECONDS * 1000L;
+    private volatile long memoryBytes = DEFAULT_MEMORY_MEGABYTES * 1024L * 1024L;
+
+    // Statistics
+    private final AtomicLong documents = new AtomicLong();
+    private final AtomicLong pages = new AtomicLong();
+    private final AtomicLong busyNanos = new AtomicLong();
+    private final AtomicLong pageLimitedDocuments = new AtomicLong();
+    private final AtomicLong timeLimitedDocuments = new AtomicLong();
+    private final AtomicLong failedDocuments = new AtomicLong();
+
+    private PdfExtractionService() {
+        AtomicInteger threadNumber = new AtomicInteger();
+        executor = new ThreadPoolExecutor(DEFAULT_THREADS, DEFAULT_THREADS, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+            Thread thread = new Thread(r, "pdf-extraction-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Get the shared service
+     *
+     * @return The service
+     */
+    public static PdfExtractionService getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Change the limits; documents that are already being read keep the old limits
+     *
+     * @param threads The number of documents read at the same time
+     * @param maxPages The number of pages read per document
+     * @param timeLimitSeconds The time after which reading a document stops
+     * @param memoryMegabytes The memory PDFBox may use per document before spilling to a temporary file
+     */
+    public synchronized void configure(int threads, int maxPages, int timeLimitSeconds, int memoryMegabytes) {
+        threads = Math.max(1, threads);
+        if (threads > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(threads);
+            executor.setCorePoolSize(threads);
+        } else {
+            executor.setCorePoolSize(threads);
+            executor.setMaximumPoolSize(threads);
+        }
+        this.maxPages = Math.max(1, maxPages);
+        this.timeLimitMillis = Math.max(1, timeLimitSeconds) * 1000L;
+        this.memoryBytes = Math.max(1, memoryMegabytes) * 1024L * 1024L;
+    }
+
+    /**
+     * Extract the text of a PDF file on a worker thread, waiting for a free worker if all are busy.
+     * A document that is still being read at the time limit plus a grace period is given up on
+     * and its worker is interrupted.
+     *
+     * @param pdfFile The PDF file
+     * @param password The password of the PDF, or an empty string
+     * @return The result
+     * @throws InterruptedException If the calling thread is interrupted while waiting
+     */
+    public Result extract(File pdfFile, String password) throws InterruptedException {
+        int limit = maxPages;
+        long waitMillis = timeLimitMillis + GRACE_MILLIS;
+        CountDownLatch started = new CountDownLatch(1);
+        Future<Result> future = executor.submit(() -> {
+            started.countDown();
+            return read(pdfFile, password, limit);
+        });
+        try {
+            // Waiting for a free worker does not count against the time limit
+            started.await();
+            return future.get(waitMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            throw e;
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            LOGGER.warning("Gave up on a PDF that was still being read " + waitMillis + " ms after it started: "
+                    + pdfFile.getName());
+            // The worker counts the document once it stops
+            return new Result(null, 0, limit, false, true, false);
+        } catch (ExecutionException e) {
+            // E.g. an OutOfMemoryError, which another attempt may not run into
+            LOGGER.log(Level.WARNING, "Error extracting text from PDF: " + e.getCause().getMessage(), e.getCause());
+            failedDocuments.incrementAndGet();
+            return Result.failed(limit, false);
+        }
+    }
+
+    /**
+     * Get the number of pages read per document
+     *
+     * @return The page limit
+     */
+    public int getMaxPages() {
+        return maxPages;
+    }
+
+    /**
+     * Get the throughput and the number of documents that hit a limit
+     *
+     * @return A summary line
+     */
+    public String getStatistics() {
+        double busySeconds = busyNanos.get() / 1e9;
+        return String.format("PDF: %d documents, %d pages (%.1f pages/s), %d over page limit, %d over time limit, " +
+                        "%d unreadable, %d/%d threads busy",
+                documents.get(), pages.get(), pages.get() / Math.max(busySeconds, 0.001),
+                pageLimitedDocuments.get(), timeLimitedDocuments.get(), failedDocuments.get(),
+                executor.getActiveCount(), executor.getMaximumPoolSize());
+    }
+
+    /**
+     * Thrown when the time limit of the document is reached or its worker is interrupted
+     */
+    private static class TimeLimitReached extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        TimeLimitReached() {
+            super("Time limit reached");
+        }
+    }
+
+    /**
+     * Text stripper that counts the pages it has read and stops at the first operator or page end
+     * past the deadline, or once its worker is interrupted
+     */
+    private static class LimitedStripper extends PDFTextStripper {
+        private final long deadline;
+        int pagesRead;
+
+        LimitedStripper(long deadline) throws IOException {
+            this.deadline = deadline;
+        }
+
+        @Override
+        protected void processOperator(Operator operator, List<COSBase> operands) throws IOException {
+            checkLimit();
+            super.processOperator(operator, operands);
+        }
+
+        @Override
+        protected void endPage(PDPage page) throws IOException {
+            super.endPage(page);
+            pagesRead++;
+            checkLimit();
+        }
+
+        private void checkLimit() throws TimeLimitReached {
+            if (System.nanoTime() > deadline || Thread.currentThread().isInterrupted()) {
+                throw new TimeLimitReached();
+            }
+        }
+    }
+
+    /**
+     * Read a document up to the page limit, stopping where it passes the time limit
+     */
+    private Result read(File pdfFile, String password, int limit) {
+        long start = System.nanoTime();
+        long deadline = start + timeLimitMillis * 1_000_000L;
+        try (PDDocument document = PDDocument.load(pdfFile, password, null, null,
+                MemoryUsageSetting.setupMixed(memoryBytes))) {
+            int pageCount = document.getNumberOfPages();
+            int lastPage = Math.min(pageCount, limit);
+            LimitedStripper stripper = new LimitedStripper(deadline);
+            stripper.setEndPage(lastPage);
+            StringWriter text = new StringWriter();
+            try {
+                stripper.writeText(document, text);
+            } catch (TimeLimitReached e) {
+                // Keep the text of the pages read so far
+            }
+
+            int read = stripper.pagesRead;
+            boolean pageLimited = pageCount > limit;
+            boolean timeLimited = read < lastPage;
+            documents.incrementAndGet();
+            pages.addAndGet(read);
+            if (pageLimited) {
+                pageLimitedDocuments.incrementAndGet();
+                LOGGER.fine("Read only the first " + limit + " of " + pageCount + " pages of a PDF");
+            }
+            if (timeLimited) {
+                timeLimitedDocuments.incrementAndGet();
+                LOGGER.info("Stopped reading a PDF after " + read + " of " + pageCount + " pages at the time limit");
+            }
+            return new Result(text.toString(), read, limit, pageLimited, timeLimited, false);
+        } catch (InvalidPasswordException e) {
+            LOGGER.warning("Cannot open a PDF without its password: " + e.getMessage());
+            failedDocuments.incrementAndGet();
+            return Result.failed(limit, false);
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Error extracting text from PDF: " + e.getMessage(), e);
+            failedDocuments.incrementAndGet();
+            return Result.failed(limit, true);
+        } finally {
+            busyNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+}
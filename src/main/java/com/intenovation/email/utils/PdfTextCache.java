@@ -0,0 +1,397 @@
+package com.intenovation.email.utils;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Cache of the text the {@link PdfExtractionService} extracts from PDF files, keyed by the SHA-256 hash of the PDF content,
+ * so the same attachment is only stripped once no matter which archive, folder or tool reads it.
+ * The cache is a single file of deflate-compressed records. When it grows beyond its size limit,
+ * the least recently used records are dropped by rewriting the file.
+ * PDFs that PDFBox rejects are recorded too, so they are not tried again on every run; failures that may not
+ * happen again, like a wrong password or running out of memory, and text cut short by the time limit are not recorded.
+ * Text cut short by the page limit is only used while the page limit is the same.
+ * The file must only be used by one process at a time.
+ */
+public class PdfTextCache {
+    private static final Logger LOGGER = Logger.getLogger(PdfTextCache.class.getName());
+
+    /**
+     * Name of the default cache file in the user's home directory
+     */
+    public static final String FILE_NAME = ".pdf-text-cache";
+
+    /**
+     * Default size limit of the cache file
+     */
+    public static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+
+    private static final int MAGIC = 0x50445432; // "PDT2"
+    private static final int KEY_LENGTH = 32;
+    private static final int HEADER_LENGTH = KEY_LENGTH + 1 + 4 + 4;
+    private static final byte STATUS_TEXT = 0;
+    private static final byte STATUS_FAILED = 1;
+
+    private static final Map<File, PdfTextCache> INSTANCES = new ConcurrentHashMap<>();
+
+    private final File file;
+    private final long maxBytes;
+
+    // Records in access order, the least recently used first
+    private final LinkedHashMap<String, Record> records = new LinkedHashMap<>(16, 0.75f, true);
+    private RandomAccessFile data;
+    private long hits;
+    private long misses;
+
+    /**
+     * Location of one record's compressed text in the cache file
+     */
+    private static class Record {
+        final byte[] key;
+        final byte status;
+        final int pageLimit;
+        long offset;
+        final int length;
+
+        /**
+         * @param pageLimit The page limit that cut the text short, or 0 for the text of the whole document
+         */
+        Record(byte[] key, byte status, int pageLimit, long offset, int length) {
+            this.key = key;
+            this.status = status;
+            this.pageLimit = pageLimit;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private PdfTextCache(File file, long maxBytes) {
+        this.file = file;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Get the shared cache in the user's home directory
+     *
+     * @return The cache
+     */
+    public static PdfTextCache getDefault() {
+        return open(new File(System.getProperty("user.home"), FILE_NAME), DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * Get the shared cache instance for a file, opening it on first use
+     *
+     * @param file The cache file
+     * @param maxBytes The size limit of the cache file
+     * @return The cache
+     */
+    public static PdfTextCache open(File file, long maxBytes) {
+        return INSTANCES.computeIfAbsent(file.getAbsoluteFile(), f -> new PdfTextCache(f, maxBytes));
+    }
+
+    /**
+     * Get the text of a PDF file, extracting it with PDFBox if it is not cached yet
+     *
+     * @param pdfFile The PDF file
+     * @return The text, or null if the PDF cannot be read
+     * @throws IOException If the file cannot be read
+     */
+    public String extract(File pdfFile) throws IOException {
+        return extract(pdfFile, "");
+    }
+
+    /**
+     * Get the text of a password protected PDF file, extracting it with PDFBox if it is not cached yet
+     *
+     * @param pdfFile The PDF file
+     * @param password The password of the PDF, or an empty string
+     * @return The text, or null if the PDF cannot be read
+     * @throws IOException If the file cannot be read
+     */
+    public String extract(File pdfFile, String password) throws IOException {
+        byte[] key = key(pdfFile, password);
+        String hex = toHex(key);
+
+        synchronized (this) {
+            ensureOpen();
+            Record record = records.get(hex);
+            if (record != null && record.pageLimit != 0
+                    && record.pageLimit != PdfExtractionService.getDefault().getMaxPages()) {
+                // Cut short by another page limit
+                records.remove(hex);
+                record = null;
+            }
+            if (record != null) {
+                try {
+                    String text = read(record);
+                    hits++;
+                    return text;
+                } catch (IOException | DataFormatException e) {
+                    LOGGER.log(Level.WARNING, "Error reading cached PDF text, extracting again", e);
+                    records.remove(hex);
+                }
+            }
+            misses++;
+        }
+
+        // Extract outside the lock, so several PDFs can be read in parallel
+        PdfExtractionService.Result result;
+        try {
+            result = PdfExtractionService.getDefault().extract(pdfFile, password);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        String text = result.getText();
+
+        // Text cut short by the time limit depends on the load, so it is read again next time
+        if (!result.isTimeLimited() && (text != null || result.isUnreadable())) {
+            synchronized (this) {
+                try {
+                    append(key, hex, text, result.isPageLimited() ? result.getPageLimit() : 0);
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Error writing PDF text cache: " + file, e);
+                }
+            }
+        }
+        return text;
+    }
+
+    /**
+     * Get the number of cached PDFs
+     *
+     * @return The number of records
+     */
+    public synchronized int size() {
+        ensureOpen();
+        return records.size();
+    }
+
+    /**
+     * Get the hit and miss counts since the cache was opened
+     *
+     * @return A summary line
+     */
+    public synchronized String getStatistics() {
+        return records.size() + " PDFs cached, " + hits + " hits, " + misses + " misses";
+    }
+
+    /**
+     * Hash the file content and password, reading the file in blocks
+     */
+    private static byte[] key(File pdfFile, String password) throws IOException {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            try (InputStream in = new FileInputStream(pdfFile)) {
+                byte[] buffer = new byte[1 << 16];
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    digest.update(buffer, 0, n);
+                }
+            }
+            if (password != null && !password.isEmpty()) {
+                digest.update(password.getBytes(StandardCharsets.UTF_8));
+            }
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    private static String toHex(byte[] key) {
+        StringBuilder sb = new StringBuilder(key.length * 2);
+        for (byte b : key) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Open the cache file and index its records; a truncated last record is cut off
+     */
+    private void ensureOpen() {
+        if (data != null) {
+            return;
+        }
+
+        try {
+            file.getAbsoluteFile().getParentFile().mkdirs();
+            data = new RandomAccessFile(file, "rw");
+            if (data.length() < 4 || data.readInt() != MAGIC) {
+                if (data.length() > 0) {
+                    LOGGER.warning("Unknown PDF text cache format, starting a new cache: " + file);
+                }
+                data.setLength(0);
+                data.writeInt(MAGIC);
+                return;
+            }
+
+            long length = data.length();
+            long offset = 4;
+            byte[] header = new byte[HEADER_LENGTH];
+            while (offset + HEADER_LENGTH <= length) {
+                data.seek(offset);
+                data.readFully(header);
+                int pageLimit = readInt(header, KEY_LENGTH + 1);
+                int recordLength = readInt(header, KEY_LENGTH + 5);
+                if (recordLength < 0 || offset + HEADER_LENGTH + recordLength > length) {
+                    break;
+                }
+                byte[] key = Arrays.copyOf(header, KEY_LENGTH);
+                records.put(toHex(key), new Record(key, header[KEY_LENGTH], pageLimit, offset + HEADER_LENGTH,
+                        recordLength));
+                offset += HEADER_LENGTH + recordLength;
+            }
+            if (offset < length) {
+                LOGGER.warning("Cutting off a truncated record of the PDF text cache: " + file);
+                data.setLength(offset);
+            }
+            LOGGER.fine("Opened PDF text cache with " + records.size() + " records");
+            if (data.length() > maxBytes) {
+                evict();
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Error opening PDF text cache: " + file, e);
+        }
+    }
+
+    private static int readInt(byte[] b, int offset) {
+        return ((b[offset] & 0xFF) << 24) | ((b[offset + 1] & 0xFF) << 16) | ((b[offset + 2] & 0xFF) << 8)
+                | (b[offset + 3] & 0xFF);
+    }
+
+    private String read(Record record) throws IOException, DataFormatException {
+        if (record.status == STATUS_FAILED) {
+            return null;
+        }
+        byte[] compressed = new byte[record.length];
+        data.seek(record.offset);
+        data.readFully(compressed);
+
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(record.length * 4);
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if (n == 0 && inflater.needsInput()) {
+                    throw new DataFormatException("Truncated record");
+                }
+                out.write(buffer, 0, n);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private void append(byte[] key, String hex, String text, int pageLimit) throws IOException {
+        ensureOpen();
+        Record existing = records.get(hex);
+        if (data == null || (existing != null && existing.pageLimit == pageLimit)) {
+            return;
+        }
+
+        byte status = text != null ? STATUS_TEXT : STATUS_FAILED;
+        byte[] compressed = text != null ? compress(text) : new byte[0];
+        long offset = data.length();
+        data.seek(offset);
+        data.write(key);
+        data.writeByte(status);
+        data.writeInt(pageLimit);
+        data.writeInt(compressed.length);
+        data.write(compressed);
+        records.put(hex, new Record(key, status, pageLimit, offset + HEADER_LENGTH, compressed.length));
+
+        if (data.length() > maxBytes) {
+            evict();
+        }
+    }
+
+    private static byte[] compress(String text) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(text.getBytes(StandardCharsets.UTF_8));
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Drop the least recently used records until the cache uses three quarters of its limit,
+     * rewriting the file with the remaining records in access order
+     */
+    private void evict() throws IOException {
+        long total = 4;
+        for (Record record : records.values()) {
+            total += HEADER_LENGTH + record.length;
+        }
+        int dropped = 0;
+        Iterator<Record> iterator = records.values().iterator();
+        while (total > maxBytes * 3 / 4 && iterator.hasNext()) {
+            Record record = iterator.next();
+            total -= HEADER_LENGTH + record.length;
+            iterator.remove();
+            dropped++;
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        List<Record> kept = new ArrayList<>(records.values());
+        long[] offsets = new long[kept.size()];
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            long offset = 4;
+            byte[] compressed = new byte[0];
+            for (int i = 0; i < kept.size(); i++) {
+                Record record = kept.get(i);
+                if (compressed.length < record.length) {
+                    compressed = new byte[record.length];
+                }
+                data.seek(record.offset);
+                data.readFully(compressed, 0, record.length);
+                out.write(record.key);
+                out.writeByte(record.status);
+                out.writeInt(record.pageLimit);
+                out.writeInt(record.length);
+                out.write(compressed, 0, record.length);
+                offsets[i] = offset + HEADER_LENGTH;
+                offset += HEADER_LENGTH + record.length;
+            }
+        }
+
+        data.close();
+        data = null;
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        for (int i = 0; i < kept.size(); i++) {
+            kept.get(i).offset = offsets[i];
+        }
+        data = new RandomAccessFile(file, "rw");
+        LOGGER.info("Dropped " + dropped + " least recently used records from the PDF text cache, " +
+                kept.size() + " remain");
+    }
+}
@@ -0,0 +1,60 @@
+package com.intenovation.email.utils;
+
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * Classifies a text by the synonyms of enum constants: the result is the first constant in declaration order
+ * with a synonym that occurs in the text, ignoring case. All synonyms are compiled into one
+ * {@link KeywordAutomaton}, so a text is classified in one pass without making a lower-case copy of it.
+ *
+ * @param <E> The enum type
+ */
+public class SynonymClassifier<E extends Enum<E>> {
+
+    private final E[] constants;
+    private final KeywordAutomaton automaton;
+
+    // For each keyword of the automaton: the first constant in declaration order that has it as synonym
+    private final int[] keywordOrdinals;
+
+    /**
+     * Compile the synonyms of enum constants
+     *
+     * @param constants The constants in declaration order, as returned by {@code values()}
+     * @param synonyms Gets the synonyms of a constant
+     */
+    public SynonymClassifier(E[] constants, Function<E, ? extends Collection<String>> synonyms) {
+        this.constants = constants.clone();
+        Map<String, Integer> ordinals = new LinkedHashMap<>();
+        for (E constant : constants) {
+            for (String synonym : synonyms.apply(constant)) {
+                if (!synonym.isEmpty()) {
+                    ordinals.putIfAbsent(synonym, constant.ordinal());
+                }
+            }
+        }
+        automaton = new KeywordAutomaton(new ArrayList<>(ordinals.keySet()), KeywordAutomaton.CaseFolding.LOWER_CASE);
+        keywordOrdinals = new int[ordinals.size()];
+        int k = 0;
+        for (int ordinal : ordinals.values()) {
+            keywordOrdinals[k++] = ordinal;
+        }
+    }
+
+    /**
+     * Classify a text
+     *
+     * @param text The text, may be null
+     * @param fallback The result if no synonym occurs in the text
+     * @return The first constant in declaration order with a synonym in the text, or the fallback
+     */
+    public E classify(CharSequence text, E fallback) {
+        if (text == null) {
+            return fallback;
+        }
+        int[] best = {Integer.MAX_VALUE};
+        automaton.scan(text, (keyword, start, end) -> best[0] = Math.min(best[0], keywordOrdinals[keyword]));
+        return best[0] != Integer.MAX_VALUE ? constants[best[0]] : fallback;
+    }
+}
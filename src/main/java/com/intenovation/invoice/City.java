@@ -1,5 +1,7 @@
 package com.intenovation.invoice;
 
+import com.intenovation.email.utils.SynonymClassifier;
+
 import java.util.HashSet;
 import java.util.Set;
 
@@ -34,24 +36,14 @@ public enum City {
         return synonyms;
     }
     
+    private static final SynonymClassifier<City> CLASSIFIER = new SynonymClassifier<>(values(), c -> c.synonyms);
+
     /**
      * Detect city from content
      * @param content The content to check
      * @return Detected city or Unknown if not detected
      */
     public static City detectCity(String content) {
-        if (content == null)
-            return Unknown;
-        
-        content = content.toLowerCase();
-        for (City city : City.values()) {
-            for (String synonym : city.synonyms) {
-                if (content.contains(synonym)) {
-                    return city;
-                }
-            }
-        }
-        
-        return Unknown;
+        return CLASSIFIER.classify(content, Unknown);
     }
 }
\ No newline at end of file
@@ -4,12 +4,13 @@ import com.intenovation.appfw.systemtray.BackgroundTask;
 import com.intenovation.appfw.systemtray.ProgressStatusCallback;
 import com.intenovation.appfw.ui.UIService;
 import com.intenovation.email.reader.LocalMail;
+import com.intenovation.email.utils.PdfExtractionService;
 
 import javax.mail.*;
 import java.io.*;
 import java.text.SimpleDateFormat;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.*;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -20,9 +21,24 @@ import java.util.logging.Logger;
 public class EnhancedInvoiceProcessor extends BackgroundTask {
     private static final Logger LOGGER = Logger.getLogger(EnhancedInvoiceProcessor.class.getName());
 
-    // Track processed message IDs to avoid duplicates
+    // Track the message IDs of the current run to avoid duplicates; decided by the store thread in submission order
     private final Set<String> processedMessageIds = ConcurrentHashMap.newKeySet();
 
+    // Lowest submission number per message ID read so far, so the read threads only parse the first copy
+    private final Map<String, Long> messageIdClaims = new ConcurrentHashMap<>();
+
+    // Results of earlier runs, so unchanged messages are not parsed again
+    private final ProcessedMessageLedger ledger;
+
+    // Save the ledger after this many newly parsed messages, so a cancelled run keeps its progress
+    private static final int LEDGER_CHECKPOINT_INTERVAL = 500;
+
+    // Message parts waiting for Ollama, worked through by the LLMEnrichment task
+    private final LLMEnrichmentQueue enrichmentQueue;
+
+    // Save the ledger and the enrichment queue after this many parts enriched by Ollama
+    private static final int ENRICHMENT_CHECKPOINT_INTERVAL = 10;
+
     // Configuration and services
     private final InvoiceConfiguration config;
     private final UIService uiService;
@@ -32,6 +48,9 @@ public class EnhancedInvoiceProcessor extends BackgroundTask {
     private final InvoiceReportGenerator reportGenerator;
     private final InvoiceStorage storage;
 
+    // Pipeline of the current or last run, for the status metrics
+    private volatile InvoicePipeline<?> currentPipeline;
+
     // For tracking statistics
     private final Map<String, List<Invoice>> statistics = new HashMap<>();
 
@@ -62,6 +81,8 @@ public class EnhancedInvoiceProcessor extends BackgroundTask {
 
         // Initialize storage with the process name explicitly
         this.storage = new InvoiceStorage(outputDirectory, "EnhancedInvoiceProcessor");
+        this.ledger = ProcessedMessageLedger.load(outputDirectory);
+        this.enrichmentQueue = LLMEnrichmentQueue.load(outputDirectory);
     }
 
     /**
@@ -73,13 +94,39 @@ public class EnhancedInvoiceProcessor extends BackgroundTask {
      */
     @Override
     public String execute(ProgressStatusCallback callback) throws InterruptedException {
+        return process(callback, false);
+    }
+
+    /**
+     * Forget the results of earlier runs and parse all messages again, e.g. after the parsing rules changed
+     *
+     * @param callback Callback for reporting progress and status messages
+     * @return Status message that will be displayed on completion
+     * @throws InterruptedException if the task is cancelled
+     */
+    public String reprocessAll(ProgressStatusCallback callback) throws InterruptedException {
+        return process(callback, true);
+    }
+
+    /**
+     * Process the archive; only one run at a time, as runs share the ledger and statistics
+     */
+    private synchronized String process(ProgressStatusCallback callback, boolean reprocessAll)
+            throws InterruptedException {
         callback.update(0, "Initializing enhanced invoice processor with domain-based organization...");
 
         Store store = null;
-        int totalInvoicesFound = 0;
-
-        // Collection to store all invoices for domain-based organization
-        List<Invoice> allInvoices = new ArrayList<>();
+        InvoicePipeline<PendingMessage> pipeline = null;
+        processedMessageIds.clear();
+        messageIdClaims.clear();
+        statistics.clear();
+        if (reprocessAll) {
+            LOGGER.info("Reprocessing all messages, forgetting " + ledger.size() + " recorded messages");
+            ledger.clear();
+        }
+        String resultsVersion = parser.getResultsVersion();
+        PdfExtractionService.getDefault().configure(config.getPdfThreads(), config.getPdfMaxPages(),
+                config.getPdfTimeLimitSeconds(), config.getPdfMemoryMegabytes());
 
         try {
             // Step 1: Open the local mail store
@@ -116,8 +163,29 @@ public class EnhancedInvoiceProcessor extends BackgroundTask {
             int foldersWithMessages = foldersToProcess.size();
             callback.update(20, "Found " + foldersWithMessages + " folders with messages");
 
-            // Step 3: Process each folder
-            int processedFolders = 0;
+            // Step 3: Process each folder. The messages go through the invoice pipeline, which hands
+            // the results back in message order on its store thread, so the storage writes and the
+            // statistics happen in the same order as in sequential processing.
+            ProcessingRun run = new ProcessingRun(callback, foldersWithMessages, resultsVersion);
+            long submitted = 0;
+            pipeline = new InvoicePipeline<>(config, parser, new InvoicePipeline.Handler<PendingMessage>() {
+                @Override
+                public List<Invoice> lookup(PendingMessage context, Message message) throws MessagingException {
+                    return lookupMessage(context, message, resultsVersion);
+                }
+
+                @Override
+                public Invoice prepare(PendingMessage context, Message message) throws MessagingException {
+                    return prepareMessage(message, context.messageId);
+                }
+
+                @Override
+                public void store(PendingMessage context, List<Invoice> invoices,
+                                  List<InvoiceParser.ContentPart> unparsed) {
+                    consume(context, invoices, unparsed, run);
+                }
+            });
+            currentPipeline = pipeline;
 
             for (Folder folder : foldersToProcess) {
                 // Check for cancellation
@@ -125,14 +193,16 @@ public class EnhancedInvoiceProcessor extends BackgroundTask {
                     throw new InterruptedException("Task cancelled");
                 }
 
+                FolderRun folderRun;
+                Message[] messages;
                 try {
                     folder.open(Folder.READ_ONLY);
 
-                    callback.update(20 + (70 * processedFolders / Math.max(1, foldersWithMessages)),
+                    callback.update(20 + (70 * run.processedFolders / Math.max(1, foldersWithMessages)),
                             "Processing folder: " + folder.getFullName() + " (" + folder.getMessageCount() + " messages)");
 
                     // Process messages in this folder
-                    Message[] messages = folder.getMessages();
+                    messages = folder.getMessages();
 
                     // Sort messages by date (newest first)
                     Arrays.sort(messages, (m1, m2) -> {
@@ -159,58 +229,43 @@ public class EnhancedInvoiceProcessor extends BackgroundTask {
                         }
                     });
 
-                    int folderInvoicesCount = 0;
-                    List<Invoice> folderInvoices = new ArrayList<>();
-
-                    for (int i = 0; i < messages.length; i++) {
-                        // Check for cancellation
-                        if (Thread.currentThread().isInterrupted()) {
-                            throw new InterruptedException("Task cancelled");
-                        }
+                    folderRun = new FolderRun(folder, messages.length);
+                } catch (Exception e) {
+                    LOGGER.log(Level.WARNING, "Error processing folder " + folder.getFullName(), e);
+                    continue;
+                }
 
-                        try {
-                            Message message = messages[i];
-                            List<Invoice> messageInvoices = processMessage(message, callback);
-
-                            if (!messageInvoices.isEmpty()) {
-                                // Save invoices to hierarchical folders only, skip domain folders for now
-                                storage.saveInvoicesToFolders(messageInvoices, false);
-
-                                // Add to the all invoices list for later domain processing
-                                allInvoices.addAll(messageInvoices);
-
-                                // Keep track of invoices for statistics
-                                folderInvoices.addAll(messageInvoices);
-                                folderInvoicesCount += messageInvoices.size();
-                                totalInvoicesFound += messageInvoices.size();
-                            }
-
-                            // Update progress periodically
-                            if (i % 10 == 0 || i == messages.length - 1) {
-                                int folderProgress = 20 + (70 * processedFolders / foldersWithMessages)
-                                        + (70 * i / (Math.max(1, messages.length) * foldersWithMessages));
-                                callback.update(Math.min(90, folderProgress),
-                                        "Processed " + (i + 1) + "/" + messages.length + " in folder "
-                                                + folder.getFullName() + ", found " + totalInvoicesFound + " invoices");
-                            }
-                        } catch (Exception e) {
-                            LOGGER.log(Level.WARNING, "Error processing message: " + e.getMessage(), e);
-                        }
+                if (messages.length == 0) {
+                    synchronized (run) {
+                        finishFolder(folderRun, run);
                     }
+                    continue;
+                }
 
-                    // Store folder statistics
-                    if (!folderInvoices.isEmpty()) {
-                        statistics.put(folder.getFullName(), folderInvoices);
+                for (int i = 0; i < messages.length; i++) {
+                    // Check for cancellation
+                    if (Thread.currentThread().isInterrupted()) {
+                        throw new InterruptedException("Task cancelled");
                     }
 
-                    folder.close(false);
-                    processedFolders++;
-
-                } catch (Exception e) {
-                    LOGGER.log(Level.WARNING, "Error processing folder " + folder.getFullName(), e);
+                    // Waits while the pipeline is full
+                    pipeline.submit(new PendingMessage(folderRun, i, submitted++), messages[i]);
                 }
             }
 
+            // Wait for the remaining messages
+            pipeline.finish();
+            int totalInvoicesFound = run.totalInvoicesFound;
+            List<Invoice> allInvoices = run.allInvoices;
+            LOGGER.info("Parsed " + run.parsedMessages + " new or changed messages, reused the results of "
+                    + run.unchangedMessages + " unchanged messages");
+            LOGGER.info(PdfExtractionService.getDefault().getStatistics());
+
+            // Forget messages that no longer exist
+            ledger.retain(processedMessageIds);
+            enrichmentQueue.retain(processedMessageIds);
+            LOGGER.info(enrichmentQueue.size() + " message parts wait for Ollama enrichment");
+
             // Step 4: Process domain-based organization with all collected invoices
             callback.update(90, "Generating reports and domain-based tax organization...");
 
@@ -234,7 +289,8 @@ public class EnhancedInvoiceProcessor extends BackgroundTask {
             String reportResult = reportGenerator.generateReports(allInvoicesForReport, config.getOutputDirectory());
 
             callback.update(100, "Completed: " + reportResult);
-            return "Found " + totalInvoicesFound + " invoices. " + reportResult +
+            return "Found " + totalInvoicesFound + " invoices (" + run.parsedMessages + " messages parsed, "
+                    + run.unchangedMessages + " unchanged). " + reportResult +
                     "\nDomain-based tax reports created in " +
                     config.getOutputDirectory().getPath() + File.separator + "DomainTaxReports";
 
@@ -244,6 +300,15 @@ public class EnhancedInvoiceProcessor extends BackgroundTask {
             LOGGER.log(Level.SEVERE, "Error processing invoices", e);
             return "Error processing invoices: " + e.getMessage();
         } finally {
+            // Stop the pipeline of a cancelled or failed run
+            if (pipeline != null) {
+                pipeline.cancel();
+            }
+
+            // Keep the results of this run, also of a cancelled one
+            ledger.save();
+            enrichmentQueue.save();
+
             // Close the store if it was opened
             if (store != null) {
                 try {
@@ -256,11 +321,268 @@ public class EnhancedInvoiceProcessor extends BackgroundTask {
     }
 
     /**
-     * Process a message to extract invoice information
-     * This is the main entry point for message processing that delegates to the parser
+     * Get the throughput and queue depth of the pipeline stages of the current or last run,
+     * followed by the PDF extraction statistics
+     *
+     * @return One line per stage and one for PDF extraction
+     */
+    @Override
+    public List<String> getMetrics() {
+        InvoicePipeline<?> pipeline = currentPipeline;
+        if (pipeline == null) {
+            return Collections.emptyList();
+        }
+        List<String> metrics = pipeline.getMetrics();
+        metrics.add(PdfExtractionService.getDefault().getStatistics());
+        return metrics;
+    }
+
+    /**
+     * Give the message parts the patterns could not parse to Ollama and merge the resulting invoices
+     * into the stored results. Parts stay queued while Ollama is not reachable.
+     * Runs independently of {@link #execute}, the new invoices are part of the reports from the next run on.
+     *
+     * @param callback Callback for reporting progress and status messages
+     * @return Status message that will be displayed on completion
+     * @throws InterruptedException if the task is cancelled
+     */
+    public String enrichQueued(ProgressStatusCallback callback) throws InterruptedException {
+        List<LLMEnrichmentQueue.Item> items = enrichmentQueue.snapshot();
+        if (items.isEmpty()) {
+            callback.update(100, "No message parts waiting for Ollama");
+            return "No message parts waiting for Ollama";
+        }
+        if (!config.isUseOllamaFallback()) {
+            return "Ollama is disabled, " + items.size() + " message parts waiting";
+        }
+        OllamaInvokeService ollama = OllamaInvokeService.getInstance(config.getOllamaHost());
+        if (!ollama.isAvailable()) {
+            return "Ollama is not available at " + config.getOllamaHost() + ", " + items.size() + " message parts waiting";
+        }
+
+        callback.update(0, "Sending " + items.size() + " message parts to Ollama");
+        ExecutorService executor = Executors.newFixedThreadPool(config.getOllamaThreads());
+        CompletionService<Boolean> completion = new ExecutorCompletionService<>(executor);
+        int enriched = 0;
+        int done = 0;
+        try {
+            for (LLMEnrichmentQueue.Item item : items) {
+                completion.submit(() -> enrich(item, ollama));
+            }
+            for (int i = 0; i < items.size(); i++) {
+                Boolean merged;
+                try {
+                    merged = completion.take().get();
+                } catch (ExecutionException e) {
+                    LOGGER.log(Level.WARNING, "Ollama enrichment failed: " + e.getCause().getMessage(), e.getCause());
+                    continue;
+                }
+                if (merged == null) {
+                    continue; // Ollama went away, the part stays queued
+                }
+                done++;
+                if (merged) {
+                    enriched++;
+                }
+                callback.update(100 * (i + 1) / items.size(), "Ollama enriched " + enriched + " of " + done
+                        + " message parts, " + (items.size() - i - 1) + " left");
+                if (done % ENRICHMENT_CHECKPOINT_INTERVAL == 0) {
+                    ledger.save();
+                    enrichmentQueue.save();
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+            ledger.save();
+            enrichmentQueue.save();
+        }
+
+        LOGGER.info(ollama.getStatistics());
+        return "Ollama found invoices in " + enriched + " of " + done + " message parts, "
+                + enrichmentQueue.size() + " still waiting";
+    }
+
+    /**
+     * Get the size of the enrichment queue, the Ollama request statistics and the response cache statistics
+     *
+     * @return The status lines
+     */
+    public List<String> getEnrichmentMetrics() {
+        List<String> metrics = new ArrayList<>();
+        metrics.add("Ollama enrichment: " + enrichmentQueue.size() + " message parts waiting");
+        if (config.isUseOllamaFallback()) {
+            metrics.add(OllamaInvokeService.getInstance(config.getOllamaHost()).getStatistics());
+        }
+        metrics.addAll(Arrays.asList(parser.getLLMCacheStats().split("\n")));
+        return metrics;
+    }
+
+    /**
+     * Parse one queued part with Ollama and merge the invoices it yields into the ledger and the invoice folders
+     *
+     * @return true if invoices were merged, false if there were none or the message changed meanwhile,
+     * null if Ollama is not available or the task was cancelled and the part stays queued
+     */
+    private Boolean enrich(LLMEnrichmentQueue.Item item, OllamaInvokeService ollama) {
+        if (!ollama.isAvailable()) {
+            return null;
+        }
+        InvoiceParser.ContentPart part = InvoiceParser.ContentPart.ofText(item.getInvoice(), item.getText());
+        parser.enrich(part);
+        List<Invoice> invoices = parser.collect(Collections.singletonList(part));
+        if (invoices.isEmpty() && (Thread.currentThread().isInterrupted() || !ollama.isAvailable())) {
+            return null;
+        }
+
+        boolean merged = !invoices.isEmpty()
+                && ledger.addInvoices(item.getMessageId(), item.getFingerprint(), item.getVersion(), invoices);
+        if (merged) {
+            synchronized (storage) {
+                storage.saveInvoicesToFolders(invoices, false);
+            }
+        }
+        enrichmentQueue.remove(item);
+        return merged;
+    }
+
+    /**
+     * State of one processing run, updated by the pipeline's store thread while holding its lock
+     */
+    private static class ProcessingRun {
+        final ProgressStatusCallback callback;
+        final int foldersWithMessages;
+        final String resultsVersion;
+        final List<Invoice> allInvoices = new ArrayList<>();
+        int totalInvoicesFound = 0;
+        int parsedMessages = 0;
+        int unchangedMessages = 0;
+        volatile int processedFolders = 0;
+
+        ProcessingRun(ProgressStatusCallback callback, int foldersWithMessages, String resultsVersion) {
+            this.callback = callback;
+            this.foldersWithMessages = foldersWithMessages;
+            this.resultsVersion = resultsVersion;
+        }
+    }
+
+    /**
+     * An open folder whose messages are being processed
+     */
+    private static class FolderRun {
+        final Folder folder;
+        final int messageCount;
+        final List<Invoice> invoices = new ArrayList<>();
+        int consumed = 0;
+
+        FolderRun(Folder folder, int messageCount) {
+            this.folder = folder;
+            this.messageCount = messageCount;
+        }
+    }
+
+    /**
+     * A message submitted for processing
+     */
+    private static class PendingMessage {
+        final FolderRun folder;
+        final int index;
+        final long sequence;
+
+        // Set by the read stage
+        String messageId;
+        String fingerprint;
+        boolean parsed;
+
+        PendingMessage(FolderRun folder, int index, long sequence) {
+            this.folder = folder;
+            this.index = index;
+            this.sequence = sequence;
+        }
+    }
+
+    /**
+     * Store the invoices of a message and finish its folder after the last message
+     */
+    private void consume(PendingMessage pendingMessage, List<Invoice> messageInvoices,
+                         List<InvoiceParser.ContentPart> unparsed, ProcessingRun run) {
+        synchronized (run) {
+            FolderRun folderRun = pendingMessage.folder;
+            try {
+                // The first submitted copy of a message wins, whichever read thread got to it first
+                if (pendingMessage.messageId != null && !processedMessageIds.add(pendingMessage.messageId)) {
+                    messageInvoices = Collections.emptyList();
+                } else if (pendingMessage.parsed) {
+                    ledger.put(pendingMessage.messageId, pendingMessage.fingerprint, run.resultsVersion, messageInvoices);
+                    enrichmentQueue.put(pendingMessage.messageId, pendingMessage.fingerprint, run.resultsVersion, unparsed);
+                    if (++run.parsedMessages % LEDGER_CHECKPOINT_INTERVAL == 0) {
+                        ledger.save();
+                        enrichmentQueue.save();
+                    }
+                } else if (pendingMessage.fingerprint != null) {
+                    run.unchangedMessages++;
+                }
+
+                if (!messageInvoices.isEmpty()) {
+                    // Save invoices to hierarchical folders only, skip domain folders for now.
+                    // The invoices of unchanged messages were saved by an earlier run.
+                    if (pendingMessage.parsed) {
+                        synchronized (storage) {
+                            storage.saveInvoicesToFolders(messageInvoices, false);
+                        }
+                    }
+
+                    // Add to the all invoices list for later domain processing
+                    run.allInvoices.addAll(messageInvoices);
+
+                    // Keep track of invoices for statistics
+                    folderRun.invoices.addAll(messageInvoices);
+                    run.totalInvoicesFound += messageInvoices.size();
+                }
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, "Error storing invoices: " + e.getMessage(), e);
+            }
+
+            // Update progress periodically
+            int i = pendingMessage.index;
+            if (i % 10 == 0 || i == folderRun.messageCount - 1) {
+                int folderProgress = 20 + (70 * run.processedFolders / run.foldersWithMessages)
+                        + (70 * i / (Math.max(1, folderRun.messageCount) * run.foldersWithMessages));
+                run.callback.update(Math.min(90, folderProgress),
+                        "Processed " + (i + 1) + "/" + folderRun.messageCount + " in folder "
+                                + folderRun.folder.getFullName() + ", found " + run.totalInvoicesFound + " invoices");
+            }
+
+            folderRun.consumed++;
+            if (folderRun.consumed == folderRun.messageCount) {
+                finishFolder(folderRun, run);
+            }
+        }
+    }
+
+    /**
+     * Record the statistics of a folder whose messages are all processed and close it
      */
-    private List<Invoice> processMessage(Message message, ProgressStatusCallback callback)
-            throws MessagingException, IOException {
+    private void finishFolder(FolderRun folderRun, ProcessingRun run) {
+        // Store folder statistics
+        if (!folderRun.invoices.isEmpty()) {
+            statistics.put(folderRun.folder.getFullName(), folderRun.invoices);
+        }
+
+        try {
+            folderRun.folder.close(false);
+        } catch (MessagingException e) {
+            LOGGER.log(Level.WARNING, "Error closing folder " + folderRun.folder.getFullName(), e);
+        }
+        run.processedFolders++;
+    }
+
+    /**
+     * Identify a message and get its results from the ledger if it has not changed since it was parsed
+     *
+     * @return The recorded invoices, an empty list for a duplicate, or null if the message has to be parsed
+     */
+    private List<Invoice> lookupMessage(PendingMessage context, Message message, String resultsVersion)
+            throws MessagingException {
 
         // Check for duplicates using Message-ID
         String messageId = MessageUtils.getMessageId(message);
@@ -268,15 +590,24 @@ public class EnhancedInvoiceProcessor extends BackgroundTask {
             // Create a hash-based ID if no Message-ID exists
             messageId = MessageUtils.createMessageHash(message);
         }
+        context.messageId = messageId;
 
-        // Skip if already processed
-        if (processedMessageIds.contains(messageId)) {
+        // Skip the message if an earlier submitted copy was read in this run; the store thread
+        // makes the final decision, as the read threads see the copies in any order
+        if (messageIdClaims.merge(messageId, context.sequence, Math::min) < context.sequence) {
             return Collections.emptyList();
         }
 
-        // Mark as processed
-        processedMessageIds.add(messageId);
+        context.fingerprint = ProcessedMessageLedger.fingerprint(message);
+        List<Invoice> recorded = ledger.get(messageId, context.fingerprint, resultsVersion);
+        context.parsed = recorded == null;
+        return recorded;
+    }
 
+    /**
+     * Create the base invoice of a message for the parser
+     */
+    private Invoice prepareMessage(Message message, String messageId) throws MessagingException {
         // Create a base invoice with common properties
         Invoice baseInvoice;
         try {
@@ -315,8 +646,7 @@ public class EnhancedInvoiceProcessor extends BackgroundTask {
             }
         }
 
-        // Delegate to the parser for comprehensive processing
-        return parser.parseMessage(message, baseInvoice);
+        return baseInvoice;
     }
 
     /**
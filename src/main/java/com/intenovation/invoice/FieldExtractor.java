@@ -0,0 +1,189 @@
+package com.intenovation.invoice;
+
+import com.intenovation.email.utils.KeywordAutomaton;
+
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Finds labeled values such as amounts and invoice numbers. Each rule stands for a regular expression
+ * {@code (?i)(label1|label2|...)value} whose second group is the value. Instead of running every rule
+ * over the whole text, one scan with a {@link KeywordAutomaton} finds where the labels start, and only
+ * there the label and value are matched, anchored. Candidates are tried in the order a
+ * {@link Matcher#find()} over the rule's expression would try them, so the results are the same.
+ */
+public class FieldExtractor {
+
+    /**
+     * Collects the rules of an extractor
+     */
+    public static class Builder {
+        private final List<Rule> rules = new ArrayList<>();
+
+        /**
+         * Add a rule
+         *
+         * @param value Expression following the label, with the value in its first group
+         * @param labels Label expressions in priority order; each has to start with a literal character
+         * @return The rule's number, used with {@link Scan#find(int)}
+         */
+        public int addRule(String value, String... labels) {
+            rules.add(new Rule(value, labels));
+            return rules.size() - 1;
+        }
+
+        public FieldExtractor build() {
+            return new FieldExtractor(rules);
+        }
+    }
+
+    /**
+     * One {@code (?i)(label1|label2|...)value} expression, with one anchored pattern per label
+     */
+    private static class Rule {
+        final String[] labels;
+        final Pattern[] alternatives;
+
+        Rule(String value, String[] labels) {
+            this.labels = labels;
+            alternatives = new Pattern[labels.length];
+            for (int i = 0; i < labels.length; i++) {
+                alternatives[i] = Pattern.compile("(?i)(" + labels[i] + ")" + value);
+            }
+        }
+    }
+
+    private final List<Rule> rules;
+    private final KeywordAutomaton automaton;
+
+    // For each keyword of the automaton: the rules and alternatives whose label starts with it
+    private final int[][] keywordRules;
+    private final int[][] keywordAlternatives;
+
+    private FieldExtractor(List<Rule> rules) {
+        this.rules = new ArrayList<>(rules);
+
+        // Labels with the same literal prefix share one keyword
+        Map<String, Integer> keywordIndex = new LinkedHashMap<>();
+        List<List<int[]>> uses = new ArrayList<>();
+        for (int r = 0; r < rules.size(); r++) {
+            for (int a = 0; a < rules.get(r).labels.length; a++) {
+                String prefix = literalPrefix(rules.get(r).labels[a]);
+                Integer index = keywordIndex.get(prefix);
+                if (index == null) {
+                    index = keywordIndex.size();
+                    keywordIndex.put(prefix, index);
+                    uses.add(new ArrayList<>());
+                }
+                uses.get(index).add(new int[]{r, a});
+            }
+        }
+
+        automaton = new KeywordAutomaton(new ArrayList<>(keywordIndex.keySet()), KeywordAutomaton.CaseFolding.ASCII);
+        keywordRules = new int[uses.size()][];
+        keywordAlternatives = new int[uses.size()][];
+        for (int k = 0; k < uses.size(); k++) {
+            keywordRules[k] = new int[uses.get(k).size()];
+            keywordAlternatives[k] = new int[uses.get(k).size()];
+            for (int i = 0; i < uses.get(k).size(); i++) {
+                keywordRules[k][i] = uses.get(k).get(i)[0];
+                keywordAlternatives[k][i] = uses.get(k).get(i)[1];
+            }
+        }
+    }
+
+    /**
+     * Find the label candidates of all rules in a text
+     *
+     * @param text The text
+     * @return The candidates, from which the values are matched on demand
+     */
+    public Scan scan(String text) {
+        Scan scan = new Scan(text);
+        automaton.scan(text, (keyword, start, end) -> {
+            for (int i = 0; i < keywordRules[keyword].length; i++) {
+                scan.add(keywordRules[keyword][i], start, keywordAlternatives[keyword][i]);
+            }
+        });
+        return scan;
+    }
+
+    /**
+     * Label candidates of one text
+     */
+    public class Scan {
+        private final String text;
+
+        // Per rule: candidates encoded as start << 16 | alternative
+        private final long[][] candidates = new long[rules.size()][];
+        private final int[] counts = new int[rules.size()];
+
+        private Scan(String text) {
+            this.text = text;
+        }
+
+        private void add(int rule, int start, int alternative) {
+            long[] list = candidates[rule];
+            if (list == null) {
+                list = candidates[rule] = new long[8];
+            } else if (counts[rule] == list.length) {
+                list = candidates[rule] = Arrays.copyOf(list, list.length * 2);
+            }
+            list[counts[rule]++] = ((long) start << 16) | alternative;
+        }
+
+        /**
+         * Get the value of the first match of a rule: the leftmost label position at which a label
+         * and the value match, and at that position the first label in priority order
+         *
+         * @param rule The rule's number
+         * @return The value, or null if the rule does not match
+         */
+        public String find(int rule) {
+            long[] list = candidates[rule];
+            if (list == null) {
+                return null;
+            }
+            Arrays.sort(list, 0, counts[rule]);
+            Pattern[] alternatives = rules.get(rule).alternatives;
+            for (int i = 0; i < counts[rule]; i++) {
+                int start = (int) (list[i] >>> 16);
+                Matcher matcher = alternatives[(int) (list[i] & 0xFFFF)].matcher(text);
+                matcher.region(start, text.length());
+                if (matcher.lookingAt()) {
+                    return matcher.group(2);
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Get the literal text every match of a label expression starts with
+     */
+    static String literalPrefix(String label) {
+        StringBuilder prefix = new StringBuilder();
+        for (int i = 0; i < label.length(); i++) {
+            char c = label.charAt(i);
+            int next = i + 1;
+            if (c == '\\') {
+                if (next >= label.length() || Character.isLetterOrDigit(label.charAt(next))) {
+                    break; // Character class such as \s
+                }
+                c = label.charAt(next++);
+            } else if (".[]{}()*+?^$|".indexOf(c) >= 0) {
+                break;
+            }
+            if (next < label.length() && "*+?{".indexOf(label.charAt(next)) >= 0) {
+                break; // The character is optional or repeated
+            }
+            prefix.append(c);
+            i = next - 1;
+        }
+        if (prefix.length() == 0) {
+            throw new IllegalArgumentException("Label does not start with a literal character: " + label);
+        }
+        return prefix.toString();
+    }
+}
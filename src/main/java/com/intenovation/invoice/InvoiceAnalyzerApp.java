@@ -124,6 +124,28 @@ public class InvoiceAnalyzerApp {
         }
     }
 
+    /**
+     * Parse all messages again, ignoring the results of earlier runs
+     */
+    public void reprocessAllInvoicesNow() {
+        if (systemTrayApp != null) {
+            systemTrayApp.startTask("Reprocess All Invoices");
+        } else {
+            LOGGER.warning("Cannot reprocess invoices: systemTrayApp is not set");
+        }
+    }
+
+    /**
+     * Give the message parts the patterns could not parse to Ollama now
+     */
+    public void runLLMEnrichmentNow() {
+        if (systemTrayApp != null) {
+            systemTrayApp.startTask("LLM Enrichment");
+        } else {
+            LOGGER.warning("Cannot run LLM enrichment: systemTrayApp is not set");
+        }
+    }
+
     /**
      * Show the configuration dialog
      */
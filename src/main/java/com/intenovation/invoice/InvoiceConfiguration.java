@@ -1,6 +1,7 @@
 package com.intenovation.invoice;
 
 import com.intenovation.appfw.config.*;
+import com.intenovation.email.utils.PdfExtractionService;
 
 import java.io.File;
 import java.io.FileInputStream;
@@ -26,6 +27,14 @@ public class InvoiceConfiguration implements ConfigurationDefinition {
     private File outputDirectory = new File(System.getProperty("user.home"), "InvoiceReports");
     private int processingIntervalHours = 2;
     private boolean automaticProcessing = true;
+    private int processingThreads = Runtime.getRuntime().availableProcessors();
+    private int readThreads = 2;
+    private int ollamaThreads = 2;
+    private int pipelineQueueCapacity = 16;
+    private int pdfThreads = PdfExtractionService.DEFAULT_THREADS;
+    private int pdfMaxPages = PdfExtractionService.DEFAULT_MAX_PAGES;
+    private int pdfTimeLimitSeconds = PdfExtractionService.DEFAULT_TIME_LIMIT_SECONDS;
+    private int pdfMemoryMegabytes = PdfExtractionService.DEFAULT_MEMORY_MEGABYTES;
 
     // Ollama configuration
     private boolean useOllamaFallback = true;
@@ -33,6 +42,8 @@ public class InvoiceConfiguration implements ConfigurationDefinition {
     private String ollamaModel = "llama3.2";
     private int ollamaMaxTokens = 4096;
     private int ollamaTimeoutSeconds = 300; // 5 minutes timeout
+    private String ollamaWarmStartModels = "";
+    private int llmCacheMaxMegabytes = 1024;
 
     /**
      * Create a new InvoiceConfiguration
@@ -74,6 +85,15 @@ public class InvoiceConfiguration implements ConfigurationDefinition {
         String interval = getProcessingIntervalDisplay();
 
         items.add(new DropdownConfigItem("processingInterval", "Process invoices every", interval, intervals));
+        items.add(new NumberConfigItem("readThreads", "Message Reading Threads", readThreads));
+        items.add(new NumberConfigItem("processingThreads", "Text Extraction and Parsing Threads", processingThreads));
+        items.add(new NumberConfigItem("pipelineQueueCapacity", "Messages Queued per Processing Stage", pipelineQueueCapacity));
+
+        // PDF extraction settings
+        items.add(new NumberConfigItem("pdfThreads", "PDF Extraction Threads", pdfThreads));
+        items.add(new NumberConfigItem("pdfMaxPages", "Max PDF Pages Read per Document", pdfMaxPages));
+        items.add(new NumberConfigItem("pdfTimeLimitSeconds", "PDF Time Limit per Document (seconds)", pdfTimeLimitSeconds));
+        items.add(new NumberConfigItem("pdfMemoryMegabytes", "PDF Memory per Document before Temp File (MB)", pdfMemoryMegabytes));
 
         // Ollama settings
         items.add(new CheckboxConfigItem("useOllamaFallback", "Use Ollama when rule-based parsing fails", useOllamaFallback));
@@ -81,6 +101,9 @@ public class InvoiceConfiguration implements ConfigurationDefinition {
         items.add(new TextConfigItem("ollamaModel", "Ollama Model Name", ollamaModel));
         items.add(new NumberConfigItem("ollamaMaxTokens", "Max Response Tokens", ollamaMaxTokens));
         items.add(new NumberConfigItem("ollamaTimeoutSeconds", "API Timeout (seconds)", ollamaTimeoutSeconds));
+        items.add(new NumberConfigItem("ollamaThreads", "Concurrent Ollama Requests", ollamaThreads));
+        items.add(new TextConfigItem("ollamaWarmStartModels", "Reuse Cached Answers of Models (comma-separated)", ollamaWarmStartModels));
+        items.add(new NumberConfigItem("llmCacheMaxMegabytes", "Max Ollama Response Cache Size (MB)", llmCacheMaxMegabytes));
 
         return items;
     }
@@ -109,6 +132,34 @@ public class InvoiceConfiguration implements ConfigurationDefinition {
             this.processingIntervalHours = parseProcessingInterval(processingIntervalStr);
         }
 
+        if (configValues.get("processingThreads") instanceof Number) {
+            this.processingThreads = Math.max(1, ((Number) configValues.get("processingThreads")).intValue());
+        }
+
+        if (configValues.get("readThreads") instanceof Number) {
+            this.readThreads = Math.max(1, ((Number) configValues.get("readThreads")).intValue());
+        }
+
+        if (configValues.get("pipelineQueueCapacity") instanceof Number) {
+            this.pipelineQueueCapacity = Math.max(1, ((Number) configValues.get("pipelineQueueCapacity")).intValue());
+        }
+
+        if (configValues.get("pdfThreads") instanceof Number) {
+            this.pdfThreads = Math.max(1, ((Number) configValues.get("pdfThreads")).intValue());
+        }
+
+        if (configValues.get("pdfMaxPages") instanceof Number) {
+            this.pdfMaxPages = Math.max(1, ((Number) configValues.get("pdfMaxPages")).intValue());
+        }
+
+        if (configValues.get("pdfTimeLimitSeconds") instanceof Number) {
+            this.pdfTimeLimitSeconds = Math.max(1, ((Number) configValues.get("pdfTimeLimitSeconds")).intValue());
+        }
+
+        if (configValues.get("pdfMemoryMegabytes") instanceof Number) {
+            this.pdfMemoryMegabytes = Math.max(1, ((Number) configValues.get("pdfMemoryMegabytes")).intValue());
+        }
+
         // Apply Ollama settings
         if (configValues.get("useOllamaFallback") instanceof Boolean) {
             this.useOllamaFallback = (Boolean) configValues.get("useOllamaFallback");
@@ -130,6 +181,18 @@ public class InvoiceConfiguration implements ConfigurationDefinition {
             this.ollamaTimeoutSeconds = ((Number) configValues.get("ollamaTimeoutSeconds")).intValue();
         }
 
+        if (configValues.get("ollamaThreads") instanceof Number) {
+            this.ollamaThreads = Math.max(1, ((Number) configValues.get("ollamaThreads")).intValue());
+        }
+
+        if (configValues.get("ollamaWarmStartModels") instanceof String) {
+            this.ollamaWarmStartModels = ((String) configValues.get("ollamaWarmStartModels")).trim();
+        }
+
+        if (configValues.get("llmCacheMaxMegabytes") instanceof Number) {
+            this.llmCacheMaxMegabytes = Math.max(1, ((Number) configValues.get("llmCacheMaxMegabytes")).intValue());
+        }
+
         // Save to file
         saveConfiguration();
 
@@ -150,6 +213,13 @@ public class InvoiceConfiguration implements ConfigurationDefinition {
         values.put("outputDirectory", outputDirectory);
         values.put("automaticProcessing", automaticProcessing);
         values.put("processingInterval", getProcessingIntervalDisplay());
+        values.put("processingThreads", processingThreads);
+        values.put("readThreads", readThreads);
+        values.put("pipelineQueueCapacity", pipelineQueueCapacity);
+        values.put("pdfThreads", pdfThreads);
+        values.put("pdfMaxPages", pdfMaxPages);
+        values.put("pdfTimeLimitSeconds", pdfTimeLimitSeconds);
+        values.put("pdfMemoryMegabytes", pdfMemoryMegabytes);
 
         // Ollama settings
         values.put("useOllamaFallback", useOllamaFallback);
@@ -157,6 +227,9 @@ public class InvoiceConfiguration implements ConfigurationDefinition {
         values.put("ollamaModel", ollamaModel);
         values.put("ollamaMaxTokens", ollamaMaxTokens);
         values.put("ollamaTimeoutSeconds", ollamaTimeoutSeconds);
+        values.put("ollamaThreads", ollamaThreads);
+        values.put("ollamaWarmStartModels", ollamaWarmStartModels);
+        values.put("llmCacheMaxMegabytes", llmCacheMaxMegabytes);
 
         return values;
     }
@@ -195,6 +268,69 @@ public class InvoiceConfiguration implements ConfigurationDefinition {
                     }
                 }
 
+                String processingThreadsStr = props.getProperty("processing.threads");
+                if (processingThreadsStr != null && !processingThreadsStr.isEmpty()) {
+                    try {
+                        processingThreads = Math.max(1, Integer.parseInt(processingThreadsStr));
+                    } catch (NumberFormatException e) {
+                        LOGGER.log(Level.WARNING, "Invalid processing threads in config: " + processingThreadsStr, e);
+                    }
+                }
+
+                String readThreadsStr = props.getProperty("pipeline.read.threads");
+                if (readThreadsStr != null && !readThreadsStr.isEmpty()) {
+                    try {
+                        readThreads = Math.max(1, Integer.parseInt(readThreadsStr));
+                    } catch (NumberFormatException e) {
+                        LOGGER.log(Level.WARNING, "Invalid read threads in config: " + readThreadsStr, e);
+                    }
+                }
+
+                String pipelineQueueCapacityStr = props.getProperty("pipeline.queue.capacity");
+                if (pipelineQueueCapacityStr != null && !pipelineQueueCapacityStr.isEmpty()) {
+                    try {
+                        pipelineQueueCapacity = Math.max(1, Integer.parseInt(pipelineQueueCapacityStr));
+                    } catch (NumberFormatException e) {
+                        LOGGER.log(Level.WARNING, "Invalid pipeline queue capacity in config: " + pipelineQueueCapacityStr, e);
+                    }
+                }
+
+                String pdfThreadsStr = props.getProperty("pdf.threads");
+                if (pdfThreadsStr != null && !pdfThreadsStr.isEmpty()) {
+                    try {
+                        pdfThreads = Math.max(1, Integer.parseInt(pdfThreadsStr));
+                    } catch (NumberFormatException e) {
+                        LOGGER.log(Level.WARNING, "Invalid PDF threads in config: " + pdfThreadsStr, e);
+                    }
+                }
+
+                String pdfMaxPagesStr = props.getProperty("pdf.max.pages");
+                if (pdfMaxPagesStr != null && !pdfMaxPagesStr.isEmpty()) {
+                    try {
+                        pdfMaxPages = Math.max(1, Integer.parseInt(pdfMaxPagesStr));
+                    } catch (NumberFormatException e) {
+                        LOGGER.log(Level.WARNING, "Invalid PDF page limit in config: " + pdfMaxPagesStr, e);
+                    }
+                }
+
+                String pdfTimeLimitSecondsStr = props.getProperty("pdf.time.limit.seconds");
+                if (pdfTimeLimitSecondsStr != null && !pdfTimeLimitSecondsStr.isEmpty()) {
+                    try {
+                        pdfTimeLimitSeconds = Math.max(1, Integer.parseInt(pdfTimeLimitSecondsStr));
+                    } catch (NumberFormatException e) {
+                        LOGGER.log(Level.WARNING, "Invalid PDF time limit in config: " + pdfTimeLimitSecondsStr, e);
+                    }
+                }
+
+                String pdfMemoryMegabytesStr = props.getProperty("pdf.memory.mb");
+                if (pdfMemoryMegabytesStr != null && !pdfMemoryMegabytesStr.isEmpty()) {
+                    try {
+                        pdfMemoryMegabytes = Math.max(1, Integer.parseInt(pdfMemoryMegabytesStr));
+                    } catch (NumberFormatException e) {
+                        LOGGER.log(Level.WARNING, "Invalid PDF memory in config: " + pdfMemoryMegabytesStr, e);
+                    }
+                }
+
                 // Load Ollama settings
                 String useOllamaFallbackStr = props.getProperty("use.ollama.fallback");
                 if (useOllamaFallbackStr != null) {
@@ -228,6 +364,29 @@ public class InvoiceConfiguration implements ConfigurationDefinition {
                         LOGGER.log(Level.WARNING, "Invalid Ollama timeout in config: " + ollamaTimeoutSecondsStr, e);
                     }
                 }
+
+                String ollamaThreadsStr = props.getProperty("ollama.threads");
+                if (ollamaThreadsStr != null && !ollamaThreadsStr.isEmpty()) {
+                    try {
+                        ollamaThreads = Math.max(1, Integer.parseInt(ollamaThreadsStr));
+                    } catch (NumberFormatException e) {
+                        LOGGER.log(Level.WARNING, "Invalid Ollama threads in config: " + ollamaThreadsStr, e);
+                    }
+                }
+
+                String ollamaWarmStartModelsStr = props.getProperty("ollama.warm.start.models");
+                if (ollamaWarmStartModelsStr != null) {
+                    ollamaWarmStartModels = ollamaWarmStartModelsStr.trim();
+                }
+
+                String llmCacheMaxMegabytesStr = props.getProperty("llm.cache.max.mb");
+                if (llmCacheMaxMegabytesStr != null && !llmCacheMaxMegabytesStr.isEmpty()) {
+                    try {
+                        llmCacheMaxMegabytes = Math.max(1, Integer.parseInt(llmCacheMaxMegabytesStr));
+                    } catch (NumberFormatException e) {
+                        LOGGER.log(Level.WARNING, "Invalid LLM cache size in config: " + llmCacheMaxMegabytesStr, e);
+                    }
+                }
             } catch (IOException e) {
                 LOGGER.log(Level.WARNING, "Error loading configuration", e);
             }
@@ -242,6 +401,13 @@ public class InvoiceConfiguration implements ConfigurationDefinition {
         props.setProperty("output.directory", outputDirectory.getAbsolutePath());
         props.setProperty("automatic.processing", String.valueOf(automaticProcessing));
         props.setProperty("processing.interval.hours", String.valueOf(processingIntervalHours));
+        props.setProperty("processing.threads", String.valueOf(processingThreads));
+        props.setProperty("pipeline.read.threads", String.valueOf(readThreads));
+        props.setProperty("pipeline.queue.capacity", String.valueOf(pipelineQueueCapacity));
+        props.setProperty("pdf.threads", String.valueOf(pdfThreads));
+        props.setProperty("pdf.max.pages", String.valueOf(pdfMaxPages));
+        props.setProperty("pdf.time.limit.seconds", String.valueOf(pdfTimeLimitSeconds));
+        props.setProperty("pdf.memory.mb", String.valueOf(pdfMemoryMegabytes));
 
         // Save Ollama settings
         props.setProperty("use.ollama.fallback", String.valueOf(useOllamaFallback));
@@ -249,6 +415,9 @@ public class InvoiceConfiguration implements ConfigurationDefinition {
         props.setProperty("ollama.model", ollamaModel);
         props.setProperty("ollama.max.tokens", String.valueOf(ollamaMaxTokens));
         props.setProperty("ollama.timeout.seconds", String.valueOf(ollamaTimeoutSeconds));
+        props.setProperty("ollama.threads", String.valueOf(ollamaThreads));
+        props.setProperty("ollama.warm.start.models", ollamaWarmStartModels);
+        props.setProperty("llm.cache.max.mb", String.valueOf(llmCacheMaxMegabytes));
 
         try (FileOutputStream fos = new FileOutputStream(CONFIG_FILE)) {
             props.store(fos, "Invoice Analyzer Configuration");
@@ -286,6 +455,15 @@ public class InvoiceConfiguration implements ConfigurationDefinition {
     public File getOutputDirectory() { return outputDirectory; }
     public int getProcessingIntervalHours() { return processingIntervalHours; }
     public boolean isAutomaticProcessing() { return automaticProcessing; }
+    public int getProcessingThreads() { return processingThreads; }
+    public int getReadThreads() { return readThreads; }
+    public int getPipelineQueueCapacity() { return pipelineQueueCapacity; }
+
+    // Getters for PDF extraction
+    public int getPdfThreads() { return pdfThreads; }
+    public int getPdfMaxPages() { return pdfMaxPages; }
+    public int getPdfTimeLimitSeconds() { return pdfTimeLimitSeconds; }
+    public int getPdfMemoryMegabytes() { return pdfMemoryMegabytes; }
 
     // Getters for Ollama configuration
     public boolean isUseOllamaFallback() { return useOllamaFallback; }
@@ -293,4 +471,7 @@ public class InvoiceConfiguration implements ConfigurationDefinition {
     public String getOllamaModel() { return ollamaModel; }
     public int getOllamaMaxTokens() { return ollamaMaxTokens; }
     public int getOllamaTimeoutSeconds() { return ollamaTimeoutSeconds; }
+    public int getOllamaThreads() { return ollamaThreads; }
+    public String getOllamaWarmStartModels() { return ollamaWarmStartModels; }
+    public int getLlmCacheMaxMegabytes() { return llmCacheMaxMegabytes; }
 }
\ No newline at end of file
@@ -1,7 +1,7 @@
 package com.intenovation.invoice;
 
-import org.apache.pdfbox.pdmodel.PDDocument;
-import org.apache.pdfbox.text.PDFTextStripper;
+import com.intenovation.email.downloader.AttachmentWriter;
+import com.intenovation.email.utils.PdfTextCache;
 import org.jsoup.Jsoup;
 
 import javax.mail.*;
@@ -12,8 +12,6 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * Specialized class for parsing email messages to extract invoice information.
@@ -22,35 +20,83 @@ import java.util.regex.Pattern;
 public class InvoiceParser {
     private static final Logger LOGGER = Logger.getLogger(InvoiceParser.class.getName());
 
-    // Regular expressions for extracting invoice information
-    private static final Pattern[] AMOUNT_PATTERNS = {
-            // German style
-            Pattern.compile("(?i)(Gesamtbetrag\\s*\\(brutto\\)|Gesamtsumme|Rechnungsbetrag in Höhe von|Rechnungsbetrag:|Rechnungsbetrag von|Zu zahlender Betrag:|Endbetrag EUR|Brutto|Betrag beläuft sich auf)\\s*[€]?\\s*([\\d.,]+)"),
-            // English style
-            Pattern.compile("(?i)(Total Charges:|Total Amount Due:|Total Balance Due:|a payment of|Total due now:|Total Due|Statement Amount:|Amount due:|Amount Due:|Amount:|The amount of|Invoice amount|invoice total is|Total\\$|Original Charge|Total Charged|Payment amount:|BALANCE DUE|Current charges:|Total \\(USD\\):|Total \\$|TOTAL \\$|Amount Received|Amount due on this invoice:|Total|Statement balance:|Statement balance|Amount Charged \\$|PAY THIS AMOUNT:|outstanding balance of|TOTAL|Amount paid|DETAILS)\\s*[\\$£]?\\s*([\\d.,]+)"),
-            // General pattern
-            Pattern.compile("(?i)(total|amount|sum|betrag|summe)[\\s:]*[$€£]?\\s*([\\d,.]+)")
-    };
-
-    private static final Pattern[] INVOICE_NUMBER_PATTERNS = {
-            Pattern.compile("(?i)(Your invoice|Invoice #:|Order Number #|Rechnungsnummer:|Billing Period:|Plan period|aktuelle Rechnung|Invoice no.|Invoice Number:|INVOICE|Bill Period\\s*:|Receipt #|Ihre Rechnung|Order Number|Order #:)\\s*([A-Za-z0-9-]{3,20})"),
-            Pattern.compile("(?i)(invoice|rechnung|bill)[\\s:#-]*([A-Z0-9]{4,20})")
-    };
-
-    private static final Pattern[] ACCOUNT_NUMBER_PATTERNS = {
-            Pattern.compile("(?i)(Kundennummer:|Kundennummer|Kunden Nr|Account Number: Ending in|account number:|Account Number:|Account:|Service Address:|Account number:|Your order from|ordered from|Beleg für|CF Number:|for account number \\*{6}|Receipt for Your Payment to|for account :|Customer #:|account ending in \\*{6}|Policy Number)\\s*([A-Za-z0-9-]{3,30})"),
-            Pattern.compile("(?i)(account|konto|customer)[\\s:#-]*([A-Z0-9]{4,20})")
-    };
-
-    private static final Pattern[] DATE_PATTERNS = {
-            Pattern.compile("(?i)(Billing Date:|Date:|Rechnungsdatum:|Payment date:|was placed on|Statement date:)\\s*([0-9]{1,2}[\\s./\\-][0-9]{1,2}[\\s./\\-][0-9]{2,4})"),
-            Pattern.compile("(?i)(date|datum)[\\s:]*([0-9]{1,2}[\\s./\\-][0-9]{1,2}[\\s./\\-][0-9]{2,4})")
-    };
-
-    private static final Pattern[] DUE_DATE_PATTERNS = {
-            Pattern.compile("(?i)(Due Date:|DUE DATE|is due on|Total Current Charges Due On|Payment Due Date|Payment due date:|TRANSACTION DATE|Auto Pay Date:|Received:|delivered on|DUE|AUTO DRAFT DATE:|APS amount to be applied on|will be charged on)\\s*([0-9]{1,2}[\\s./\\-][0-9]{1,2}[\\s./\\-][0-9]{2,4})"),
-            Pattern.compile("(?i)(due date|fällig|zahlbar bis)[\\s:]*([0-9]{1,2}[\\s./\\-][0-9]{1,2}[\\s./\\-][0-9]{2,4})")
-    };
+    // Rules for extracting invoice information: labels in priority order, followed by the value.
+    // All labels are found in one scan of the text, see FieldExtractor.
+    private static final FieldExtractor FIELDS;
+    private static final int[] AMOUNT_RULES;
+    private static final int[] INVOICE_NUMBER_RULES;
+    private static final int[] ACCOUNT_NUMBER_RULES;
+    private static final int[] DATE_RULES;
+    private static final int[] DUE_DATE_RULES;
+
+    static {
+        FieldExtractor.Builder builder = new FieldExtractor.Builder();
+
+        AMOUNT_RULES = new int[]{
+                // German style
+                builder.addRule("\\s*[€]?\\s*([\\d.,]+)",
+                        "Gesamtbetrag\\s*\\(brutto\\)", "Gesamtsumme", "Rechnungsbetrag in Höhe von",
+                        "Rechnungsbetrag:", "Rechnungsbetrag von", "Zu zahlender Betrag:", "Endbetrag EUR", "Brutto",
+                        "Betrag beläuft sich auf"),
+                // English style
+                builder.addRule("\\s*[\\$£]?\\s*([\\d.,]+)",
+                        "Total Charges:", "Total Amount Due:", "Total Balance Due:", "a payment of", "Total due now:",
+                        "Total Due", "Statement Amount:", "Amount due:", "Amount Due:", "Amount:", "The amount of",
+                        "Invoice amount", "invoice total is", "Total\\$", "Original Charge", "Total Charged",
+                        "Payment amount:", "BALANCE DUE", "Current charges:", "Total \\(USD\\):", "Total \\$",
+                        "TOTAL \\$", "Amount Received", "Amount due on this invoice:", "Total", "Statement balance:",
+                        "Statement balance", "Amount Charged \\$", "PAY THIS AMOUNT:", "outstanding balance of",
+                        "TOTAL", "Amount paid", "DETAILS"),
+                // General pattern
+                builder.addRule("[\\s:]*[$€£]?\\s*([\\d,.]+)",
+                        "total", "amount", "sum", "betrag", "summe")
+        };
+
+        INVOICE_NUMBER_RULES = new int[]{
+                builder.addRule("\\s*([A-Za-z0-9-]{3,20})",
+                        "Your invoice", "Invoice #:", "Order Number #", "Rechnungsnummer:", "Billing Period:",
+                        "Plan period", "aktuelle Rechnung", "Invoice no.", "Invoice Number:", "INVOICE",
+                        "Bill Period\\s*:", "Receipt #", "Ihre Rechnung", "Order Number", "Order #:"),
+                builder.addRule("[\\s:#-]*([A-Z0-9]{4,20})",
+                        "invoice", "rechnung", "bill")
+        };
+
+        ACCOUNT_NUMBER_RULES = new int[]{
+                builder.addRule("\\s*([A-Za-z0-9-]{3,30})",
+                        "Kundennummer:", "Kundennummer", "Kunden Nr", "Account Number: Ending in", "account number:",
+                        "Account Number:", "Account:", "Service Address:", "Account number:", "Your order from",
+                        "ordered from", "Beleg für", "CF Number:", "for account number \\*{6}",
+                        "Receipt for Your Payment to", "for account :", "Customer #:", "account ending in \\*{6}",
+                        "Policy Number"),
+                builder.addRule("[\\s:#-]*([A-Z0-9]{4,20})",
+                        "account", "konto", "customer")
+        };
+
+        DATE_RULES = new int[]{
+                builder.addRule("\\s*([0-9]{1,2}[\\s./\\-][0-9]{1,2}[\\s./\\-][0-9]{2,4})",
+                        "Billing Date:", "Date:", "Rechnungsdatum:", "Payment date:", "was placed on",
+                        "Statement date:"),
+                builder.addRule("[\\s:]*([0-9]{1,2}[\\s./\\-][0-9]{1,2}[\\s./\\-][0-9]{2,4})",
+                        "date", "datum")
+        };
+
+        DUE_DATE_RULES = new int[]{
+                builder.addRule("\\s*([0-9]{1,2}[\\s./\\-][0-9]{1,2}[\\s./\\-][0-9]{2,4})",
+                        "Due Date:", "DUE DATE", "is due on", "Total Current Charges Due On", "Payment Due Date",
+                        "Payment due date:", "TRANSACTION DATE", "Auto Pay Date:", "Received:", "delivered on", "DUE",
+                        "AUTO DRAFT DATE:", "APS amount to be applied on", "will be charged on"),
+                builder.addRule("[\\s:]*([0-9]{1,2}[\\s./\\-][0-9]{1,2}[\\s./\\-][0-9]{2,4})",
+                        "due date", "fällig", "zahlbar bis")
+        };
+
+        FIELDS = builder.build();
+    }
+
+    /**
+     * Version of the extraction rules; increase it when the patterns or the type, city and utility
+     * detection change, so messages recorded in the {@link ProcessedMessageLedger} are parsed again
+     */
+    public static final int RULES_VERSION = 1;
 
     private final LLMInvoiceParser llmParser;
     private final InvoiceConfiguration config;
@@ -64,99 +110,261 @@ public class InvoiceParser {
         this.llmParser = new LLMInvoiceParser(config);
     }
 
+    /**
+     * Get the version of the results this parser produces with the current configuration
+     *
+     * @return The rules version, plus the Ollama model if Ollama is used for the parts the rules cannot parse
+     */
+    public String getResultsVersion() {
+        return "rules-" + RULES_VERSION + (config.isUseOllamaFallback() ? "+ollama:" + config.getOllamaModel() : "");
+    }
+
+    /**
+     * Get the statistics of the cache of Ollama responses
+     *
+     * @return The statistics, one per line
+     */
+    public String getLLMCacheStats() {
+        return llmParser.getCacheStats();
+    }
+
+    /**
+     * Content of one message part on its way through the parsing steps.
+     * The steps are separate so that {@link InvoicePipeline} can run them with their own threads:
+     * {@link #readParts} does the I/O, {@link #extractText} the HTML and PDF decoding,
+     * {@link #parseText} the pattern matching and {@link #enrich} the optional Ollama call, which the
+     * invoice processor defers to the {@link LLMEnrichmentQueue}.
+     */
+    static class ContentPart {
+        private final Invoice invoice;
+        private final boolean html;
+        private final boolean pdf;
+        private String text;
+        private File pdfFile;
+        private boolean parsed;
+
+        private ContentPart(Invoice invoice, String text, boolean html) {
+            this.invoice = invoice;
+            this.text = text;
+            this.html = html;
+            this.pdf = false;
+        }
+
+        private ContentPart(Invoice invoice, File pdfFile) {
+            this.invoice = invoice;
+            this.pdfFile = pdfFile;
+            this.html = false;
+            this.pdf = true;
+        }
+
+        /**
+         * Recreate a plain text part that waited in the {@link LLMEnrichmentQueue}
+         */
+        static ContentPart ofText(Invoice invoice, String text) {
+            return new ContentPart(invoice, text, false);
+        }
+
+        Invoice getInvoice() {
+            return invoice;
+        }
+
+        String getText() {
+            return text;
+        }
+
+        /**
+         * Delete the temporary file of a PDF attachment whose text is not extracted
+         */
+        void discard() {
+            if (pdfFile != null) {
+                if (!pdfFile.delete() && pdfFile.exists()) {
+                    pdfFile.deleteOnExit();
+                }
+                pdfFile = null;
+            }
+        }
+    }
+
     /**
      * Parse a message to extract all possible invoice information
      * This handles different content types and attachment formats.
      */
     public List<Invoice> parseMessage(Message message, Invoice baseInvoice) {
-        List<Invoice> results = new ArrayList<>();
+        List<ContentPart> parts = new ArrayList<>();
 
         try {
-            // Process message content
-            Object content = message.getContent();
-
-            if (content instanceof String) {
-                // Process plain text content
-                Invoice textInvoice = cloneInvoice(baseInvoice);
-                textInvoice.setParse("text");
-                if (processTextContent(textInvoice, (String) content)) {
-                    results.add(textInvoice);
-                }
-            } else if (content instanceof Multipart) {
-                // Process multipart content
-                Multipart multipart = (Multipart) content;
-                results.addAll(processMultipartContent(baseInvoice, multipart));
-            } else if (content instanceof InputStream) {
-                // Process input stream content
-                Invoice streamInvoice = cloneInvoice(baseInvoice);
-                streamInvoice.setParse("stream");
-                InputStream is = (InputStream) content;
-                String streamContent = streamToString(is);
-                if (processTextContent(streamInvoice, streamContent)) {
-                    results.add(streamInvoice);
+            parts = readParts(message, baseInvoice);
+            for (ContentPart part : parts) {
+                extractText(part);
+                parseText(part);
+                if (needsEnrichment(part)) {
+                    enrich(part);
                 }
             }
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Error processing message: " + e.getMessage(), e);
+        } finally {
+            for (ContentPart part : parts) {
+                part.discard();
+            }
+        }
 
-            // Post-process the results for better type detection and property mapping
-            for (Invoice invoice : results) {
-                // If type is still Letter, try to determine a better type
-                if (invoice.getType() == Type.Letter) {
-                    invoice.setType(Type.detectType(invoice.getSubject()));
-                }
+        return collect(parts);
+    }
 
-                // If still Letter and we have an amount, it's likely an Invoice
-                if (invoice.getType() == Type.Letter && invoice.getAmount() > 0) {
-                    invoice.setType(Type.Invoice);
-                }
+    /**
+     * Read the text parts and PDF attachments of a message; PDF attachments are written to temporary files
+     * that {@link #extractText} or {@link ContentPart#discard} deletes
+     */
+    List<ContentPart> readParts(Message message, Invoice baseInvoice) throws MessagingException, IOException {
+        List<ContentPart> parts = new ArrayList<>();
+        try {
+            readContent(message, baseInvoice, parts);
+        } catch (MessagingException | IOException | RuntimeException e) {
+            for (ContentPart part : parts) {
+                part.discard();
+            }
+            throw e;
+        }
+        return parts;
+    }
 
-                // Detect city and property based on content
-                detectCityAndProperty(invoice);
+    private void readContent(Message message, Invoice baseInvoice, List<ContentPart> parts)
+            throws MessagingException, IOException {
+        // Process message content
+        Object content = message.getContent();
+
+        if (content instanceof String) {
+            // Process plain text content
+            Invoice textInvoice = cloneInvoice(baseInvoice);
+            textInvoice.setParse("text");
+            parts.add(new ContentPart(textInvoice, (String) content, false));
+        } else if (content instanceof Multipart) {
+            // Process multipart content
+            readMultipartContent(baseInvoice, (Multipart) content, parts);
+        } else if (content instanceof InputStream) {
+            // Process input stream content
+            Invoice streamInvoice = cloneInvoice(baseInvoice);
+            streamInvoice.setParse("stream");
+            parts.add(new ContentPart(streamInvoice, streamToString((InputStream) content), false));
+        }
+    }
 
-                // Detect utility type
-                detectUtilityType(invoice);
+    /**
+     * Turn HTML and PDF content into plain text
+     */
+    void extractText(ContentPart part) {
+        if (part.pdf) {
+            // The shared cache strips the same PDF only once
+            String pdfText = null;
+            try {
+                pdfText = PdfTextCache.getDefault().extract(part.pdfFile);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Error reading PDF attachment: " + e.getMessage(), e);
+            } finally {
+                part.discard();
             }
+            part.text = pdfText != null && !pdfText.isEmpty() ? pdfText : null;
+            return;
+        }
 
-        } catch (Exception e) {
-            LOGGER.log(Level.WARNING, "Error processing message: " + e.getMessage(), e);
+        if (part.html) {
+            // Extract text from HTML
+            part.text = Jsoup.parse(part.text).text();
         }
 
-        return results;
+        // Check if content is HTML and extract text if needed
+        if (isHtmlContent(part.text)) {
+            part.text = Jsoup.parse(part.text).text();
+            LOGGER.info("Extracted text from HTML content for processing");
+            part.invoice.setParse(part.invoice.getParse() + "+html_extracted");
+        }
     }
 
     /**
-     * Process text content to extract invoice details
+     * Detect the document type and extract the invoice details with the rule-based patterns
      */
-    private boolean processTextContent(Invoice invoice, String content) {
-        // Check if content is HTML and extract text if needed
-        String textContent = content;
-        if (isHtmlContent(textContent)) {
-            textContent = Jsoup.parse(textContent).text();
-            LOGGER.info("Extracted text from HTML content for processing");
-            invoice.setParse(invoice.getParse() + "+html_extracted");
+    void parseText(ContentPart part) {
+        if (part.text == null) {
+            return;
         }
 
         // Detect document type
-        invoice.setType(Type.detectType(textContent));
+        part.invoice.setType(Type.detectType(part.text));
 
         // Try rule-based extraction first
-        boolean success = extractInvoiceDetails(invoice, textContent);
-
-        // If rule-based extraction failed and Ollama fallback is enabled, try Ollama parsing
-        if (!success && config.isUseOllamaFallback()) {
-            LOGGER.info("Rule-based parsing failed, attempting Ollama parsing");
-            Invoice llmInvoice = llmParser.parseWithLLM(textContent, invoice);
-
-            if (llmInvoice != null) {
-                // Copy relevant fields from Ollama-parsed invoice
-                copyInvoiceFields(llmInvoice, invoice);
-                success = true;
-                LOGGER.info("Ollama parsing successful");
-            } else {
-                LOGGER.warning("Ollama parsing failed");
+        part.parsed = extractInvoiceDetails(part.invoice, part.text);
+    }
+
+    /**
+     * Check if rule-based extraction failed for a part and Ollama should be asked
+     */
+    boolean needsEnrichment(ContentPart part) {
+        return part.text != null && !part.parsed && config.isUseOllamaFallback();
+    }
+
+    /**
+     * Parse a part with Ollama after rule-based extraction failed
+     */
+    void enrich(ContentPart part) {
+        LOGGER.info("Rule-based parsing failed, attempting Ollama parsing");
+        Invoice llmInvoice = llmParser.parseWithLLM(part.text, part.invoice);
+
+        if (llmInvoice != null) {
+            // Copy relevant fields from Ollama-parsed invoice
+            copyInvoiceFields(llmInvoice, part.invoice);
+            part.parsed = true;
+            LOGGER.info("Ollama parsing successful");
+        } else {
+            LOGGER.warning("Ollama parsing failed");
+        }
+    }
+
+    /**
+     * Get the parts the rules could not parse and that should be given to Ollama
+     */
+    List<ContentPart> collectUnparsed(List<ContentPart> parts) {
+        List<ContentPart> unparsed = new ArrayList<>();
+        for (ContentPart part : parts) {
+            if (needsEnrichment(part)) {
+                unparsed.add(part);
             }
         }
+        return unparsed;
+    }
 
-        return success;
+    /**
+     * Collect the invoices of the successfully parsed parts
+     */
+    List<Invoice> collect(List<ContentPart> parts) {
+        List<Invoice> results = new ArrayList<>();
+
+        for (ContentPart part : parts) {
+            if (part.parsed) {
+                results.add(part.invoice);
+            }
+        }
+
+        // Post-process the results for better type detection and property mapping
+        for (Invoice invoice : results) {
+            // If type is still Letter, try to determine a better type
+            if (invoice.getType() == Type.Letter) {
+                invoice.setType(Type.detectType(invoice.getSubject()));
+            }
+
+            // If still Letter and we have an amount, it's likely an Invoice
+            if (invoice.getType() == Type.Letter && invoice.getAmount() > 0) {
+                invoice.setType(Type.Invoice);
+            }
+
+            // Detect city and property based on content
+            detectCityAndProperty(invoice);
+
+            // Detect utility type
+            detectUtilityType(invoice);
+        }
+
+        return results;
     }
 
     /**
@@ -227,12 +435,10 @@ public class InvoiceParser {
     }
 
     /**
-     * Process multipart content to extract invoice details from each part
+     * Read the text parts and PDF attachments of multipart content
      */
-    private List<Invoice> processMultipartContent(Invoice baseInvoice, Multipart multipart)
+    private void readMultipartContent(Invoice baseInvoice, Multipart multipart, List<ContentPart> parts)
             throws MessagingException, IOException {
-        List<Invoice> results = new ArrayList<>();
-
         for (int i = 0; i < multipart.getCount(); i++) {
             BodyPart bodyPart = multipart.getBodyPart(i);
             String contentType = bodyPart.getContentType().toLowerCase();
@@ -241,24 +447,16 @@ public class InvoiceParser {
                 // Process plain text part
                 Invoice textInvoice = cloneInvoice(baseInvoice);
                 textInvoice.setParse("text_part");
-                String textContent = bodyPart.getContent().toString();
-                if (processTextContent(textInvoice, textContent)) {
-                    results.add(textInvoice);
-                }
+                parts.add(new ContentPart(textInvoice, bodyPart.getContent().toString(), false));
             } else if (contentType.contains("text/html")) {
                 // Process HTML part - extract text from HTML for better processing
                 Invoice htmlInvoice = cloneInvoice(baseInvoice);
                 htmlInvoice.setParse("html_part");
-                String htmlContent = bodyPart.getContent().toString();
-                // Extract text from HTML
-                String textFromHtml = Jsoup.parse(htmlContent).text();
-                if (processTextContent(htmlInvoice, textFromHtml)) {
-                    results.add(htmlInvoice);
-                }
+                parts.add(new ContentPart(htmlInvoice, bodyPart.getContent().toString(), true));
             } else if (contentType.contains("multipart")) {
                 // Recursive call for nested multiparts
                 Multipart nestedMultipart = (Multipart) bodyPart.getContent();
-                results.addAll(processMultipartContent(baseInvoice, nestedMultipart));
+                readMultipartContent(baseInvoice, nestedMultipart, parts);
             } else if (contentType.contains("application/pdf") ||
                     (bodyPart.getDisposition() != null &&
                             bodyPart.getDisposition().equalsIgnoreCase(Part.ATTACHMENT) &&
@@ -269,19 +467,17 @@ public class InvoiceParser {
                 pdfInvoice.setParse("pdf_attachment");
                 pdfInvoice.setFileName(bodyPart.getFileName());
 
-                // Extract text from PDF
+                // Write the PDF to a temporary file instead of holding it in memory, the text is extracted later
+                File pdfFile = File.createTempFile("invoice-attachment-", ".pdf");
                 try (InputStream is = bodyPart.getInputStream()) {
-                    String pdfText = extractTextFromPdf(is);
-                    if (pdfText != null && !pdfText.isEmpty() && processTextContent(pdfInvoice, pdfText)) {
-                        results.add(pdfInvoice);
-                    }
+                    AttachmentWriter.write(is, pdfFile);
+                    parts.add(new ContentPart(pdfInvoice, pdfFile));
                 } catch (Exception e) {
-                    LOGGER.log(Level.WARNING, "Error extracting text from PDF: " + e.getMessage(), e);
+                    LOGGER.log(Level.WARNING, "Error reading PDF attachment: " + e.getMessage(), e);
+                    pdfFile.delete();
                 }
             }
         }
-
-        return results;
     }
 
     /**
@@ -316,7 +512,7 @@ public class InvoiceParser {
         String contentToCheck = (invoice.getSubject() + " " +
                 invoice.getUtility() + " " +
                 invoice.getAccount() + " " +
-                invoice.getNumber()).toLowerCase();
+                invoice.getNumber());
 
         // Check for city identification
         City detectedCity = City.detectCity(contentToCheck);
@@ -337,7 +533,7 @@ public class InvoiceParser {
             String contentToCheck = (invoice.getSubject() + " " +
                     invoice.getEmail() + " " +
                     invoice.getAccount() + " " +
-                    invoice.getNumber()).toLowerCase();
+                    invoice.getNumber());
 
             Utility detectedUtility = Utility.detectUtility(contentToCheck);
             if (detectedUtility != Utility.Unknown) {
@@ -346,19 +542,6 @@ public class InvoiceParser {
         }
     }
 
-    /**
-     * Extract text from a PDF file
-     */
-    private String extractTextFromPdf(InputStream pdfStream) {
-        try (PDDocument document = PDDocument.load(pdfStream)) {
-            PDFTextStripper stripper = new PDFTextStripper();
-            return stripper.getText(document);
-        } catch (Exception e) {
-            LOGGER.log(Level.WARNING, "Error extracting text from PDF: " + e.getMessage(), e);
-            return null;
-        }
-    }
-
     /**
      * Convert an input stream to a string
      */
@@ -376,15 +559,15 @@ public class InvoiceParser {
     /**
      * Extract invoice details from text content using multiple patterns
      */
-    private boolean extractInvoiceDetails(Invoice invoice, String content) {
+    static boolean extractInvoiceDetails(Invoice invoice, String content) {
         boolean foundSomething = false;
+        FieldExtractor.Scan scan = FIELDS.scan(content);
 
         // Extract amount using multiple patterns
-        for (Pattern pattern : AMOUNT_PATTERNS) {
-            Matcher matcher = pattern.matcher(content);
-            if (matcher.find()) {
+        for (int rule : AMOUNT_RULES) {
+            String amountStr = scan.find(rule);
+            if (amountStr != null) {
                 try {
-                    String amountStr = matcher.group(2);
                     double amount = NumberUtils.parseAmount(amountStr);
                     if (amount > 0 && amount < 100000) { // Sanity check
                         invoice.setAmount(amount);
@@ -392,60 +575,48 @@ public class InvoiceParser {
                         break;
                     }
                 } catch (NumberFormatException e) {
-                    LOGGER.log(Level.FINE, "Failed to parse amount: " + matcher.group(2), e);
+                    LOGGER.log(Level.FINE, "Failed to parse amount: " + amountStr, e);
                 }
             }
         }
 
         // Extract invoice number using multiple patterns
-        for (Pattern pattern : INVOICE_NUMBER_PATTERNS) {
-            Matcher matcher = pattern.matcher(content);
-            if (matcher.find()) {
-                String number = matcher.group(2);
-                if (number != null && !number.isEmpty()) {
-                    invoice.setNumber(cleanInvoiceNumber(number));
-                    foundSomething = true;
-                    break;
-                }
+        for (int rule : INVOICE_NUMBER_RULES) {
+            String number = scan.find(rule);
+            if (number != null && !number.isEmpty()) {
+                invoice.setNumber(cleanInvoiceNumber(number));
+                foundSomething = true;
+                break;
             }
         }
 
         // Extract account number using multiple patterns
-        for (Pattern pattern : ACCOUNT_NUMBER_PATTERNS) {
-            Matcher matcher = pattern.matcher(content);
-            if (matcher.find()) {
-                String account = matcher.group(2);
-                if (account != null && !account.isEmpty()) {
-                    invoice.setAccount(account);
-                    foundSomething = true;
-                    break;
-                }
+        for (int rule : ACCOUNT_NUMBER_RULES) {
+            String account = scan.find(rule);
+            if (account != null && !account.isEmpty()) {
+                invoice.setAccount(account);
+                foundSomething = true;
+                break;
             }
         }
 
         // Extract date using multiple patterns
-        for (Pattern pattern : DATE_PATTERNS) {
-            Matcher matcher = pattern.matcher(content);
-            if (matcher.find()) {
-                String date = matcher.group(2);
-                if (date != null && !date.isEmpty()) {
-                    invoice.setDate(date);
-                    foundSomething = true;
-                    break;
-                }
+        for (int rule : DATE_RULES) {
+            String date = scan.find(rule);
+            if (date != null && !date.isEmpty()) {
+                invoice.setDate(date);
+                foundSomething = true;
+                break;
             }
         }
 
         // Extract due date using multiple patterns
-        for (Pattern pattern : DUE_DATE_PATTERNS) {
-            Matcher matcher = pattern.matcher(content);
-            if (matcher.find()) {
-                String dueDate = matcher.group(2);
-                if (dueDate != null && !dueDate.isEmpty()) {
-                    invoice.setDueDate(dueDate);
-                    foundSomething = true;
-                    break;
-                }
+        for (int rule : DUE_DATE_RULES) {
+            String dueDate = scan.find(rule);
+            if (dueDate != null && !dueDate.isEmpty()) {
+                invoice.setDueDate(dueDate);
+                foundSomething = true;
+                break;
             }
         }
 
@@ -455,7 +626,7 @@ public class InvoiceParser {
     /**
      * Clean up invoice number by removing common non-alphanumeric characters
      */
-    private String cleanInvoiceNumber(String number) {
+    private static String cleanInvoiceNumber(String number) {
         return number.replaceAll("[\\s:,;]", "").trim();
     }
 }
\ No newline at end of file
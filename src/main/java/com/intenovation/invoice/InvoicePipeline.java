@@ -0,0 +1,310 @@
+package com.intenovation.invoice;
+
+import javax.mail.Message;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Staged pipeline that extracts invoices from messages: read → extract text → parse → store.
+ * Every stage has its own threads and a bounded input queue, so a slow stage
+ * holds back the stages before it instead of piling up messages in memory.
+ * Parts the patterns could not parse are handed to the store stage for later Ollama enrichment
+ * (see {@link LLMEnrichmentQueue}), so Ollama never holds up the pipeline.
+ * The store stage has a single thread and hands the results to the {@link Handler} in submission order.
+ * Messages whose results the handler already knows go from the read stage straight to the store stage.
+ *
+ * @param <C> Type of the context that is passed along with each message
+ */
+public class InvoicePipeline<C> {
+    private static final Logger LOGGER = Logger.getLogger(InvoicePipeline.class.getName());
+
+    /**
+     * Callbacks of the pipeline for the work around the parser
+     */
+    public interface Handler<C> {
+        /**
+         * Get the known results of a message that does not need to be parsed; called by the read stage
+         *
+         * @return The invoices, or null to parse the message
+         */
+        List<Invoice> lookup(C context, Message message) throws Exception;
+
+        /**
+         * Create the base invoice of a message; called by the read stage
+         *
+         * @return The base invoice, or null to skip the message
+         */
+        Invoice prepare(C context, Message message) throws Exception;
+
+        /**
+         * Store the invoices of a message; called by the store stage in submission order
+         *
+         * @param invoices The invoices the patterns extracted
+         * @param unparsed The parts the patterns could not parse and that need Ollama
+         */
+        void store(C context, List<Invoice> invoices, List<InvoiceParser.ContentPart> unparsed) throws Exception;
+    }
+
+    /**
+     * A message on its way through the stages
+     */
+    private static class Job<C> {
+        final long sequence;
+        final C context;
+        final Message message;
+        List<InvoiceParser.ContentPart> parts = Collections.emptyList();
+        List<Invoice> known;
+
+        Job(long sequence, C context, Message message) {
+            this.sequence = sequence;
+            this.context = context;
+            this.message = message;
+        }
+    }
+
+    private interface Work<C> {
+        void process(Job<C> job) throws Exception;
+    }
+
+    /**
+     * One stage with its input queue, threads and counters
+     */
+    private class Stage {
+        final String name;
+        final int threads;
+        final BlockingQueue<Job<C>> queue;
+        final Work<C> work;
+        final AtomicInteger running;
+        final AtomicInteger busy = new AtomicInteger();
+        final AtomicLong processed = new AtomicLong();
+        Stage next;
+
+        Stage(String name, int threads, int capacity, Work<C> work) {
+            this.name = name;
+            this.threads = threads;
+            this.queue = new ArrayBlockingQueue<>(capacity);
+            this.work = work;
+            this.running = new AtomicInteger(threads);
+        }
+
+        void run() {
+            try {
+                while (true) {
+                    Job<C> job = queue.take();
+                    if (job == END) {
+                        break;
+                    }
+                    busy.incrementAndGet();
+                    try {
+                        work.process(job);
+                    } catch (InterruptedException e) {
+                        throw e;
+                    } catch (Exception e) {
+                        LOGGER.log(Level.WARNING, name + " failed for a message: " + e.getMessage(), e);
+                    } finally {
+                        busy.decrementAndGet();
+                    }
+                    processed.incrementAndGet();
+                    if (next != null) {
+                        forward(job);
+                    }
+                }
+
+                // The last thread of a stage passes the end on to the next stage
+                if (running.decrementAndGet() == 0 && next != null) {
+                    for (int i = 0; i < next.threads; i++) {
+                        next.queue.put(end());
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Pass a job on; known results skip the remaining stages
+         */
+        void forward(Job<C> job) throws InterruptedException {
+            if (job.known != null) {
+                storeStage.queue.put(job);
+            } else {
+                next.queue.put(job);
+            }
+        }
+
+        String metrics(double seconds) {
+            return String.format("%s: %d done (%.1f/s), queue %d/%d, %d/%d threads busy",
+                    name, processed.get(), processed.get() / Math.max(seconds, 0.001),
+                    queue.size(), queue.size() + queue.remainingCapacity(), busy.get(), threads);
+        }
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static final Job END = new Job<>(-1, null, null);
+
+    @SuppressWarnings("unchecked")
+    private Job<C> end() {
+        return (Job<C>) END;
+    }
+
+    private final InvoiceParser parser;
+    private final Handler<C> handler;
+    private final Stage readStage;
+    private final Stage extractStage;
+    private final Stage parseStage;
+    private final Stage storeStage;
+    private final List<Stage> stages;
+    private final ExecutorService executor;
+    private final CountDownLatch finished;
+    private final long startTime = System.currentTimeMillis();
+
+    // Results that arrived before an earlier message, only used by the store thread
+    private final Map<Long, Job<C>> waiting = new HashMap<>();
+    private long nextToStore = 0;
+    private long submitted = 0;
+
+    /**
+     * Create a pipeline and start its threads
+     *
+     * @param config The configuration with the thread counts and queue capacity
+     * @param parser The parser doing the work of the stages
+     * @param handler Callbacks for preparing and storing messages
+     */
+    public InvoicePipeline(InvoiceConfiguration config, InvoiceParser parser, Handler<C> handler) {
+        this.parser = parser;
+        this.handler = handler;
+        int capacity = config.getPipelineQueueCapacity();
+
+        readStage = new Stage("Read", config.getReadThreads(), capacity, this::read);
+        extractStage = new Stage("Extract text", config.getProcessingThreads(), capacity, this::extract);
+        parseStage = new Stage("Parse", config.getProcessingThreads(), capacity, this::parse);
+        storeStage = new Stage("Store", 1, capacity, this::store);
+        readStage.next = extractStage;
+        extractStage.next = parseStage;
+        parseStage.next = storeStage;
+        stages = Arrays.asList(readStage, extractStage, parseStage, storeStage);
+
+        int threads = 0;
+        for (Stage stage : stages) {
+            threads += stage.threads;
+        }
+        executor = Executors.newFixedThreadPool(threads);
+        finished = new CountDownLatch(threads);
+        for (Stage stage : stages) {
+            for (int i = 0; i < stage.threads; i++) {
+                executor.execute(() -> {
+                    try {
+                        stage.run();
+                    } finally {
+                        finished.countDown();
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Add a message, waiting while the read stage is full
+     *
+     * @param context Passed to the handler with the message
+     * @param message The message to process
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public void submit(C context, Message message) throws InterruptedException {
+        readStage.queue.put(new Job<>(submitted++, context, message));
+    }
+
+    /**
+     * Wait until all submitted messages are stored and stop the threads
+     *
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public void finish() throws InterruptedException {
+        for (int i = 0; i < readStage.threads; i++) {
+            readStage.queue.put(end());
+        }
+        finished.await();
+        executor.shutdown();
+    }
+
+    /**
+     * Stop the threads without waiting for the queued messages
+     */
+    public void cancel() {
+        executor.shutdownNow();
+
+        // Delete the temporary PDF files of the messages that were not extracted
+        List<Job<C>> dropped = new ArrayList<>();
+        for (Stage stage : stages) {
+            stage.queue.drainTo(dropped);
+        }
+        for (Job<C> job : dropped) {
+            if (job != END) {
+                for (InvoiceParser.ContentPart part : job.parts) {
+                    part.discard();
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the throughput and queue depth of each stage
+     *
+     * @return One line per stage
+     */
+    public List<String> getMetrics() {
+        double seconds = (System.currentTimeMillis() - startTime) / 1000.0;
+        List<String> metrics = new ArrayList<>();
+        for (Stage stage : stages) {
+            metrics.add(stage.metrics(seconds));
+        }
+        return metrics;
+    }
+
+    private void read(Job<C> job) throws Exception {
+        job.known = handler.lookup(job.context, job.message);
+        if (job.known != null) {
+            return;
+        }
+        Invoice baseInvoice = handler.prepare(job.context, job.message);
+        if (baseInvoice != null) {
+            job.parts = parser.readParts(job.message, baseInvoice);
+        }
+    }
+
+    private void extract(Job<C> job) {
+        for (InvoiceParser.ContentPart part : job.parts) {
+            parser.extractText(part);
+        }
+    }
+
+    private void parse(Job<C> job) {
+        for (InvoiceParser.ContentPart part : job.parts) {
+            parser.parseText(part);
+        }
+    }
+
+    /**
+     * Store the results in submission order, holding back results that overtook an earlier message
+     */
+    private void store(Job<C> job) {
+        waiting.put(job.sequence, job);
+        Job<C> ready;
+        while ((ready = waiting.remove(nextToStore)) != null) {
+            nextToStore++;
+            try {
+                if (ready.known != null) {
+                    handler.store(ready.context, ready.known, Collections.emptyList());
+                } else {
+                    handler.store(ready.context, parser.collect(ready.parts), parser.collectUnparsed(ready.parts));
+                }
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, "Error storing invoices: " + e.getMessage(), e);
+            }
+        }
+    }
+}
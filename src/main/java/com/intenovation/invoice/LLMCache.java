@@ -3,48 +3,98 @@ package com.intenovation.invoice;
 import java.io.File;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.HexFormat;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * A cache for LLM responses to avoid redundant API calls.
- * Stores responses in the file system using a hash of the prompt as the filename.
+ * Stores every response in a file named by the hash of the model, the generation options, the prompt template
+ * version and the prompt, in a subdirectory per first two hex digits of the hash, so no directory grows too large.
+ * Answers of different models are kept side by side; switching the model does not return the answers of the
+ * previous one, unless that model is configured for warm start. Callers asking for a prompt that is already
+ * being sent to Ollama wait for that request instead of sending the prompt again. The directory is read once when the cache is created; after
+ * that an in-memory index knows every entry and its size, and the most recently used responses are kept in
+ * memory as well. When the cache grows beyond its size limit, the least recently used entries are deleted.
  */
 public class LLMCache {
     private static final Logger LOGGER = Logger.getLogger(LLMCache.class.getName());
     private static final int MAX_RETRIES = 3;
     private static final long RETRY_DELAY_MS = 2000; // 2 seconds between retries
-    
+
+    /**
+     * Characters of responses kept in memory
+     */
+    private static final long HOT_TIER_CHARS = 4L * 1024 * 1024;
+
+    private static final String SUFFIX = ".txt";
+
     private final Path cacheDirectory;
-    private final String ollamaHost;
+    private final long maxBytes;
+    private final OllamaInvokeService ollama;
     private final String ollamaModel;
     private final int ollamaMaxTokens;
     private final int ollamaTimeoutSeconds;
-    
+    private final int promptVersion;
+    private final List<String> warmStartModels = new ArrayList<>();
+
+    // Size in bytes of every entry on disk, least recently used first; guarded by this
+    private final LinkedHashMap<String, Long> index = new LinkedHashMap<>(1024, 0.75f, true);
+    private long totalBytes;
+
+    // Most recently used responses, least recently used first; guarded by this
+    private final LinkedHashMap<String, String> hotTier = new LinkedHashMap<>(256, 0.75f, true);
+    private long hotTierChars;
+
+    // Ollama requests in progress by hash, shared by all callers asking for the same prompt
+    private final Map<String, CompletableFuture<String>> inFlight = new ConcurrentHashMap<>();
+
+    // Statistics
+    private final AtomicLong memoryHits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong warmStartHits = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
     /**
      * Create a new LLMCache with the provided configuration
      * 
      * @param config The invoice configuration containing Ollama settings
+     * @param promptVersion The version of the prompt template, part of the cache key
      */
-    public LLMCache(InvoiceConfiguration config) {
-        this.ollamaHost = config.getOllamaHost();
+    public LLMCache(InvoiceConfiguration config, int promptVersion) {
+        this.ollama = OllamaInvokeService.getInstance(config.getOllamaHost());
+        this.ollama.setMaxInFlight(config.getOllamaThreads());
         this.ollamaModel = config.getOllamaModel();
         this.ollamaMaxTokens = config.getOllamaMaxTokens();
         this.ollamaTimeoutSeconds = config.getOllamaTimeoutSeconds();
+        this.maxBytes = config.getLlmCacheMaxMegabytes() * 1024L * 1024L;
+        this.promptVersion = promptVersion;
+        for (String model : config.getOllamaWarmStartModels().split(",")) {
+            if (!model.isBlank() && !model.trim().equals(ollamaModel)) {
+                warmStartModels.add(model.trim());
+            }
+        }
         
         // Create cache directory in the output directory
         this.cacheDirectory = Paths.get(config.getOutputDirectory().getAbsolutePath(), "llm-cache");
         
         try {
             Files.createDirectories(cacheDirectory);
-            LOGGER.info("LLM cache directory created at: " + cacheDirectory);
+            loadIndex();
         } catch (IOException e) {
             LOGGER.log(Level.SEVERE, "Failed to create cache directory", e);
         }
@@ -57,69 +107,312 @@ public class LLMCache {
      * @return The LLM response or null if an error occurs
      */
     public String getResponse(String prompt) {
-        // Calculate hash of the prompt to use as filename
-        String hash = calculateSHA256(prompt);
+        // Calculate hash of the model, options and prompt to use as filename
+        String hash = calculateSHA256(cacheKey(ollamaModel, prompt));
         if (hash == null) {
             LOGGER.severe("Failed to calculate hash for prompt");
             return null;
         }
-        
-        // Create file path for the cached response
-        Path responsePath = cacheDirectory.resolve(hash + ".txt");
-        
+
         // Check if response is already cached
-        if (Files.exists(responsePath)) {
+        String cachedResponse = lookup(hash);
+        if (cachedResponse != null) {
             LOGGER.info("Cache hit for prompt hash: " + hash);
-            try {
-                // Read response from cache
-                String cachedResponse = Files.readString(responsePath, StandardCharsets.UTF_8);
+            return cachedResponse;
+        }
+
+        // Reuse the answer of a model configured for warm start
+        if (!warmStartModels.isEmpty()) {
+            cachedResponse = lookupWarmStart(prompt);
+            if (cachedResponse != null) {
                 return cachedResponse;
-            } catch (IOException e) {
-                LOGGER.log(Level.WARNING, "Failed to read cached response", e);
-                // Fall through to getting a fresh response
             }
         }
         
-        // Cache miss, get fresh response from Ollama
-        LOGGER.info("Cache miss for prompt hash: " + hash + ", calling Ollama API");
-        String response = callOllamaAPI(prompt);
-        
-        // Cache the response if we got one
-        if (response != null) {
+        // Wait for the request of another caller with the same prompt
+        CompletableFuture<String> request = new CompletableFuture<>();
+        CompletableFuture<String> pending = inFlight.putIfAbsent(hash, request);
+        if (pending != null) {
+            coalesced.incrementAndGet();
+            LOGGER.info("Waiting for the Ollama request in progress for prompt hash: " + hash);
+            return await(pending);
+        }
+
+        String response = null;
+        try {
+            // The previous request for the prompt may have finished since the lookup
+            response = lookup(hash);
+            if (response != null) {
+                return response;
+            }
+
+            // Cache miss, get fresh response from Ollama
+            misses.incrementAndGet();
+            LOGGER.info("Cache miss for prompt hash: " + hash + ", calling Ollama API");
+            response = callOllamaAPI(prompt);
+
+            // Cache the response if we got one
+            if (response != null) {
+                store(hash, response);
+            }
+
+            return response;
+        } finally {
+            request.complete(response);
+            inFlight.remove(hash, request);
+        }
+    }
+
+    /**
+     * Wait for the Ollama request of another caller
+     *
+     * @param request The request
+     * @return Its response, or null if it failed or this thread was interrupted
+     */
+    private String await(CompletableFuture<String> request) {
+        try {
+            return request.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Get the key of a prompt; everything that changes the answer of the model is part of it
+     *
+     * @param model The model that answers the prompt
+     * @param prompt The prompt
+     * @return The text to hash
+     */
+    private String cacheKey(String model, String prompt) {
+        return "model=" + model
+                + "\nnum_predict=" + ollamaMaxTokens
+                + "\ntemperature=" + OllamaInvokeService.TEMPERATURE
+                + "\nprompt_version=" + promptVersion
+                + "\n\n" + prompt;
+    }
+
+    /**
+     * Find the answer of a warm-start model to the same prompt, in the order the models are configured,
+     * and finally an answer cached before the key included the model
+     *
+     * @param prompt The prompt
+     * @return The response, or null if no warm-start model answered the prompt
+     */
+    private String lookupWarmStart(String prompt) {
+        List<String> keys = new ArrayList<>();
+        for (String model : warmStartModels) {
+            keys.add(cacheKey(model, prompt));
+        }
+        keys.add(prompt);
+        for (int i = 0; i < keys.size(); i++) {
+            String hash = calculateSHA256(keys.get(i));
+            String response = hash != null ? lookup(hash) : null;
+            if (response != null) {
+                warmStartHits.incrementAndGet();
+                LOGGER.info("Warm start from " + (i < warmStartModels.size() ? "model " + warmStartModels.get(i)
+                        : "an answer of an unknown model") + " for prompt hash: " + hash);
+                return response;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Find a cached response in memory or on disk
+     *
+     * @param hash The hash of the prompt
+     * @return The response, or null if it is not cached
+     */
+    private String lookup(String hash) {
+        synchronized (this) {
+            String response = hotTier.get(hash);
+            if (response != null) {
+                index.get(hash); // Mark as recently used
+                memoryHits.incrementAndGet();
+                return response;
+            }
+            if (!index.containsKey(hash)) {
+                return null;
+            }
+        }
+
+        Path responsePath = entryPath(hash);
+        try {
+            String response = Files.readString(responsePath, StandardCharsets.UTF_8);
+            // Keep the order of use for the next start
+            responsePath.toFile().setLastModified(System.currentTimeMillis());
+            synchronized (this) {
+                index.get(hash);
+                putHot(hash, response);
+            }
+            diskHits.incrementAndGet();
+            return response;
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to read cached response", e);
+            synchronized (this) {
+                Long size = index.remove(hash);
+                if (size != null) {
+                    totalBytes -= size;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Write a response to disk and add it to the index, deleting the least recently used entries
+     * if the cache grows beyond its size limit
+     *
+     * @param hash The hash of the prompt
+     * @param response The response
+     */
+    private void store(String hash, String response) {
+        Path responsePath = entryPath(hash);
+        byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+        try {
+            Files.createDirectories(responsePath.getParent());
+            Path tmp = responsePath.resolveSibling(hash + ".tmp");
+            Files.write(tmp, bytes);
             try {
-                Files.writeString(responsePath, response, StandardCharsets.UTF_8);
-                LOGGER.info("Cached response for prompt hash: " + hash);
+                Files.move(tmp, responsePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, responsePath, StandardCopyOption.REPLACE_EXISTING);
+            }
+            LOGGER.info("Cached response for prompt hash: " + hash);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to cache response", e);
+            // Continue even if caching fails
+            return;
+        }
+
+        List<String> evicted = new ArrayList<>();
+        synchronized (this) {
+            Long previous = index.put(hash, (long) bytes.length);
+            totalBytes += bytes.length - (previous != null ? previous : 0);
+            putHot(hash, response);
+
+            Iterator<Map.Entry<String, Long>> eldest = index.entrySet().iterator();
+            while (totalBytes > maxBytes && eldest.hasNext()) {
+                Map.Entry<String, Long> entry = eldest.next();
+                if (entry.getKey().equals(hash)) {
+                    continue;
+                }
+                eldest.remove();
+                totalBytes -= entry.getValue();
+                String hot = hotTier.remove(entry.getKey());
+                if (hot != null) {
+                    hotTierChars -= hot.length();
+                }
+                evicted.add(entry.getKey());
+            }
+        }
+        for (String evictedHash : evicted) {
+            try {
+                Files.deleteIfExists(entryPath(evictedHash));
+                evictions.incrementAndGet();
             } catch (IOException e) {
-                LOGGER.log(Level.WARNING, "Failed to cache response", e);
-                // Continue even if caching fails
+                LOGGER.log(Level.WARNING, "Failed to delete evicted cache entry: " + evictedHash, e);
             }
         }
-        
-        return response;
+    }
+
+    /**
+     * Keep a response in memory, dropping the least recently used ones beyond the memory limit; called holding this
+     */
+    private void putHot(String hash, String response) {
+        if (response.length() > HOT_TIER_CHARS) {
+            return;
+        }
+        String previous = hotTier.put(hash, response);
+        hotTierChars += response.length() - (previous != null ? previous.length() : 0);
+        Iterator<String> eldest = hotTier.values().iterator();
+        while (hotTierChars > HOT_TIER_CHARS && eldest.hasNext()) {
+            hotTierChars -= eldest.next().length();
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Index the entries on disk, oldest first, moving entries of the former flat layout into their subdirectory
+     */
+    private void loadIndex() throws IOException {
+        File[] files = cacheDirectory.toFile().listFiles();
+        if (files == null) {
+            return;
+        }
+
+        List<File> entries = new ArrayList<>();
+        int moved = 0;
+        for (File file : files) {
+            String name = file.getName();
+            if (file.isDirectory() && name.length() == 2) {
+                File[] shardFiles = file.listFiles();
+                if (shardFiles != null) {
+                    for (File shardFile : shardFiles) {
+                        if (shardFile.getName().endsWith(SUFFIX)) {
+                            entries.add(shardFile);
+                        } else if (shardFile.getName().endsWith(".tmp")) {
+                            shardFile.delete(); // Left over from an interrupted write
+                        }
+                    }
+                }
+            } else if (file.isFile() && name.endsWith(SUFFIX) && name.length() > SUFFIX.length() + 2) {
+                Path target = entryPath(name.substring(0, name.length() - SUFFIX.length()));
+                Files.createDirectories(target.getParent());
+                Files.move(file.toPath(), target, StandardCopyOption.REPLACE_EXISTING);
+                entries.add(target.toFile());
+                moved++;
+            }
+        }
+        if (moved > 0) {
+            LOGGER.info("Moved " + moved + " cached responses into subdirectories");
+        }
+
+        entries.sort(Comparator.comparingLong(File::lastModified));
+        synchronized (this) {
+            for (File entry : entries) {
+                String name = entry.getName();
+                long size = entry.length();
+                index.put(name.substring(0, name.length() - SUFFIX.length()), size);
+                totalBytes += size;
+            }
+        }
+        LOGGER.info("LLM cache at " + cacheDirectory + ": " + entries.size() + " cached responses, "
+                + totalBytes / 1024 + " KB");
+    }
+
+    /**
+     * Get the file of a cache entry
+     *
+     * @param hash The hash of the prompt
+     * @return The path of the entry in the subdirectory named by the first two hex digits of the hash
+     */
+    private Path entryPath(String hash) {
+        return cacheDirectory.resolve(hash.substring(0, 2)).resolve(hash + SUFFIX);
     }
     
     /**
-     * Call the Ollama API without directly depending on the Ollama4j library.
-     * This method delegates to an instance of OllamaInvokeService.
+     * Call the Ollama API through the shared client of the configured host
      * 
      * @param prompt The prompt to send to Ollama
      * @return The response from Ollama or null if an error occurs
      */
     private String callOllamaAPI(String prompt) {
-        // Create an invoker that will handle the actual Ollama API call
-        OllamaInvokeService invoker = new OllamaInvokeService(
-                ollamaHost, 
-                ollamaModel, 
-                ollamaMaxTokens, 
-                ollamaTimeoutSeconds
-        );
-        
         // Try multiple times in case of temporary failures
         for (int attempt = 1; attempt <= MAX_RETRIES; attempt++) {
             try {
+                // Don't wait for retries while the server is known to be down
+                if (!ollama.isAvailable()) {
+                    return null;
+                }
+
                 LOGGER.info("Calling Ollama API (attempt " + attempt + " of " + MAX_RETRIES + ")");
                 
-                String response = invoker.invokeOllama(prompt);
+                String response = ollama.invokeOllama(ollamaModel, prompt, ollamaMaxTokens, ollamaTimeoutSeconds);
                 if (response != null && !response.isEmpty()) {
                     return response;
                 }
@@ -176,21 +469,26 @@ public class LLMCache {
      * @return true if the cache was successfully cleared, false otherwise
      */
     public boolean clearCache() {
-        try {
-            File[] cacheFiles = cacheDirectory.toFile().listFiles((dir, name) -> name.endsWith(".txt"));
-            if (cacheFiles != null) {
-                for (File file : cacheFiles) {
-                    if (!file.delete()) {
-                        LOGGER.warning("Failed to delete cache file: " + file);
-                    }
-                }
+        List<String> hashes;
+        synchronized (this) {
+            hashes = new ArrayList<>(index.keySet());
+            index.clear();
+            totalBytes = 0;
+            hotTier.clear();
+            hotTierChars = 0;
+        }
+
+        boolean cleared = true;
+        for (String hash : hashes) {
+            try {
+                Files.deleteIfExists(entryPath(hash));
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to delete cache file for prompt hash: " + hash, e);
+                cleared = false;
             }
-            LOGGER.info("LLM cache cleared");
-            return true;
-        } catch (Exception e) {
-            LOGGER.log(Level.SEVERE, "Failed to clear cache", e);
-            return false;
         }
+        LOGGER.info("LLM cache cleared");
+        return cleared;
     }
     
     /**
@@ -198,20 +496,8 @@ public class LLMCache {
      * 
      * @return The total size of all cached responses in bytes
      */
-    public long getCacheSize() {
-        try {
-            File[] cacheFiles = cacheDirectory.toFile().listFiles((dir, name) -> name.endsWith(".txt"));
-            if (cacheFiles != null) {
-                long totalSize = 0;
-                for (File file : cacheFiles) {
-                    totalSize += file.length();
-                }
-                return totalSize;
-            }
-        } catch (Exception e) {
-            LOGGER.log(Level.SEVERE, "Failed to calculate cache size", e);
-        }
-        return 0;
+    public synchronized long getCacheSize() {
+        return totalBytes;
     }
     
     /**
@@ -219,13 +505,90 @@ public class LLMCache {
      * 
      * @return The number of cached responses
      */
-    public int getCacheCount() {
-        try {
-            File[] cacheFiles = cacheDirectory.toFile().listFiles((dir, name) -> name.endsWith(".txt"));
-            return cacheFiles != null ? cacheFiles.length : 0;
-        } catch (Exception e) {
-            LOGGER.log(Level.SEVERE, "Failed to count cache entries", e);
-            return 0;
-        }
+    public synchronized int getCacheCount() {
+        return index.size();
+    }
+
+    /**
+     * Get the size limit of the cache
+     *
+     * @return The size in bytes beyond which the least recently used responses are deleted
+     */
+    public long getMaxSize() {
+        return maxBytes;
+    }
+
+    /**
+     * Get the number of responses found in memory
+     *
+     * @return The number of lookups answered from memory
+     */
+    public long getMemoryHitCount() {
+        return memoryHits.get();
+    }
+
+    /**
+     * Get the number of responses read from disk
+     *
+     * @return The number of lookups answered from disk
+     */
+    public long getDiskHitCount() {
+        return diskHits.get();
+    }
+
+    /**
+     * Get the number of prompts that were not cached
+     *
+     * @return The number of lookups that went to Ollama
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Get the number of responses deleted to keep the cache within its size limit
+     *
+     * @return The number of evicted responses
+     */
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * Get the number of prompts that waited for a request of another caller instead of calling Ollama
+     *
+     * @return The number of coalesced requests
+     */
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    /**
+     * Get the number of prompts answered with the cached answer of a warm-start model
+     *
+     * @return The number of warm-start hits, also counted as memory or disk hits
+     */
+    public long getWarmStartHitCount() {
+        return warmStartHits.get();
+    }
+
+    /**
+     * Get the models whose cached answers are reused when the configured model has none
+     *
+     * @return The warm-start models, in the order they are tried
+     */
+    public List<String> getWarmStartModels() {
+        return Collections.unmodifiableList(warmStartModels);
+    }
+
+    /**
+     * Get the share of lookups answered from the cache
+     *
+     * @return The hit ratio between 0 and 1, or 0 if nothing was looked up yet
+     */
+    public double getHitRatio() {
+        long hits = memoryHits.get() + diskHits.get();
+        long lookups = hits + misses.get();
+        return lookups > 0 ? (double) hits / lookups : 0.0;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,54 @@
+package com.intenovation.invoice;
+
+import com.intenovation.appfw.systemtray.BackgroundTask;
+import com.intenovation.appfw.systemtray.ProgressStatusCallback;
+
+import java.util.List;
+
+/**
+ * Gives the message parts the patterns of the {@link EnhancedInvoiceProcessor} could not parse to Ollama,
+ * in the background, and merges the resulting invoices into the stored results.
+ * The parts wait in the {@link LLMEnrichmentQueue}, so the processor itself never waits for Ollama.
+ */
+public class LLMEnrichment extends BackgroundTask {
+    private static final int INTERVAL_SECONDS = 5 * 60;
+
+    private final EnhancedInvoiceProcessor processor;
+
+    /**
+     * Create a new enrichment task
+     *
+     * @param processor The invoice processor whose queued message parts are enriched
+     */
+    public LLMEnrichment(EnhancedInvoiceProcessor processor) {
+        super(
+                "LLM Enrichment",
+                "Parses the invoices the patterns could not read with Ollama",
+                INTERVAL_SECONDS,
+                true  // Available in menu
+        );
+        this.processor = processor;
+    }
+
+    /**
+     * Execute the task with progress and status reporting
+     *
+     * @param callback Callback for reporting progress and status messages
+     * @return Status message that will be displayed on completion
+     * @throws InterruptedException if the task is cancelled
+     */
+    @Override
+    public String execute(ProgressStatusCallback callback) throws InterruptedException {
+        return processor.enrichQueued(callback);
+    }
+
+    /**
+     * Get the number of waiting message parts and the Ollama request statistics
+     *
+     * @return The status lines
+     */
+    @Override
+    public List<String> getMetrics() {
+        return processor.getEnrichmentMetrics();
+    }
+}
@@ -0,0 +1,210 @@
+package com.intenovation.invoice;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Persistent queue of the message parts the rule-based parser could not parse and that wait for Ollama.
+ * The invoice processor stores the rule-based results of a message right away and puts the remaining parts
+ * here; the {@link LLMEnrichment} task works through the queue and merges the results into the stored invoices.
+ * The queue is a binary file ({@code .llm-enrichment-queue}) in the output directory, so waiting parts
+ * survive a restart.
+ */
+public class LLMEnrichmentQueue {
+    private static final Logger LOGGER = Logger.getLogger(LLMEnrichmentQueue.class.getName());
+
+    /**
+     * Name of the queue file inside the output directory
+     */
+    public static final String FILE_NAME = ".llm-enrichment-queue";
+
+    private static final int MAGIC = 0x4C4C5131; // "LLQ1"
+
+    private final File file;
+
+    // Waiting parts by message ID, the oldest message first
+    private final LinkedHashMap<String, List<Item>> items = new LinkedHashMap<>();
+    private boolean dirty;
+
+    /**
+     * A message part waiting for Ollama, with the message state it was parsed from
+     */
+    public static class Item {
+        private final String messageId;
+        private final String fingerprint;
+        private final String version;
+        private final Invoice invoice;
+        private final String text;
+
+        Item(String messageId, String fingerprint, String version, Invoice invoice, String text) {
+            this.messageId = messageId;
+            this.fingerprint = fingerprint;
+            this.version = version;
+            this.invoice = invoice;
+            this.text = text;
+        }
+
+        public String getMessageId() { return messageId; }
+        public String getFingerprint() { return fingerprint; }
+        public String getVersion() { return version; }
+        /** @return The invoice with the fields known before Ollama */
+        public Invoice getInvoice() { return invoice; }
+        /** @return The plain text of the part */
+        public String getText() { return text; }
+    }
+
+    private LLMEnrichmentQueue(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Load the queue of an output directory; a missing or unreadable queue is empty
+     *
+     * @param outputDirectory The invoice output directory
+     * @return The queue
+     */
+    public static LLMEnrichmentQueue load(File outputDirectory) {
+        LLMEnrichmentQueue queue = new LLMEnrichmentQueue(new File(outputDirectory, FILE_NAME));
+        queue.read();
+        return queue;
+    }
+
+    /**
+     * Replace the waiting parts of a message, e.g. after it was parsed again
+     *
+     * @param messageId The message ID
+     * @param fingerprint The fingerprint of the message
+     * @param version The results version of the parser
+     * @param parts The parts that need Ollama; none to drop the message from the queue
+     */
+    synchronized void put(String messageId, String fingerprint, String version, List<InvoiceParser.ContentPart> parts) {
+        List<Item> messageItems = new ArrayList<>(parts.size());
+        for (InvoiceParser.ContentPart part : parts) {
+            messageItems.add(new Item(messageId, fingerprint, version, part.getInvoice(), part.getText()));
+        }
+        List<Item> previous = messageItems.isEmpty() ? items.remove(messageId) : items.put(messageId, messageItems);
+        dirty |= previous != null || !messageItems.isEmpty();
+    }
+
+    /**
+     * Remove a part after Ollama answered for it; does nothing if the message was put again meanwhile
+     *
+     * @param item The part
+     */
+    public synchronized void remove(Item item) {
+        List<Item> messageItems = items.get(item.messageId);
+        if (messageItems != null && messageItems.remove(item)) {
+            if (messageItems.isEmpty()) {
+                items.remove(item.messageId);
+            }
+            dirty = true;
+        }
+    }
+
+    /**
+     * Drop the parts of messages that no longer exist
+     *
+     * @param messageIds The IDs of the existing messages
+     */
+    public synchronized void retain(Set<String> messageIds) {
+        dirty |= items.keySet().retainAll(messageIds);
+    }
+
+    /**
+     * Get the waiting parts, the oldest first
+     *
+     * @return A copy of the queue
+     */
+    public synchronized List<Item> snapshot() {
+        List<Item> snapshot = new ArrayList<>();
+        for (List<Item> messageItems : items.values()) {
+            snapshot.addAll(messageItems);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Get the number of waiting parts
+     *
+     * @return The number of parts
+     */
+    public synchronized int size() {
+        int size = 0;
+        for (List<Item> messageItems : items.values()) {
+            size += messageItems.size();
+        }
+        return size;
+    }
+
+    /**
+     * Read the queue file, leaving the queue empty if it is missing or unreadable
+     */
+    private void read() {
+        if (!file.exists()) {
+            return;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            if (in.readInt() != MAGIC) {
+                LOGGER.warning("Unknown enrichment queue format, starting with an empty queue: " + file);
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String messageId = in.readUTF();
+                String fingerprint = in.readUTF();
+                String version = in.readUTF();
+                Invoice invoice = ProcessedMessageLedger.readInvoice(in);
+                byte[] text = new byte[in.readInt()];
+                in.readFully(text);
+                items.computeIfAbsent(messageId, k -> new ArrayList<>()).add(new Item(messageId, fingerprint, version,
+                        invoice, new String(text, StandardCharsets.UTF_8)));
+            }
+            LOGGER.info("Loaded " + count + " message parts waiting for Ollama");
+        } catch (IOException | IllegalArgumentException e) {
+            LOGGER.log(Level.WARNING, "Error reading enrichment queue, starting with an empty queue: " + file, e);
+            items.clear();
+        }
+    }
+
+    /**
+     * Write the queue to a temporary file and move it into place, if it changed since it was last written
+     */
+    public synchronized void save() {
+        if (!dirty) {
+            return;
+        }
+        File tmp = new File(file.getParentFile(), FILE_NAME + ".tmp");
+        try {
+            List<Item> snapshot = snapshot();
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+                out.writeInt(MAGIC);
+                out.writeInt(snapshot.size());
+                for (Item item : snapshot) {
+                    out.writeUTF(item.messageId);
+                    out.writeUTF(item.fingerprint);
+                    out.writeUTF(item.version);
+                    ProcessedMessageLedger.writeInvoice(out, item.invoice);
+                    byte[] text = item.text.getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(text.length);
+                    out.write(text);
+                }
+            }
+            try {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            dirty = false;
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Error writing enrichment queue: " + file, e);
+        }
+    }
+}
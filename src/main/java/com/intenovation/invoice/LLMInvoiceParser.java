@@ -14,6 +14,12 @@ import java.util.logging.Logger;
 public class LLMInvoiceParser {
     private static final Logger LOGGER = Logger.getLogger(LLMInvoiceParser.class.getName());
 
+    /**
+     * Version of the prompt template; increase it when {@link #createPrompt} changes, so answers cached
+     * for the old prompt are not reused
+     */
+    public static final int PROMPT_VERSION = 1;
+
     private final InvoiceConfiguration config;
     private final LLMCache llmCache;
 
@@ -23,7 +29,7 @@ public class LLMInvoiceParser {
      */
     public LLMInvoiceParser(InvoiceConfiguration config) {
         this.config = config;
-        this.llmCache = new LLMCache(config);
+        this.llmCache = new LLMCache(config, PROMPT_VERSION);
 
         LOGGER.info("Initialized LLMInvoiceParser with model: " + config.getOllamaModel());
     }
@@ -219,14 +225,24 @@ public class LLMInvoiceParser {
      * @return A string containing cache statistics
      */
     public String getCacheStats() {
-        int cacheCount = llmCache.getCacheCount();
-        long cacheSize = llmCache.getCacheSize();
-
+        String warmStart = llmCache.getWarmStartModels().isEmpty() ? "off"
+                : llmCache.getWarmStartHitCount() + " answers of " + String.join(", ", llmCache.getWarmStartModels());
         return String.format("LLM Cache Statistics:\n" +
                         "  Cached responses: %d\n" +
-                        "  Total cache size: %.2f MB",
-                cacheCount,
-                cacheSize / (1024.0 * 1024.0));
+                        "  Total cache size: %.2f of %d MB\n" +
+                        "  Hits: %d in memory, %d on disk (%.0f%% hit ratio)\n" +
+                        "  Misses: %d, %d more waited for the same prompt, evicted: %d\n" +
+                        "  Warm start: %s",
+                llmCache.getCacheCount(),
+                llmCache.getCacheSize() / (1024.0 * 1024.0),
+                llmCache.getMaxSize() / (1024 * 1024),
+                llmCache.getMemoryHitCount(),
+                llmCache.getDiskHitCount(),
+                llmCache.getHitRatio() * 100,
+                llmCache.getMissCount(),
+                llmCache.getCoalescedCount(),
+                llmCache.getEvictionCount(),
+                warmStart);
     }
 
     /**
@@ -1,79 +1,238 @@
 package com.intenovation.invoice;
 
-import io.github.ollama4j.OllamaAPI;
-import io.github.ollama4j.models.response.OllamaResult;
-import io.github.ollama4j.utils.OptionsBuilder;
+import org.json.JSONException;
+import org.json.JSONObject;
 
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
- * Service that encapsulates the Ollama4j API calls.
- * This isolates the direct dependency on Ollama4j to a single class.
+ * Long-lived client of one Ollama server. All requests go through a single HTTP client, so connections are kept
+ * alive and reused instead of being opened for every prompt. The number of requests in flight is limited,
+ * callers beyond the limit wait for a free slot. Whether the server is reachable is checked at most every
+ * few seconds and learned from the requests themselves, instead of pinging before every prompt.
  */
 public class OllamaInvokeService {
     private static final Logger LOGGER = Logger.getLogger(OllamaInvokeService.class.getName());
-    
+
+    /**
+     * How long a successful health check is trusted
+     */
+    private static final long HEALTHY_MILLIS = TimeUnit.SECONDS.toMillis(60);
+
+    /**
+     * How long a failed health check is trusted before the server is tried again
+     */
+    private static final long UNHEALTHY_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+    /**
+     * Sampling temperature of all requests, low for deterministic answers
+     */
+    static final double TEMPERATURE = 0.0;
+
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(10);
+    private static final Duration PING_TIMEOUT = Duration.ofSeconds(5);
+
+    private static final Map<String, OllamaInvokeService> INSTANCES = new ConcurrentHashMap<>();
+
     private final String host;
-    private final String model;
-    private final int maxTokens;
-    private final int timeoutSeconds;
-    
+    private final HttpClient httpClient;
+
+    // Requests in flight, guarded by this
+    private int maxInFlight = 2;
+    private int inFlight;
+
+    // Cached health check, guarded by healthLock
+    private final Object healthLock = new Object();
+    private volatile boolean healthy;
+    private volatile long healthCheckedAt;
+
+    // Statistics
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong pings = new AtomicLong();
+    private final AtomicLong requestNanos = new AtomicLong();
+
+    private OllamaInvokeService(String host) {
+        this.host = host.endsWith("/") ? host.substring(0, host.length() - 1) : host;
+        this.httpClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(CONNECT_TIMEOUT)
+                .build();
+    }
+
     /**
-     * Create a new OllamaInvokeService
-     * 
+     * Get the shared client of an Ollama server, creating it on first use
+     *
      * @param host The Ollama host URL
-     * @param model The Ollama model to use
-     * @param maxTokens Maximum number of tokens to generate
-     * @param timeoutSeconds Timeout in seconds for API calls
+     * @return The client
+     */
+    public static OllamaInvokeService getInstance(String host) {
+        return INSTANCES.computeIfAbsent(host, OllamaInvokeService::new);
+    }
+
+    /**
+     * Set the number of requests that may be in flight at the same time
+     *
+     * @param maxInFlight The limit, at least 1
      */
-    public OllamaInvokeService(String host, String model, int maxTokens, int timeoutSeconds) {
-        this.host = host;
-        this.model = model;
-        this.maxTokens = maxTokens;
-        this.timeoutSeconds = timeoutSeconds;
+    public synchronized void setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = Math.max(1, maxInFlight);
+        notifyAll();
     }
-    
+
     /**
-     * Invoke the Ollama API with a prompt
-     * 
+     * Check if the server is reachable, pinging it only if the last result is too old
+     *
+     * @return true if the server answered the last check or request
+     */
+    public boolean isAvailable() {
+        long age = System.currentTimeMillis() - healthCheckedAt;
+        if (age < (healthy ? HEALTHY_MILLIS : UNHEALTHY_MILLIS)) {
+            return healthy;
+        }
+        synchronized (healthLock) {
+            // Another thread may have checked while this one waited
+            age = System.currentTimeMillis() - healthCheckedAt;
+            if (age < (healthy ? HEALTHY_MILLIS : UNHEALTHY_MILLIS)) {
+                return healthy;
+            }
+            pings.incrementAndGet();
+            boolean reachable;
+            try {
+                HttpRequest request = HttpRequest.newBuilder(URI.create(host + "/api/tags"))
+                        .timeout(PING_TIMEOUT)
+                        .GET()
+                        .build();
+                reachable = httpClient.send(request, HttpResponse.BodyHandlers.discarding()).statusCode() == 200;
+            } catch (IOException e) {
+                reachable = false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            if (!reachable) {
+                LOGGER.log(Level.WARNING, "Ollama server is not available at " + host);
+            }
+            setHealth(reachable);
+            return reachable;
+        }
+    }
+
+    /**
+     * Invoke the Ollama API with a prompt, waiting for a free slot if the in-flight limit is reached
+     *
+     * @param model The Ollama model to use
      * @param prompt The prompt to send to Ollama
-     * @return The response from Ollama or null if an error occurs
+     * @param maxTokens Maximum number of tokens to generate
+     * @param timeoutSeconds Timeout in seconds for the request
+     * @return The response from Ollama or null if the server is unavailable or an error occurs
      */
-    public String invokeOllama(String prompt) {
+    public String invokeOllama(String model, String prompt, int maxTokens, int timeoutSeconds) {
+        if (!isAvailable()) {
+            return null;
+        }
+
+        JSONObject options = new JSONObject()
+                .put("temperature", TEMPERATURE)
+                .put("num_predict", maxTokens);
+        JSONObject body = new JSONObject()
+                .put("model", model)
+                .put("prompt", prompt)
+                .put("stream", false)  // Don't stream the response
+                .put("options", options);
+        HttpRequest request = HttpRequest.newBuilder(URI.create(host + "/api/generate"))
+                .timeout(Duration.ofSeconds(timeoutSeconds))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(body.toString(), StandardCharsets.UTF_8))
+                .build();
+
         try {
-            // Create Ollama API client
-            OllamaAPI ollamaAPI = new OllamaAPI(host);
-            ollamaAPI.setRequestTimeoutSeconds(timeoutSeconds);
-            
-            // Check if Ollama server is available
-            if (!ollamaAPI.ping()) {
-                LOGGER.log(Level.WARNING, "Ollama server is not available at " + host);
+            acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        long start = System.nanoTime();
+        try {
+            requests.incrementAndGet();
+            HttpResponse<String> response = httpClient.send(request,
+                    HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8));
+            setHealth(true);
+            if (response.statusCode() != 200) {
+                failures.incrementAndGet();
+                LOGGER.warning("Ollama returned HTTP " + response.statusCode() + ": " + response.body());
                 return null;
             }
-            
-            // Create options for the API call
-            OptionsBuilder options = new OptionsBuilder()
-                    .setTemperature(0.0f)  // Low temperature for more deterministic outputs
-                    .setNumPredict(maxTokens);
-            
-            // Call Ollama API
-            OllamaResult result = ollamaAPI.generate(
-                    model,
-                    prompt,
-                    false,  // Don't stream the response
-                    options.build()
-            );
-            
-            // Return the response if available
-            if (result != null) {
-                return result.getResponse();
-            }
-            
-            return null;
-        } catch (Exception e) {
+            return new JSONObject(response.body()).optString("response", null);
+        } catch (IOException e) {
+            failures.incrementAndGet();
+            setHealth(false);
             LOGGER.log(Level.SEVERE, "Error invoking Ollama API", e);
             return null;
+        } catch (JSONException e) {
+            failures.incrementAndGet();
+            LOGGER.log(Level.SEVERE, "Invalid response from Ollama API", e);
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            requestNanos.addAndGet(System.nanoTime() - start);
+            release();
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Get the request counts and the average request time
+     *
+     * @return A summary line
+     */
+    public String getStatistics() {
+        long count = requests.get();
+        int active;
+        int limit;
+        synchronized (this) {
+            active = inFlight;
+            limit = maxInFlight;
+        }
+        return String.format("Ollama: %d requests (%.1f s average), %d failed, %d health checks, %d/%d in flight",
+                count, count > 0 ? requestNanos.get() / 1e9 / count : 0.0, failures.get(), pings.get(), active, limit);
+    }
+
+    long getRequestCount() {
+        return requests.get();
+    }
+
+    long getHealthCheckCount() {
+        return pings.get();
+    }
+
+    private void setHealth(boolean reachable) {
+        healthy = reachable;
+        healthCheckedAt = System.currentTimeMillis();
+    }
+
+    private synchronized void acquire() throws InterruptedException {
+        while (inFlight >= maxInFlight) {
+            wait();
+        }
+        inFlight++;
+    }
+
+    private synchronized void release() {
+        inFlight--;
+        notifyAll();
+    }
+}
@@ -0,0 +1,297 @@
+package com.intenovation.invoice;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Persistent record of the messages the invoice processor has parsed: message ID → fingerprint →
+ * results version → extracted invoices. A message whose fingerprint and results version are unchanged
+ * is not parsed again; its recorded invoices are used instead.
+ * The ledger is a binary file ({@code .processed-messages}) in the output directory.
+ */
+public class ProcessedMessageLedger {
+    private static final Logger LOGGER = Logger.getLogger(ProcessedMessageLedger.class.getName());
+
+    /**
+     * Name of the ledger file inside the output directory
+     */
+    public static final String FILE_NAME = ".processed-messages";
+
+    private static final int MAGIC = 0x4C454431; // "LED1"
+
+    /**
+     * Longer values are truncated, they would not fit a modified UTF-8 string
+     */
+    private static final int MAX_VALUE_LENGTH = 16000;
+
+    private final File file;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * Recorded results of one message
+     */
+    private static class Entry {
+        final String fingerprint;
+        final String version;
+        final List<Invoice> invoices;
+
+        Entry(String fingerprint, String version, List<Invoice> invoices) {
+            this.fingerprint = fingerprint;
+            this.version = version;
+            this.invoices = invoices;
+        }
+    }
+
+    private ProcessedMessageLedger(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Load the ledger of an output directory; a missing or unreadable ledger is empty
+     *
+     * @param outputDirectory The invoice output directory
+     * @return The ledger
+     */
+    public static ProcessedMessageLedger load(File outputDirectory) {
+        ProcessedMessageLedger ledger = new ProcessedMessageLedger(new File(outputDirectory, FILE_NAME));
+        ledger.read();
+        return ledger;
+    }
+
+    /**
+     * Get the recorded results of a message if they are still valid
+     *
+     * @param messageId The message ID
+     * @param fingerprint The current fingerprint of the message
+     * @param version The current results version of the parser
+     * @return The recorded invoices, or null if the message has to be parsed
+     */
+    public List<Invoice> get(String messageId, String fingerprint, String version) {
+        Entry entry = entries.get(messageId);
+        if (entry == null || !entry.fingerprint.equals(fingerprint) || !entry.version.equals(version)) {
+            return null;
+        }
+        return entry.invoices;
+    }
+
+    /**
+     * Record the results of a parsed message
+     *
+     * @param messageId The message ID
+     * @param fingerprint The fingerprint of the message
+     * @param version The results version of the parser
+     * @param invoices The extracted invoices
+     */
+    public void put(String messageId, String fingerprint, String version, List<Invoice> invoices) {
+        entries.put(messageId, new Entry(fingerprint, version, new ArrayList<>(invoices)));
+    }
+
+    /**
+     * Add invoices to the recorded results of a message, e.g. when Ollama parsed a part after the message was stored
+     *
+     * @param messageId The message ID
+     * @param fingerprint The fingerprint the invoices were extracted from
+     * @param version The results version the invoices were extracted with
+     * @param invoices The additional invoices; invoices the entry already has are skipped
+     * @return true if the entry exists and still belongs to this fingerprint and version
+     */
+    public boolean addInvoices(String messageId, String fingerprint, String version, List<Invoice> invoices) {
+        Entry updated = entries.computeIfPresent(messageId, (id, entry) -> {
+            if (!entry.fingerprint.equals(fingerprint) || !entry.version.equals(version)) {
+                return entry;
+            }
+            List<Invoice> merged = new ArrayList<>(entry.invoices);
+            Set<String> existing = new HashSet<>();
+            for (Invoice invoice : merged) {
+                existing.add(invoice.toString());
+            }
+            for (Invoice invoice : invoices) {
+                if (existing.add(invoice.toString())) {
+                    merged.add(invoice);
+                }
+            }
+            return new Entry(fingerprint, version, merged);
+        });
+        return updated != null && updated.fingerprint.equals(fingerprint) && updated.version.equals(version);
+    }
+
+    /**
+     * Drop the entries of messages that no longer exist
+     *
+     * @param messageIds The IDs of the existing messages
+     */
+    public void retain(Set<String> messageIds) {
+        entries.keySet().retainAll(messageIds);
+    }
+
+    /**
+     * Forget all messages, so the next run parses everything again
+     */
+    public void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Get the number of recorded messages
+     *
+     * @return The number of entries
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Fingerprint of a message from the headers the local store answers without reading the content.
+     * The size is part of it, so a message that is downloaded again with different content gets
+     * a new fingerprint.
+     *
+     * @param message The message
+     * @return The fingerprint as a hex string
+     * @throws MessagingException If the headers cannot be read
+     */
+    public static String fingerprint(Message message) throws MessagingException {
+        StringBuilder sb = new StringBuilder();
+        sb.append(message.getSubject()).append('\n');
+        sb.append(message.getFrom() != null && message.getFrom().length > 0 ? message.getFrom()[0] : null).append('\n');
+        sb.append(message.getSentDate() != null ? message.getSentDate().getTime() : 0).append('\n');
+        sb.append(message.getReceivedDate() != null ? message.getReceivedDate().getTime() : 0).append('\n');
+        sb.append(message.getSize());
+
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(sb.toString().getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (int i = 0; i < 16; i++) {
+                hex.append(String.format("%02x", hash[i]));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(sb.toString().hashCode());
+        }
+    }
+
+    /**
+     * Read the ledger file, leaving the ledger empty if it is missing or unreadable
+     */
+    private void read() {
+        if (!file.exists()) {
+            return;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            if (in.readInt() != MAGIC) {
+                LOGGER.warning("Unknown ledger format, all messages will be parsed again: " + file);
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String messageId = in.readUTF();
+                String fingerprint = in.readUTF();
+                String version = in.readUTF();
+                int invoiceCount = in.readInt();
+                List<Invoice> invoices = new ArrayList<>(invoiceCount);
+                for (int j = 0; j < invoiceCount; j++) {
+                    invoices.add(readInvoice(in));
+                }
+                entries.put(messageId, new Entry(fingerprint, version, invoices));
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            LOGGER.log(Level.WARNING, "Error reading ledger, all messages will be parsed again: " + file, e);
+            entries.clear();
+        }
+    }
+
+    /**
+     * Write the ledger to a temporary file and move it into place
+     */
+    public synchronized void save() {
+        File tmp = new File(file.getParentFile(), FILE_NAME + ".tmp");
+        try {
+            List<Map.Entry<String, Entry>> snapshot = new ArrayList<>(entries.entrySet());
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+                out.writeInt(MAGIC);
+                out.writeInt(snapshot.size());
+                for (Map.Entry<String, Entry> mapEntry : snapshot) {
+                    Entry entry = mapEntry.getValue();
+                    out.writeUTF(mapEntry.getKey());
+                    out.writeUTF(entry.fingerprint);
+                    out.writeUTF(entry.version);
+                    out.writeInt(entry.invoices.size());
+                    for (Invoice invoice : entry.invoices) {
+                        writeInvoice(out, invoice);
+                    }
+                }
+            }
+            try {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Error writing ledger: " + file, e);
+        }
+    }
+
+    static void writeInvoice(DataOutputStream out, Invoice invoice) throws IOException {
+        writeNullableUTF(out, invoice.getEmailId());
+        writeNullableUTF(out, invoice.getCity());
+        writeNullableUTF(out, invoice.getUtility());
+        writeNullableUTF(out, invoice.getType() != null ? invoice.getType().name() : null);
+        writeNullableUTF(out, invoice.getEmail());
+        out.writeDouble(invoice.getAmount());
+        writeNullableUTF(out, invoice.getFileName());
+        writeNullableUTF(out, invoice.getSubject());
+        out.writeInt(invoice.getYear());
+        out.writeInt(invoice.getMonth());
+        out.writeInt(invoice.getDay());
+        writeNullableUTF(out, invoice.getDate());
+        writeNullableUTF(out, invoice.getDueDate());
+        writeNullableUTF(out, invoice.getNumber());
+        writeNullableUTF(out, invoice.getAccount());
+        writeNullableUTF(out, invoice.getParse());
+    }
+
+    static Invoice readInvoice(DataInputStream in) throws IOException {
+        Invoice invoice = new Invoice();
+        invoice.setEmailId(readNullableUTF(in));
+        invoice.setCity(readNullableUTF(in));
+        invoice.setUtility(readNullableUTF(in));
+        String type = readNullableUTF(in);
+        invoice.setType(type != null ? Type.valueOf(type) : null);
+        invoice.setEmail(readNullableUTF(in));
+        invoice.setAmount(in.readDouble());
+        invoice.setFileName(readNullableUTF(in));
+        invoice.setSubject(readNullableUTF(in));
+        invoice.setYear(in.readInt());
+        invoice.setMonth(in.readInt());
+        invoice.setDay(in.readInt());
+        invoice.setDate(readNullableUTF(in));
+        invoice.setDueDate(readNullableUTF(in));
+        invoice.setNumber(readNullableUTF(in));
+        invoice.setAccount(readNullableUTF(in));
+        invoice.setParse(readNullableUTF(in));
+        return invoice;
+    }
+
+    private static String readNullableUTF(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeNullableUTF(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value.length() > MAX_VALUE_LENGTH ? value.substring(0, MAX_VALUE_LENGTH) : value);
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package com.intenovation.invoice;
 
+import com.intenovation.email.utils.SynonymClassifier;
+
 import java.util.HashSet;
 import java.util.Set;
 
@@ -40,24 +42,14 @@ public enum Property {
         return synonyms;
     }
 
+    private static final SynonymClassifier<Property> CLASSIFIER = new SynonymClassifier<>(values(), p -> p.synonyms);
+
     /**
      * Detect property from content
      * @param content The content to check
      * @return Detected property or Unknown if not detected
      */
     public static Property detectProperty(String content) {
-        if (content == null)
-            return Unknown;
-            
-        content = content.toLowerCase();
-        for (Property property : Property.values()) {
-            for (String synonym : property.synonyms) {
-                if (content.contains(synonym)) {
-                    return property;
-                }
-            }
-        }
-
-        return Unknown;
+        return CLASSIFIER.classify(content, Unknown);
     }
 }
\ No newline at end of file
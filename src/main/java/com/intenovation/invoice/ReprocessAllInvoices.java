@@ -0,0 +1,39 @@
+package com.intenovation.invoice;
+
+import com.intenovation.appfw.systemtray.BackgroundTask;
+import com.intenovation.appfw.systemtray.ProgressStatusCallback;
+
+/**
+ * Parses all messages again, ignoring the results recorded by earlier runs of the
+ * {@link EnhancedInvoiceProcessor}. Needed after the parsing rules or the Ollama settings changed.
+ */
+public class ReprocessAllInvoices extends BackgroundTask {
+    private final EnhancedInvoiceProcessor processor;
+
+    /**
+     * Create a new reprocessing task
+     *
+     * @param processor The invoice processor whose recorded results are discarded
+     */
+    public ReprocessAllInvoices(EnhancedInvoiceProcessor processor) {
+        super(
+                "Reprocess All Invoices",
+                "Parses all emails again, e.g. after the invoice parsing rules changed",
+                0,    // Manual only
+                true  // Available in menu
+        );
+        this.processor = processor;
+    }
+
+    /**
+     * Execute the task with progress and status reporting
+     *
+     * @param callback Callback for reporting progress and status messages
+     * @return Status message that will be displayed on completion
+     * @throws InterruptedException if the task is cancelled
+     */
+    @Override
+    public String execute(ProgressStatusCallback callback) throws InterruptedException {
+        return processor.reprocessAll(callback);
+    }
+}
@@ -1,5 +1,7 @@
 package com.intenovation.invoice;
 
+import com.intenovation.email.utils.SynonymClassifier;
+
 import java.util.HashSet;
 import java.util.Set;
 
@@ -48,24 +50,14 @@ public enum Utility {
         return synonyms;
     }
     
+    private static final SynonymClassifier<Utility> CLASSIFIER = new SynonymClassifier<>(values(), u -> u.synonyms);
+
     /**
      * Detect utility type from content
      * @param content The content to check
      * @return Detected utility or Unknown if not detected
      */
     public static Utility detectUtility(String content) {
-        if (content == null)
-            return Unknown;
-            
-        content = content.toLowerCase();
-        for (Utility utility : Utility.values()) {
-            for (String synonym : utility.synonyms) {
-                if (content.contains(synonym)) {
-                    return utility;
-                }
-            }
-        }
-
-        return Unknown;
+        return CLASSIFIER.classify(content, Unknown);
     }
 }
\ No newline at end of file
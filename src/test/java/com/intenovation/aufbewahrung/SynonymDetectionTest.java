@@ -0,0 +1,27 @@
+package com.intenovation.aufbewahrung;
+
+import java.util.Random;
+import java.util.logging.Logger;
+
+/**
+ * Test harness comparing the Type, City, Utility and Property detection of Aufbewahrung with the lower-case
+ * {@code contains} loops it replaced, see {@link com.intenovation.invoice.SynonymDetectionTest}.
+ */
+public class SynonymDetectionTest {
+    private static final Logger LOGGER = Logger.getLogger(SynonymDetectionTest.class.getName());
+
+    public static void main(String[] args) {
+        Random random = new Random(42);
+        int texts = 10_000;
+        com.intenovation.invoice.SynonymDetectionTest.checkEquivalent("Type", Type.values(), t -> t.synonyms,
+                Type::detectType, Type.Letter, random, texts);
+        com.intenovation.invoice.SynonymDetectionTest.checkEquivalent("City", City.values(), c -> c.synonyms,
+                City::detectCity, City.Unknown, random, texts);
+        com.intenovation.invoice.SynonymDetectionTest.checkEquivalent("Utility", Utility.values(), u -> u.synonyms,
+                Utility::detectUtility, Utility.Unknown, random, texts);
+        com.intenovation.invoice.SynonymDetectionTest.checkEquivalent("Property", Property.values(), p -> p.synonyms,
+                Property::detectCity, Property.Unknown, random, texts);
+
+        LOGGER.info("Synonym detection checks passed for " + texts + " texts per enum");
+    }
+}
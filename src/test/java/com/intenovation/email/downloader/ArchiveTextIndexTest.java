@@ -0,0 +1,107 @@
+package com.intenovation.email.downloader;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Test harness for {@link ArchiveTextIndex}: messages of message directories and segment records are found,
+ * hits are ranked with BM25, every query word must match as a word or word prefix, deleted messages drop out
+ * on the next update, and the saved index is read back.
+ */
+public class ArchiveTextIndexTest {
+    private static final Logger LOGGER = Logger.getLogger(ArchiveTextIndexTest.class.getName());
+
+    public static void main(String[] args) throws Exception {
+        File baseDir = Files.createTempDirectory("archive-text-index").toFile();
+        try {
+            File folderDir = new File(baseDir, "INBOX");
+            File messagesDir = new File(folderDir, "messages");
+            writeDirectory(messagesDir, "msg-1", "Rechnung März",
+                    "Ihre Rechnung von Telekom. Rechnung Nr. 4711, Rechnung als PDF.");
+            writeDirectory(messagesDir, "msg-2", "Newsletter",
+                    "Neuigkeiten der Woche mit vielen Artikeln, Angeboten und Terminen. Eine Rechnung folgt.");
+            SegmentArchive.open(folderDir).append("msg-3", record("msg-3", "Vertrag", "Ihr Telekom Vertrag"));
+
+            ArchiveTextIndex index = ArchiveTextIndex.open(baseDir);
+            check("added", index.update(null), 3);
+            check("indexed", index.size(), 3);
+
+            List<ArchiveTextIndex.Hit> hits = index.search("rechnung", 10);
+            check("hits", hits.size(), 2);
+            check("best hit", hits.get(0).getKey(), "msg-1");
+            check("ranked by score", hits.get(0).getScore() > hits.get(1).getScore(), true);
+            check("hit folder", hits.get(0).getFolder(), "INBOX");
+            check("hit subject", hits.get(0).getSubject(), "Rechnung März");
+            check("prefix hits", index.search("rechn", 10).size(), 2);
+            check("all words", keys(index.search("rechnung telekom", 10)), "[msg-1]");
+            check("segment record", keys(index.search("vertrag", 10)), "[msg-3]");
+            check("limit", index.search("rechnung", 1).size(), 1);
+            check("no hits", index.search("quittung", 10).size(), 0);
+            check("nothing new", index.update(null), 0);
+
+            // A deleted message drops out and the saved index is read back by another instance
+            FileUtils.deleteDirectory(new File(messagesDir, "msg-2"));
+            check("added after delete", index.update(null), 0);
+            check("indexed after delete", index.size(), 2);
+            check("hits after delete", keys(index.search("rechnung", 10)), "[msg-1]");
+            ArchiveTextIndex reopened = ArchiveTextIndex.open(copy(baseDir, new File(baseDir.getPath() + "-copy")));
+            check("indexed after reopening", reopened.size(), 2);
+            check("hits after reopening", reopened.search("telekom", 10).size(), 2);
+
+            LOGGER.info("Archive text index checks passed");
+        } finally {
+            FileUtils.deleteDirectory(baseDir);
+            FileUtils.deleteDirectory(new File(baseDir.getPath() + "-copy"));
+        }
+    }
+
+    private static String keys(List<ArchiveTextIndex.Hit> hits) {
+        StringBuilder keys = new StringBuilder("[");
+        for (ArchiveTextIndex.Hit hit : hits) {
+            keys.append(keys.length() > 1 ? ", " : "").append(hit.getKey());
+        }
+        return keys.append("]").toString();
+    }
+
+    private static void writeDirectory(File messagesDir, String key, String subject, String body) throws IOException {
+        File messageDir = new File(messagesDir, key);
+        messageDir.mkdirs();
+        for (Map.Entry<String, byte[]> file : record(key, subject, body).entrySet()) {
+            Files.write(new File(messageDir, file.getKey()).toPath(), file.getValue());
+        }
+    }
+
+    private static Map<String, byte[]> record(String key, String subject, String body) {
+        Map<String, byte[]> files = new LinkedHashMap<>();
+        files.put("message.properties", ("message.id=<" + key + "@example.com>\n" +
+                "subject=" + subject + "\n" +
+                "from=info@example.com\n" +
+                "received.date=2024-03-01 09:00:00\n").getBytes(StandardCharsets.ISO_8859_1));
+        files.put("content.txt", body.getBytes(StandardCharsets.UTF_8));
+        return files;
+    }
+
+    private static File copy(File source, File target) throws IOException {
+        Path from = source.toPath();
+        try (Stream<Path> paths = Files.walk(from)) {
+            for (Path path : (Iterable<Path>) paths::iterator) {
+                Files.copy(path, target.toPath().resolve(from.relativize(path).toString()));
+            }
+        }
+        return target;
+    }
+
+    private static void check(String what, Object actual, Object expected) {
+        if (!actual.equals(expected)) {
+            throw new IllegalStateException(what + ": expected " + expected + ", got " + actual);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.intenovation.email.downloader;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Test harness for {@link AttachmentStore}: the same content attached to several messages is stored once,
+ * the references of every message resolve to the stored content, alongside legacy attachment files, and a sweep
+ * deletes only the blobs that neither message directories nor segment records reference.
+ */
+public class AttachmentStoreTest {
+    private static final Logger LOGGER = Logger.getLogger(AttachmentStoreTest.class.getName());
+
+    public static void main(String[] args) throws Exception {
+        File baseDir = Files.createTempDirectory("attachment-store").toFile();
+        try {
+            AttachmentStore store = new AttachmentStore(baseDir);
+            byte[] invoice = "%PDF-1.4 the same invoice attached twice".getBytes(StandardCharsets.UTF_8);
+            byte[] other = "another attachment".getBytes(StandardCharsets.UTF_8);
+
+            File first = messageDir(baseDir, "first");
+            File second = messageDir(baseDir, "second");
+            File plain = messageDir(baseDir, "plain");
+            String firstHash = store.store(new ByteArrayInputStream(invoice), invoice.length, null);
+            String secondHash = store.store(new ByteArrayInputStream(invoice), invoice.length, null);
+            String otherHash = store.store(new ByteArrayInputStream(other), -1, null);
+            AttachmentStore.addReference(first, "invoice.pdf", firstHash);
+            AttachmentStore.addReference(second, "rechnung.pdf", secondHash);
+            AttachmentStore.addReference(second, "notes.txt", otherHash);
+
+            check("same content, same hash", firstHash.equals(secondHash), true);
+            check("different content, different hash", firstHash.equals(otherHash), false);
+            check("stored blobs", countBlobs(new File(baseDir, AttachmentStore.BLOB_DIR)), 2);
+
+            Map<String, File> firstAttachments = store.listAttachments(first);
+            check("attachments of the first message", firstAttachments.size(), 1);
+            check("resolved content", Files.readAllBytes(firstAttachments.get("invoice.pdf").toPath()), invoice);
+            Map<String, File> secondAttachments = store.listAttachments(second);
+            check("attachments of the second message", secondAttachments.size(), 2);
+            check("shared blob", secondAttachments.get("rechnung.pdf").equals(firstAttachments.get("invoice.pdf")), true);
+            check("second attachment", Files.readAllBytes(secondAttachments.get("notes.txt").toPath()), other);
+
+            // Legacy attachment files are listed next to the stored ones
+            File legacyDir = new File(first, "attachments");
+            legacyDir.mkdirs();
+            Files.write(new File(legacyDir, "old.txt").toPath(), other);
+            check("attachments with a legacy file", store.listAttachments(first).size(), 2);
+
+            check("has attachments", AttachmentStore.hasAttachments(second), true);
+            check("has no attachments", AttachmentStore.hasAttachments(plain), false);
+            check("attachments of a plain message", store.listAttachments(plain).size(), 0);
+
+            // A sweep keeps referenced and recent blobs, and deletes old ones nobody references
+            byte[] orphan = "attachment of a removed duplicate".getBytes(StandardCharsets.UTF_8);
+            String orphanHash = store.store(new ByteArrayInputStream(orphan), -1, null);
+            byte[] recent = "attachment of a running download".getBytes(StandardCharsets.UTF_8);
+            String recentHash = store.store(new ByteArrayInputStream(recent), -1, null);
+            FileUtils.deleteDirectory(first);
+            long old = System.currentTimeMillis() - 2 * AttachmentStore.SWEEP_GRACE_MILLIS;
+            for (String hash : new String[]{firstHash, otherHash, orphanHash}) {
+                store.getBlob(hash).setLastModified(old);
+            }
+            check("swept blobs", store.sweep(), 1);
+            check("orphan deleted", store.getBlob(orphanHash).exists(), false);
+            check("recent blob kept", store.getBlob(recentHash).exists(), true);
+            check("shared blob kept", Files.readAllBytes(store.listAttachments(second).get("rechnung.pdf").toPath()), invoice);
+
+            // References in segment records count as well
+            File archived = new File(baseDir, "Archive");
+            SegmentArchive.open(archived).append("archived", Collections.singletonMap(AttachmentStore.REFERENCES_FILE,
+                    ("notes.txt=" + orphanHash + "\n").getBytes(StandardCharsets.UTF_8)));
+            orphanHash = store.store(new ByteArrayInputStream(orphan), -1, null);
+            FileUtils.deleteDirectory(second);
+            for (String hash : new String[]{firstHash, otherHash, orphanHash}) {
+                store.getBlob(hash).setLastModified(old);
+            }
+            check("swept blobs without message directories", store.sweep(), 2);
+            check("blob of a segment record kept", Files.readAllBytes(store.getBlob(orphanHash).toPath()), orphan);
+
+            LOGGER.info("Attachment store checks passed");
+        } finally {
+            FileUtils.deleteDirectory(baseDir);
+        }
+    }
+
+    private static File messageDir(File baseDir, String name) {
+        File dir = new File(new File(new File(baseDir, "INBOX"), "messages"), name);
+        dir.mkdirs();
+        return dir;
+    }
+
+    private static int countBlobs(File dir) {
+        int count = 0;
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    count += file.getName().equals("incoming") ? 0 : countBlobs(file);
+                } else {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private static void check(String what, Object actual, Object expected) {
+        boolean equal = actual instanceof byte[] && expected instanceof byte[]
+                ? Arrays.equals((byte[]) actual, (byte[]) expected)
+                : actual.equals(expected);
+        if (!equal) {
+            throw new IllegalStateException(what + ": expected " + expected + ", got " + actual);
+        }
+    }
+}
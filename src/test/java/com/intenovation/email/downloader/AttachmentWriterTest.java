@@ -0,0 +1,101 @@
+package com.intenovation.email.downloader;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.logging.Logger;
+
+/**
+ * Test harness for {@link AttachmentWriter}: streams and files are copied unchanged, large attachments report
+ * their progress, and a failed copy leaves neither a partial file nor a damaged earlier version behind.
+ */
+public class AttachmentWriterTest {
+    private static final Logger LOGGER = Logger.getLogger(AttachmentWriterTest.class.getName());
+
+    public static void main(String[] args) throws Exception {
+        File dir = Files.createTempDirectory("attachment-writer").toFile();
+        try {
+            byte[] large = new byte[3 * 1024 * 1024 + 17];
+            new Random(42).nextBytes(large);
+
+            // A stream larger than the buffer, with progress reports
+            File streamed = new File(dir, "streamed.pdf");
+            List<Integer> percents = new ArrayList<>();
+            long written = AttachmentWriter.write(new ByteArrayInputStream(large), streamed, large.length,
+                    (percent, message) -> percents.add(percent));
+            check("bytes written", written, (long) large.length);
+            check("streamed content", Arrays.equals(Files.readAllBytes(streamed.toPath()), large), true);
+            check("final progress", percents.isEmpty() ? -1 : percents.get(percents.size() - 1), 100);
+
+            // A file source is transferred between channels
+            File copied = new File(dir, "copied.pdf");
+            check("bytes transferred", AttachmentWriter.write(new FileInputStream(streamed), copied), (long) large.length);
+            check("transferred content", Arrays.equals(Files.readAllBytes(copied.toPath()), large), true);
+
+            // A small attachment replaces an existing file without progress reports
+            byte[] small = "Rechnung".getBytes(StandardCharsets.UTF_8);
+            percents.clear();
+            AttachmentWriter.write(new ByteArrayInputStream(small), copied, small.length,
+                    (percent, message) -> percents.add(percent));
+            check("replaced content", new String(Files.readAllBytes(copied.toPath()), StandardCharsets.UTF_8), "Rechnung");
+            check("progress of a small attachment", percents.size(), 0);
+
+            // A stream that fails midway leaves the earlier version in place
+            try {
+                AttachmentWriter.write(new FailingStream(large), copied);
+                throw new IllegalStateException("Expected the failing stream to fail the write");
+            } catch (IOException e) {
+                check("error", e.getMessage(), "Connection reset");
+            }
+            check("content after a failed write", new String(Files.readAllBytes(copied.toPath()), StandardCharsets.UTF_8),
+                    "Rechnung");
+            check("files after a failed write", Arrays.asList(dir.list()).size(), 2);
+
+            LOGGER.info("Attachment writer checks passed");
+        } finally {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    /**
+     * Stream that fails after the first megabyte
+     */
+    private static class FailingStream extends InputStream {
+        private final ByteArrayInputStream data;
+        private int read;
+
+        FailingStream(byte[] data) {
+            this.data = new ByteArrayInputStream(data);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (read >= 1024 * 1024) {
+                throw new IOException("Connection reset");
+            }
+            int n = data.read(b, off, len);
+            read += Math.max(n, 0);
+            return n;
+        }
+    }
+
+    private static void check(String what, Object actual, Object expected) {
+        if (!actual.equals(expected)) {
+            throw new IllegalStateException(what + ": expected " + expected + ", got " + actual);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.intenovation.email.downloader;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Test harness for {@link FolderSummary}: the summary holds the headers of message directories and segment records,
+ * is brought up to date when messages are added or deleted, reads only the messages it does not know yet,
+ * and is rebuilt when its file is damaged.
+ */
+public class FolderSummaryTest {
+    private static final Logger LOGGER = Logger.getLogger(FolderSummaryTest.class.getName());
+
+    public static void main(String[] args) throws Exception {
+        File folderDir = Files.createTempDirectory("folder-summary").toFile();
+        try {
+            File messagesDir = new File(folderDir, "messages");
+            writeDirectory(messagesDir, "msg-1", "Rechnung Januar");
+            SegmentArchive.open(folderDir).append("msg-2", record("msg-2", "Rechnung Februar"));
+
+            FolderSummary summary = FolderSummary.load(folderDir);
+            check("messages", summary.size(), 2);
+            FolderSummary.Entry entry = summary.get("msg-1");
+            check("message id", entry.getMessageId(), "<msg-1@example.com>");
+            check("subject", entry.getSubject(), "Rechnung Januar");
+            check("from", entry.getFrom(), "billing@example.com");
+            check("received date", entry.getReceivedDate().getTime() > 0, true);
+            check("size", entry.getSize(), 1234L);
+            check("segment record", summary.get("msg-2").getSubject(), "Rechnung Februar");
+            check("summary file", new File(folderDir, FolderSummary.FILE_NAME).exists(), true);
+
+            // Unchanged messages are not read again when a new message makes the summary stale
+            writeDirectory(messagesDir, "msg-1", "Rechnung geändert");
+            long modified = messagesDir.lastModified();
+            writeDirectory(messagesDir, "msg-3", "Rechnung März");
+            if (messagesDir.lastModified() == modified) {
+                messagesDir.setLastModified(modified + 1000);
+            }
+            summary = FolderSummary.load(folderDir);
+            check("messages after a new message", summary.size(), 3);
+            check("new message", summary.get("msg-3").getSubject(), "Rechnung März");
+            check("known message not read again", summary.get("msg-1").getSubject(), "Rechnung Januar");
+
+            // A deleted message directory drops out
+            modified = messagesDir.lastModified();
+            FileUtils.deleteDirectory(new File(messagesDir, "msg-3"));
+            if (messagesDir.lastModified() == modified) {
+                messagesDir.setLastModified(modified + 1000);
+            }
+            summary = FolderSummary.load(folderDir);
+            check("messages after a delete", summary.size(), 2);
+            check("deleted message", summary.get("msg-3") == null, true);
+
+            // A deleted segment record drops out
+            SegmentArchive.open(folderDir).delete("msg-2");
+            summary = FolderSummary.load(folderDir);
+            check("messages after deleting a record", summary.size(), 1);
+            check("deleted record", summary.get("msg-2") == null, true);
+
+            // A damaged summary file is rebuilt from the messages
+            Files.write(new File(folderDir, FolderSummary.FILE_NAME).toPath(), new byte[]{0, 1, 2});
+            summary = FolderSummary.load(folderDir);
+            check("messages after rebuilding", summary.size(), 1);
+            check("message read again", summary.get("msg-1").getSubject(), "Rechnung geändert");
+
+            LOGGER.info("Folder summary checks passed");
+        } finally {
+            FileUtils.deleteDirectory(folderDir);
+        }
+    }
+
+    private static void writeDirectory(File messagesDir, String key, String subject) throws IOException {
+        File messageDir = new File(messagesDir, key);
+        messageDir.mkdirs();
+        for (Map.Entry<String, byte[]> file : record(key, subject).entrySet()) {
+            Files.write(new File(messageDir, file.getKey()).toPath(), file.getValue());
+        }
+    }
+
+    private static Map<String, byte[]> record(String key, String subject) {
+        Map<String, byte[]> files = new LinkedHashMap<>();
+        files.put("message.properties", ("message.id=<" + key + "@example.com>\n" +
+                "subject=" + subject + "\n" +
+                "from=billing@example.com\n" +
+                "sent.date=2024-03-01 09:00:00\n" +
+                "received.date=2024-03-01 09:05:00\n" +
+                "size.bytes=1234\n").getBytes(StandardCharsets.ISO_8859_1));
+        files.put("content.txt", ("Rechnungsbetrag: 10,00 €").getBytes(StandardCharsets.UTF_8));
+        return files;
+    }
+
+    private static void check(String what, Object actual, Object expected) {
+        if (!actual.equals(expected)) {
+            throw new IllegalStateException(what + ": expected " + expected + ", got " + actual);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.intenovation.email.downloader;
+
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+
+/**
+ * Test harness for the bulk header prefetch against the in-process IMAP stand-in: every work unit fetches the
+ * Message-ID header of its whole range with one FETCH, so neither a download nor the skip-if-exists check of a
+ * second run reads a header with a round trip of its own, and the downloaded messages are the same as writing
+ * each message without a prefetch.
+ */
+public class HeaderPrefetchTest {
+    private static final Logger LOGGER = Logger.getLogger(HeaderPrefetchTest.class.getName());
+    private static final String PROTOCOL = "inmemory";
+    private static final String FOLDER = "INBOX";
+
+    public static void main(String[] args) throws Exception {
+        int count = 2 * ParallelDownloadEngine.CHUNK_SIZE + 100;
+        int units = (count + ParallelDownloadEngine.CHUNK_SIZE - 1) / ParallelDownloadEngine.CHUNK_SIZE;
+        InMemoryImapStore.latencyMillis = 0;
+        InMemoryImapStore.MAILBOX.clear();
+        List<byte[]> messages = new ArrayList<>();
+        for (int m = 0; m < count; m++) {
+            messages.add(createMessage(m));
+        }
+        InMemoryImapStore.MAILBOX.put(FOLDER, messages);
+
+        File baseDir = Files.createTempDirectory("header-prefetch").toFile();
+        File referenceDir = Files.createTempDirectory("header-prefetch-reference").toFile();
+        try {
+            Session session = Session.getInstance(new Properties());
+            InMemoryImapStore.register(session, PROTOCOL);
+
+            ParallelDownloadEngine.Result full = download(session, baseDir);
+            check("downloaded", full.getDownloadedEmails(), count);
+            check("header fetches of the download", InMemoryImapStore.headerFetches.get(), units);
+            check("header round trips of the download", InMemoryImapStore.headerRoundTrips.get(), 0);
+
+            InMemoryImapStore.headerFetches.set(0);
+            ParallelDownloadEngine.Result again = download(session, baseDir);
+            check("downloaded again", again.getDownloadedEmails(), 0);
+            check("header fetches of the skip check", InMemoryImapStore.headerFetches.get(), units);
+            check("header round trips of the skip check", InMemoryImapStore.headerRoundTrips.get(), 0);
+
+            // The same messages written one by one, without a prefetch
+            File referenceMessages = new File(new File(referenceDir, FOLDER), "messages");
+            for (byte[] raw : messages) {
+                MimeMessage message = new MimeMessage(session, new ByteArrayInputStream(raw));
+                EmailDownloader.writeMessage(referenceMessages,
+                        FileUtils.sanitizeFileName(message.getMessageID()), message, null);
+            }
+            TreeMap<String, String> expected = new TreeMap<>();
+            readTree(referenceMessages, "", expected);
+            TreeMap<String, String> actual = new TreeMap<>();
+            readTree(new File(new File(baseDir, FileUtils.sanitizeFolderName(FOLDER)), "messages"), "", actual);
+            check("reference files", expected.size() >= 2 * count, true);
+            check("downloaded files", actual.keySet(), expected.keySet());
+            check("downloaded content", actual, expected);
+
+            LOGGER.info("Header prefetch checks passed for " + count + " messages in " + units + " work units");
+        } finally {
+            FileUtils.deleteDirectory(baseDir);
+            FileUtils.deleteDirectory(referenceDir);
+        }
+    }
+
+    private static ParallelDownloadEngine.Result download(Session session, File baseDir) throws Exception {
+        try (ImapConnectionPool pool = new ImapConnectionPool(session, PROTOCOL, "localhost", -1,
+                "user", "secret", 2)) {
+            return new ParallelDownloadEngine(pool, baseDir, MessageIdIndex.open(baseDir))
+                    .download((percent, message) -> { }, false);
+        }
+    }
+
+    /**
+     * Read the files below a directory by relative path, without the time stamp comments of property files
+     */
+    private static void readTree(File dir, String prefix, TreeMap<String, String> files) throws Exception {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            String path = prefix + child.getName();
+            if (child.isDirectory()) {
+                readTree(child, path + "/", files);
+            } else {
+                StringBuilder content = new StringBuilder();
+                for (String line : Files.readAllLines(child.toPath(), StandardCharsets.ISO_8859_1)) {
+                    if (!(child.getName().endsWith(".properties") && line.startsWith("#"))) {
+                        content.append(line).append('\n');
+                    }
+                }
+                files.put(path, content.toString());
+            }
+        }
+    }
+
+    private static byte[] createMessage(int number) {
+        String raw = "Message-ID: <prefetch-" + number + "@example.com>\r\n" +
+                "From: Billing <billing@example.com>\r\n" +
+                "To: customer@example.com\r\n" +
+                "Cc: accounting@example.com\r\n" +
+                "Subject: Invoice " + number + "\r\n" +
+                "Date: Mon, 15 Apr 2024 10:30:00 +0000\r\n" +
+                "Content-Type: text/plain; charset=UTF-8\r\n" +
+                "\r\n" +
+                "Invoice Number: INV-" + number + "\r\nAmount: $" + (number + 1) + ".00\r\n";
+        return raw.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void check(String what, Object actual, Object expected) {
+        if (!actual.equals(expected)) {
+            throw new IllegalStateException(what + ": expected " + expected + ", got " + actual);
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package com.intenovation.email.downloader;
+
+import javax.mail.*;
+import javax.mail.internet.MimeMessage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An in-process stand-in for an IMAP server, registered as a JavaMail store provider.
+ * Every command sleeps for a configurable latency while holding the connection,
+ * so a single store can only serve one request at a time, like a real IMAP connection.
+ */
+public class InMemoryImapStore extends Store {
+    /**
+     * Folder name to raw RFC 822 messages, shared by all connections
+     */
+    static final Map<String, List<byte[]>> MAILBOX = new LinkedHashMap<>();
+
+    /**
+     * UIDVALIDITY reported for every folder; change it to simulate a rebuilt mailbox
+     */
+    static volatile long uidValidity = 1;
+
+    /**
+     * Simulated round trip time per command in milliseconds
+     */
+    static volatile long latencyMillis = 2;
+
+    /**
+     * Number of upcoming connection attempts the server refuses, e.g. after a token expired
+     */
+    static final AtomicInteger refusedConnects = new AtomicInteger();
+
+    /**
+     * Number of FETCH commands that prefetched the Message-ID header of a message range
+     */
+    static final AtomicInteger headerFetches = new AtomicInteger();
+
+    /**
+     * Number of header reads that needed a round trip of their own because the header was not prefetched
+     */
+    static final AtomicInteger headerRoundTrips = new AtomicInteger();
+
+    // Connections opened so far, so the server can drop them
+    private static final List<InMemoryImapStore> CONNECTIONS = new ArrayList<>();
+
+    public InMemoryImapStore(Session session, URLName urlname) {
+        super(session, urlname);
+    }
+
+    /**
+     * Register this store with a session under the given protocol name
+     *
+     * @param session The mail session
+     * @param protocol The protocol name to register
+     */
+    static void register(Session session, String protocol) {
+        session.addProvider(new Provider(Provider.Type.STORE, protocol,
+                InMemoryImapStore.class.getName(), "Intenovation", "1.0"));
+    }
+
+    @Override
+    protected boolean protocolConnect(String host, int port, String user, String password)
+            throws MessagingException {
+        roundTrip();
+        if (refusedConnects.getAndUpdate(n -> Math.max(0, n - 1)) > 0) {
+            throw new AuthenticationFailedException("Connection refused by the test server");
+        }
+        synchronized (CONNECTIONS) {
+            CONNECTIONS.add(this);
+        }
+        return true;
+    }
+
+    /**
+     * Drop all open connections, as a server restart would
+     */
+    static void dropConnections() throws MessagingException {
+        List<InMemoryImapStore> connections;
+        synchronized (CONNECTIONS) {
+            connections = new ArrayList<>(CONNECTIONS);
+            CONNECTIONS.clear();
+        }
+        for (InMemoryImapStore connection : connections) {
+            connection.close();
+        }
+    }
+
+    @Override
+    public Folder getDefaultFolder() {
+        return new InMemoryFolder(this, null);
+    }
+
+    @Override
+    public Folder getFolder(String name) {
+        return new InMemoryFolder(this, name);
+    }
+
+    @Override
+    public Folder getFolder(URLName url) {
+        return getFolder(url.getFile());
+    }
+
+    /**
+     * Simulate one command on this connection
+     */
+    synchronized void roundTrip() {
+        try {
+            Thread.sleep(latencyMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A folder of the in-memory mailbox. The UID of a message is its position in the
+     * folder, so messages appended to the mailbox get increasing UIDs.
+     */
+    static class InMemoryFolder extends Folder implements UIDFolder {
+        private final InMemoryImapStore imapStore;
+        private final String name;
+        private boolean open = false;
+
+        InMemoryFolder(InMemoryImapStore store, String name) {
+            super(store);
+            this.imapStore = store;
+            this.name = name;
+        }
+
+        @Override public String getName() { return name != null ? name : ""; }
+        @Override public String getFullName() { return getName(); }
+        @Override public Folder getParent() { return name != null ? imapStore.getDefaultFolder() : null; }
+        @Override public boolean exists() { return name == null || MAILBOX.containsKey(name); }
+        @Override public char getSeparator() { return '/'; }
+        @Override public boolean create(int type) { return false; }
+        @Override public boolean hasNewMessages() { return false; }
+        @Override public Folder getFolder(String child) { return new InMemoryFolder(imapStore, child); }
+        @Override public boolean delete(boolean recurse) { return false; }
+        @Override public boolean renameTo(Folder f) { return false; }
+        @Override public boolean isOpen() { return open; }
+        @Override public Flags getPermanentFlags() { return new Flags(); }
+
+        @Override
+        public int getType() {
+            return name == null ? HOLDS_FOLDERS : HOLDS_MESSAGES;
+        }
+
+        @Override
+        public Folder[] list(String pattern) {
+            if (name != null) {
+                return new Folder[0];
+            }
+            imapStore.roundTrip();
+            List<Folder> folders = new ArrayList<>();
+            for (String folderName : MAILBOX.keySet()) {
+                folders.add(new InMemoryFolder(imapStore, folderName));
+            }
+            return folders.toArray(new Folder[0]);
+        }
+
+        @Override
+        public void open(int mode) {
+            imapStore.roundTrip();
+            this.mode = mode;
+            this.open = true;
+        }
+
+        @Override
+        public void close(boolean expunge) {
+            this.open = false;
+        }
+
+        @Override
+        public int getMessageCount() {
+            List<byte[]> messages = MAILBOX.get(name);
+            return messages != null ? messages.size() : 0;
+        }
+
+        @Override
+        public Message getMessage(int msgnum) throws MessagingException {
+            byte[] raw = MAILBOX.get(name).get(msgnum - 1);
+            return new InMemoryMessage(this, raw, msgnum);
+        }
+
+        @Override
+        public long getUIDValidity() {
+            return uidValidity;
+        }
+
+        @Override
+        public long getUIDNext() {
+            return getMessageCount() + 1;
+        }
+
+        @Override
+        public long getUID(Message message) {
+            return message.getMessageNumber();
+        }
+
+        @Override
+        public Message getMessageByUID(long uid) throws MessagingException {
+            return uid >= 1 && uid <= getMessageCount() ? getMessage((int) uid) : null;
+        }
+
+        @Override
+        public Message[] getMessagesByUID(long start, long end) throws MessagingException {
+            imapStore.roundTrip();
+            int count = getMessageCount();
+            long last = end == LASTUID ? count : Math.min(end, count);
+            List<Message> messages = new ArrayList<>();
+            for (long uid = start; uid <= last; uid++) {
+                messages.add(getMessage((int) uid));
+            }
+            // Like IMAP, n:* always includes the last message
+            if (messages.isEmpty() && end == LASTUID && count > 0) {
+                messages.add(getMessage(count));
+            }
+            return messages.toArray(new Message[0]);
+        }
+
+        @Override
+        public Message[] getMessagesByUID(long[] uids) throws MessagingException {
+            imapStore.roundTrip();
+            Message[] messages = new Message[uids.length];
+            for (int i = 0; i < uids.length; i++) {
+                messages[i] = getMessageByUID(uids[i]);
+            }
+            return messages;
+        }
+
+        @Override
+        public void fetch(Message[] msgs, FetchProfile fp) {
+            // One round trip for the whole range, like an IMAP FETCH over a sequence set
+            imapStore.roundTrip();
+            if (!fp.contains("Message-ID")) {
+                return;
+            }
+            headerFetches.incrementAndGet();
+            for (Message msg : msgs) {
+                if (msg instanceof InMemoryMessage) {
+                    ((InMemoryMessage) msg).headersFetched = true;
+                }
+            }
+        }
+
+        @Override
+        public void appendMessages(Message[] msgs) throws MessagingException {
+            throw new MethodNotSupportedException("appendMessages not supported");
+        }
+
+        @Override
+        public Message[] expunge() throws MessagingException {
+            throw new MethodNotSupportedException("expunge not supported");
+        }
+    }
+
+    /**
+     * A message whose header and body access each cost a round trip,
+     * unless the headers were prefetched with a {@link Folder#fetch} that includes the Message-ID header
+     */
+    static class InMemoryMessage extends MimeMessage {
+        private final InMemoryImapStore imapStore;
+        volatile boolean headersFetched = false;
+
+        InMemoryMessage(InMemoryFolder folder, byte[] raw, int msgnum) throws MessagingException {
+            super(folder, new ByteArrayInputStream(raw), msgnum);
+            this.imapStore = folder.imapStore;
+        }
+
+        @Override
+        public String[] getHeader(String name) throws MessagingException {
+            if (!headersFetched) {
+                headerRoundTrips.incrementAndGet();
+                imapStore.roundTrip();
+            }
+            return super.getHeader(name);
+        }
+
+        @Override
+        public Object getContent() throws IOException, MessagingException {
+            imapStore.roundTrip();
+            return super.getContent();
+        }
+    }
+}
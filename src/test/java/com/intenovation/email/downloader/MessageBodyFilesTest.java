@@ -0,0 +1,61 @@
+package com.intenovation.email.downloader;
+
+import java.io.File;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Test harness for {@link MessageBodyFiles}: a body written compressed, written plain or compressed in place
+ * reads back unchanged, also from the files of a segment record, and only one variant is left on disk.
+ */
+public class MessageBodyFilesTest {
+    private static final Logger LOGGER = Logger.getLogger(MessageBodyFilesTest.class.getName());
+
+    public static void main(String[] args) throws Exception {
+        File msgDir = Files.createTempDirectory("message-body").toFile();
+        try {
+            StringBuilder text = new StringBuilder();
+            for (int i = 0; i < 2000; i++) {
+                text.append("Rechnung Nr. ").append(i).append(": Betrag 12,34 € – Grüße\n");
+            }
+            String body = text.toString();
+            File plain = new File(msgDir, "content.txt");
+            File compressed = new File(msgDir, "content.txt" + MessageBodyFiles.COMPRESSED_SUFFIX);
+
+            try (Writer writer = MessageBodyFiles.newWriter(msgDir, "content.txt", true)) {
+                writer.write(body);
+            }
+            check("compressed file written", compressed.exists() && !plain.exists(), true);
+            check("compressed round trip", MessageBodyFiles.read(msgDir, "content.txt"), body);
+
+            try (Writer writer = MessageBodyFiles.newWriter(msgDir, "content.txt", false)) {
+                writer.write(body);
+            }
+            check("plain file replaces compressed", plain.exists() && !compressed.exists(), true);
+            check("plain round trip", MessageBodyFiles.read(msgDir, "content.txt"), body);
+
+            long saved = MessageBodyFiles.compress(msgDir, "content.txt");
+            check("compressed in place", compressed.exists() && !plain.exists() && saved > 0, true);
+            check("round trip after compressing in place", MessageBodyFiles.read(msgDir, "content.txt"), body);
+            check("nothing left to compress", MessageBodyFiles.compress(msgDir, "content.txt"), -1L);
+
+            Map<String, byte[]> record = new HashMap<>();
+            record.put(compressed.getName(), Files.readAllBytes(compressed.toPath()));
+            check("segment record round trip", MessageBodyFiles.read(record, "content.txt"), body);
+            check("missing body", MessageBodyFiles.read(msgDir, "content.html"), null);
+
+            LOGGER.info("Message body checks passed");
+        } finally {
+            FileUtils.deleteDirectory(msgDir);
+        }
+    }
+
+    private static void check(String what, Object actual, Object expected) {
+        if (actual == null ? expected != null : !actual.equals(expected)) {
+            throw new IllegalStateException(what + ": expected " + expected + ", got " + actual);
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package com.intenovation.email.downloader;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Store;
+import javax.mail.internet.MimeMessage;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.*;
+import java.util.logging.Logger;
+
+/**
+ * Test harness measuring the parallel download engine against the in-process
+ * IMAP stand-in with one connection versus several connections.
+ */
+public class ParallelDownloadEngineTest {
+    private static final Logger LOGGER = Logger.getLogger(ParallelDownloadEngineTest.class.getName());
+    private static final String PROTOCOL = "inmemory";
+
+    public static void main(String[] args) throws Exception {
+        int folders = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int messagesPerFolder = args.length > 1 ? Integer.parseInt(args[1]) : 300;
+        int connections = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+
+        createMailbox(folders, messagesPerFolder);
+        int expected = folders * messagesPerFolder;
+
+        long serialMillis = runDownload(1, expected);
+        long parallelMillis = runDownload(connections, expected);
+
+        LOGGER.info(String.format("Serial: %d ms, %d connections: %d ms, speedup %.2fx",
+                serialMillis, connections, parallelMillis, serialMillis / (double) Math.max(1, parallelMillis)));
+
+        testIncrementalSync(folders, messagesPerFolder, connections);
+        testMessageClaims();
+        testDroppedConnections(folders, messagesPerFolder, connections);
+    }
+
+    /**
+     * Verify that connections which cannot be reconnected after the server dropped them free their pool slots,
+     * so the next download opens new connections instead of waiting forever
+     */
+    private static void testDroppedConnections(int folders, int messagesPerFolder, int connections) throws Exception {
+        createMailbox(folders, messagesPerFolder);
+        File baseDir = Files.createTempDirectory("dropped-connections").toFile();
+        Session session = Session.getInstance(new Properties());
+        InMemoryImapStore.register(session, PROTOCOL);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (ImapConnectionPool pool = new ImapConnectionPool(session, PROTOCOL, "localhost", -1,
+                "user", "secret", connections)) {
+            ParallelDownloadEngine.Result full = new ParallelDownloadEngine(pool, baseDir, MessageIdIndex.open(baseDir))
+                    .download((percent, message) -> { }, false);
+            check("download before the drop", full.getDownloadedEmails(), folders * messagesPerFolder);
+
+            // Open every connection of the pool, then let the server drop them while they are idle
+            List<Store> stores = new ArrayList<>();
+            for (int i = 0; i < connections; i++) {
+                stores.add(pool.borrow());
+            }
+            stores.forEach(pool::release);
+            InMemoryImapStore.dropConnections();
+            InMemoryImapStore.refusedConnects.set(connections);
+            int refused = 0;
+            for (int i = 0; i < connections; i++) {
+                try {
+                    pool.release(pool.borrow());
+                } catch (MessagingException e) {
+                    refused++;
+                }
+            }
+            check("refused reconnects", refused, connections);
+
+            int added = 3;
+            appendMessages(messagesPerFolder, added);
+            Future<ParallelDownloadEngine.Result> incremental = executor.submit(() ->
+                    new ParallelDownloadEngine(pool, baseDir, MessageIdIndex.open(baseDir))
+                            .download((percent, message) -> { }, true));
+            ParallelDownloadEngine.Result result;
+            try {
+                result = incremental.get(60, TimeUnit.SECONDS);
+            } catch (TimeoutException e) {
+                throw new IllegalStateException("Download after refused reconnects did not finish, pool slots leaked");
+            }
+            check("download after the drop", result.getDownloadedEmails(), folders * added);
+
+            LOGGER.info("Dropped connection checks passed");
+        } finally {
+            InMemoryImapStore.refusedConnects.set(0);
+            executor.shutdownNow();
+            FileUtils.deleteDirectory(baseDir);
+        }
+    }
+
+    /**
+     * Verify that an incremental run only fetches messages above the folder checkpoints,
+     * and that a changed UIDVALIDITY falls back to a full resync
+     */
+    private static void testIncrementalSync(int folders, int messagesPerFolder, int connections) throws Exception {
+        createMailbox(folders, messagesPerFolder);
+        File baseDir = Files.createTempDirectory("incremental-download").toFile();
+        try {
+            ParallelDownloadEngine.Result full = download(baseDir, connections, false);
+            check("full sync", full.getDownloadedEmails(), folders * messagesPerFolder);
+            check("index file entries", Files.readAllLines(new File(baseDir, MessageIdIndex.FILE_NAME).toPath()).size() - 1,
+                    folders * messagesPerFolder);
+
+            int added = 5;
+            appendMessages(messagesPerFolder, added);
+            ParallelDownloadEngine.Result incremental = download(baseDir, connections, true);
+            check("incremental downloaded", incremental.getDownloadedEmails(), folders * added);
+            check("incremental fetched", incremental.getTotalEmails(), folders * added);
+
+            ParallelDownloadEngine.Result unchanged = download(baseDir, connections, true);
+            check("unchanged fetched", unchanged.getTotalEmails(), 0);
+
+            int indexed = MessageIdIndex.rebuild(baseDir);
+            check("rebuilt index", indexed, folders * (messagesPerFolder + added));
+
+            // A message claimed by a running download survives a rebuild, and so does its later append
+            MessageIdIndex index = MessageIdIndex.open(baseDir);
+            String inFlight = "<in-flight@example.com>";
+            check("claim", index.claim(inFlight) ? 1 : 0, 1);
+            MessageIdIndex.rebuild(baseDir);
+            check("claim kept by rebuild", index.contains(inFlight) ? 1 : 0, 1);
+            index.commit(inFlight);
+            check("append after rebuild", Files.readAllLines(new File(baseDir, MessageIdIndex.FILE_NAME).toPath())
+                    .contains(inFlight) ? 1 : 0, 1);
+
+            InMemoryImapStore.uidValidity++;
+            ParallelDownloadEngine.Result resync = download(baseDir, connections, true);
+            check("resync fetched", resync.getTotalEmails(), folders * (messagesPerFolder + added));
+            check("resync downloaded", resync.getDownloadedEmails(), 0);
+
+            LOGGER.info("Incremental sync checks passed");
+        } finally {
+            FileUtils.deleteDirectory(baseDir);
+        }
+    }
+
+    /**
+     * Verify the claim, write and commit path that the engine and the year downloaders share: a message claimed
+     * by another download is skipped, a failed write releases its claim, and a message written without the index
+     * is recorded instead of written again
+     */
+    private static void testMessageClaims() throws Exception {
+        File baseDir = Files.createTempDirectory("message-claims").toFile();
+        try {
+            File messagesDir = new File(new File(baseDir, "INBOX"), "messages");
+            messagesDir.mkdirs();
+            MessageIdIndex index = MessageIdIndex.open(baseDir);
+            Session session = Session.getInstance(new Properties());
+
+            MimeMessage message = new MimeMessage(session);
+            message.setHeader("Message-ID", "<claimed@example.com>");
+            message.setSubject("Claimed");
+            message.setText("Claimed by another download");
+            check("claim by another download", index.claim("<claimed@example.com>") ? 1 : 0, 1);
+            check("claimed message skipped",
+                    EmailDownloader.downloadMessage(message, "INBOX", messagesDir, index, null) ? 1 : 0, 0);
+            check("claimed message not written", messagesDir.list().length, 0);
+            index.release("<claimed@example.com>");
+
+            MimeMessage broken = new MimeMessage(session) {
+                @Override
+                public Object getContent() throws MessagingException {
+                    throw new MessagingException("Connection dropped");
+                }
+            };
+            broken.setHeader("Message-ID", "<broken@example.com>");
+            try {
+                EmailDownloader.downloadMessage(broken, "INBOX", messagesDir, index, null);
+                check("failed write throws", 0, 1);
+            } catch (MessagingException expected) {
+                // The download task logs the failure and retries on its next run
+            }
+            check("claim released after a failed write", index.contains("<broken@example.com>") ? 1 : 0, 0);
+            check("partial message removed", messagesDir.list().length, 0);
+
+            check("claimed message downloaded after release",
+                    EmailDownloader.downloadMessage(message, "INBOX", messagesDir, index, null) ? 1 : 0, 1);
+            check("downloaded message committed", Files.readAllLines(new File(baseDir, MessageIdIndex.FILE_NAME).toPath())
+                    .contains("<claimed@example.com>") ? 1 : 0, 1);
+            check("downloaded message skipped next time",
+                    EmailDownloader.downloadMessage(message, "INBOX", messagesDir, index, null) ? 1 : 0, 0);
+
+            MimeMessage unindexed = new MimeMessage(session);
+            unindexed.setHeader("Message-ID", "<unindexed@example.com>");
+            new File(messagesDir, FileUtils.sanitizeFileName("<unindexed@example.com>")).mkdirs();
+            check("message on disk skipped",
+                    EmailDownloader.downloadMessage(unindexed, "INBOX", messagesDir, index, null) ? 1 : 0, 0);
+            check("message on disk recorded", index.contains("<unindexed@example.com>") ? 1 : 0, 1);
+
+            LOGGER.info("Message claim checks passed");
+        } finally {
+            FileUtils.deleteDirectory(baseDir);
+        }
+    }
+
+    private static ParallelDownloadEngine.Result download(File baseDir, int connections, boolean incremental)
+            throws Exception {
+        Session session = Session.getInstance(new Properties());
+        InMemoryImapStore.register(session, PROTOCOL);
+        try (ImapConnectionPool pool = new ImapConnectionPool(session, PROTOCOL, "localhost", -1,
+                "user", "secret", connections)) {
+            return new ParallelDownloadEngine(pool, baseDir, MessageIdIndex.open(baseDir))
+                    .download((percent, message) -> { }, incremental);
+        }
+    }
+
+    private static void check(String what, int actual, int expected) {
+        if (actual != expected) {
+            throw new IllegalStateException(what + ": expected " + expected + ", got " + actual);
+        }
+    }
+
+    /**
+     * Fill the in-memory mailbox with simple text messages
+     */
+    private static void createMailbox(int folders, int messagesPerFolder) {
+        InMemoryImapStore.MAILBOX.clear();
+        for (int f = 0; f < folders; f++) {
+            List<byte[]> messages = new ArrayList<>();
+            for (int m = 0; m < messagesPerFolder; m++) {
+                messages.add(createMessage(f, m));
+            }
+            InMemoryImapStore.MAILBOX.put("Folder" + f, messages);
+        }
+    }
+
+    /**
+     * Append new messages to every folder of the in-memory mailbox
+     */
+    private static void appendMessages(int existing, int count) {
+        int f = 0;
+        for (List<byte[]> messages : InMemoryImapStore.MAILBOX.values()) {
+            for (int m = existing; m < existing + count; m++) {
+                messages.add(createMessage(f, m));
+            }
+            f++;
+        }
+    }
+
+    private static byte[] createMessage(int folder, int number) {
+        String raw = "Message-ID: <msg-" + folder + "-" + number + "@example.com>\r\n" +
+                "From: billing@example.com\r\n" +
+                "To: customer@example.com\r\n" +
+                "Subject: Invoice " + number + "\r\n" +
+                "Date: Mon, 15 Apr 2024 10:30:00 +0000\r\n" +
+                "Content-Type: text/plain; charset=UTF-8\r\n" +
+                "\r\n" +
+                "Invoice Number: INV-" + number + "\r\nAmount: $" + (number + 1) + ".00\r\n";
+        return raw.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Download the mailbox into a fresh directory and verify every message was written
+     *
+     * @return Elapsed time in milliseconds
+     */
+    private static long runDownload(int connections, int expected) throws Exception {
+        File baseDir = Files.createTempDirectory("parallel-download").toFile();
+        try {
+            Session session = Session.getInstance(new Properties());
+            InMemoryImapStore.register(session, PROTOCOL);
+
+            long start = System.nanoTime();
+            ParallelDownloadEngine.Result result;
+            try (ImapConnectionPool pool = new ImapConnectionPool(session, PROTOCOL, "localhost", -1,
+                    "user", "secret", connections)) {
+                ParallelDownloadEngine engine = new ParallelDownloadEngine(pool, baseDir, MessageIdIndex.open(baseDir));
+                result = engine.download((percent, message) -> { }, false);
+            }
+            long elapsed = (System.nanoTime() - start) / 1_000_000;
+
+            int onDisk = FileUtils.countAllEmails(baseDir);
+            LOGGER.info(connections + " connection(s): downloaded " + result.getDownloadedEmails() +
+                    ", on disk " + onDisk + ", " + elapsed + " ms");
+            if (result.getDownloadedEmails() != expected || onDisk != expected) {
+                throw new IllegalStateException("Expected " + expected + " messages, downloaded " +
+                        result.getDownloadedEmails() + ", found " + onDisk + " on disk");
+            }
+            return elapsed;
+        } finally {
+            FileUtils.deleteDirectory(baseDir);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.intenovation.email.downloader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Test harness for {@link SegmentArchive}: appended records read back unchanged, survive reopening the folder,
+ * a record cut off by a crash is dropped while the records before it stay readable, and deleted records
+ * stay deleted after reopening.
+ */
+public class SegmentArchiveTest {
+    private static final Logger LOGGER = Logger.getLogger(SegmentArchiveTest.class.getName());
+
+    public static void main(String[] args) throws Exception {
+        File baseDir = Files.createTempDirectory("segment-archive").toFile();
+        try {
+            File folderDir = new File(baseDir, "INBOX");
+            SegmentArchive archive = SegmentArchive.open(folderDir);
+            for (int i = 0; i < 3; i++) {
+                archive.append("msg-" + i, record(i));
+            }
+            check("records", archive.size(), 3);
+            checkRecord(archive, 1);
+            check("unknown record", archive.read("msg-9") == null, true);
+
+            // Opening a copy of the folder reads the index from disk
+            SegmentArchive reopened = SegmentArchive.open(copy(folderDir, new File(baseDir, "reopened")));
+            check("records after reopening", reopened.size(), 3);
+            for (int i = 0; i < 3; i++) {
+                checkRecord(reopened, i);
+            }
+
+            // A record whose index line was written but whose data was cut off is dropped
+            File truncatedDir = copy(folderDir, new File(baseDir, "truncated"));
+            File segment = new File(new File(truncatedDir, SegmentArchive.SEGMENT_DIR), "segment-00000.seg");
+            try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+                file.setLength(file.length() - 10);
+            }
+            SegmentArchive truncated = SegmentArchive.open(truncatedDir);
+            check("records after truncation", truncated.size(), 2);
+            check("truncated record", truncated.contains("msg-2"), false);
+            checkRecord(truncated, 0);
+            checkRecord(truncated, 1);
+            truncated.append("msg-3", record(3));
+            checkRecord(truncated, 3);
+            check("records after appending to a truncated segment",
+                    SegmentArchive.open(copy(truncatedDir, new File(baseDir, "truncated-reopened"))).size(), 3);
+
+            // A deleted record stays deleted after reopening
+            check("delete", archive.delete("msg-1"), true);
+            check("delete twice", archive.delete("msg-1"), false);
+            check("records after delete", archive.size(), 2);
+            SegmentArchive afterDelete = SegmentArchive.open(copy(folderDir, new File(baseDir, "deleted")));
+            check("records after delete and reopening", afterDelete.size(), 2);
+            check("deleted record", afterDelete.contains("msg-1"), false);
+            checkRecord(afterDelete, 2);
+
+            LOGGER.info("Segment archive checks passed");
+        } finally {
+            FileUtils.deleteDirectory(baseDir);
+        }
+    }
+
+    private static Map<String, byte[]> record(int i) {
+        Map<String, byte[]> files = new LinkedHashMap<>();
+        files.put("message.properties", ("message.id=<msg-" + i + "@example.com>\nsubject=Invoice " + i + "\n")
+                .getBytes(StandardCharsets.UTF_8));
+        files.put("content.txt", ("Invoice Number: INV-" + i + "\nAmount: " + (i + 1) + ".00 €\n")
+                .getBytes(StandardCharsets.UTF_8));
+        return files;
+    }
+
+    private static void checkRecord(SegmentArchive archive, int i) throws IOException {
+        Map<String, byte[]> files = archive.read("msg-" + i);
+        Map<String, byte[]> expected = record(i);
+        check("files of msg-" + i, files.keySet(), expected.keySet());
+        for (String name : expected.keySet()) {
+            check(name + " of msg-" + i, new String(files.get(name), StandardCharsets.UTF_8),
+                    new String(expected.get(name), StandardCharsets.UTF_8));
+        }
+    }
+
+    private static File copy(File source, File target) throws IOException {
+        Path from = source.toPath();
+        try (Stream<Path> paths = Files.walk(from)) {
+            for (Path path : (Iterable<Path>) paths::iterator) {
+                Files.copy(path, target.toPath().resolve(from.relativize(path).toString()));
+            }
+        }
+        return target;
+    }
+
+    private static void check(String what, Object actual, Object expected) {
+        if (!actual.equals(expected)) {
+            throw new IllegalStateException(what + ": expected " + expected + ", got " + actual);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.intenovation.email.downloader;
+
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.Session;
+import javax.mail.Store;
+import javax.mail.UIDFolder;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+/**
+ * Test harness for {@link SyncCheckpoint} against the in-process IMAP stand-in: a resumed download only fetches
+ * messages above the checkpoint UID, a changed UIDVALIDITY forces a full resync, and {@code n:*} returning
+ * the last message although its UID is below n does not bring back a message that was already seen.
+ */
+public class SyncCheckpointTest {
+    private static final Logger LOGGER = Logger.getLogger(SyncCheckpointTest.class.getName());
+    private static final String PROTOCOL = "inmemory";
+    private static final String FOLDER = "INBOX";
+
+    public static void main(String[] args) throws Exception {
+        int count = 20;
+        InMemoryImapStore.latencyMillis = 0;
+        InMemoryImapStore.MAILBOX.clear();
+        List<byte[]> messages = new ArrayList<>();
+        for (int m = 0; m < count; m++) {
+            messages.add(createMessage(m));
+        }
+        InMemoryImapStore.MAILBOX.put(FOLDER, messages);
+
+        Session session = Session.getInstance(new Properties());
+        InMemoryImapStore.register(session, PROTOCOL);
+        Store store = session.getStore(PROTOCOL);
+        store.connect("localhost", "user", "secret");
+        Folder folder = store.getFolder(FOLDER);
+        folder.open(Folder.READ_ONLY);
+        try {
+            UIDFolder uidFolder = (UIDFolder) folder;
+            check("messages after UID 0", SyncCheckpoint.getMessagesAfter(folder, 0).length, count);
+            Message[] newer = SyncCheckpoint.getMessagesAfter(folder, count - 3);
+            check("messages after a checkpoint", newer.length, 3);
+            check("first message after a checkpoint", (int) uidFolder.getUID(newer[0]), count - 2);
+
+            // The server answers n:* with the last message even when n is above its UID
+            check("server answer for n:*", uidFolder.getMessagesByUID(count + 1, UIDFolder.LASTUID).length, 1);
+            check("messages after the last UID", SyncCheckpoint.getMessagesAfter(folder, count).length, 0);
+        } finally {
+            folder.close(false);
+            store.close();
+        }
+
+        File baseDir = Files.createTempDirectory("sync-checkpoint").toFile();
+        try {
+            File folderDir = new File(baseDir, FileUtils.sanitizeFolderName(FOLDER));
+            check("missing checkpoint", SyncCheckpoint.load(folderDir).isValidFor(InMemoryImapStore.uidValidity), false);
+
+            // A checkpoint that says the first messages were seen skips them, although they are not on disk
+            SyncCheckpoint.load(folderDir).save(InMemoryImapStore.uidValidity, count - 2, 0);
+            ParallelDownloadEngine.Result resumed = download(session, baseDir);
+            check("resumed fetched", resumed.getTotalEmails(), 2);
+            check("resumed downloaded", resumed.getDownloadedEmails(), 2);
+            check("checkpoint after resume", (int) SyncCheckpoint.load(folderDir).getLastUid(), count);
+
+            ParallelDownloadEngine.Result unchanged = download(session, baseDir);
+            check("unchanged fetched", unchanged.getTotalEmails(), 0);
+
+            // A rebuilt mailbox reuses UIDs for other messages, so the whole folder is fetched again
+            InMemoryImapStore.uidValidity++;
+            ParallelDownloadEngine.Result resync = download(session, baseDir);
+            check("resync fetched", resync.getTotalEmails(), count);
+            check("resync downloaded", resync.getDownloadedEmails(), count - 2);
+            SyncCheckpoint checkpoint = SyncCheckpoint.load(folderDir);
+            check("checkpoint after resync", checkpoint.isValidFor(InMemoryImapStore.uidValidity), true);
+            check("old UIDVALIDITY", checkpoint.isValidFor(InMemoryImapStore.uidValidity - 1), false);
+
+            // A damaged checkpoint file is ignored
+            Files.write(new File(folderDir, SyncCheckpoint.FILE_NAME).toPath(),
+                    "last.uid=garbage\n".getBytes(StandardCharsets.ISO_8859_1));
+            check("damaged checkpoint", SyncCheckpoint.load(folderDir).isValidFor(InMemoryImapStore.uidValidity), false);
+
+            // A checkpoint of a year-filtered download only covers downloads from that year onwards
+            checkpoint.save(InMemoryImapStore.uidValidity, count, 2023);
+            checkpoint = SyncCheckpoint.load(folderDir);
+            check("covers a later year", checkpoint.covers(2024), true);
+            check("covers an earlier year", checkpoint.covers(2022), false);
+            check("covers all years", checkpoint.covers(0), false);
+
+            LOGGER.info("Sync checkpoint checks passed");
+        } finally {
+            FileUtils.deleteDirectory(baseDir);
+        }
+    }
+
+    private static ParallelDownloadEngine.Result download(Session session, File baseDir) throws Exception {
+        try (ImapConnectionPool pool = new ImapConnectionPool(session, PROTOCOL, "localhost", -1,
+                "user", "secret", 2)) {
+            return new ParallelDownloadEngine(pool, baseDir, MessageIdIndex.open(baseDir))
+                    .download((percent, message) -> { }, true);
+        }
+    }
+
+    private static byte[] createMessage(int number) {
+        String raw = "Message-ID: <checkpoint-" + number + "@example.com>\r\n" +
+                "From: billing@example.com\r\n" +
+                "Subject: Invoice " + number + "\r\n" +
+                "Date: Mon, 15 Apr 2024 10:30:00 +0000\r\n" +
+                "Content-Type: text/plain; charset=UTF-8\r\n" +
+                "\r\n" +
+                "Invoice Number: INV-" + number + "\r\n";
+        return raw.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void check(String what, Object actual, Object expected) {
+        if (!actual.equals(expected)) {
+            throw new IllegalStateException(what + ": expected " + expected + ", got " + actual);
+        }
+    }
+}
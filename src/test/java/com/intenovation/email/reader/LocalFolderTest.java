@@ -0,0 +1,102 @@
+package com.intenovation.email.reader;
+
+import com.intenovation.email.downloader.FileUtils;
+
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.Session;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.logging.Logger;
+
+/**
+ * Test harness for opening a {@link LocalFolder}: lazily and eagerly opened folders list the same messages
+ * in received-date order, and a lazily opened folder keeps the content of only the most recently read
+ * messages in memory.
+ */
+public class LocalFolderTest {
+    private static final Logger LOGGER = Logger.getLogger(LocalFolderTest.class.getName());
+
+    public static void main(String[] args) throws Exception {
+        File baseDir = Files.createTempDirectory("local-folder").toFile();
+        try {
+            // More messages than the content cache holds, stored in the opposite order of their dates
+            File messagesDir = new File(new File(baseDir, "INBOX"), "messages");
+            int count = LocalFolder.CONTENT_CACHE_SIZE + 5;
+            for (int i = 0; i < count; i++) {
+                writeMessage(messagesDir, String.format("msg-%03d", i), count - i);
+            }
+
+            List<String> lazySubjects = subjects(LocalMail.openStore(baseDir));
+            Properties props = new Properties();
+            props.setProperty("mail.store.protocol", "local");
+            props.setProperty(LocalMail.LAZY_LOADING_PROPERTY, "false");
+            LocalStore eagerStore = LocalStore.getInstance(Session.getInstance(props), baseDir);
+            eagerStore.connect();
+            List<String> eagerSubjects = subjects(eagerStore);
+            check("messages", lazySubjects.size(), count);
+            check("oldest message first", eagerSubjects.get(0), "Invoice " + (count - 1));
+            check("eager and lazy messages", new TreeSet<>(eagerSubjects), new TreeSet<>(lazySubjects));
+            check("eager and lazy order", lazySubjects, eagerSubjects);
+
+            // Content stays in memory until more recently read messages push it out
+            LocalStore store = LocalMail.openStore(baseDir);
+            Folder folder = store.getFolder("INBOX");
+            folder.open(Folder.READ_ONLY);
+            Message first = folder.getMessage(1);
+            int number = Integer.parseInt(first.getSubject().substring("Invoice ".length()));
+            check("content", first.getContent(), "Body " + number);
+            Files.write(new File(new File(messagesDir, String.format("msg-%03d", number)), "content.txt").toPath(),
+                    "Changed".getBytes(StandardCharsets.UTF_8));
+            check("cached content", first.getContent(), "Body " + number);
+            for (int i = 2; i <= LocalFolder.CONTENT_CACHE_SIZE; i++) {
+                folder.getMessage(i).getContent();
+            }
+            check("content within the cache size", first.getContent(), "Body " + number);
+            for (int i = 2; i <= LocalFolder.CONTENT_CACHE_SIZE + 1; i++) {
+                folder.getMessage(i).getContent();
+            }
+            check("content read again after release", first.getContent(), "Changed");
+            store.close();
+
+            LOGGER.info("Local folder checks passed");
+        } finally {
+            FileUtils.deleteDirectory(baseDir);
+        }
+    }
+
+    private static List<String> subjects(LocalStore store) throws Exception {
+        Folder folder = store.getFolder("INBOX");
+        folder.open(Folder.READ_ONLY);
+        List<String> subjects = new ArrayList<>();
+        for (Message message : folder.getMessages()) {
+            subjects.add(message.getSubject());
+        }
+        store.close();
+        return subjects;
+    }
+
+    private static void writeMessage(File messagesDir, String key, int day) throws IOException {
+        File messageDir = new File(messagesDir, key);
+        messageDir.mkdirs();
+        String date = String.format("2024-01-01 %02d:%02d:00", day / 60, day % 60);
+        Files.write(new File(messageDir, "message.properties").toPath(), ("message.id=<" + key + "@example.com>\n" +
+                "subject=Invoice " + key.substring(4).replaceFirst("^0+(?=.)", "") + "\n" +
+                "from=billing@example.com\n" +
+                "received.date=" + date + "\n").getBytes(StandardCharsets.UTF_8));
+        Files.write(new File(messageDir, "content.txt").toPath(),
+                ("Body " + key.substring(4).replaceFirst("^0+(?=.)", "")).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void check(String what, Object actual, Object expected) {
+        if (!actual.equals(expected)) {
+            throw new IllegalStateException(what + ": expected " + expected + ", got " + actual);
+        }
+    }
+}
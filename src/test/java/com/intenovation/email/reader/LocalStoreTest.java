@@ -0,0 +1,138 @@
+package com.intenovation.email.reader;
+
+import com.intenovation.email.downloader.FileUtils;
+import com.intenovation.email.downloader.FolderSearchIndex;
+import com.intenovation.email.downloader.FolderSummary;
+import com.intenovation.email.downloader.SegmentArchive;
+
+import javax.mail.Flags;
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.search.AndTerm;
+import javax.mail.search.ComparisonTerm;
+import javax.mail.search.ReceivedDateTerm;
+import javax.mail.search.SubjectTerm;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Test harness for searching a {@link LocalStore}: the folder summary, the folder search index and the
+ * store's open folders pick up messages downloaded after the first search, date terms are answered from
+ * the folder summary, the store keeps using its cached folder instances, and messages are looked up by key
+ * in folders that were opened before they were downloaded, and expunged messages are deleted from disk.
+ */
+public class LocalStoreTest {
+    private static final Logger LOGGER = Logger.getLogger(LocalStoreTest.class.getName());
+
+    public static void main(String[] args) throws Exception {
+        File baseDir = Files.createTempDirectory("local-store").toFile();
+        try {
+            File folderDir = new File(baseDir, "INBOX");
+            File messagesDir = new File(folderDir, "messages");
+            writeDirectory(messagesDir, "msg-1", "2024-01-10 09:00:00");
+            writeDirectory(messagesDir, "msg-2", "2024-03-05 09:00:00");
+
+            LocalStore store = LocalMail.openStore(baseDir);
+            try {
+                Message[] matches = store.search(new SubjectTerm("Invoice"));
+                check("matches", matches.length, 2);
+                check("folder of a match is the cached folder", matches[0].getFolder() == store.getFolder("INBOX"), true);
+
+                // A message appended to the segment archive after the first search is found
+                SegmentArchive.open(folderDir).append("msg-3", record("msg-3", "2024-06-01 09:00:00"));
+                check("matches after a segment append", store.search(new SubjectTerm("Invoice")).length, 3);
+
+                // So is a message written to the messages directory
+                long modified = messagesDir.lastModified();
+                writeDirectory(messagesDir, "msg-4", "2024-09-01 09:00:00");
+                if (messagesDir.lastModified() == modified) {
+                    messagesDir.setLastModified(modified + 1000);
+                }
+                check("matches after a new message directory", store.search(new SubjectTerm("Invoice")).length, 4);
+                check("summarized messages", FolderSummary.load(folderDir).size(), 4);
+                check("indexed subjects", FolderSearchIndex.load(folderDir)
+                        .find(FolderSearchIndex.Field.SUBJECT, "Invoice").size(), 4);
+
+                // Received dates come from the folder summary
+                Date march = date("2024-03-01 00:00:00");
+                check("received on or after March", store.search(
+                        new ReceivedDateTerm(ComparisonTerm.GE, march)).length, 3);
+                check("received before March", store.search(
+                        new ReceivedDateTerm(ComparisonTerm.LT, march)).length, 1);
+                check("received on a day", store.search(
+                        new ReceivedDateTerm(ComparisonTerm.EQ, date("2024-06-01 09:00:00"))).length, 1);
+                check("subject and received date", store.search(new AndTerm(new SubjectTerm("msg-4"),
+                        new ReceivedDateTerm(ComparisonTerm.GT, march))).length, 1);
+
+                // A message downloaded while its folder is open can be looked up by key, e.g. for a full-text hit
+                check("message of an open folder", store.getMessage("INBOX", "msg-1").getSubject(), "Invoice msg-1");
+                modified = messagesDir.lastModified();
+                writeDirectory(messagesDir, "msg-5", "2024-10-01 09:00:00");
+                if (messagesDir.lastModified() == modified) {
+                    messagesDir.setLastModified(modified + 1000);
+                }
+                check("new message of an open folder", store.getMessage("INBOX", "msg-5").getSubject(), "Invoice msg-5");
+                SegmentArchive.open(folderDir).append("msg-6", record("msg-6", "2024-10-02 09:00:00"));
+                check("new segment message of an open folder", store.getMessage("INBOX", "msg-6").getSubject(),
+                        "Invoice msg-6");
+                check("unknown message", store.getMessage("INBOX", "msg-9") == null, true);
+
+                // Expunged messages are deleted from the messages directory and the segment archive
+                LocalFolder inbox = (LocalFolder) store.getFolder("INBOX");
+                inbox.close(false);
+                inbox.open(Folder.READ_WRITE);
+                inbox.getMessage("msg-5").setFlag(Flags.Flag.DELETED, true);
+                inbox.getMessage("msg-6").setFlag(Flags.Flag.DELETED, true);
+                check("expunged", inbox.expunge().length, 2);
+                check("message directory after expunge", new File(messagesDir, "msg-5").exists(), false);
+                check("segment record after expunge", SegmentArchive.open(folderDir).contains("msg-6"), false);
+                check("summarized messages after expunge", FolderSummary.load(folderDir).size(), 4);
+                check("matches after expunge", store.search(new SubjectTerm("Invoice")).length, 4);
+            } finally {
+                store.close();
+            }
+            check("folder closed with the store", ((LocalFolder) LocalMail.openStore(baseDir).getFolder("INBOX")).isOpen(), false);
+
+            LOGGER.info("Local store checks passed");
+        } finally {
+            FileUtils.deleteDirectory(baseDir);
+        }
+    }
+
+    private static void writeDirectory(File messagesDir, String key, String received) throws IOException {
+        File messageDir = new File(messagesDir, key);
+        messageDir.mkdirs();
+        for (Map.Entry<String, byte[]> file : record(key, received).entrySet()) {
+            Files.write(new File(messageDir, file.getKey()).toPath(), file.getValue());
+        }
+    }
+
+    private static Map<String, byte[]> record(String key, String received) {
+        Map<String, byte[]> files = new LinkedHashMap<>();
+        files.put("message.properties", ("message.id=<" + key + "@example.com>\n" +
+                "subject=Invoice " + key + "\n" +
+                "from=billing@example.com\n" +
+                "sent.date=" + received + "\n" +
+                "received.date=" + received + "\n" +
+                "size.bytes=100\n").getBytes(StandardCharsets.UTF_8));
+        files.put("content.txt", ("Invoice for " + key + "\n").getBytes(StandardCharsets.UTF_8));
+        return files;
+    }
+
+    private static Date date(String value) throws Exception {
+        return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").parse(value);
+    }
+
+    private static void check(String what, Object actual, Object expected) {
+        if (!actual.equals(expected)) {
+            throw new IllegalStateException(what + ": expected " + expected + ", got " + actual);
+        }
+    }
+}
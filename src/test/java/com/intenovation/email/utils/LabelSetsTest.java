@@ -0,0 +1,74 @@
+package com.intenovation.email.utils;
+
+import java.util.Random;
+import java.util.logging.Logger;
+
+/**
+ * Test harness for {@link LabelSets}: for random texts built from overlapping labels, every list finds the same
+ * label at the same position as calling {@link String#indexOf(String)} for its labels in priority order,
+ * and a missing text finds no label.
+ */
+public class LabelSetsTest {
+    private static final Logger LOGGER = Logger.getLogger(LabelSetsTest.class.getName());
+
+    // Labels sharing prefixes and suffixes, and one label in two lists, as in the Aufbewahrung label lists
+    private static final String[][] LISTS = {
+            {"Rechnungsbetrag", "Gesamtbetrag", "Betrag", "Summe"},
+            {"Rechnungsdatum", "Datum"},
+            {"Rechnungsnummer", "Rechnung Nr.", "Nr."},
+            {"Kundennummer", "Vertragskonto", "Nr."},
+    };
+
+    private static final String[] FRAGMENTS = {
+            "Rechnung", "Rechnungs", "betrag", "Betrag", "Gesamt", "Summe", "datum", "Datum", "nummer", "Nr.",
+            "Kunden", "Vertragskonto", " ", ": ", "\n", "12,34 EUR", "01.02.2024", "R-4711", "x",
+    };
+
+    public static void main(String[] args) {
+        LabelSets labelSets = new LabelSets(LISTS);
+        Random random = new Random(42);
+        int texts = 20_000;
+        for (int t = 0; t < texts; t++) {
+            StringBuilder text = new StringBuilder();
+            int fragments = random.nextInt(30);
+            for (int f = 0; f < fragments; f++) {
+                text.append(FRAGMENTS[random.nextInt(FRAGMENTS.length)]);
+            }
+
+            LabelSets.Match[] matches = labelSets.find(text);
+            for (int list = 0; list < LISTS.length; list++) {
+                String expected = indexOfLoop(text.toString(), LISTS[list]);
+                LabelSets.Match match = matches[list];
+                String actual = match == null ? "none" : match.getLabel() + "@" + match.getStart() + "-" + match.getEnd();
+                check("list " + list + " in \"" + text + "\"", actual, expected);
+            }
+        }
+
+        LabelSets.Match[] missing = labelSets.find(null);
+        check("lists of a missing text", missing.length, LISTS.length);
+        for (LabelSets.Match match : missing) {
+            check("label in a missing text", match == null, true);
+        }
+
+        LOGGER.info("Label set checks passed for " + texts + " texts");
+    }
+
+    /**
+     * The label lookup LabelSets replaces: the first label in priority order that occurs, at its first occurrence
+     */
+    private static String indexOfLoop(String text, String[] labels) {
+        for (int label = 0; label < labels.length; label++) {
+            int start = text.indexOf(labels[label]);
+            if (start > -1) {
+                return label + "@" + start + "-" + (start + labels[label].length());
+            }
+        }
+        return "none";
+    }
+
+    private static void check(String what, Object actual, Object expected) {
+        if (!actual.equals(expected)) {
+            throw new IllegalStateException(what + ": expected " + expected + ", got " + actual);
+        }
+    }
+}
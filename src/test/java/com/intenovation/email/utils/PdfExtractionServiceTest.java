@@ -0,0 +1,61 @@
+package com.intenovation.email.utils;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.logging.Logger;
+
+/**
+ * Test harness for {@link PdfExtractionService}: only the pages up to the page limit are read and such documents
+ * are reported as cut short, shorter documents are read completely, and unreadable documents yield no text.
+ */
+public class PdfExtractionServiceTest {
+    private static final Logger LOGGER = Logger.getLogger(PdfExtractionServiceTest.class.getName());
+
+    public static void main(String[] args) throws Exception {
+        PdfExtractionService service = PdfExtractionService.getDefault();
+        File dir = Files.createTempDirectory("pdf-extraction").toFile();
+        try {
+            service.configure(2, 3, PdfExtractionService.DEFAULT_TIME_LIMIT_SECONDS,
+                    PdfExtractionService.DEFAULT_MEMORY_MEGABYTES);
+
+            File longPdf = PdfTextCacheTest.write(dir, "lang.pdf",
+                    PdfTextCacheTest.pdf("Seite eins", "Seite zwei", "Seite drei", "Seite vier", "Seite fünf"));
+            PdfExtractionService.Result limited = service.extract(longPdf, "");
+            check("pages read", limited.getPages(), 3);
+            check("page limited", limited.isPageLimited(), true);
+            check("time limited", limited.isTimeLimited(), false);
+            check("text of the last page read", limited.getText().contains("Seite drei"), true);
+            check("text beyond the page limit", limited.getText().contains("Seite vier"), false);
+
+            PdfExtractionService.Result complete = service.extract(PdfTextCacheTest.write(dir, "kurz.pdf",
+                    PdfTextCacheTest.pdf("Seite eins", "Seite zwei")), "");
+            check("pages of a short document", complete.getPages(), 2);
+            check("short document page limited", complete.isPageLimited(), false);
+            check("text of a short document", complete.getText().contains("Seite zwei"), true);
+
+            PdfExtractionService.Result unreadable = service.extract(PdfTextCacheTest.write(dir, "kaputt.pdf",
+                    new byte[]{'%', 'P', 'D', 'F'}), "");
+            check("unreadable document", unreadable.getText() == null, true);
+            check("pages of an unreadable document", unreadable.getPages(), 0);
+
+            check("statistics", service.getStatistics().startsWith("PDF: 2 documents, 5 pages"), true);
+            check("statistics of limited documents",
+                    service.getStatistics().contains("1 over page limit, 0 over time limit, 1 unreadable"), true);
+
+            LOGGER.info("PDF extraction service checks passed");
+        } finally {
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+            service.configure(PdfExtractionService.DEFAULT_THREADS, PdfExtractionService.DEFAULT_MAX_PAGES,
+                    PdfExtractionService.DEFAULT_TIME_LIMIT_SECONDS, PdfExtractionService.DEFAULT_MEMORY_MEGABYTES);
+        }
+    }
+
+    private static void check(String what, Object actual, Object expected) {
+        if (!actual.equals(expected)) {
+            throw new IllegalStateException(what + ": expected " + expected + ", got " + actual);
+        }
+    }
+}
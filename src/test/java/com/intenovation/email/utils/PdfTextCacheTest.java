@@ -0,0 +1,175 @@
+package com.intenovation.email.utils;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.encryption.AccessPermission;
+import org.apache.pdfbox.pdmodel.encryption.StandardProtectionPolicy;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.logging.Logger;
+
+/**
+ * Test harness for {@link PdfTextCache}: extracted text is cached by content, unreadable PDFs are cached as such
+ * but a wrong password is not, the least recently used records are dropped once the cache file grows beyond its
+ * limit, the records are read back from the file, and text cut short by the page limit is read again when
+ * the limit changes.
+ */
+public class PdfTextCacheTest {
+    private static final Logger LOGGER = Logger.getLogger(PdfTextCacheTest.class.getName());
+
+    public static void main(String[] args) throws Exception {
+        File dir = Files.createTempDirectory("pdf-text-cache").toFile();
+        try {
+            File file = new File(dir, PdfTextCache.FILE_NAME);
+            Random random = new Random(42);
+            File[] pdfs = new File[8];
+            for (int i = 0; i < pdfs.length; i++) {
+                pdfs[i] = write(dir, "rechnung-" + i + ".pdf", pdf("Rechnung " + i + " " + noise(random, 600)));
+            }
+            File broken = write(dir, "broken.pdf", new byte[]{'%', 'P', 'D', 'F'});
+
+            // Each record takes roughly 500 bytes, so the limit holds about four of them
+            PdfTextCache cache = PdfTextCache.open(file, 2000);
+            check("text", cache.extract(pdfs[0]).startsWith("Rechnung 0"), true);
+            check("cached text", cache.extract(pdfs[0]).startsWith("Rechnung 0"), true);
+            check("statistics", cache.getStatistics(), "1 PDFs cached, 1 hits, 1 misses");
+            check("unreadable PDF", cache.extract(broken) == null, true);
+            check("cached unreadable PDF", cache.extract(broken) == null, true);
+            check("statistics with an unreadable PDF", cache.getStatistics(), "2 PDFs cached, 2 hits, 2 misses");
+
+            // Reading PDF 0 after each new PDF keeps it while the older ones are dropped
+            for (int i = 1; i < pdfs.length; i++) {
+                check("text " + i, cache.extract(pdfs[i]).startsWith("Rechnung " + i), true);
+                cache.extract(pdfs[0]);
+            }
+            check("file within the limit", file.length() <= 2000, true);
+            int cached = cache.size();
+            check("records dropped", cached < pdfs.length, true);
+            check("statistics after eviction", cache.getStatistics(), cached + " PDFs cached, 9 hits, 9 misses");
+            cache.extract(pdfs[pdfs.length - 1]);
+            check("newest PDF kept", cache.getStatistics(), cached + " PDFs cached, 10 hits, 9 misses");
+            cache.extract(pdfs[1]);
+            check("oldest PDF dropped", cache.getStatistics().endsWith("10 hits, 10 misses"), true);
+
+            // Another instance reads the records from the file
+            File copy = new File(dir, "copy" + PdfTextCache.FILE_NAME);
+            Files.copy(file.toPath(), copy.toPath());
+            PdfTextCache reopened = PdfTextCache.open(copy, 2000);
+            check("records after reopening", reopened.size(), cache.size());
+            check("text after reopening", reopened.extract(pdfs[0]).startsWith("Rechnung 0"), true);
+            check("statistics after reopening", reopened.getStatistics(), cache.size() + " PDFs cached, 1 hits, 0 misses");
+
+            checkPasswordAndPageLimit(new File(dir, "limits" + PdfTextCache.FILE_NAME));
+
+            LOGGER.info("PDF text cache checks passed");
+        } finally {
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    /**
+     * A wrong password is tried again, and text cut short by the page limit is only used with the same limit
+     */
+    private static void checkPasswordAndPageLimit(File file) throws Exception {
+        PdfExtractionService service = PdfExtractionService.getDefault();
+        PdfTextCache cache = PdfTextCache.open(file, PdfTextCache.DEFAULT_MAX_BYTES);
+        File dir = file.getParentFile();
+        try {
+            File protectedPdf = write(dir, "geheim.pdf", protect(pdf("Geheime Rechnung"), "geheim"));
+            check("wrong password", cache.extract(protectedPdf, "falsch") == null, true);
+            check("wrong password tried again", cache.extract(protectedPdf, "falsch") == null, true);
+            check("statistics after a wrong password", cache.getStatistics(), "0 PDFs cached, 0 hits, 2 misses");
+            check("right password", cache.extract(protectedPdf, "geheim").contains("Geheime Rechnung"), true);
+
+            File twoPages = write(dir, "zwei-seiten.pdf", pdf("Seite eins", "Seite zwei"));
+            File onePage = write(dir, "eine-seite.pdf", pdf("Nur eine Seite"));
+            service.configure(PdfExtractionService.DEFAULT_THREADS, 1, PdfExtractionService.DEFAULT_TIME_LIMIT_SECONDS,
+                    PdfExtractionService.DEFAULT_MEMORY_MEGABYTES);
+            check("text within the page limit", cache.extract(twoPages).contains("Seite zwei"), false);
+            check("whole document", cache.extract(onePage).contains("Nur eine Seite"), true);
+            check("cached text within the page limit", cache.extract(twoPages).contains("Seite zwei"), false);
+
+            service.configure(PdfExtractionService.DEFAULT_THREADS, 2, PdfExtractionService.DEFAULT_TIME_LIMIT_SECONDS,
+                    PdfExtractionService.DEFAULT_MEMORY_MEGABYTES);
+            check("text after raising the page limit", cache.extract(twoPages).contains("Seite zwei"), true);
+            check("whole document after raising the page limit", cache.extract(onePage).contains("Nur eine Seite"), true);
+            check("statistics after raising the page limit", cache.getStatistics(), "3 PDFs cached, 2 hits, 6 misses");
+
+            // The record of the whole document replaces the one cut short
+            File copy = new File(file.getPath() + ".copy");
+            Files.copy(file.toPath(), copy.toPath());
+            PdfTextCache reopened = PdfTextCache.open(copy, PdfTextCache.DEFAULT_MAX_BYTES);
+            check("whole document after reopening", reopened.extract(twoPages).contains("Seite zwei"), true);
+            check("statistics after reopening", reopened.getStatistics(), "3 PDFs cached, 1 hits, 0 misses");
+        } finally {
+            service.configure(PdfExtractionService.DEFAULT_THREADS, PdfExtractionService.DEFAULT_MAX_PAGES,
+                    PdfExtractionService.DEFAULT_TIME_LIMIT_SECONDS, PdfExtractionService.DEFAULT_MEMORY_MEGABYTES);
+        }
+    }
+
+    /**
+     * Encrypt a PDF with a user password
+     */
+    private static byte[] protect(byte[] pdf, String password) throws IOException {
+        try (PDDocument document = PDDocument.load(pdf)) {
+            document.protect(new StandardProtectionPolicy(password + "-owner", password, new AccessPermission()));
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            document.save(out);
+            return out.toByteArray();
+        }
+    }
+
+    /**
+     * Create a PDF with one page per text
+     */
+    static byte[] pdf(String... pages) throws IOException {
+        try (PDDocument document = new PDDocument()) {
+            for (String text : pages) {
+                PDPage page = new PDPage();
+                document.addPage(page);
+                try (PDPageContentStream content = new PDPageContentStream(document, page)) {
+                    content.beginText();
+                    content.setFont(PDType1Font.HELVETICA, 8);
+                    content.newLineAtOffset(20, 700);
+                    content.showText(text);
+                    content.endText();
+                }
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            document.save(out);
+            return out.toByteArray();
+        }
+    }
+
+    /**
+     * Write a file into the test directory
+     */
+    static File write(File dir, String name, byte[] data) throws IOException {
+        File file = new File(dir, name);
+        Files.write(file.toPath(), data);
+        return file;
+    }
+
+    private static String noise(Random random, int length) {
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sb.append((char) ('a' + random.nextInt(26)));
+        }
+        return sb.toString();
+    }
+
+    private static void check(String what, Object actual, Object expected) {
+        if (!actual.equals(expected)) {
+            throw new IllegalStateException(what + ": expected " + expected + ", got " + actual);
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package com.intenovation.invoice;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Random;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Test harness comparing the single-pass field extraction of {@link InvoiceParser} with the
+ * regular expressions it replaced: both must extract the same fields from every document of the corpus,
+ * and the time per document is measured for both.
+ * The corpus is generated from the label vocabulary; a directory of text files can be added.
+ */
+public class FieldExtractorBenchmark {
+    private static final Logger LOGGER = Logger.getLogger(FieldExtractorBenchmark.class.getName());
+
+    // The patterns as they were before the FieldExtractor, used as the reference
+    private static final Pattern[] AMOUNT_PATTERNS = {
+            // German style
+            Pattern.compile("(?i)(Gesamtbetrag\\s*\\(brutto\\)|Gesamtsumme|Rechnungsbetrag in Höhe von|Rechnungsbetrag:|Rechnungsbetrag von|Zu zahlender Betrag:|Endbetrag EUR|Brutto|Betrag beläuft sich auf)\\s*[€]?\\s*([\\d.,]+)"),
+            // English style
+            Pattern.compile("(?i)(Total Charges:|Total Amount Due:|Total Balance Due:|a payment of|Total due now:|Total Due|Statement Amount:|Amount due:|Amount Due:|Amount:|The amount of|Invoice amount|invoice total is|Total\\$|Original Charge|Total Charged|Payment amount:|BALANCE DUE|Current charges:|Total \\(USD\\):|Total \\$|TOTAL \\$|Amount Received|Amount due on this invoice:|Total|Statement balance:|Statement balance|Amount Charged \\$|PAY THIS AMOUNT:|outstanding balance of|TOTAL|Amount paid|DETAILS)\\s*[\\$£]?\\s*([\\d.,]+)"),
+            // General pattern
+            Pattern.compile("(?i)(total|amount|sum|betrag|summe)[\\s:]*[$€£]?\\s*([\\d,.]+)")
+    };
+
+    private static final Pattern[] INVOICE_NUMBER_PATTERNS = {
+            Pattern.compile("(?i)(Your invoice|Invoice #:|Order Number #|Rechnungsnummer:|Billing Period:|Plan period|aktuelle Rechnung|Invoice no.|Invoice Number:|INVOICE|Bill Period\\s*:|Receipt #|Ihre Rechnung|Order Number|Order #:)\\s*([A-Za-z0-9-]{3,20})"),
+            Pattern.compile("(?i)(invoice|rechnung|bill)[\\s:#-]*([A-Z0-9]{4,20})")
+    };
+
+    private static final Pattern[] ACCOUNT_NUMBER_PATTERNS = {
+            Pattern.compile("(?i)(Kundennummer:|Kundennummer|Kunden Nr|Account Number: Ending in|account number:|Account Number:|Account:|Service Address:|Account number:|Your order from|ordered from|Beleg für|CF Number:|for account number \\*{6}|Receipt for Your Payment to|for account :|Customer #:|account ending in \\*{6}|Policy Number)\\s*([A-Za-z0-9-]{3,30})"),
+            Pattern.compile("(?i)(account|konto|customer)[\\s:#-]*([A-Z0-9]{4,20})")
+    };
+
+    private static final Pattern[] DATE_PATTERNS = {
+            Pattern.compile("(?i)(Billing Date:|Date:|Rechnungsdatum:|Payment date:|was placed on|Statement date:)\\s*([0-9]{1,2}[\\s./\\-][0-9]{1,2}[\\s./\\-][0-9]{2,4})"),
+            Pattern.compile("(?i)(date|datum)[\\s:]*([0-9]{1,2}[\\s./\\-][0-9]{1,2}[\\s./\\-][0-9]{2,4})")
+    };
+
+    private static final Pattern[] DUE_DATE_PATTERNS = {
+            Pattern.compile("(?i)(Due Date:|DUE DATE|is due on|Total Current Charges Due On|Payment Due Date|Payment due date:|TRANSACTION DATE|Auto Pay Date:|Received:|delivered on|DUE|AUTO DRAFT DATE:|APS amount to be applied on|will be charged on)\\s*([0-9]{1,2}[\\s./\\-][0-9]{1,2}[\\s./\\-][0-9]{2,4})"),
+            Pattern.compile("(?i)(due date|fällig|zahlbar bis)[\\s:]*([0-9]{1,2}[\\s./\\-][0-9]{1,2}[\\s./\\-][0-9]{2,4})")
+    };
+
+    private static final String[] WORDS = {
+            "Total", "total", "TOTAL", "Subtotal", "Amount", "amount due", "Amount Due:", "Betrag", "Gesamtbetrag (brutto)",
+            "Gesamtbetrag  (brutto)", "Rechnungsbetrag:", "Rechnungsnummer:", "Kundennummer", "Kunden Nr", "summe",
+            "Summary", "sum", "Invoice", "invoice #", "Invoice no.", "Invoice no:", "Invoice Number:", "Bill Period :",
+            "billing", "Bill", "account", "Account Number: Ending in", "account ending in ******", "Customer #:",
+            "for account number ******", "konto", "Date:", "date", "datum", "Datum:", "Due Date:", "DUE", "due date",
+            "fällig", "Fällig", "zahlbar bis", "Received:", "is due on", "Statement balance", "Total $", "Total (USD):",
+            "Payment amount:", "Order #:", "Order Number", "Ihre Rechnung", "Beleg für", "Policy Number", "DETAILS",
+            "the", "your", "service", "Stadtwerke", "electricity", "water", "Thank you", "€", "$", "£", ":", "#", "-",
+            "\n", "\n\n", "  ", "\t", "Rückfragen", "Straße"
+    };
+
+    public static void main(String[] args) throws Exception {
+        int documents = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        List<String> corpus = generateCorpus(documents, new Random(42));
+        if (args.length > 2) {
+            corpus.addAll(readCorpus(new File(args[2])));
+        }
+
+        int withFields = 0;
+        for (String text : corpus) {
+            Invoice expected = new Invoice();
+            Invoice actual = new Invoice();
+            boolean expectedFound = extractLegacy(expected, text);
+            boolean actualFound = InvoiceParser.extractInvoiceDetails(actual, text);
+            if (expectedFound != actualFound || !sameFields(expected, actual)) {
+                throw new IllegalStateException("Different fields for document:\n" + text + "\nexpected " +
+                        describe(expected) + "\nactual   " + describe(actual));
+            }
+            if (expectedFound) {
+                withFields++;
+            }
+        }
+        LOGGER.info("Identical fields for all " + corpus.size() + " documents (" + withFields + " with fields)");
+
+        long chars = 0;
+        for (String text : corpus) {
+            chars += text.length();
+        }
+        for (int round = 0; round < rounds; round++) {
+            long legacyNanos = time(corpus, text -> extractLegacy(new Invoice(), text));
+            long singlePassNanos = time(corpus, text -> InvoiceParser.extractInvoiceDetails(new Invoice(), text));
+            LOGGER.info(String.format("Round %d: regular expressions %.1f us/document, single pass %.1f us/document, " +
+                            "speedup %.2fx (%.0f chars/document)", round + 1,
+                    legacyNanos / 1000.0 / corpus.size(), singlePassNanos / 1000.0 / corpus.size(),
+                    legacyNanos / (double) Math.max(1, singlePassNanos), chars / (double) corpus.size()));
+        }
+    }
+
+    private interface Extraction {
+        void run(String text);
+    }
+
+    private static long time(List<String> corpus, Extraction extraction) {
+        long start = System.nanoTime();
+        for (String text : corpus) {
+            extraction.run(text);
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Documents of random length mixing labels, values in several formats and filler words
+     */
+    private static List<String> generateCorpus(int documents, Random random) {
+        List<String> corpus = new ArrayList<>();
+        for (int d = 0; d < documents; d++) {
+            int tokens = 20 + random.nextInt(random.nextInt(10) == 0 ? 3000 : 300);
+            StringBuilder sb = new StringBuilder();
+            for (int t = 0; t < tokens; t++) {
+                switch (random.nextInt(8)) {
+                    case 0:
+                        sb.append(random.nextInt(100000)).append(random.nextBoolean() ? "," : ".")
+                                .append(random.nextInt(100));
+                        break;
+                    case 1:
+                        sb.append(1 + random.nextInt(31)).append("./- ".charAt(random.nextInt(4)))
+                                .append(1 + random.nextInt(12)).append("./- ".charAt(random.nextInt(4)))
+                                .append(random.nextBoolean() ? 2000 + random.nextInt(30) : random.nextInt(100));
+                        break;
+                    case 2:
+                        sb.append(random.nextBoolean() ? "INV-" : "ab").append(random.nextInt(1000000));
+                        break;
+                    default:
+                        sb.append(WORDS[random.nextInt(WORDS.length)]);
+                }
+                sb.append(random.nextInt(4) == 0 ? "" : " ");
+            }
+            corpus.add(sb.toString());
+        }
+        return corpus;
+    }
+
+    private static List<String> readCorpus(File directory) throws IOException {
+        List<String> corpus = new ArrayList<>();
+        try (Stream<Path> files = Files.walk(directory.toPath())) {
+            for (Path file : (Iterable<Path>) files.filter(Files::isRegularFile)::iterator) {
+                corpus.add(new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+            }
+        }
+        return corpus;
+    }
+
+    private static boolean sameFields(Invoice a, Invoice b) {
+        return a.getAmount() == b.getAmount() && Objects.equals(a.getNumber(), b.getNumber()) &&
+                Objects.equals(a.getAccount(), b.getAccount()) && Objects.equals(a.getDate(), b.getDate()) &&
+                Objects.equals(a.getDueDate(), b.getDueDate());
+    }
+
+    private static String describe(Invoice invoice) {
+        return "amount=" + invoice.getAmount() + " number=" + invoice.getNumber() + " account=" + invoice.getAccount() +
+                " date=" + invoice.getDate() + " dueDate=" + invoice.getDueDate();
+    }
+
+    /**
+     * The extraction as it was before the FieldExtractor
+     */
+    private static boolean extractLegacy(Invoice invoice, String content) {
+        boolean foundSomething = false;
+        for (Pattern pattern : AMOUNT_PATTERNS) {
+            Matcher matcher = pattern.matcher(content);
+            if (matcher.find()) {
+                try {
+                    double amount = NumberUtils.parseAmount(matcher.group(2));
+                    if (amount > 0 && amount < 100000) {
+                        invoice.setAmount(amount);
+                        foundSomething = true;
+                        break;
+                    }
+                } catch (NumberFormatException e) {
+                    // Next pattern
+                }
+            }
+        }
+        String number = findFirst(INVOICE_NUMBER_PATTERNS, content);
+        if (number != null) {
+            invoice.setNumber(number.replaceAll("[\\s:,;]", "").trim());
+            foundSomething = true;
+        }
+        String account = findFirst(ACCOUNT_NUMBER_PATTERNS, content);
+        if (account != null) {
+            invoice.setAccount(account);
+            foundSomething = true;
+        }
+        String date = findFirst(DATE_PATTERNS, content);
+        if (date != null) {
+            invoice.setDate(date);
+            foundSomething = true;
+        }
+        String dueDate = findFirst(DUE_DATE_PATTERNS, content);
+        if (dueDate != null) {
+            invoice.setDueDate(dueDate);
+            foundSomething = true;
+        }
+        return foundSomething;
+    }
+
+    private static String findFirst(Pattern[] patterns, String content) {
+        for (Pattern pattern : patterns) {
+            Matcher matcher = pattern.matcher(content);
+            if (matcher.find() && !matcher.group(2).isEmpty()) {
+                return matcher.group(2);
+            }
+        }
+        return null;
+    }
+}
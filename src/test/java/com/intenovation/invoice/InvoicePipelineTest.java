@@ -0,0 +1,108 @@
+package com.intenovation.invoice;
+
+import com.intenovation.email.downloader.FileUtils;
+
+import javax.mail.Message;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Test harness for {@link InvoicePipeline}: results are stored in submission order although the messages
+ * finish the stages in a different order, and messages with known results are stored without being parsed.
+ */
+public class InvoicePipelineTest {
+    private static final Logger LOGGER = Logger.getLogger(InvoicePipelineTest.class.getName());
+
+    public static void main(String[] args) throws Exception {
+        File outputDir = Files.createTempDirectory("invoice-pipeline").toFile();
+        try {
+            InvoiceConfiguration config = new InvoiceConfiguration() {
+                @Override
+                public File getOutputDirectory() { return outputDir; }
+
+                @Override
+                public int getReadThreads() { return 4; }
+
+                @Override
+                public int getProcessingThreads() { return 4; }
+
+                @Override
+                public int getPipelineQueueCapacity() { return 3; }
+            };
+
+            int count = 50;
+            Session session = Session.getInstance(new Properties());
+            List<Integer> stored = Collections.synchronizedList(new ArrayList<>());
+            List<Integer> knownStored = Collections.synchronizedList(new ArrayList<>());
+            AtomicInteger prepared = new AtomicInteger();
+            Random random = new Random(42);
+
+            InvoicePipeline<Integer> pipeline = new InvoicePipeline<>(config, new InvoiceParser(config),
+                    new InvoicePipeline.Handler<Integer>() {
+                        @Override
+                        public List<Invoice> lookup(Integer index, Message message) throws Exception {
+                            // Slow reads let later messages overtake earlier ones
+                            Thread.sleep(random.nextInt(20));
+                            if (index % 5 == 0) {
+                                Invoice known = new Invoice();
+                                known.setEmailId("known-" + index);
+                                return Collections.singletonList(known);
+                            }
+                            return null;
+                        }
+
+                        @Override
+                        public Invoice prepare(Integer index, Message message) {
+                            prepared.incrementAndGet();
+                            return new Invoice();
+                        }
+
+                        @Override
+                        public void store(Integer index, List<Invoice> invoices,
+                                          List<InvoiceParser.ContentPart> unparsed) {
+                            stored.add(index);
+                            if (!invoices.isEmpty() && ("known-" + index).equals(invoices.get(0).getEmailId())) {
+                                knownStored.add(index);
+                            }
+                        }
+                    });
+
+            for (int i = 0; i < count; i++) {
+                MimeMessage message = new MimeMessage(session);
+                message.setSubject("Rechnung " + i);
+                message.setText("Rechnungsnummer: R-" + i + "\nGesamtbetrag: " + i + ",00 EUR", "UTF-8");
+                message.saveChanges();
+                pipeline.submit(i, message);
+            }
+            pipeline.finish();
+
+            List<Integer> expected = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                expected.add(i);
+            }
+            check("stored in submission order", stored, expected);
+            check("known results stored", knownStored.size(), count / 5);
+            check("known results not prepared", prepared.get(), count - count / 5);
+            check("metrics", pipeline.getMetrics().get(3).startsWith("Store: " + count + " done"), true);
+
+            LOGGER.info("Invoice pipeline checks passed");
+        } finally {
+            FileUtils.deleteDirectory(outputDir);
+        }
+    }
+
+    private static void check(String what, Object actual, Object expected) {
+        if (!actual.equals(expected)) {
+            throw new IllegalStateException(what + ": expected " + expected + ", got " + actual);
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package com.intenovation.invoice;
+
+import com.intenovation.email.downloader.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Test harness for {@link LLMCache} against a {@link StubOllamaServer}: cached answers are returned without
+ * asking Ollama, the least recently used answers are deleted once the cache grows beyond its size limit,
+ * answers are only reused for the model and prompt version that gave them, unless the model is
+ * configured for warm start, and callers asking for the same prompt at the same time share one request.
+ */
+public class LLMCacheTest {
+    private static final Logger LOGGER = Logger.getLogger(LLMCacheTest.class.getName());
+
+    private static final long MAX_BYTES = 1024L * 1024;
+
+    public static void main(String[] args) throws Exception {
+        File outputDir = Files.createTempDirectory("llm-cache").toFile();
+        try (StubOllamaServer server = new StubOllamaServer(0)) {
+            checkEviction(server, new File(outputDir, "eviction"));
+            checkModelKeys(server, new File(outputDir, "models"));
+            checkSingleFlight(new File(outputDir, "single-flight"));
+
+            LOGGER.info("LLM cache checks passed");
+        } finally {
+            FileUtils.deleteDirectory(outputDir);
+        }
+    }
+
+    /**
+     * Answers are found after a restart, used answers are kept and the least recently used ones are deleted
+     */
+    private static void checkEviction(StubOllamaServer server, File outputDir) throws IOException {
+        LLMCache cache = new LLMCache(config(server, outputDir, "llama3.2", ""), 1);
+        check("first answer", cache.getResponse("prompt 1"), StubOllamaServer.expectedResponse("prompt 1"));
+        check("second answer", cache.getResponse("prompt 2"), StubOllamaServer.expectedResponse("prompt 2"));
+        check("cached answer", cache.getResponse("prompt 1"), StubOllamaServer.expectedResponse("prompt 1"));
+        check("requests", server.getGenerateRequests(), 2);
+        check("misses", cache.getMissCount(), 2L);
+        check("memory hits", cache.getMemoryHitCount(), 1L);
+
+        // Fill the cache a little beyond its limit, e.g. after the limit was lowered, with entries newer than the answers
+        File cacheDir = new File(outputDir, "llm-cache");
+        long used = cache.getCacheSize();
+        long now = System.currentTimeMillis();
+        setLastModified(cacheDir, now - 100_000);
+        File older = filler(cacheDir, "aa", 400_000, now - 50_000);
+        File newer = filler(cacheDir, "bb", MAX_BYTES - used - 400_000 + 100, now - 40_000);
+
+        // After a restart, reading the first answer makes it the most recently used one
+        server.reset();
+        LLMCache restarted = new LLMCache(config(server, outputDir, "llama3.2", ""), 1);
+        check("entries after restart", restarted.getCacheCount(), 4);
+        check("size after restart", restarted.getCacheSize(), MAX_BYTES + 100);
+        check("answer after restart", restarted.getResponse("prompt 1"), StubOllamaServer.expectedResponse("prompt 1"));
+        check("disk hits", restarted.getDiskHitCount(), 1L);
+
+        // The next new answer brings the cache back within its limit: the second answer and the older filler go
+        check("third answer", restarted.getResponse("prompt 3"), StubOllamaServer.expectedResponse("prompt 3"));
+        check("evictions", restarted.getEvictionCount(), 2L);
+        check("size within limit", restarted.getCacheSize() <= MAX_BYTES, true);
+        check("older filler deleted", older.exists(), false);
+        check("newer filler kept", newer.exists(), true);
+        check("requests before asking again", server.getGenerateRequests(), 1);
+        restarted.getResponse("prompt 1");
+        check("used answer kept", server.getGenerateRequests(), 1);
+        restarted.getResponse("prompt 2");
+        check("unused answer deleted", server.getGenerateRequests(), 2);
+    }
+
+    /**
+     * Answers are kept per model and prompt version; warm-start models lend their answers to the configured model
+     */
+    private static void checkModelKeys(StubOllamaServer server, File outputDir) {
+        server.reset();
+        LLMCache llama = new LLMCache(config(server, outputDir, "llama3.2", ""), 1);
+        llama.getResponse("prompt");
+        llama.getResponse("prompt");
+        check("requests of one model", server.getGenerateRequests(), 1);
+
+        LLMCache mistral = new LLMCache(config(server, outputDir, "mistral", ""), 1);
+        mistral.getResponse("prompt");
+        check("other model asks again", server.getGenerateRequests(), 2);
+        check("answers of both models", mistral.getCacheCount(), 2);
+
+        LLMCache newPrompt = new LLMCache(config(server, outputDir, "llama3.2", ""), 2);
+        newPrompt.getResponse("prompt");
+        check("new prompt version asks again", server.getGenerateRequests(), 3);
+
+        LLMCache restarted = new LLMCache(config(server, outputDir, "llama3.2", ""), 1);
+        restarted.getResponse("prompt");
+        check("first model keeps its answer", server.getGenerateRequests(), 3);
+
+        // A new model answers from the cached answers of the warm-start models, in their configured order
+        LLMCache warm = new LLMCache(config(server, outputDir, "qwen2.5", "llama3.2, mistral"), 1);
+        check("warm-start models", warm.getWarmStartModels().toString(), "[llama3.2, mistral]");
+        check("warm-start answer", warm.getResponse("prompt"), StubOllamaServer.expectedResponse("prompt"));
+        check("warm-start hits", warm.getWarmStartHitCount(), 1L);
+        check("warm start asks nobody", server.getGenerateRequests(), 3);
+        warm.getResponse("other prompt");
+        check("warm start without an answer asks", server.getGenerateRequests(), 4);
+        check("configured model is no warm-start model", new LLMCache(config(server, outputDir, "llama3.2",
+                "llama3.2"), 1).getWarmStartModels().isEmpty(), true);
+    }
+
+    /**
+     * Concurrent misses for one prompt send a single request; different prompts are not held up by each other
+     */
+    private static void checkSingleFlight(File outputDir) throws Exception {
+        try (StubOllamaServer server = new StubOllamaServer(500)) {
+            LLMCache cache = new LLMCache(config(server, outputDir, "llama3.2", ""), 1);
+            int callers = 8;
+            ExecutorService executor = Executors.newFixedThreadPool(callers);
+            try {
+                CountDownLatch start = new CountDownLatch(1);
+                List<Future<String>> answers = new ArrayList<>();
+                for (int i = 0; i < callers; i++) {
+                    String prompt = i < callers - 2 ? "shared prompt" : "own prompt " + i;
+                    answers.add(executor.submit(() -> {
+                        start.await();
+                        return cache.getResponse(prompt);
+                    }));
+                }
+                start.countDown();
+                for (int i = 0; i < callers; i++) {
+                    String prompt = i < callers - 2 ? "shared prompt" : "own prompt " + i;
+                    check("answer of caller " + i, answers.get(i).get(30, TimeUnit.SECONDS),
+                            StubOllamaServer.expectedResponse(prompt));
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+            check("requests", server.getGenerateRequests(), 3);
+            check("misses", cache.getMissCount(), 3L);
+            check("coalesced and cached", cache.getCoalescedCount() + cache.getMemoryHitCount(), (long) callers - 3);
+            check("coalesced", cache.getCoalescedCount() > 0, true);
+        }
+    }
+
+    /**
+     * Configuration with the cache in a temporary directory, talking to the stub server
+     */
+    private static InvoiceConfiguration config(StubOllamaServer server, File outputDir, String model, String warmStartModels) {
+        return new InvoiceConfiguration() {
+            @Override
+            public File getOutputDirectory() { return outputDir; }
+
+            @Override
+            public String getOllamaHost() { return server.getHost(); }
+
+            @Override
+            public String getOllamaModel() { return model; }
+
+            @Override
+            public String getOllamaWarmStartModels() { return warmStartModels; }
+
+            @Override
+            public int getLlmCacheMaxMegabytes() { return (int) (MAX_BYTES / (1024 * 1024)); }
+        };
+    }
+
+    /**
+     * Write a cache entry no prompt maps to
+     */
+    private static File filler(File cacheDir, String shard, long size, long lastModified) throws IOException {
+        File file = new File(new File(cacheDir, shard), shard + "0".repeat(62) + ".txt");
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), new byte[(int) size]);
+        file.setLastModified(lastModified);
+        return file;
+    }
+
+    private static void setLastModified(File dir, long lastModified) {
+        for (File file : dir.listFiles()) {
+            if (file.isDirectory()) {
+                setLastModified(file, lastModified);
+            } else {
+                file.setLastModified(lastModified);
+            }
+        }
+    }
+
+    private static void check(String what, Object actual, Object expected) {
+        if (!actual.equals(expected)) {
+            throw new IllegalStateException(what + ": expected " + expected + ", got " + actual);
+        }
+    }
+}
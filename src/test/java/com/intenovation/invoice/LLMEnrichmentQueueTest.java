@@ -0,0 +1,79 @@
+package com.intenovation.invoice;
+
+import com.intenovation.email.downloader.FileUtils;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Test harness for {@link LLMEnrichmentQueue}: waiting parts survive saving and loading with the message state
+ * they were parsed from, parts Ollama answered for are removed, and parsing a message again replaces its parts.
+ */
+public class LLMEnrichmentQueueTest {
+    private static final Logger LOGGER = Logger.getLogger(LLMEnrichmentQueueTest.class.getName());
+
+    public static void main(String[] args) throws Exception {
+        File outputDir = Files.createTempDirectory("llm-enrichment-queue").toFile();
+        try {
+            LLMEnrichmentQueue queue = LLMEnrichmentQueue.load(outputDir);
+            check("new queue", queue.size(), 0);
+
+            queue.put("<1@example.com>", "f1", "rules-1+ollama:llama3.2", Arrays.asList(part("Teil eins"), part("Teil zwei")));
+            queue.put("<2@example.com>", "f2", "rules-1+ollama:llama3.2", Collections.singletonList(part("Zweite Nachricht")));
+            queue.put("<3@example.com>", "f3", "rules-1+ollama:llama3.2", Collections.emptyList());
+            check("waiting parts", queue.size(), 3);
+            queue.save();
+
+            // The waiting parts are read back, the oldest message first
+            LLMEnrichmentQueue loaded = LLMEnrichmentQueue.load(outputDir);
+            List<LLMEnrichmentQueue.Item> items = loaded.snapshot();
+            check("loaded parts", items.size(), 3);
+            check("first message", items.get(0).getMessageId(), "<1@example.com>");
+            check("fingerprint", items.get(0).getFingerprint(), "f1");
+            check("version", items.get(0).getVersion(), "rules-1+ollama:llama3.2");
+            check("text", items.get(1).getText(), "Teil zwei");
+            check("invoice subject", items.get(2).getInvoice().getSubject(), "Rechnung");
+
+            // A part Ollama answered for is removed, a message parsed again replaces its parts
+            loaded.remove(items.get(0));
+            check("parts after remove", loaded.size(), 2);
+            loaded.put("<2@example.com>", "f2b", "rules-1+ollama:llama3.2", Collections.emptyList());
+            check("parts after parsing again", loaded.size(), 1);
+            loaded.save();
+            items = LLMEnrichmentQueue.load(outputDir).snapshot();
+            check("parts after reloading", items.size(), 1);
+            check("remaining part", items.get(0).getText(), "Teil zwei");
+
+            // A removed part that was put again meanwhile stays queued
+            loaded.put("<1@example.com>", "f1", "rules-1+ollama:llama3.2", Collections.singletonList(part("Teil zwei")));
+            loaded.remove(items.get(0));
+            check("part put again", loaded.size(), 1);
+
+            // Parts of messages that no longer exist are dropped
+            loaded.retain(new HashSet<>(Collections.singletonList("<9@example.com>")));
+            loaded.save();
+            check("parts after retain", LLMEnrichmentQueue.load(outputDir).size(), 0);
+
+            LOGGER.info("LLM enrichment queue checks passed");
+        } finally {
+            FileUtils.deleteDirectory(outputDir);
+        }
+    }
+
+    private static InvoiceParser.ContentPart part(String text) {
+        Invoice invoice = new Invoice();
+        invoice.setSubject("Rechnung");
+        return InvoiceParser.ContentPart.ofText(invoice, text);
+    }
+
+    private static void check(String what, Object actual, Object expected) {
+        if (!actual.equals(expected)) {
+            throw new IllegalStateException(what + ": expected " + expected + ", got " + actual);
+        }
+    }
+}
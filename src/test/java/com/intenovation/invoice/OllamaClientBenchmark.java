@@ -0,0 +1,149 @@
+package com.intenovation.invoice;
+
+import io.github.ollama4j.OllamaAPI;
+import io.github.ollama4j.models.response.OllamaResult;
+import io.github.ollama4j.utils.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.logging.Logger;
+
+/**
+ * Test harness for {@link OllamaInvokeService} against a {@link StubOllamaServer}: every caller must get
+ * the answer to its own prompt, the server must never see more requests at a time than the in-flight limit,
+ * connections must be reused and the health check must not be repeated per prompt. The throughput is compared
+ * with the previous way of calling Ollama, a new client and a ping for every prompt, at the same number of
+ * requests in flight.
+ */
+public class OllamaClientBenchmark {
+    private static final Logger LOGGER = Logger.getLogger(OllamaClientBenchmark.class.getName());
+
+    private static final String MODEL = "stub";
+
+    public static void main(String[] args) throws Exception {
+        int callers = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int requests = args.length > 1 ? Integer.parseInt(args[1]) : 400;
+        int maxInFlight = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        long latencyMillis = args.length > 3 ? Long.parseLong(args[3]) : 10;
+
+        try (StubOllamaServer server = new StubOllamaServer(latencyMillis)) {
+            // The previous client gets the same in-flight limit as the shared client
+            Semaphore slots = new Semaphore(maxInFlight);
+            Call legacy = prompt -> {
+                slots.acquire();
+                try {
+                    return perPromptClient(server.getHost(), prompt);
+                } finally {
+                    slots.release();
+                }
+            };
+
+            // Warm up both clients
+            run(callers, 20, legacy);
+            OllamaInvokeService service = OllamaInvokeService.getInstance(server.getHost());
+            service.setMaxInFlight(maxInFlight);
+            run(callers, 20, prompt -> service.invokeOllama(MODEL, prompt, 100, 30));
+
+            server.reset();
+            long legacyMillis = run(callers, requests, legacy);
+            LOGGER.info(String.format("Client per prompt: %d ms, %.0f requests/s, %d connections, %d pings",
+                    legacyMillis, requests * 1000.0 / legacyMillis, server.getConnections(), server.getTagsRequests()));
+
+            server.reset();
+            long pooledMillis = run(callers, requests, prompt -> service.invokeOllama(MODEL, prompt, 100, 30));
+            LOGGER.info(String.format("Shared client: %d ms, %.0f requests/s, %d connections, %d pings, " +
+                            "at most %d requests at a time", pooledMillis, requests * 1000.0 / pooledMillis,
+                    server.getConnections(), server.getTagsRequests(), server.getMaxActive()));
+            LOGGER.info(service.getStatistics());
+
+            check("generate requests", server.getGenerateRequests(), requests);
+            checkAtMost("requests at a time", server.getMaxActive(), maxInFlight);
+            checkAtMost("connections", server.getConnections(), maxInFlight);
+            checkAtMost("health checks", server.getTagsRequests(), 1);
+        }
+
+        testUnavailableServer();
+        LOGGER.info("Ollama client checks passed");
+    }
+
+    /**
+     * Verify that prompts for a server that is down fail fast, without a ping per prompt
+     */
+    private static void testUnavailableServer() throws Exception {
+        String host;
+        try (StubOllamaServer server = new StubOllamaServer(0)) {
+            host = server.getHost();
+        }
+        OllamaInvokeService service = OllamaInvokeService.getInstance(host);
+        long start = System.nanoTime();
+        for (int i = 0; i < 50; i++) {
+            if (service.invokeOllama(MODEL, "prompt " + i, 100, 30) != null) {
+                throw new IllegalStateException("Got a response from a stopped server");
+            }
+        }
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        LOGGER.info("50 prompts for a stopped server failed in " + millis + " ms: " + service.getStatistics());
+        check("requests to a stopped server", (int) service.getRequestCount(), 0);
+        check("health checks of a stopped server", (int) service.getHealthCheckCount(), 1);
+    }
+
+    /**
+     * How Ollama was called before: a new client and a ping for every prompt
+     */
+    private static String perPromptClient(String host, String prompt) throws Exception {
+        OllamaAPI ollamaAPI = new OllamaAPI(host);
+        ollamaAPI.setRequestTimeoutSeconds(30);
+        if (!ollamaAPI.ping()) {
+            return null;
+        }
+        OllamaResult result = ollamaAPI.generate(MODEL, prompt, false,
+                new OptionsBuilder().setTemperature(0.0f).setNumPredict(100).build());
+        return result != null ? result.getResponse() : null;
+    }
+
+    private interface Call {
+        String invoke(String prompt) throws Exception;
+    }
+
+    /**
+     * Send distinct prompts from several threads and check every answer
+     *
+     * @return The elapsed time in milliseconds
+     */
+    private static long run(int callers, int requests, Call call) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(callers);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            long start = System.nanoTime();
+            for (int i = 0; i < requests; i++) {
+                String prompt = "Extract the invoice fields of document " + i;
+                futures.add(executor.submit(() -> {
+                    String response = call.invoke(prompt);
+                    if (!StubOllamaServer.expectedResponse(prompt).equals(response)) {
+                        throw new IllegalStateException("Wrong response for '" + prompt + "': " + response);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            return Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void check(String what, int actual, int expected) {
+        if (actual != expected) {
+            throw new IllegalStateException(what + ": expected " + expected + ", got " + actual);
+        }
+    }
+
+    private static void checkAtMost(String what, int actual, int limit) {
+        if (actual > limit) {
+            throw new IllegalStateException(what + ": expected at most " + limit + ", got " + actual);
+        }
+    }
+}
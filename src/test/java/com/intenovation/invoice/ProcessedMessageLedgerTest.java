@@ -0,0 +1,107 @@
+package com.intenovation.invoice;
+
+import com.intenovation.email.downloader.FileUtils;
+
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+/**
+ * Test harness for {@link ProcessedMessageLedger}: a message with an unchanged fingerprint and results version
+ * is skipped with its recorded invoices, a changed message or parser version is parsed again, and the
+ * recorded results survive saving and loading.
+ */
+public class ProcessedMessageLedgerTest {
+    private static final Logger LOGGER = Logger.getLogger(ProcessedMessageLedgerTest.class.getName());
+
+    public static void main(String[] args) throws Exception {
+        File outputDir = Files.createTempDirectory("processed-messages").toFile();
+        try {
+            MimeMessage message = message("Ihre Rechnung");
+            String fingerprint = ProcessedMessageLedger.fingerprint(message);
+            check("fingerprint of the same headers", ProcessedMessageLedger.fingerprint(message("Ihre Rechnung")), fingerprint);
+            String changed = ProcessedMessageLedger.fingerprint(message("Ihre neue Rechnung"));
+            check("fingerprint of changed headers", changed.equals(fingerprint), false);
+
+            ProcessedMessageLedger ledger = ProcessedMessageLedger.load(outputDir);
+            check("new ledger", ledger.size(), 0);
+            check("unknown message", ledger.get("<1@example.com>", fingerprint, "rules-1") == null, true);
+
+            ledger.put("<1@example.com>", fingerprint, "rules-1", Collections.singletonList(invoice("INV-1", 10.5)));
+            ledger.put("<2@example.com>", fingerprint, "rules-1", Collections.emptyList());
+            check("unchanged message is skipped", ledger.get("<1@example.com>", fingerprint, "rules-1").size(), 1);
+            check("message without invoices is skipped", ledger.get("<2@example.com>", fingerprint, "rules-1").size(), 0);
+            check("changed message is parsed again", ledger.get("<1@example.com>", changed, "rules-1") == null, true);
+            check("new parser version parses again", ledger.get("<1@example.com>", fingerprint, "rules-2") == null, true);
+
+            // Invoices found later, e.g. by Ollama, are merged once and only into the state they were parsed from
+            check("merge", ledger.addInvoices("<1@example.com>", fingerprint, "rules-1",
+                    Arrays.asList(invoice("INV-1", 10.5), invoice("INV-2", 20.0))), true);
+            check("merged invoices", ledger.get("<1@example.com>", fingerprint, "rules-1").size(), 2);
+            check("merge into a changed message", ledger.addInvoices("<1@example.com>", changed, "rules-1",
+                    Collections.singletonList(invoice("INV-3", 30.0))), false);
+            check("merge into an unknown message", ledger.addInvoices("<3@example.com>", fingerprint, "rules-1",
+                    Collections.singletonList(invoice("INV-3", 30.0))), false);
+
+            // The recorded results are read back
+            ledger.save();
+            ProcessedMessageLedger loaded = ProcessedMessageLedger.load(outputDir);
+            check("loaded messages", loaded.size(), 2);
+            List<Invoice> invoices = loaded.get("<1@example.com>", fingerprint, "rules-1");
+            check("loaded invoices", invoices.size(), 2);
+            check("loaded number", invoices.get(0).getNumber(), "INV-1");
+            check("loaded amount", invoices.get(0).getAmount(), 10.5);
+            check("loaded subject", invoices.get(0).getSubject(), "Ihre Rechnung");
+
+            // Messages that no longer exist are dropped, and reprocessing everything forgets all messages
+            loaded.retain(new HashSet<>(Collections.singletonList("<2@example.com>")));
+            check("retained messages", loaded.size(), 1);
+            loaded.clear();
+            loaded.save();
+            check("messages after reprocessing", ProcessedMessageLedger.load(outputDir).size(), 0);
+
+            // An unreadable ledger parses everything again
+            Files.write(new File(outputDir, ProcessedMessageLedger.FILE_NAME).toPath(), new byte[]{1, 2, 3});
+            check("unreadable ledger", ProcessedMessageLedger.load(outputDir).size(), 0);
+
+            LOGGER.info("Processed message ledger checks passed");
+        } finally {
+            FileUtils.deleteDirectory(outputDir);
+        }
+    }
+
+    private static MimeMessage message(String subject) throws Exception {
+        MimeMessage message = new MimeMessage(Session.getInstance(new Properties()));
+        message.setSubject(subject);
+        message.setFrom(new InternetAddress("billing@example.com"));
+        message.setSentDate(new Date(1709280000000L));
+        message.setText("Rechnungsbetrag: 10,50 €");
+        return message;
+    }
+
+    private static Invoice invoice(String number, double amount) {
+        Invoice invoice = new Invoice();
+        invoice.setNumber(number);
+        invoice.setAmount(amount);
+        invoice.setSubject("Ihre Rechnung");
+        invoice.setYear(2024);
+        invoice.setMonth(3);
+        invoice.setDay(1);
+        return invoice;
+    }
+
+    private static void check(String what, Object actual, Object expected) {
+        if (!actual.equals(expected)) {
+            throw new IllegalStateException(what + ": expected " + expected + ", got " + actual);
+        }
+    }
+}
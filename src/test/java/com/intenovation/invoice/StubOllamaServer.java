@@ -0,0 +1,127 @@
+package com.intenovation.invoice;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An in-process stand-in for an Ollama server, answering {@code /api/tags} and {@code /api/generate}.
+ * Every generate request sleeps for a configurable latency and answers with {@link #expectedResponse(String)},
+ * so callers can check they got the answer to their own prompt. The server counts requests, the number
+ * of requests it served at the same time and the client connections it saw.
+ */
+public class StubOllamaServer implements AutoCloseable {
+    static {
+        // Ollama's Go HTTP server sends with TCP_NODELAY. Without it the JDK server holds back the body behind
+        // the headers until the client's delayed acknowledgement, about 40 ms per request on keep-alive connections.
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final long latencyMillis;
+
+    private final AtomicInteger generateRequests = new AtomicInteger();
+    private final AtomicInteger tagsRequests = new AtomicInteger();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger maxActive = new AtomicInteger();
+    private final Set<Integer> clientPorts = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Start a server on a free local port
+     *
+     * @param latencyMillis Simulated generation time per request
+     */
+    public StubOllamaServer(long latencyMillis) throws IOException {
+        this.latencyMillis = latencyMillis;
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 64);
+        executor = Executors.newFixedThreadPool(32);
+        server.setExecutor(executor);
+        server.createContext("/api/tags", exchange -> {
+            tagsRequests.incrementAndGet();
+            respond(exchange, 200, "{\"models\":[]}");
+        });
+        server.createContext("/api/generate", this::generate);
+        server.start();
+    }
+
+    /**
+     * The response the server gives to a prompt
+     */
+    public static String expectedResponse(String prompt) {
+        return "{\"echo\": " + prompt.hashCode() + "}";
+    }
+
+    public String getHost() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    public int getGenerateRequests() { return generateRequests.get(); }
+    public int getTagsRequests() { return tagsRequests.get(); }
+    public int getMaxActive() { return maxActive.get(); }
+    public int getConnections() { return clientPorts.size(); }
+
+    /**
+     * Reset the counters
+     */
+    public void reset() {
+        generateRequests.set(0);
+        tagsRequests.set(0);
+        maxActive.set(0);
+        clientPorts.clear();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void generate(HttpExchange exchange) throws IOException {
+        clientPorts.add(exchange.getRemoteAddress().getPort());
+        generateRequests.incrementAndGet();
+        maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+        JSONObject response;
+        try {
+            JSONObject request;
+            try (InputStream in = exchange.getRequestBody()) {
+                request = new JSONObject(new String(in.readAllBytes(), StandardCharsets.UTF_8));
+            }
+            Thread.sleep(latencyMillis);
+            response = new JSONObject()
+                    .put("model", request.getString("model"))
+                    .put("created_at", "2024-01-01T00:00:00Z")
+                    .put("response", expectedResponse(request.getString("prompt")))
+                    .put("done", true);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } finally {
+            // Before answering: once the answer is sent, the client may start its next request at once
+            active.decrementAndGet();
+        }
+        respond(exchange, 200, response.toString());
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.intenovation.invoice;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+/**
+ * Test harness comparing the {@link com.intenovation.email.utils.SynonymClassifier} behind Type, City, Utility
+ * and Property detection with the lower-case {@code contains} loops it replaced: both must give the same constant
+ * for random texts built from the synonyms in mixed case, and the first constant in declaration order wins
+ * when synonyms of several constants occur.
+ */
+public class SynonymDetectionTest {
+    private static final Logger LOGGER = Logger.getLogger(SynonymDetectionTest.class.getName());
+
+    private static final String[] FILLER = {" ", "\n", ", ", "Sehr geehrte Damen und Herren", "Ärger", "ÖL", "x", "123"};
+
+    public static void main(String[] args) {
+        Random random = new Random(42);
+        int texts = 10_000;
+        checkEquivalent("Type", Type.values(), t -> t.synonyms, Type::detectType, Type.Letter, random, texts);
+        checkEquivalent("City", City.values(), City::getSynonyms, City::detectCity, City.Unknown, random, texts);
+        checkEquivalent("Utility", Utility.values(), Utility::getSynonyms, Utility::detectUtility, Utility.Unknown,
+                random, texts);
+        checkEquivalent("Property", Property.values(), Property::getSynonyms, Property::detectProperty,
+                Property.Unknown, random, texts);
+
+        // Receipt is declared before Invoice, whichever synonym comes first in the text
+        check("first constant in declaration order", Type.detectType("RECHNUNG zur Zahlung, Beleg anbei"), Type.Receipt);
+        check("upper-case umlaut", Type.detectType("SCHÄTZUNG der Kosten"), Type.Estimate);
+        check("missing text", Type.detectType(null), Type.Letter);
+
+        LOGGER.info("Synonym detection checks passed for " + texts + " texts per enum");
+    }
+
+    /**
+     * Check that a detect method gives the same results as the lower-case contains loop
+     *
+     * @param name The enum name for error messages
+     * @param values The constants in declaration order
+     * @param synonyms Gets the lower-case synonyms of a constant
+     * @param detect The detect method
+     * @param fallback The result if no synonym occurs
+     * @param random The source of the random texts
+     * @param texts The number of random texts
+     */
+    public static <E extends Enum<E>> void checkEquivalent(String name, E[] values, Function<E, ? extends Collection<String>> synonyms,
+                                                          Function<String, E> detect, E fallback, Random random, int texts) {
+        List<String> vocabulary = new ArrayList<>();
+        for (E value : values) {
+            vocabulary.addAll(synonyms.apply(value));
+        }
+        for (int t = 0; t < texts; t++) {
+            StringBuilder text = new StringBuilder();
+            int words = random.nextInt(6);
+            for (int w = 0; w < words; w++) {
+                text.append(FILLER[random.nextInt(FILLER.length)]);
+                String word = vocabulary.get(random.nextInt(vocabulary.size()));
+                switch (random.nextInt(4)) {
+                    case 0: word = word.toUpperCase(Locale.ROOT); break;
+                    case 1: word = word.substring(0, 1).toUpperCase(Locale.ROOT) + word.substring(1); break;
+                    case 2: word = word.substring(0, Math.max(1, word.length() - 1)); break;
+                    default: break;
+                }
+                text.append(word);
+            }
+            check(name + " of \"" + text + "\"", detect.apply(text.toString()),
+                    containsLoop(values, synonyms, text.toString(), fallback));
+        }
+    }
+
+    /**
+     * The detection the classifier replaces
+     */
+    private static <E extends Enum<E>> E containsLoop(E[] values, Function<E, ? extends Collection<String>> synonyms,
+                                                     String content, E fallback) {
+        content = content.toLowerCase();
+        for (E value : values) {
+            for (String synonym : synonyms.apply(value)) {
+                if (content.contains(synonym)) {
+                    return value;
+                }
+            }
+        }
+        return fallback;
+    }
+
+    private static void check(String what, Object actual, Object expected) {
+        if (!actual.equals(expected)) {
+            throw new IllegalStateException(what + ": expected " + expected + ", got " + actual);
+        }
+    }
+}